@@ -20,7 +20,7 @@ import dsmllab.utilities.ExperimentParameters;
  *
  *  @author R. Paul Wiegand
  */
-public class APExperimentParameters extends ExperimentParameters implements Serializable
+public class APExperimentParameters extends ExperimentParameters implements Serializable, Cloneable
 {
   // Define the simulation params
   public int numParticles = 10;
@@ -38,11 +38,65 @@ public class APExperimentParameters extends ExperimentParameters implements Seri
   public int numSimTrials = 1;
   public boolean readFromParamFile = true;
   public String username = "ENV_NAME"; 
+
+  // Force phase parameters
+  public String updateMode = ForceEngine.SEQUENTIAL_UPDATE;  // or synchronous
+  public int numThreads = 0;              // synchronous mode; 0 = all processors
+  public int environmentSyncInterval = 1; // synchronous mode; steps between MASON environment updates, 0 = at the end
+  public boolean useReciprocalPairs = true;  // synchronous mode; evaluate such pairs once
+  public boolean useVerletLists = false;  // keep Verlet neighbor lists
+  public double verletSkin = 10.0;        // extra distance kept in the lists
+  public boolean useTreeCode = false;     // synchronous mode; Barnes-Hut for whole-field laws
+  public double treeOpeningAngle = 0.5;   // 0 = exact
+  public int mtsInterval = 1;             // synchronous mode; steps between whole-field force updates
+  public boolean useForceTables = false;  // interpolate force laws from tables
+  public double forceTableError = 1e-6;   // relative error bound of the tables
+  public boolean useVectorKernel = true;  // SIMD Newtonian forces, if the Vector API is there
+
+  // Integration (see Integrator)
+  public String integrator = Integrator.EULER;  // or verlet or semiImplicit
+  public double timeStep = 1.0;           // dt of each step
+
+  // Early termination (see ConvergenceMonitor)
+  public String convergenceCriterion = ConvergenceMonitor.NONE;  // kineticEnergy, maxDisplacement or coverage
+  public double convergenceThreshold = 1e-3;
+  public int convergenceSteps = 50;       // consecutive steps at or below the threshold
+
+  // Per-phase timings and counters (see StepProfiler)
+  public boolean profileSteps = false;
+
+  // Checkpoints (see ModelCheckpoint)
+  public String checkpointFileName = null;  // saved to during runs, if not null
+  public long checkpointInterval = 0;       // steps between checkpoints
+  public String restoreFileName = null;     // test() starts its first trial from this
+
+  // Trajectories (see TrajectoryRecorder and TrajectoryPlayer)
+  public String trajectoryFileName = null;  // recorded to, if not null
+  public int trajectoryInterval = 1;        // steps between frames
+  public int trajectoryBufferFrames = 32;   // frames waiting for the writer
+  public boolean trajectoryDelta = false;   // delta encode the frames
+  public double trajectoryResolution = 1e-3;  // of the delta encoding
+  public int trajectoryKeyframeInterval = 64;  // frames between keyframes
+  public String replayFileName = null;      // played back instead of simulating
+  public double replaySpeed = 1.0;          // frames per step
   protected  String defaultMeasures[] = {};
+  protected String measureIDs[] = {};
 
   public APExperimentParameters() { super(); }
   public APExperimentParameters(String paramFile) {super(paramFile);}
 
+  /** Return a copy of these parameters that can be changed without
+   *  affecting models already using the original. */
+  public APExperimentParameters copy() {
+    try {
+      return (APExperimentParameters)clone();
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException("Could not copy the experiment parameters: " + e);
+    }
+  }//copy()
+
+
   // Override to set the default measures ...
   protected String[] getDefaultMeasures() {
     String defaultMsrs[] = {};
@@ -54,27 +108,32 @@ public class APExperimentParameters extends ExperimentParameters implements Seri
     String msrs[] = getDefaultMeasures();
     if (msrs.length > 0) {
       String defaultMsrString = stringArrayToString(getDefaultMeasures());
-      registerAllMeasures(getStringArrayProp("measures",defaultMsrString));
+      measureIDs = getStringArrayProp("measures",defaultMsrString);
     }
     if (username.compareTo("ENV_NAME") == 0) 
       username = System.getProperty("user.name", "wiegand");
   }
 
 
-  protected void registerAllMeasures(String measureIDs[]) {
-    if (APModel.measures == null) {
-      APModel.measures = new MeasureRegistry();
-      for (int i=0; i<measureIDs.length; i++) {
-	try {
-	  Class c = Class.forName("dsmllab.apmodel." + measureIDs[i]);
-	  AbstractMeasure msr = (AbstractMeasure)c.newInstance();
-          APModel.measures.registerMeasure(msr);
-	}//try
-	catch (Exception ex) {
-	  System.err.println("Error:  Could not load measure " + measureIDs[i]);
-	}//catch
-      }//for
-    }//if
+  /** Create a registry with a new instance of each measure asked for,
+   *  or return null if there are none.  Every model gets a registry of
+   *  its own, so models can run side by side. */
+  public MeasureRegistry createMeasureRegistry() {
+    if (measureIDs.length == 0) return null;
+
+    MeasureRegistry measures = new MeasureRegistry();
+    for (int i=0; i<measureIDs.length; i++) {
+      try {
+        Class c = Class.forName("dsmllab.apmodel." + measureIDs[i]);
+        AbstractMeasure msr = (AbstractMeasure)c.newInstance();
+        measures.registerMeasure(msr);
+      }//try
+      catch (Exception ex) {
+        System.err.println("Error:  Could not load measure " + measureIDs[i]);
+      }//catch
+    }//for
+
+    return measures;
   }
     
 
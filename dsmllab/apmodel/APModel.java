@@ -6,6 +6,8 @@ import sim.util.*;
 import ec.util.*;
 import java.io.*;
 import java.text.DecimalFormat;
+import java.util.Vector;
+import java.util.concurrent.*;
 
 /**
  *  This class implements a SimState class in the MASON simulation toolkit (by Sean Luke).
@@ -17,6 +19,10 @@ import java.text.DecimalFormat;
  *
  *  This is the abstract base class for many implementations (e.g., IPSP).
  *
+ *  All of the state of a simulation, including its experiment parameters,
+ *  measures and field, belongs to the instance, so any number of models
+ *  can run side by side in the same JVM (see the threaded evaluate()).
+ *
  *  @author R. Paul Wiegand
  *  @version Version 0.1 beta
  */
@@ -24,24 +30,32 @@ import java.text.DecimalFormat;
 public class APModel extends SimState {
   public static final int DEBUG_LEVEL = 1;
 
-  // Global constants defining the field of the simulation
+  // Constants defining the default field of the simulation
   public static final double ASPECT_RATIO=8.0/6.0;
   public static final double MAX_DIM_SIZE=350;
-  public static double XMIN = 0;
-  public static double XMAX = XMIN + ASPECT_RATIO*MAX_DIM_SIZE;
-  public static double YMIN = 0;
-  public static double YMAX = YMIN + MAX_DIM_SIZE;
+  public double XMIN = 0;
+  public double XMAX = XMIN + ASPECT_RATIO*MAX_DIM_SIZE;
+  public double YMIN = 0;
+  public double YMAX = YMIN + MAX_DIM_SIZE;
 
   public double fitness = 0.0;         // long-term, across trials
   public double penalty = 0.0;
-  public static APExperimentParameters expParams;// = new APExperimentParameters();
+  public APExperimentParameters expParams = null;
   public String apParamsString;    // populated by the domain & read instead of a file
 
   // Components of the simulation
   public Continuous2D environment = null;
   public ForceInteractionModel forceInteractionModel = null;
-  public static MeasureRegistry measures = null;
+  public ParticleStore particleStore = null;
+  public ForceEngine forceEngine = null;
+  public Integrator integrator = null;
+  public MeasureRegistry measures = null;
   public APParser apParamsParser = null;
+  public ConvergenceMonitor convergenceMonitor = null;
+  public long stepsRun = 0;            // steps taken by the last trial
+  public StepProfiler profiler = null; // only if expParams.profileSteps
+  public TrajectoryRecorder trajectoryRecorder = null;
+  public TrajectoryPlayer trajectoryPlayer = null;   // replaying instead of simulating
 
   public String getParamFileName() {return expParams.apParamFileName;}
   public void setParamFileName(String name) {expParams.apParamFileName = name;}
@@ -59,14 +73,31 @@ public class APModel extends SimState {
 
   /** Verifies that the particle is in the field.*/
   public boolean acceptablePosition( final Particle particle, final Double2D location ) {
-    if( location.x < particle.diameter/2 || location.x > (XMAX-XMIN)-particle.diameter/2 ||
-	location.y < particle.diameter/2 || location.y > (YMAX-YMIN)-particle.diameter/2 )
+    return acceptablePosition(particle,location.x,location.y);
+  }//acceptablePosition()
+
+
+  /** Verifies that the particle is in the field, without needing a
+   *  Double2D for the candidate location.*/
+  public boolean acceptablePosition( final Particle particle, double x, double y ) {
+    if( x < particle.diameter/2 || x > (XMAX-XMIN)-particle.diameter/2 ||
+	y < particle.diameter/2 || y > (YMAX-YMIN)-particle.diameter/2 )
       return false;
 
     return true;
   }//acceptablePosition()
 
 
+  /** Schedule a newly registered particle.  In the sequential update mode
+   *  every particle is stepped on its own.  In the synchronous mode the
+   *  force engine steps all of them at once, so nothing is scheduled.
+   *  Nor is anything when a trajectory is being replayed. */
+  public void scheduleParticle(final Particle particle) {
+    if (!ForceEngine.isSynchronousMode(expParams) && (expParams.replayFileName == null))
+      schedule.scheduleRepeating(particle);
+  }//scheduleParticle()
+
+
   /** Create a random location somewhere in a bounding box in
    *  the middle of the field. */
   public Double2D getRandomInitialPos(double boxFactor) {
@@ -90,14 +121,37 @@ public class APModel extends SimState {
    *  is restarted or repeated. */
   public void start() {
     super.start();  // clear out the schedule
+    closeTrajectories();
 
     loadParams();
+    profiler = (expParams.profileSteps ? new StepProfiler() : null);
+    forceEngine = null;
+    integrator = Integrator.create(this);
     initializeEnvironment();
 
     // Once particles are created, all particle types are registered and we
     // can setup all the individual interactions in the model
     setupInteractions();    
 
+    // The force engine sizes its neighbor search from the interactions,
+    // so it has to come last
+    initializeForceEngine();
+    boolean replaying = (expParams.replayFileName != null);
+    if (forceEngine.isSynchronous() && !replaying) schedule.scheduleRepeating(forceEngine);
+
+    convergenceMonitor = (replaying ? null : ConvergenceMonitor.create(this));
+    if (convergenceMonitor != null)
+      schedule.scheduleRepeating(convergenceMonitor,ConvergenceMonitor.ORDERING,1.0);
+
+    trajectoryPlayer = TrajectoryPlayer.create(this);
+    if (trajectoryPlayer != null) schedule.scheduleRepeating(trajectoryPlayer);
+
+    trajectoryRecorder = TrajectoryRecorder.create(this);
+    if (trajectoryRecorder != null) {
+      openTrajectory();
+      schedule.scheduleRepeating(trajectoryRecorder,TrajectoryRecorder.ORDERING,1.0);
+    }
+
     if (DEBUG_LEVEL > 1)
       System.out.println("DEBUG:  finished placing ALL particles");
   }//start()
@@ -107,14 +161,17 @@ public class APModel extends SimState {
   public void loadParams() {
     if (expParams == null) expParams = new APExperimentParameters();
     if (!expParams.isLoaded()) expParams.loadParameters();
+    if (measures == null) measures = expParams.createMeasureRegistry();
 
     forceInteractionModel = new ForceInteractionModel();
+    particleStore = new ParticleStore();
     apParamsParser = new APParser(this,forceInteractionModel);
 
-    apParamsParser.loadFromFile(expParams.apParamFileName);
-
-
-
+    // The domain may hand us the AP model parameters directly
+    if (!expParams.readFromParamFile && (apParamsString != null))
+      apParamsParser.loadFromString(apParamsString);
+    else
+      apParamsParser.loadFromFile(expParams.apParamFileName);
   }
 
   /** Place particles, setup simulation, etc. */
@@ -135,7 +192,104 @@ public class APModel extends SimState {
     apParamsParser.registerAllForceLaws();
   }
 
+
+  /** Setup the engine that carries out the force phase */
+  public void initializeForceEngine() {
+    forceEngine = new ForceEngine(this);
+    forceEngine.initialize();
+  }
+
   
+  /** True if the convergence monitor (if there is one) says the
+   *  formation has settled and the trial can stop. */
+  public boolean hasConverged() {
+    return ((convergenceMonitor != null) && convergenceMonitor.hasConverged());
+  }
+
+
+  /** Take up to numSteps steps, stopping early if the schedule runs dry
+   *  or the model converges.  The number of steps taken is left in
+   *  stepsRun. */
+  public void runSteps(long numSteps) {
+    stepsRun = 0;
+    continueSteps(numSteps);
+  }//runSteps()
+
+
+  /** As runSteps(), but counting on from the steps already in stepsRun,
+   *  as after restoring a checkpoint.  If the experiment parameters ask
+   *  for it, a checkpoint is saved every checkpointInterval steps. */
+  public void continueSteps(long numSteps) {
+    while (stepsRun < numSteps) {
+      if (DEBUG_LEVEL > 1) System.out.println("DEBUG: step=" + stepsRun);
+      if (!schedule.step(this)) break;
+      stepsRun++;
+
+      if ((expParams.checkpointFileName != null) && (expParams.checkpointInterval > 0) &&
+          (stepsRun % expParams.checkpointInterval == 0)) {
+        try {
+          saveCheckpoint(expParams.checkpointFileName);
+        }
+        catch (IOException e) {
+          System.err.println("Warning:  Could not save a checkpoint to " +
+                             expParams.checkpointFileName + ": " + e);
+        }
+      }
+
+      if (hasConverged()) break;
+    }
+  }//continueSteps()
+
+
+  /** Save the full state of the model, between steps, to the given file
+   *  (see ModelCheckpoint). */
+  public void saveCheckpoint(String fileName) throws IOException {
+    ModelCheckpoint.save(this,fileName);
+  }
+
+  /** Start a new trial from the state saved in the given file, rather
+   *  than from scratch.  Carry on with continueSteps(). */
+  public void restoreCheckpoint(String fileName) throws IOException {
+    ModelCheckpoint.restore(this,fileName);
+  }
+
+  /** Called once a checkpoint has been restored, to drop anything
+   *  computed from the state the trial was started with.  The trajectory
+   *  is started over from the restored state. */
+  protected void checkpointRestored() {
+    if (trajectoryRecorder != null) openTrajectory();
+  }
+
+
+  /** Start recording the trajectory from the current state */
+  protected void openTrajectory() {
+    try {
+      trajectoryRecorder.open(this);
+    }
+    catch (IOException e) {
+      System.err.println("Warning:  Could not record the trajectory to " +
+                         trajectoryRecorder.getFileName() + ": " + e);
+    }
+  }//openTrajectory()
+
+
+  /** Finish writing the trajectory being recorded and close the one being
+   *  replayed, if there are any */
+  protected void closeTrajectories() {
+    if (trajectoryRecorder != null) {
+      try {
+        trajectoryRecorder.close();
+      }
+      catch (IOException e) {
+        System.err.println("Warning:  Could not finish writing the trajectory to " +
+                           trajectoryRecorder.getFileName() + ": " + e);
+      }
+    }
+    if (trajectoryPlayer != null) trajectoryPlayer.close();
+    trajectoryPlayer = null;
+  }//closeTrajectories()
+
+
   /** Resolving fitness issues */
   public double resolveFinalFitness()  {return 0.0;}
   protected double resolveTrialFitness() {return 0.0;}
@@ -156,12 +310,7 @@ public class APModel extends SimState {
         
     for (trials=0; trials < expParams.numSimTrials; trials++) {
       ap.start();
-      for (long steps=0; steps < expParams.numSteps; steps++) {
-        System.out.println(steps);
-	if (DEBUG_LEVEL > 1) System.out.println("DEBUG: step=" + steps);
-	if (!ap.schedule.step(ap)) break;
-      }
-
+      ap.runSteps(expParams.numSteps);
       ap.finish();
     }
 
@@ -169,9 +318,101 @@ public class APModel extends SimState {
   }//evaluate()
 
 
+  /** This version of evaluate() runs the trials side by side on the
+   *  given number of threads (all available processors if it isn't
+   *  positive).  Each trial gets its own instance of modelClass, which
+   *  must have a constructor taking the random number seed, and so its
+   *  own MersenneTwisterFast, seeded with baseSeed plus the number of the
+   *  trial.  The parameters are shared, and must not be changed while
+   *  the trials run.  The fitness of the trials is summed in trial
+   *  order, so the result doesn't depend on the number of threads. */
+  public static double evaluate(final Class modelClass, final APExperimentParameters expParams,
+                                final String apParamsString, int numThreads, long baseSeed) {
+    if (numThreads <= 0) numThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+    try {
+      return meanFitness(submitTrials(modelClass,expParams,apParamsString,pool,baseSeed));
+    }
+    finally {
+      pool.shutdown();
+    }
+  }//evaluate()
+
+
+  /** Submit the trials of one set of parameters to the given pool, seeded
+   *  as in the threaded evaluate(), and return their futures.  Callers
+   *  evaluating many parameter sets at once (see Optimizer) submit all of
+   *  them before waiting on any, so the pool is kept busy. */
+  public static Vector submitTrials(final Class modelClass, final APExperimentParameters expParams,
+                                    final String apParamsString, ExecutorService pool, long baseSeed) {
+    expParams.readFromParamFile = false;
+    if (!expParams.isLoaded()) expParams.loadParameters();
+
+    Vector results = new Vector();
+    for (int trial=0; trial < expParams.numSimTrials; trial++) {
+      final long seed = baseSeed + trial;
+      results.add(pool.submit(new Callable() {
+          public Object call() throws Exception {
+            APModel ap = newInstance(modelClass,seed);
+            return Double.valueOf(ap.runTrial(expParams,apParamsString));
+          }
+        }));
+    }
+
+    return results;
+  }//submitTrials()
+
+
+  /** Wait for the trials returned by submitTrials() and return the mean
+   *  of their fitness, summed in trial order. */
+  public static double meanFitness(Vector results) {
+    try {
+      double total = 0.0;
+      for (int trial=0; trial < results.size(); trial++)
+        total += ((Double)((Future)results.get(trial)).get()).doubleValue();
+
+      return (total / (double)results.size());
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException("Error while running a trial: " + e.getCause(),e.getCause());
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while waiting for the trials",e);
+    }
+  }//meanFitness()
+
+
+  /** Create a model of the given class, which must have a constructor
+   *  taking the random number seed. */
+  public static APModel newInstance(Class modelClass, long seed) throws Exception {
+    return (APModel)modelClass.getConstructor(new Class[] {long.class})
+      .newInstance(new Object[] {Long.valueOf(seed)});
+  }//newInstance()
+
+
+  /** Run a single trial on this model and return its fitness.  The
+   *  number of steps it took is left in stepsRun. */
+  public double runTrial(APExperimentParameters expParams, String apParamsString) {
+    this.expParams = expParams;
+    this.apParamsString = apParamsString;
+    penalty = 0.0;
+    fitness = 0.0;
+
+    start();
+    runSteps(expParams.numSteps);
+    finish();
+
+    return resolveFinalFitness();
+  }//runTrial()
+
+
   /** Called when the simulation terminates. */
   public void finish() {
     super.finish();
+    if (forceEngine != null) forceEngine.syncEnvironment();
+    closeTrajectories();
+    if (profiler != null) profiler.setNumSteps(schedule.getSteps());
     fitness += resolveTrialFitness();
   }
 
@@ -187,16 +428,29 @@ public class APModel extends SimState {
     ap.penalty = 0.0;
     ap.fitness = 0.0;
         
-    for (trials=0; trials < expParams.numSimTrials; trials++) {
-      ap.start();
-      for (long steps=0; steps < expParams.numSteps; steps++) {
-	if (DEBUG_LEVEL > 1) System.out.println("DEBUG: step=" + steps);
-	if (!ap.schedule.step(ap)) break;
+    for (trials=0; trials < ap.expParams.numSimTrials; trials++) {
+      if ((trials == 0) && (ap.expParams.restoreFileName != null)) {
+        try {
+          ap.restoreCheckpoint(ap.expParams.restoreFileName);
+        }
+        catch (IOException e) {
+          System.err.println("Error restoring checkpoint " + ap.expParams.restoreFileName + ": " + e);
+          System.exit(1);
+        }
+        ap.continueSteps(ap.expParams.numSteps);
+      }
+      else {
+        ap.start();
+        ap.runSteps(ap.expParams.numSteps);
       }
-
       ap.finish();
+      if (ap.hasConverged())
+        System.out.println("Converged (" + ap.convergenceMonitor.getCriterion() + ") after " +
+                           ap.stepsRun + " of " + ap.expParams.numSteps + " steps");
       if (ap.measures != null)
 	ap.measures.reportAllCurrentTrial();
+      if (ap.profiler != null)
+        ap.profiler.report(System.out);
     }
 
     double eval = ap.targets_covered();
@@ -17,18 +17,41 @@ public class APModelWithUI extends GUIState {
   ContinuousPortrayal2D vidPortrayal = new ContinuousPortrayal2D();
 
   public static void main(String[] args) {
-    if (args.length > 0) APModel.expParams = new APExperimentParameters(args[0]);
-    else APModel.expParams = new APExperimentParameters();
-
     APModelWithUI vid = new APModelWithUI(args);
     Console c = new Console(vid);
     c.setVisible(true);
   }//main()
 
 
-  public APModelWithUI(String[] args) {super(new APModel( System.currentTimeMillis()));}
+  public APModelWithUI(String[] args) {super(createModel(args));}
   public APModelWithUI(SimState state) { super(state); }
 
+  /** Create the model, with the experiment parameters named on the
+   *  command line if there are any.  They may be followed by
+   *  "-replay file" to play a recorded trajectory back instead of
+   *  simulating, and "-speed s" to set how many frames go by each step. */
+  protected static APModel createModel(String[] args) {
+    APModel ap = new APModel(System.currentTimeMillis());
+    if ((args.length > 0) && !args[0].startsWith("-"))
+      ap.expParams = new APExperimentParameters(args[0]);
+    else ap.expParams = new APExperimentParameters();
+
+    for (int i=0; i<args.length-1; i++) {
+      if (args[i].equals("-replay")) ap.expParams.replayFileName = args[++i];
+      else if (args[i].equals("-speed")) {
+        try {
+          ap.expParams.replaySpeed = Double.parseDouble(args[++i]);
+        }
+        catch (NumberFormatException e) {
+          System.err.println("Warning:  Bad replay speed " + args[i] + "; using " +
+                             ap.expParams.replaySpeed);
+        }
+      }
+    }
+    return ap;
+  }//createModel()
+
+
   public static String getName() { return "Artificial Physicomimetics"; }
     
   public static String getInfo() {
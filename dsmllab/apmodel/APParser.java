@@ -19,7 +19,6 @@ public class APParser {
   public APParser(APModel ap, ForceInteractionModel fim) {
     this.ap = ap;
     this.fim = fim;
-    ForceLaw.apparser = this;
   }
 
 
@@ -75,50 +74,86 @@ public class APParser {
 
 
   public void instantiateBlock(String blockName, String blockValue) {
+    instantiateBlock(new CompiledScenario.Block(blockName,blockValue));
+  }
+
+
+  /** Create the items of a compiled block and add them to the list of
+   *  loaded items. */
+  public void instantiateBlock(CompiledScenario.Block block) {
     try{
-      Class c = Class.forName(blockName);
-      Object o = c.newInstance();
-      Vector items = ((Parsable)o).createCopiesFromParse(blockValue);
+      if (block.itemClass == null) throw new ClassNotFoundException(block.className);
+      Object o = block.newInstance();
+      if (o instanceof ForceLaw) ((ForceLaw)o).apparser = this;
+
+      Vector items;
+      if (block.usesProperties && (o instanceof Particle))
+        items = ((Particle)o).createCopiesFromProperties(block.getProperties());
+      else if (block.usesProperties && (o instanceof ForceLaw))
+        items = ((ForceLaw)o).createCopiesFromProperties(block.getProperties());
+      else
+        items = ((Parsable)o).createCopiesFromParse(block.blockValue);
       loadedItemsList.addAll(items);
     }
     catch (Exception e) {
-      System.err.println("Could not instantiate class appropriate Parsable class: " + blockName );
+      System.err.println("Could not instantiate class appropriate Parsable class: " + block.className );
       System.err.println("ERROR: " + e);
-      System.err.println(blockValue);
+      System.err.println(block.blockValue);
     }
   }
 
 
-  protected int loadFromTokenizer(StreamTokenizer tokenizer) throws Exception {
-    int numItems = 0;
+  /** Create the items of every block of the scenario, in order.  Nothing
+   *  is parsed here, so this is all a trial has to do when the scenario
+   *  comes from the cache. */
+  public int loadFromScenario(CompiledScenario scenario) {
     loadedItemsList = new Vector();
+    for (int i=0; i<scenario.getNumBlocks(); i++)
+      instantiateBlock(scenario.getBlock(i));
+    return scenario.getNumBlocks();
+  }
 
-    while (true) {
-      int token = tokenizer.nextToken();
-      if (token == StreamTokenizer.TT_EOF) break;
-      else {
-	String blockName = tokenizer.sval;
-	String blockValues = getBlockValues(tokenizer,blockName);
-	instantiateBlock(blockName,blockValues);
-	tokenizer.eolIsSignificant(false);
-	numItems++;
-      }	
-    }
 
-    return numItems;
+  /** As loadFromScenario(), but the particle blocks become kinds of the
+   *  arena instead of Particles, so a block can ask for millions of them.
+   *  One prototype of each is left in the list of loaded items, for the
+   *  force laws to find the subtypes by; the particles themselves are
+   *  placed by ParticleArena.placeParticles(), not registerAllParticles(). */
+  public int loadFromScenario(CompiledScenario scenario, ParticleArena arena) {
+    loadedItemsList = new Vector();
+    for (int i=0; i<scenario.getNumBlocks(); i++) {
+      CompiledScenario.Block block = scenario.getBlock(i);
+      if ((block.itemClass == null) || !Particle.class.isAssignableFrom(block.itemClass)) {
+        instantiateBlock(block);
+        continue;
+      }
+
+      try {
+        int kind = arena.addBlock(block);
+        loadedItemsList.add(arena.getKind(kind).prototype);
+      }
+      catch (Exception e) {
+        System.err.println("Could not instantiate class appropriate Parsable class: " + block.className );
+        System.err.println("ERROR: " + e);
+        System.err.println(block.blockValue);
+      }
+    }
+    return scenario.getNumBlocks();
   }
 
 
+  /** Load the parameters from a string.  Unlike loadFromFile(), a bad
+   *  string doesn't end the program, since the string usually comes from
+   *  a learner that can go on to the next candidate; an
+   *  IllegalArgumentException is thrown instead. */
   public void loadFromString(String apParamsString) {
     int numItems = 0;
 
     try {
-      StringReader sr = new StringReader(apParamsString);
-      StreamTokenizer tokenizer = new StreamTokenizer(sr);
-      numItems = loadFromTokenizer(tokenizer);
+      numItems = loadFromScenario(CompiledScenario.forString(apParamsString));
     } catch (Exception e) {
       System.err.println("Error reading AP model parameters: " + e);
-      System.exit(1);
+      throw new IllegalArgumentException("Error reading AP model parameters: " + e.getMessage());
     }
 
     if (VERBOSE_LOAD)
@@ -130,9 +165,7 @@ public class APParser {
     int numItems = 0;
 
     try {
-      FileReader fr = new FileReader(fileName);
-      StreamTokenizer tokenizer = new StreamTokenizer(fr);
-      numItems = loadFromTokenizer(tokenizer);
+      numItems = loadFromScenario(CompiledScenario.forFile(fileName));
     } catch (Exception e) {
       System.err.println("Error reading AP model parameters: " + e);
       System.exit(1);
@@ -59,8 +59,11 @@ public abstract class AbstractMeasure implements Steppable {
   protected void incStepCount(int incVal) { stepCount += incVal; }
 
   public void step(SimState state) {
-    currentStepStatistic = computeStepMeasure((APModel)state);
+    APModel ap = (APModel)state;
+    long start = (ap.profiler != null ? System.nanoTime() : 0);
+    currentStepStatistic = computeStepMeasure(ap);
     cumulativeStepStatistic += currentStepStatistic;
+    if (ap.profiler != null) ap.profiler.addTime(StepProfiler.MEASURES,System.nanoTime() - start);
   }
 
 
@@ -94,6 +97,24 @@ public abstract class AbstractMeasure implements Steppable {
 
   public void setParentRegistry(MeasureRegistry registry) {parentRegistry = registry;}
 
+  /** Write the statistics to a checkpoint.  Measures keeping more
+   *  state than this should add it. */
+  public void writeState(ModelCheckpoint.Output out) throws java.io.IOException {
+    out.putDouble(currentStepStatistic);
+    out.putDouble(cumulativeStepStatistic);
+    out.putDouble(cumulativeTrialStatistic);
+    out.putLong(stepCount);
+    out.putLong(trialCount);
+  }
+
+  public void readState(ModelCheckpoint.Input in) throws java.io.IOException {
+    currentStepStatistic = in.getDouble();
+    cumulativeStepStatistic = in.getDouble();
+    cumulativeTrialStatistic = in.getDouble();
+    stepCount = in.getLong();
+    trialCount = in.getLong();
+  }
+
   public Object getInternalDataStructure() { return null; }
 
 }
\ No newline at end of file
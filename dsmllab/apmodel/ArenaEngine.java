@@ -0,0 +1,546 @@
+package dsmllab.apmodel;
+
+import sim.util.Double2D;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.*;
+
+/**
+ *  This class steps the particles of a ParticleArena, for swarms too big
+ *  to have a Particle object each.  It works as the synchronous mode of
+ *  the ForceEngine does:  the forces on all particles are computed from
+ *  the positions at the start of the step, and then all of them move.
+ *
+ *  Neighbors are found with a grid of cells as wide as the largest range
+ *  of effect, so the 3x3 cells around a particle hold every particle that
+ *  can affect it.  The chains of the cells are linked through the NEXT
+ *  field of the records, and their heads are kept off the heap as well,
+ *  in a table with a bucket per cell when the field has no more cells
+ *  than there are particles.  When it has more (a big, sparse field),
+ *  the cells are hashed into a table about the size of the swarm, and
+ *  the particles of other cells that share a bucket are skipped.  Either
+ *  way, the grid adds nothing on the heap per particle.  The chains are
+ *  rebuilt every step.
+ *
+ *  Rather than have each particle push its force onto its neighbors, each
+ *  particle gathers the forces on it from its neighbors, and only writes
+ *  its own record.  The particles can then be split into chunks and run
+ *  on a fork-join pool with no buffers to sum, and a run is the same
+ *  whatever the number of threads, at the cost of evaluating every pair
+ *  twice.  Only laws with a scalar kernel (see ForceLaw.usesScalarKernel())
+ *  can be used, since there are no Particles to hand apply().
+ *
+ *  There is no UI for arena runs; findNearest() and
+ *  ParticleArena.materialize() are what an inspector needs.  Run it from
+ *  the command line with
+ *
+ *    java -XX:MaxDirectMemorySize=1g dsmllab.apmodel.ArenaEngine -params file
+ *         [-steps n] [-threads n] [-seed n] [-scale s]
+ *
+ *  where -scale multiplies the number of particles of every block by s,
+ *  and the sides of the field by the square root of s, so the density of
+ *  the swarm stays the same.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class ArenaEngine {
+  public static final int MIN_CHUNK_SIZE = 4096;
+
+  protected APModel ap;
+  protected ParticleArena arena;
+  protected ForceInteractionModel forceInteractionModel;
+
+  // The interactions and squared ranges, [from type][to type]
+  protected ForceLaw interactions[][];
+  protected double effectRangeSquared[][];
+
+  // What moving a particle needs from its kind
+  protected int kindType[];
+  protected double kindFriction[];
+  protected double kindMaxVelocity[];
+  protected double kindRadius[];
+  protected boolean kindUseMomentum[];
+  protected boolean kindUseFriction[];
+  protected double kindSensorRadiusSquared[];
+  protected double maxSensorRadius = 0.0;
+  protected double maxVelocity = 0.0;
+
+  // The cells, and the heads of their chains
+  protected double cellSize;
+  protected int numCellsX, numCellsY;
+  protected int numBuckets = 0;
+  protected boolean hashed = false;
+  protected IntBuffer cellHeads = null;
+
+  protected int numThreads = 1;
+  protected int numChunks = 1;
+  protected int numStepped = 0;
+  protected ForkJoinPool pool = null;
+
+  public long stepsRun = 0;
+
+
+  public ArenaEngine(APModel ap, ParticleArena arena) {
+    this.ap = ap;
+    this.arena = arena;
+    this.forceInteractionModel = ap.forceInteractionModel;
+  }//constructor
+
+
+  public ParticleArena getArena() {return arena;}
+  public int getNumThreads() {return numThreads;}
+  public long getNumCells() {return (long)numCellsX*numCellsY;}
+  public double getCellSize() {return cellSize;}
+  public double getMaxVelocity() {return maxVelocity;}
+  public int getNumBuckets() {return numBuckets;}
+
+
+  /** Load the model's scenario into a new arena, place its particles,
+   *  set up its force laws, and return an engine ready to step it.  This
+   *  takes the place of APModel.start() for an arena run. */
+  public static ArenaEngine create(APModel ap) throws Exception {
+    return create(ap,1);
+  }
+
+  /** As create(), with the number of particles of every block multiplied
+   *  by the given factor. */
+  public static ArenaEngine create(APModel ap, int scale) throws Exception {
+    if (ap.expParams == null) ap.expParams = new APExperimentParameters();
+    if (!ap.expParams.isLoaded()) ap.expParams.loadParameters();
+
+    ap.forceInteractionModel = new ForceInteractionModel();
+    ap.apParamsParser = new APParser(ap,ap.forceInteractionModel);
+    CompiledScenario scenario = ( (!ap.expParams.readFromParamFile && (ap.apParamsString != null))
+                                  ? CompiledScenario.forString(ap.apParamsString)
+                                  : CompiledScenario.forFile(ap.expParams.apParamFileName) );
+
+    ParticleArena arena = new ParticleArena();
+    ap.apParamsParser.loadFromScenario(scenario,arena);
+    for (int k=0; k<arena.getNumKinds(); k++) arena.getKind(k).number *= scale;
+
+    arena.placeParticles(ap.forceInteractionModel,ap);
+    ap.setupInteractions();
+
+    ArenaEngine engine = new ArenaEngine(ap,arena);
+    engine.initialize();
+    return engine;
+  }//create()
+
+
+  /** Gather what the steps need from the interaction model and the kinds,
+   *  and size the cells.  This must be done after the force laws are set
+   *  up, and again if they change. */
+  public void initialize() {
+    int numTypes = forceInteractionModel.getNumParticleTypes();
+    interactions = new ForceLaw[numTypes][];
+    effectRangeSquared = new double[numTypes][];
+    for (int from=0; from<numTypes; from++) {
+      interactions[from] = forceInteractionModel.getInteractionsFrom(from);
+      effectRangeSquared[from] = forceInteractionModel.getEffectRangesSquaredFrom(from);
+      for (int to=0; to<numTypes; to++)
+        if ((interactions[from][to] != null) && !interactions[from][to].usesScalarKernel())
+          throw new IllegalArgumentException(interactions[from][to].getClass().getName() +
+                                             " has no scalar kernel, so it can't be used on an arena");
+    }
+
+    int numKinds = arena.getNumKinds();
+    kindType = new int[numKinds];
+    kindFriction = new double[numKinds];
+    kindMaxVelocity = new double[numKinds];
+    kindRadius = new double[numKinds];
+    kindUseMomentum = new boolean[numKinds];
+    kindUseFriction = new boolean[numKinds];
+    kindSensorRadiusSquared = new double[numKinds];
+    maxSensorRadius = 0.0;
+    maxVelocity = 0.0;
+    for (int k=0; k<numKinds; k++) {
+      Particle prototype = arena.getKind(k).prototype;
+      kindType[k] = arena.getKind(k).particleType;
+      kindFriction[k] = prototype.getFriction();
+      kindMaxVelocity[k] = prototype.maxVelocity;
+      kindRadius[k] = prototype.diameter/2;
+      kindUseMomentum[k] = prototype.useMomentum;
+      kindUseFriction[k] = prototype.useFriction;
+      kindSensorRadiusSquared[k] = prototype.radius*prototype.radius;
+      maxSensorRadius = Math.max(maxSensorRadius,prototype.radius);
+      maxVelocity = Math.max(maxVelocity,prototype.maxVelocity);
+    }
+
+    cellSize = forceInteractionModel.getMaxEffectRange();
+    if (cellSize <= 0) cellSize = Math.max(ap.XMAX-ap.XMIN,ap.YMAX-ap.YMIN);
+    numCellsX = (int)Math.max(1,Math.min(Integer.MAX_VALUE/2,Math.ceil((ap.XMAX-ap.XMIN)/cellSize)));
+    numCellsY = (int)Math.max(1,Math.min(Integer.MAX_VALUE/2,Math.ceil((ap.YMAX-ap.YMIN)/cellSize)));
+    numBuckets = 0;
+
+    initializeThreads(ap.expParams.numThreads);
+  }//initialize()
+
+
+  /** Use the given number of threads (all available processors if it
+   *  isn't positive). */
+  public void initializeThreads(int requestedThreads) {
+    numThreads = requestedThreads;
+    if (numThreads <= 0) numThreads = Runtime.getRuntime().availableProcessors();
+    pool = (numThreads > 1 ? ForceEngine.getPool(numThreads) : null);
+  }//initializeThreads()
+
+
+  /** Take the given number of steps */
+  public void runSteps(long numSteps) {
+    for (long s=0; s<numSteps; s++) step();
+  }
+
+
+  /** Take one step:  rebuild the cells, compute all forces, then move
+   *  every particle. */
+  public void step() {
+    stepOwned(arena.getNumParticles());
+  }
+
+
+  /** Take one step for the first numOwned particles of the arena.  The
+   *  rest are a halo, copies of particles stepped elsewhere (see
+   *  TileWorker):  they exert their forces on the owned particles, but
+   *  nothing is computed for them and they don't move. */
+  public void stepOwned(int numOwned) {
+    int numParticles = arena.getNumParticles();
+    numStepped = Math.min(numOwned,numParticles);
+    numChunks = Math.max(1,Math.min(4*numThreads,numStepped/MIN_CHUNK_SIZE));
+
+    prepareBuckets(numParticles);
+    buildCells();
+    runPhase(FORCE_PHASE);
+    runPhase(MOVE_PHASE);
+    stepsRun++;
+  }//stepOwned()
+
+
+  protected int cellX(double x) {
+    int cx = (int)((x - ap.XMIN)/cellSize);
+    return (cx < 0 ? 0 : (cx >= numCellsX ? numCellsX-1 : cx));
+  }
+  protected int cellY(double y) {
+    int cy = (int)((y - ap.YMIN)/cellSize);
+    return (cy < 0 ? 0 : (cy >= numCellsY ? numCellsY-1 : cy));
+  }
+
+
+  /** The bucket holding the chain of the given cell */
+  protected int bucket(int cx, int cy) {
+    if (!hashed) return cy*numCellsX + cx;
+    return ((cx*73856093) ^ (cy*19349663)) & (numBuckets-1);
+  }
+
+
+  /** Make sure the table of chain heads suits the number of particles:
+   *  one bucket per cell if there are no more cells than particles, or
+   *  else the power of two at or above the number of particles. */
+  protected void prepareBuckets(int numParticles) {
+    long numCells = getNumCells();
+    int wanted;
+    if (numCells <= Math.max(numParticles,1)) wanted = (int)numCells;
+    else {
+      wanted = Integer.highestOneBit(Math.max(numParticles,1));
+      if (wanted < numParticles) wanted <<= 1;
+    }
+    if ((cellHeads != null) && (wanted == numBuckets)) return;
+
+    numBuckets = wanted;
+    hashed = (numBuckets < numCells);
+    cellHeads = ByteBuffer.allocateDirect(4*numBuckets).order(ByteOrder.nativeOrder()).asIntBuffer();
+  }//prepareBuckets()
+
+
+  /** Chain every particle into the bucket of its cell */
+  protected void buildCells() {
+    for (int b=0; b<numBuckets; b++) cellHeads.put(b,-1);
+    int numParticles = arena.getNumParticles();
+    for (int i=0; i<numParticles; i++) {
+      ByteBuffer page = arena.pageOf(i);
+      int offset = ParticleArena.offsetOf(i);
+      int bucket = bucket(cellX(page.getDouble(offset+ParticleArena.X)),
+                          cellY(page.getDouble(offset+ParticleArena.Y)));
+      page.putInt(offset+ParticleArena.NEXT,cellHeads.get(bucket));
+      cellHeads.put(bucket,i);
+    }
+  }//buildCells()
+
+
+  /** Sum the forces on the particles from up to (but not including) to,
+   *  from every particle in range in the cells around them. */
+  protected void computeForces(int from, int to) {
+    for (int i=from; i<to; i++) {
+      ByteBuffer page = arena.pageOf(i);
+      int offset = ParticleArena.offsetOf(i);
+      double x = page.getDouble(offset+ParticleArena.X);
+      double y = page.getDouble(offset+ParticleArena.Y);
+      double mass = page.getDouble(offset+ParticleArena.MASS);
+      int toType = kindType[page.getInt(offset+ParticleArena.KIND)];
+
+      double forceX = 0.0;
+      double forceY = 0.0;
+      int cx = cellX(x);
+      int cy = cellY(y);
+      for (int ny=Math.max(0,cy-1); ny<=Math.min(numCellsY-1,cy+1); ny++)
+        for (int nx=Math.max(0,cx-1); nx<=Math.min(numCellsX-1,cx+1); nx++) {
+          for (int j=cellHeads.get(bucket(nx,ny)); j >= 0; ) {
+            ByteBuffer otherPage = arena.pageOf(j);
+            int otherOffset = ParticleArena.offsetOf(j);
+            int next = otherPage.getInt(otherOffset+ParticleArena.NEXT);
+            double otherX = otherPage.getDouble(otherOffset+ParticleArena.X);
+            double otherY = otherPage.getDouble(otherOffset+ParticleArena.Y);
+            if ((j != i) && (!hashed || ((cellX(otherX) == nx) && (cellY(otherY) == ny)))) {
+              int fromType = kindType[otherPage.getInt(otherOffset+ParticleArena.KIND)];
+              ForceLaw law = interactions[fromType][toType];
+              if (law != null) {
+                double dx = x - otherX;
+                double dy = y - otherY;
+                double distanceSquared = dx*dx + dy*dy;
+                if (distanceSquared <= effectRangeSquared[fromType][toType]) {
+                  double distance = Math.sqrt(distanceSquared);
+                  double forceScalar =
+                    law.getForceScalar(distance,otherPage.getDouble(otherOffset+ParticleArena.MASS),mass);
+                  forceX += dx/distance*forceScalar;
+                  forceY += dy/distance*forceScalar;
+                }
+              }
+            }
+            j = next;
+          }
+        }
+
+      page.putDouble(offset+ParticleArena.FX,forceX);
+      page.putDouble(offset+ParticleArena.FY,forceY);
+    }
+  }//computeForces()
+
+
+  /** Update the velocities of the particles from up to (but not
+   *  including) to with their forces, and move them, as ParticleStore
+   *  and Particle do. */
+  protected void moveParticles(int from, int to) {
+    double width = ap.XMAX - ap.XMIN;
+    double height = ap.YMAX - ap.YMIN;
+
+    for (int i=from; i<to; i++) {
+      ByteBuffer page = arena.pageOf(i);
+      int offset = ParticleArena.offsetOf(i);
+      int kind = page.getInt(offset+ParticleArena.KIND);
+
+      double momentumFactor = (kindUseMomentum[kind] ? 1.0/page.getDouble(offset+ParticleArena.MASS) : 1.0);
+      double frictionFactor = (kindUseFriction[kind] ? 1.0-kindFriction[kind] : 1.0);
+      double vx = frictionFactor*(page.getDouble(offset+ParticleArena.FX)*momentumFactor +
+                                  page.getDouble(offset+ParticleArena.VX));
+      double vy = frictionFactor*(page.getDouble(offset+ParticleArena.FY)*momentumFactor +
+                                  page.getDouble(offset+ParticleArena.VY));
+
+      double speed = Math.sqrt(vx*vx + vy*vy);
+      if (speed > kindMaxVelocity[kind]) {
+        double velocityScalar = speed/kindMaxVelocity[kind];
+        vx /= velocityScalar;
+        vy /= velocityScalar;
+      }
+      page.putDouble(offset+ParticleArena.VX,vx);
+      page.putDouble(offset+ParticleArena.VY,vy);
+      page.putDouble(offset+ParticleArena.FX,0.0);
+      page.putDouble(offset+ParticleArena.FY,0.0);
+
+      // Same test as APModel.acceptablePosition()
+      double x = page.getDouble(offset+ParticleArena.X) + vx;
+      double y = page.getDouble(offset+ParticleArena.Y) + vy;
+      double radius = kindRadius[kind];
+      if ( !(x < radius || x > width-radius || y < radius || y > height-radius) ) {
+        page.putDouble(offset+ParticleArena.X,x);
+        page.putDouble(offset+ParticleArena.Y,y);
+      }
+    }
+  }//moveParticles()
+
+
+  /** Return the index of the particle nearest the given point, or -1 if
+   *  the arena is empty.  The cells around the point are searched first,
+   *  and the whole arena only if they are all empty. */
+  public int findNearest(double x, double y) {
+    if (cellHeads == null) {
+      prepareBuckets(arena.getNumParticles());
+      buildCells();
+    }
+
+    int nearest = -1;
+    double nearestSquared = Double.MAX_VALUE;
+    int cx = cellX(x);
+    int cy = cellY(y);
+    for (int ny=Math.max(0,cy-1); ny<=Math.min(numCellsY-1,cy+1); ny++)
+      for (int nx=Math.max(0,cx-1); nx<=Math.min(numCellsX-1,cx+1); nx++)
+        for (int j=cellHeads.get(bucket(nx,ny)); j >= 0;
+             j=arena.pageOf(j).getInt(ParticleArena.offsetOf(j)+ParticleArena.NEXT)) {
+          double dx = arena.getX(j) - x;
+          double dy = arena.getY(j) - y;
+          if (dx*dx + dy*dy < nearestSquared) {
+            nearestSquared = dx*dx + dy*dy;
+            nearest = j;
+          }
+        }
+    if (nearest >= 0) return nearest;
+
+    for (int j=0; j<arena.getNumParticles(); j++) {
+      double dx = arena.getX(j) - x;
+      double dy = arena.getY(j) - y;
+      if (dx*dx + dy*dy < nearestSquared) {
+        nearestSquared = dx*dx + dy*dy;
+        nearest = j;
+      }
+    }
+    return nearest;
+  }//findNearest()
+
+
+  /** Mark the targets at (targetX[t],targetY[t]) that lie closer to some
+   *  particle of the arena than its sensor radius, as Surveillance counts
+   *  them, and return the number of targets marked.  Targets already
+   *  marked are left so, so the coverage of several arenas (the tiles of
+   *  a TileCoordinator run) can be combined. */
+  public int markCovered(double targetX[], double targetY[], boolean covered[]) {
+    prepareBuckets(arena.getNumParticles());
+    buildCells();
+
+    int numCovered = 0;
+    for (int t=0; t<covered.length; t++) {
+      if (!covered[t]) covered[t] = isCovered(targetX[t],targetY[t]);
+      if (covered[t]) numCovered++;
+    }
+    return numCovered;
+  }//markCovered()
+
+
+  /** True if some particle's sensor radius reaches the given location.
+   *  The cells must be up to date. */
+  protected boolean isCovered(double x, double y) {
+    int cxLow = cellX(x-maxSensorRadius), cxHigh = cellX(x+maxSensorRadius);
+    int cyLow = cellY(y-maxSensorRadius), cyHigh = cellY(y+maxSensorRadius);
+    for (int cy=cyLow; cy<=cyHigh; cy++)
+      for (int cx=cxLow; cx<=cxHigh; cx++)
+        for (int j=cellHeads.get(bucket(cx,cy)); j >= 0;
+             j=arena.pageOf(j).getInt(ParticleArena.offsetOf(j)+ParticleArena.NEXT)) {
+          double dx = arena.getX(j) - x;
+          double dy = arena.getY(j) - y;
+          if (dx*dx + dy*dy < kindSensorRadiusSquared[arena.getKindOf(j)]) return true;
+        }
+    return false;
+  }//isCovered()
+
+
+  /** A Particle with the state of the one nearest the point, or null */
+  public Particle inspect(Double2D location) {
+    int nearest = findNearest(location.x,location.y);
+    return (nearest < 0 ? null : arena.materialize(nearest));
+  }
+
+
+  //--------------- Phases --------------
+
+  protected static final int FORCE_PHASE = 0;
+  protected static final int MOVE_PHASE  = 1;
+
+  protected void runChunk(int phase, int chunk) {
+    int from = (int)((long)numStepped*chunk/numChunks);
+    int to = (int)((long)numStepped*(chunk+1)/numChunks);
+    if (phase == FORCE_PHASE) computeForces(from,to);
+    else moveParticles(from,to);
+  }//runChunk()
+
+
+  protected void runPhase(int phase) {
+    if (numChunks == 1 || pool == null)
+      for (int chunk=0; chunk<numChunks; chunk++) runChunk(phase,chunk);
+    else
+      pool.invoke(new PhaseTask(phase,0,numChunks));
+  }//runPhase()
+
+
+  /** Splits a range of chunks in half until there is one chunk left */
+  protected class PhaseTask extends RecursiveAction {
+    protected int phase;
+    protected int firstChunk;
+    protected int lastChunk;
+
+    protected PhaseTask(int phase, int firstChunk, int lastChunk) {
+      this.phase = phase;
+      this.firstChunk = firstChunk;
+      this.lastChunk = lastChunk;
+    }
+
+    protected void compute() {
+      if (lastChunk - firstChunk == 1)
+        runChunk(phase,firstChunk);
+      else {
+        int middle = (firstChunk + lastChunk)/2;
+        invokeAll(new PhaseTask(phase,firstChunk,middle),
+                  new PhaseTask(phase,middle,lastChunk));
+      }
+    }
+  }//PhaseTask
+
+
+  //--------------- Command line --------------
+
+  public static void main(String args[]) {
+    String paramsFile = null;
+    long numSteps = 100;
+    int numThreads = 0;
+    long seed = 0;
+    int scale = 1;
+
+    for (int i=0; i<args.length-1; i+=2) {
+      if (args[i].equals("-params")) paramsFile = args[i+1];
+      else if (args[i].equals("-steps")) numSteps = Long.parseLong(args[i+1]);
+      else if (args[i].equals("-threads")) numThreads = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-seed")) seed = Long.parseLong(args[i+1]);
+      else if (args[i].equals("-scale")) scale = Integer.parseInt(args[i+1]);
+      else System.err.println("Warning:  Ignoring unknown option " + args[i]);
+    }
+
+    if (paramsFile == null) {
+      System.err.println("Specify a params file");
+      System.exit(1);
+    }
+
+    try {
+      APModel ap = new APModel(seed);
+      ap.expParams = new APExperimentParameters();
+      ap.expParams.loadParameters();
+      ap.expParams.apParamFileName = paramsFile;
+      ap.expParams.readFromParamFile = true;
+      ap.expParams.numThreads = numThreads;
+
+      double side = Math.sqrt(scale);
+      ap.XMAX = ap.XMIN + side*(ap.XMAX-ap.XMIN);
+      ap.YMAX = ap.YMIN + side*(ap.YMAX-ap.YMIN);
+
+      long start = System.currentTimeMillis();
+      ArenaEngine engine = create(ap,scale);
+      long loaded = System.currentTimeMillis();
+      engine.runSteps(numSteps);
+      long finished = System.currentTimeMillis();
+
+      Runtime runtime = Runtime.getRuntime();
+      System.gc();
+      System.out.println(engine.arena.getNumParticles() + " particles : " +
+                         engine.getNumCells() + " cells : " + engine.getNumBuckets() + " buckets : " +
+                         engine.getNumThreads() + " threads");
+      System.out.println("load=" + (loaded-start) + " ms : step=" +
+                         ((double)(finished-loaded)/Math.max(1,numSteps)) + " ms");
+      System.out.println("heap=" + ((runtime.totalMemory()-runtime.freeMemory())/(1024*1024)) + " MB : " +
+                         "offHeap=" + (engine.arena.getBytesAllocated()/(1024*1024)) + " MB");
+    }
+    catch (Exception e) {
+      System.err.println("Error running the arena: " + e);
+      System.exit(1);
+    }
+  }//main()
+
+}
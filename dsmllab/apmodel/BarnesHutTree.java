@@ -0,0 +1,325 @@
+package dsmllab.apmodel;
+
+import sim.util.IntBag;
+
+/**
+ *  This class implements a Barnes-Hut quadtree over the particles of
+ *  one type, used to approximate a NewtonianForceLaw whose range of
+ *  effect covers the whole field.  Without it, every particle of the
+ *  type affects every particle of the types it interacts with, and the
+ *  force phase is quadratic in the size of the swarm.
+ *
+ *  Each node of the tree keeps the sum of the mass weights (the masses
+ *  raised to the law's massPower) of the particles inside it, their
+ *  weighted centroid, the largest single weight and the tight bounding
+ *  box of the particles.  A node far enough from the particle being
+ *  affected is treated as a single particle at its centroid.  "Far
+ *  enough" means the side of its box is less than the opening angle
+ *  times the distance to the centroid, and in addition every particle
+ *  in it is beyond the law's damping band and too far away for the
+ *  law's maxForce to cut in (see NewtonianForceLaw.isFarField()), since
+ *  neither of those is linear in the masses.  Any other node is opened,
+ *  and the particles in a leaf are done exactly.  An opening angle of
+ *  zero gives the exact forces.
+ *
+ *  The tree is rebuilt from scratch every step.  The nodes are kept in
+ *  flat arrays that are reused, and the particles are copied into the
+ *  order of the leaves, so nothing is allocated once the arrays are
+ *  big enough.  Once built, the tree is only read, so any number of
+ *  threads can query it at once, each with its own stack.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class BarnesHutTree {
+  public static final int LEAF_SIZE = 8;
+  public static final int MAX_DEPTH = 32;
+
+  protected int particleType;
+  protected double massPower;
+
+  // The particles in the tree, in the order of the leaves
+  protected int numParticles = 0;
+  protected int slots[] = new int[0];
+  protected double particleX[] = new double[0];
+  protected double particleY[] = new double[0];
+  protected double particleMass[] = new double[0];
+  protected double particleWeight[] = new double[0];
+
+  // The nodes.  The children of a node are numChildren[node] consecutive
+  // nodes starting at firstChild[node], which is -1 for a leaf.  A node
+  // holds the particles from first[node] up to (but not including)
+  // last[node].
+  protected int numNodes = 0;
+  protected int firstChild[] = new int[0];
+  protected int numChildren[] = new int[0];
+  protected int first[] = new int[0];
+  protected int last[] = new int[0];
+  protected double weight[] = new double[0];
+  protected double centroidX[] = new double[0];
+  protected double centroidY[] = new double[0];
+  protected double maxWeight[] = new double[0];
+  protected double minX[] = new double[0];
+  protected double maxX[] = new double[0];
+  protected double minY[] = new double[0];
+  protected double maxY[] = new double[0];
+
+
+  public BarnesHutTree(int particleType, double massPower) {
+    this.particleType = particleType;
+    this.massPower = massPower;
+  }//constructor
+
+
+  public int getParticleType() {return particleType;}
+  public double getMassPower() {return massPower;}
+  public int getNumParticles() {return numParticles;}
+  public int getNumNodes() {return numNodes;}
+
+
+  /** Rebuild the tree from the current positions of the particles of
+   *  this tree's type in the store. */
+  public void build(ParticleStore store) {
+    int storeSize = store.getNumParticles();
+    if (slots.length < storeSize) ensureParticleCapacity(store.getCapacity());
+
+    numParticles = 0;
+    double lowX = Double.POSITIVE_INFINITY, highX = Double.NEGATIVE_INFINITY;
+    double lowY = Double.POSITIVE_INFINITY, highY = Double.NEGATIVE_INFINITY;
+    for (int slot=0; slot<storeSize; slot++) {
+      if (store.type[slot] != particleType) continue;
+
+      int i = numParticles++;
+      slots[i] = slot;
+      particleX[i] = store.x[slot];
+      particleY[i] = store.y[slot];
+      particleMass[i] = store.mass[slot];
+      particleWeight[i] = Math.pow(store.mass[slot],massPower);
+
+      if (particleX[i] < lowX) lowX = particleX[i];
+      if (particleX[i] > highX) highX = particleX[i];
+      if (particleY[i] < lowY) lowY = particleY[i];
+      if (particleY[i] > highY) highY = particleY[i];
+    }
+
+    numNodes = 0;
+    if (numParticles == 0) return;
+
+    double half = 0.5*Math.max(highX-lowX,highY-lowY);
+    int root = newNode();
+    buildNode(root,0,numParticles,0.5*(lowX+highX),0.5*(lowY+highY),half,0);
+  }//build()
+
+
+  /** Add the force the particles in the tree exert on the particle in
+   *  targetSlot to forceX[targetSlot] and forceY[targetSlot].  The
+   *  stack is scratch space belonging to the caller. */
+  public void accumulate(ParticleStore store, int targetSlot, NewtonianForceLaw law,
+                         double openingAngle, IntBag stack,
+                         double forceX[], double forceY[]) {
+    if (numNodes == 0) return;
+
+    double targetX = store.x[targetSlot];
+    double targetY = store.y[targetSlot];
+    double targetMass = store.mass[targetSlot];
+    double targetWeight = Math.pow(targetMass,massPower);
+    double openingAngleSquared = openingAngle*openingAngle;
+    double rangeSquared = law.getEffectRange()*law.getEffectRange();
+
+    double sumX = 0.0;
+    double sumY = 0.0;
+
+    stack.clear();
+    stack.add(0);
+    while (stack.numObjs > 0) {
+      int node = stack.objs[--stack.numObjs];
+
+      // Offset to the centroid, and the closest the box comes to the target
+      double dx = targetX - centroidX[node];
+      double dy = targetY - centroidY[node];
+      double distanceSquared = dx*dx + dy*dy;
+      double boxX = Math.max(0.0,Math.max(minX[node]-targetX,targetX-maxX[node]));
+      double boxY = Math.max(0.0,Math.max(minY[node]-targetY,targetY-maxY[node]));
+      double size = Math.max(maxX[node]-minX[node],maxY[node]-minY[node]);
+
+      if ((size*size < openingAngleSquared*distanceSquared) &&
+          law.isFarField(Math.sqrt(boxX*boxX + boxY*boxY),maxWeight[node],targetWeight)) {
+        double distance = Math.sqrt(distanceSquared);
+        double forceScalar = law.getFarFieldForceScalar(distance,weight[node],targetWeight);
+        sumX += dx/distance*forceScalar;
+        sumY += dy/distance*forceScalar;
+      }
+
+      else if (firstChild[node] < 0) {
+        for (int i=first[node]; i<last[node]; i++) {
+          if (slots[i] == targetSlot) continue;
+
+          double px = targetX - particleX[i];
+          double py = targetY - particleY[i];
+          double particleDistanceSquared = px*px + py*py;
+          if (particleDistanceSquared > rangeSquared) continue;
+
+          double distance = Math.sqrt(particleDistanceSquared);
+          double forceScalar = law.getForceScalar(distance,particleMass[i],targetMass);
+          sumX += px/distance*forceScalar;
+          sumY += py/distance*forceScalar;
+        }
+      }
+
+      else
+        for (int c=0; c<numChildren[node]; c++)
+          stack.add(firstChild[node]+c);
+    }
+
+    forceX[targetSlot] += sumX;
+    forceY[targetSlot] += sumY;
+  }//accumulate()
+
+
+  //--------------- Helper functions --------------
+
+  /** Fill in the node holding particles from lo up to (but not including)
+   *  hi, which lie in the square of the given center and half-width, and
+   *  build its subtree. */
+  protected void buildNode(int node, int lo, int hi,
+                           double centerX, double centerY, double half, int depth) {
+    first[node] = lo;
+    last[node] = hi;
+    firstChild[node] = -1;
+    numChildren[node] = 0;
+
+    if ((hi-lo > LEAF_SIZE) && (depth < MAX_DEPTH) && (half > 0)) {
+      // Sort the particles into quadrants:  lower half in y first, then
+      // each half in x
+      int middleY = partition(lo,hi,particleY,centerY);
+      int bounds[] = { lo, partition(lo,middleY,particleX,centerX), middleY,
+                       partition(middleY,hi,particleX,centerX), hi };
+
+      // Allocate the non-empty children together so they are consecutive
+      int children = 0;
+      for (int q=0; q<4; q++)
+        if (bounds[q+1] > bounds[q]) children++;
+
+      int child = numNodes;
+      for (int c=0; c<children; c++) newNode();
+      firstChild[node] = child;
+      numChildren[node] = children;
+
+      double quarter = 0.5*half;
+      for (int q=0; q<4; q++) {
+        if (bounds[q+1] == bounds[q]) continue;
+        double childX = centerX + ((q & 1) == 0 ? -quarter : quarter);
+        double childY = centerY + (q < 2 ? -quarter : quarter);
+        buildNode(child++,bounds[q],bounds[q+1],childX,childY,quarter,depth+1);
+      }
+    }
+
+    summarize(node);
+  }//buildNode()
+
+
+  /** Compute the weight, centroid, largest weight and bounding box of a
+   *  node, from its children or (for a leaf) its particles. */
+  protected void summarize(int node) {
+    double sumWeight = 0.0, sumX = 0.0, sumY = 0.0, largest = 0.0;
+    double lowX = Double.POSITIVE_INFINITY, highX = Double.NEGATIVE_INFINITY;
+    double lowY = Double.POSITIVE_INFINITY, highY = Double.NEGATIVE_INFINITY;
+
+    if (firstChild[node] < 0) {
+      for (int i=first[node]; i<last[node]; i++) {
+        sumWeight += particleWeight[i];
+        sumX += particleWeight[i]*particleX[i];
+        sumY += particleWeight[i]*particleY[i];
+        if (particleWeight[i] > largest) largest = particleWeight[i];
+        if (particleX[i] < lowX) lowX = particleX[i];
+        if (particleX[i] > highX) highX = particleX[i];
+        if (particleY[i] < lowY) lowY = particleY[i];
+        if (particleY[i] > highY) highY = particleY[i];
+      }
+    }
+    else {
+      for (int c=firstChild[node]; c<firstChild[node]+numChildren[node]; c++) {
+        sumWeight += weight[c];
+        sumX += weight[c]*centroidX[c];
+        sumY += weight[c]*centroidY[c];
+        if (maxWeight[c] > largest) largest = maxWeight[c];
+        if (minX[c] < lowX) lowX = minX[c];
+        if (maxX[c] > highX) highX = maxX[c];
+        if (minY[c] < lowY) lowY = minY[c];
+        if (maxY[c] > highY) highY = maxY[c];
+      }
+    }
+
+    weight[node] = sumWeight;
+    maxWeight[node] = largest;
+    minX[node] = lowX;
+    maxX[node] = highX;
+    minY[node] = lowY;
+    maxY[node] = highY;
+
+    // Particles with no weight still need a sensible centroid
+    if (sumWeight > 0) {
+      centroidX[node] = sumX/sumWeight;
+      centroidY[node] = sumY/sumWeight;
+    }
+    else {
+      centroidX[node] = 0.5*(lowX+highX);
+      centroidY[node] = 0.5*(lowY+highY);
+    }
+  }//summarize()
+
+
+  /** Reorder the particles from lo up to (but not including) hi so that
+   *  those with a coordinate below the pivot come first, and return the
+   *  index of the first one that isn't. */
+  protected int partition(int lo, int hi, double coordinate[], double pivot) {
+    int i = lo;
+    int j = hi-1;
+    while (i <= j) {
+      if (coordinate[i] < pivot) i++;
+      else swap(i,j--);
+    }
+    return i;
+  }//partition()
+
+
+  protected void swap(int i, int j) {
+    int slot = slots[i]; slots[i] = slots[j]; slots[j] = slot;
+    double tmp;
+    tmp = particleX[i]; particleX[i] = particleX[j]; particleX[j] = tmp;
+    tmp = particleY[i]; particleY[i] = particleY[j]; particleY[j] = tmp;
+    tmp = particleMass[i]; particleMass[i] = particleMass[j]; particleMass[j] = tmp;
+    tmp = particleWeight[i]; particleWeight[i] = particleWeight[j]; particleWeight[j] = tmp;
+  }//swap()
+
+
+  protected int newNode() {
+    if (numNodes == firstChild.length) {
+      int capacity = Math.max(16,2*numNodes);
+      firstChild  = java.util.Arrays.copyOf(firstChild,capacity);
+      numChildren = java.util.Arrays.copyOf(numChildren,capacity);
+      first       = java.util.Arrays.copyOf(first,capacity);
+      last        = java.util.Arrays.copyOf(last,capacity);
+      weight      = java.util.Arrays.copyOf(weight,capacity);
+      centroidX   = java.util.Arrays.copyOf(centroidX,capacity);
+      centroidY   = java.util.Arrays.copyOf(centroidY,capacity);
+      maxWeight   = java.util.Arrays.copyOf(maxWeight,capacity);
+      minX        = java.util.Arrays.copyOf(minX,capacity);
+      maxX        = java.util.Arrays.copyOf(maxX,capacity);
+      minY        = java.util.Arrays.copyOf(minY,capacity);
+      maxY        = java.util.Arrays.copyOf(maxY,capacity);
+    }
+    return numNodes++;
+  }//newNode()
+
+
+  protected void ensureParticleCapacity(int capacity) {
+    slots          = new int[capacity];
+    particleX      = new double[capacity];
+    particleY      = new double[capacity];
+    particleMass   = new double[capacity];
+    particleWeight = new double[capacity];
+  }//ensureParticleCapacity()
+
+}
@@ -0,0 +1,246 @@
+package dsmllab.apmodel;
+
+import java.util.*;
+
+/**
+ *  This class implements Hansen's covariance matrix adaptation evolution
+ *  strategy (CMA-ES), with weighted recombination and rank-one and
+ *  rank-mu updates of the covariance, as in his purecma.  The search is
+ *  carried out on the tuned values scaled so each of their ranges is
+ *  [0,1], and a sample falling outside of it is reflected back inside,
+ *  the reflected point being the one evaluated and learned from.
+ *
+ *  The default population size is 4 + 3 ln(n) for n tuned values, and the
+ *  initial step size is a fraction of the ranges.  The mean starts at the
+ *  values in the template.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class CMAESOptimizer extends Optimizer {
+  public static final double MIN_STEP_SIZE = 1e-10;
+
+  protected int n;
+  protected int lambda;
+  protected int mu;
+  protected double weights[];
+  protected double mueff, cc, cs, c1, cmu, damps, chiN;
+
+  protected double mean[];
+  protected double sigma;
+  protected double pc[], ps[];
+  protected double C[][], B[][], D[], invsqrtC[][];
+  protected long counteval = 0;
+  protected long eigeneval = 0;
+
+
+  public CMAESOptimizer(ParamsTemplate template, APExperimentParameters expParams,
+                        Class modelClass, long seed, int populationSize, double stepSize) {
+    super(template,expParams,modelClass,seed);
+
+    n = template.getNumTunedParams();
+    lambda = (populationSize > 0 ? populationSize : 4 + (int)(3*Math.log(n)));
+    lambda = Math.max(lambda,2);
+    mu = lambda/2;
+
+    // Recombination weights
+    weights = new double[mu];
+    double sum = 0.0, sumSq = 0.0;
+    for (int i=0; i<mu; i++) {
+      weights[i] = Math.log(mu + 0.5) - Math.log(i + 1);
+      sum += weights[i];
+    }
+    for (int i=0; i<mu; i++) {
+      weights[i] /= sum;
+      sumSq += weights[i]*weights[i];
+    }
+    mueff = 1.0/sumSq;
+
+    // Adaptation rates
+    cc = (4 + mueff/n)/(n + 4 + 2*mueff/n);
+    cs = (mueff + 2)/(n + mueff + 5);
+    c1 = 2/((n + 1.3)*(n + 1.3) + mueff);
+    cmu = Math.min(1 - c1, 2*(mueff - 2 + 1/mueff)/((n + 2)*(n + 2) + mueff));
+    damps = 1 + 2*Math.max(0, Math.sqrt((mueff - 1)/(n + 1)) - 1) + cs;
+    chiN = Math.sqrt(n)*(1 - 1.0/(4*n) + 1.0/(21.0*n*n));
+
+    mean = normalize(template.getInitialValues());
+    sigma = stepSize;
+    pc = new double[n];
+    ps = new double[n];
+    C = identity(n);
+    B = identity(n);
+    invsqrtC = identity(n);
+    D = new double[n];
+    Arrays.fill(D,1.0);
+  }//constructor
+
+
+  public double getStepSize() {return sigma;}
+
+
+  public boolean isDone() {
+    double maxD = 0.0;
+    for (int i=0; i<n; i++) maxD = Math.max(maxD,D[i]);
+    return (sigma*maxD < MIN_STEP_SIZE);
+  }//isDone()
+
+
+  protected double[][] ask() {
+    // The decomposition is only brought up to date every so often
+    if (counteval - eigeneval > lambda/(c1 + cmu)/n/10) {
+      eigeneval = counteval;
+      decompose();
+    }
+
+    double candidates[][] = new double[lambda][];
+    double z[] = new double[n];
+    for (int k=0; k<lambda; k++) {
+      for (int i=0; i<n; i++) z[i] = D[i]*random.nextGaussian();
+
+      double y[] = new double[n];
+      for (int i=0; i<n; i++) {
+        double bz = 0.0;
+        for (int j=0; j<n; j++) bz += B[i][j]*z[j];
+        y[i] = reflect(mean[i] + sigma*bz);
+      }
+      candidates[k] = denormalize(y);
+    }
+
+    return candidates;
+  }//ask()
+
+
+  protected void tell(double candidates[][], double fitness[]) {
+    // Best first
+    Integer order[] = new Integer[candidates.length];
+    for (int k=0; k<order.length; k++) order[k] = Integer.valueOf(k);
+    final double f[] = fitness;
+    Arrays.sort(order,new Comparator() {
+        public int compare(Object a, Object b) {
+          return Double.compare(f[((Integer)b).intValue()],f[((Integer)a).intValue()]);
+        }
+      });
+
+    double selected[][] = new double[mu][];
+    for (int i=0; i<mu; i++) selected[i] = normalize(candidates[order[i].intValue()]);
+
+    double oldMean[] = mean;
+    mean = new double[n];
+    for (int i=0; i<mu; i++)
+      for (int j=0; j<n; j++) mean[j] += weights[i]*selected[i][j];
+
+    double step[] = new double[n];
+    for (int j=0; j<n; j++) step[j] = (mean[j] - oldMean[j])/sigma;
+
+    // Evolution paths
+    counteval += candidates.length;
+    double csn = Math.sqrt(cs*(2 - cs)*mueff);
+    for (int i=0; i<n; i++) {
+      double s = 0.0;
+      for (int j=0; j<n; j++) s += invsqrtC[i][j]*step[j];
+      ps[i] = (1 - cs)*ps[i] + csn*s;
+    }
+    double psNorm = norm(ps);
+    boolean hsig = (psNorm/Math.sqrt(1 - Math.pow(1 - cs, 2.0*counteval/lambda))/chiN
+                    < 1.4 + 2.0/(n + 1));
+    double ccn = Math.sqrt(cc*(2 - cc)*mueff);
+    for (int i=0; i<n; i++) pc[i] = (1 - cc)*pc[i] + (hsig ? ccn*step[i] : 0.0);
+
+    // Covariance, from the evolution path (rank one) and the selected steps (rank mu)
+    double c1a = c1*(hsig ? 1.0 : 1.0 - cc*(2 - cc));
+    for (int i=0; i<n; i++)
+      for (int j=0; j<=i; j++) {
+        double rankMu = 0.0;
+        for (int k=0; k<mu; k++)
+          rankMu += weights[k]*(selected[k][i] - oldMean[i])*(selected[k][j] - oldMean[j]);
+        rankMu /= sigma*sigma;
+
+        C[i][j] = (1 - c1a - cmu)*C[i][j] + c1*pc[i]*pc[j] + cmu*rankMu;
+        C[j][i] = C[i][j];
+      }
+
+    sigma *= Math.exp(Math.min(1.0, (cs/damps)*(psNorm/chiN - 1)));
+  }//tell()
+
+
+  //--------------- Helper functions --------------
+
+  /** Bring B, D and C^-1/2 up to date with C */
+  protected void decompose() {
+    double eigenvalues[] = new double[n];
+    B = eigen(C,eigenvalues);
+
+    for (int i=0; i<n; i++) D[i] = Math.sqrt(Math.max(eigenvalues[i],1e-20));
+
+    for (int i=0; i<n; i++)
+      for (int j=0; j<n; j++) {
+        double s = 0.0;
+        for (int k=0; k<n; k++) s += B[i][k]*B[j][k]/D[k];
+        invsqrtC[i][j] = s;
+      }
+  }//decompose()
+
+
+  /** Diagonalize the symmetric matrix A with cyclic Jacobi rotations.
+   *  The eigenvalues go in values and the eigenvectors are returned as
+   *  the columns of a matrix.  A isn't changed. */
+  protected static double[][] eigen(double A[][], double values[]) {
+    int n = A.length;
+    double a[][] = new double[n][];
+    for (int i=0; i<n; i++) a[i] = (double[])A[i].clone();
+    double v[][] = identity(n);
+
+    for (int sweep=0; sweep<100; sweep++) {
+      double off = 0.0;
+      for (int i=0; i<n; i++)
+        for (int j=i+1; j<n; j++) off += a[i][j]*a[i][j];
+      if (off < 1e-30) break;
+
+      for (int p=0; p<n; p++)
+        for (int q=p+1; q<n; q++) {
+          if (a[p][q] == 0.0) continue;
+
+          double theta = (a[q][q] - a[p][p])/(2*a[p][q]);
+          double t = (theta >= 0 ? 1.0 : -1.0)/(Math.abs(theta) + Math.sqrt(theta*theta + 1));
+          double c = 1/Math.sqrt(t*t + 1);
+          double s = t*c;
+
+          for (int k=0; k<n; k++) {
+            double akp = a[k][p], akq = a[k][q];
+            a[k][p] = c*akp - s*akq;
+            a[k][q] = s*akp + c*akq;
+          }
+          for (int k=0; k<n; k++) {
+            double apk = a[p][k], aqk = a[q][k];
+            a[p][k] = c*apk - s*aqk;
+            a[q][k] = s*apk + c*aqk;
+          }
+          for (int k=0; k<n; k++) {
+            double vkp = v[k][p], vkq = v[k][q];
+            v[k][p] = c*vkp - s*vkq;
+            v[k][q] = s*vkp + c*vkq;
+          }
+        }
+    }
+
+    for (int i=0; i<n; i++) values[i] = a[i][i];
+    return v;
+  }//eigen()
+
+
+  protected static double[][] identity(int n) {
+    double m[][] = new double[n][n];
+    for (int i=0; i<n; i++) m[i][i] = 1.0;
+    return m;
+  }
+
+
+  protected static double norm(double x[]) {
+    double s = 0.0;
+    for (int i=0; i<x.length; i++) s += x[i]*x[i];
+    return Math.sqrt(s);
+  }
+
+}
@@ -0,0 +1,221 @@
+package dsmllab.apmodel;
+
+import sim.util.IntBag;
+
+/**
+ *  This class implements a uniform cell list over the field, used to
+ *  find the particles near a given location without searching the
+ *  whole population.  The field is cut into square cells, and each
+ *  cell keeps a linked list of the slots (in the ParticleStore) of the
+ *  particles inside it.  The links are held in int arrays indexed by
+ *  slot, so inserting, moving and removing a particle are constant
+ *  time operations, and nothing is allocated once the arrays are big
+ *  enough.
+ *
+ *  A query appends to a caller-supplied IntBag the slots of every
+ *  particle in the cells overlapping the square around the query
+ *  point.  It is up to the caller to check the exact distance.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class CellList {
+  public static final int EMPTY = -1;
+
+  // Never cut a side of the field into more cells than this
+  public static final int MAX_CELLS_PER_SIDE = 1024;
+
+  protected double cellSize;
+  protected int numCellsX;
+  protected int numCellsY;
+
+  protected int head[];     // first slot in each cell
+  protected int next[];     // next slot in the same cell
+  protected int prev[];     // previous slot in the same cell
+  protected int cellOf[];   // cell currently holding each slot
+
+
+  /** Create a cell list covering a field of the given width and height
+   *  (with its origin at zero), using cells of roughly the given size. */
+  public CellList(double cellSize, double width, double height, int initialCapacity) {
+    double minCellSize = Math.max(width,height)/MAX_CELLS_PER_SIDE;
+    if (!(cellSize > minCellSize)) cellSize = minCellSize;
+    if (!(cellSize > 0)) cellSize = 1.0;
+
+    this.cellSize = cellSize;
+    this.numCellsX = Math.max(1,(int)Math.ceil(width/cellSize));
+    this.numCellsY = Math.max(1,(int)Math.ceil(height/cellSize));
+
+    head = new int[numCellsX*numCellsY];
+    java.util.Arrays.fill(head,EMPTY);
+
+    next = new int[0];
+    prev = new int[0];
+    cellOf = new int[0];
+    ensureCapacity(Math.max(1,initialCapacity));
+  }//constructor
+
+
+  public double getCellSize() {return cellSize;}
+  public int getNumCellsX() {return numCellsX;}
+  public int getNumCellsY() {return numCellsY;}
+  public int getNumCells() {return head.length;}
+
+
+  /** Make sure slots up to (but not including) capacity can be held. */
+  public void ensureCapacity(int capacity) {
+    if (capacity <= cellOf.length) return;
+
+    int newCapacity = Math.max(capacity,2*cellOf.length);
+    int oldCapacity = cellOf.length;
+    next = java.util.Arrays.copyOf(next,newCapacity);
+    prev = java.util.Arrays.copyOf(prev,newCapacity);
+    cellOf = java.util.Arrays.copyOf(cellOf,newCapacity);
+    java.util.Arrays.fill(cellOf,oldCapacity,newCapacity,EMPTY);
+  }//ensureCapacity()
+
+
+  /** Return the index of the cell holding the given location.  Locations
+   *  off the field are clamped to the nearest edge cell. */
+  public int getCell(double x, double y) {
+    return getCellY(y)*numCellsX + getCellX(x);
+  }
+
+  public int getCellX(double x) {
+    int cx = (int)(x/cellSize);
+    if (cx < 0) cx = 0;
+    if (cx >= numCellsX) cx = numCellsX-1;
+    return cx;
+  }
+
+  public int getCellY(double y) {
+    int cy = (int)(y/cellSize);
+    if (cy < 0) cy = 0;
+    if (cy >= numCellsY) cy = numCellsY-1;
+    return cy;
+  }
+
+
+  public boolean contains(int slot) {
+    return (slot < cellOf.length) && (cellOf[slot] != EMPTY);
+  }
+
+  public int getCellOf(int slot) {
+    return (slot < cellOf.length ? cellOf[slot] : EMPTY);
+  }
+
+
+  /** Add a slot at the given location.  If it is already present, it is
+   *  simply moved. */
+  public void insert(int slot, double x, double y) {
+    ensureCapacity(slot+1);
+    if (cellOf[slot] != EMPTY) move(slot,x,y);
+    else link(slot,getCell(x,y));
+  }//insert()
+
+
+  /** Update the cell of a slot after its particle has moved.  Nothing
+   *  happens unless the particle has crossed into a different cell. */
+  public void move(int slot, double x, double y) {
+    moveToCell(slot,getCell(x,y));
+  }//move()
+
+
+  /** As move(), with the new cell already worked out by getCell(), which
+   *  only reads the shape of the list, so it can be done on any thread. */
+  public void moveToCell(int slot, int cell) {
+    ensureCapacity(slot+1);
+    if (cell == cellOf[slot]) return;
+
+    if (cellOf[slot] != EMPTY) unlink(slot);
+    link(slot,cell);
+  }//moveToCell()
+
+
+  public void remove(int slot) {
+    if (contains(slot)) unlink(slot);
+  }
+
+
+  /** Empty all cells. */
+  public void clear() {
+    java.util.Arrays.fill(head,EMPTY);
+    java.util.Arrays.fill(cellOf,EMPTY);
+  }
+
+
+  /** Append to result the slots of all particles in cells overlapping
+   *  the square of half-width range around (x,y).  The result is not
+   *  cleared first. */
+  public void gather(double x, double y, double range, IntBag result) {
+    int cxLow  = getCellX(x-range);
+    int cxHigh = getCellX(x+range);
+    int cyLow  = getCellY(y-range);
+    int cyHigh = getCellY(y+range);
+
+    for (int cy=cyLow; cy<=cyHigh; cy++)
+      for (int cx=cxLow; cx<=cxHigh; cx++)
+        gatherCell(cy*numCellsX + cx,result);
+  }//gather()
+
+
+  /** Append to result the slots of all particles in the given cell. */
+  public void gatherCell(int cell, IntBag result) {
+    for (int slot=head[cell]; slot != EMPTY; slot=next[slot])
+      result.add(slot);
+  }
+
+
+  /** Return the first slot in the given cell, or EMPTY.  Use getNext()
+   *  to walk the rest of the cell without copying into a bag. */
+  public int getFirst(int cell) {return head[cell];}
+  public int getNext(int slot) {return next[slot];}
+
+
+  //--------------- Helper functions --------------
+  /** Write the cells and their order to a checkpoint, for slots up to
+   *  (but not including) numSlots */
+  public void writeState(ModelCheckpoint.Output out, int numSlots) throws java.io.IOException {
+    ensureCapacity(numSlots);
+    out.putDouble(cellSize);
+    out.putInt(numCellsX);
+    out.putInt(numCellsY);
+    out.putInts(head,head.length);
+    out.putInts(next,numSlots);
+    out.putInts(prev,numSlots);
+    out.putInts(cellOf,numSlots);
+  }//writeState()
+
+
+  /** Read back what writeState() wrote into a cell list of the same shape */
+  public void readState(ModelCheckpoint.Input in, int numSlots) throws java.io.IOException {
+    if ((in.getDouble() != cellSize) || (in.getInt() != numCellsX) || (in.getInt() != numCellsY))
+      throw new java.io.IOException("The cells of the checkpoint don't match the model");
+    ensureCapacity(numSlots);
+    java.util.Arrays.fill(cellOf,EMPTY);
+    in.getInts(head);
+    in.getInts(next);
+    in.getInts(prev);
+    in.getInts(cellOf);
+  }//readState()
+
+
+  protected void link(int slot, int cell) {
+    int first = head[cell];
+    next[slot] = first;
+    prev[slot] = EMPTY;
+    if (first != EMPTY) prev[first] = slot;
+    head[cell] = slot;
+    cellOf[slot] = cell;
+  }
+
+  protected void unlink(int slot) {
+    int cell = cellOf[slot];
+    if (prev[slot] != EMPTY) next[prev[slot]] = next[slot];
+    else head[cell] = next[slot];
+    if (next[slot] != EMPTY) prev[next[slot]] = prev[slot];
+    cellOf[slot] = EMPTY;
+  }
+
+}
@@ -0,0 +1,180 @@
+package dsmllab.apmodel;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.*;
+
+/**
+ *  This class holds an AP model parameters file in parsed form, so the
+ *  trials of an experiment don't each tokenize it again.  Compiling
+ *  splits the text into its blocks, loads the values of each block into
+ *  Properties and resolves the class each block names, and the
+ *  constructor of that class.  APParser then builds the particles and
+ *  force laws of a trial from these, with newParticleInstance() or
+ *  newForceLawInstance() and loadFromProperties(), without going back to
+ *  the text or looking up any classes.  Blocks of other Parsable
+ *  classes, or of classes that parse their blocks their own way by
+ *  overriding createCopiesFromParse(), are still parsed by each trial
+ *  from the block's text.
+ *
+ *  A compiled scenario is never changed once made, so one can be shared
+ *  by all trials, including those running side by side.  The scenarios
+ *  compiled most recently are kept in a cache keyed by the text of the
+ *  parameters, so an optimizer evaluating the same candidate many times
+ *  (or a server seeing the same parameters again) parses them only once.
+ *  Files are read on every lookup and cached by their contents, so a
+ *  file that changes is compiled afresh.  Set cacheSize to 0 to turn the
+ *  cache off.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class CompiledScenario {
+  public static int cacheSize = 32;
+
+  protected static LinkedHashMap cache = new LinkedHashMap(16,0.75f,true);
+  protected static long numHits = 0;
+  protected static long numMisses = 0;
+
+  protected Block blocks[];
+
+
+  /** One block of the parameters:  the class it names and its values */
+  public static class Block {
+    public final String className;
+    public final Class itemClass;          // null if it couldn't be found
+    public final String blockValue;
+    public final boolean usesProperties;   // items are created from the Properties
+    protected final Properties properties;
+    protected final Constructor constructor;
+
+    public Block(String className, String blockValue) {
+      this.className = className;
+      this.blockValue = blockValue;
+
+      Class c = null;
+      try {
+        c = Class.forName(className);
+      }
+      catch (Throwable t) {}
+      this.itemClass = c;
+
+      properties = new Properties();
+      try {
+        properties.load(new ByteArrayInputStream(blockValue.getBytes("ISO-8859-1")));
+      }
+      catch (IOException e) {
+        System.err.println("Error while compiling the parse of " + className + ": " + e);
+      }
+
+      Constructor k = null;
+      boolean p = false;
+      try {
+        if (c != null) {
+          k = c.getDeclaredConstructor();
+          p = usesProperties(c);
+        }
+      }
+      catch (Exception e) {}
+      this.constructor = k;
+      this.usesProperties = p;
+    }//constructor
+
+
+    /** Return true if the items of a block of the class can be created
+     *  from its Properties:  a particle or force law that doesn't parse
+     *  its block itself. */
+    protected static boolean usesProperties(Class itemClass) throws Exception {
+      Class declaredBy = itemClass.getMethod("createCopiesFromParse",new Class[] {String.class}).getDeclaringClass();
+      return ((Particle.class.isAssignableFrom(itemClass) && (declaredBy == Particle.class)) ||
+              (ForceLaw.class.isAssignableFrom(itemClass) && (declaredBy == ForceLaw.class)));
+    }//usesProperties()
+
+
+    /** Return a new instance of the block's class */
+    public Object newInstance() throws Exception {
+      if (constructor == null) return itemClass.getDeclaredConstructor().newInstance();
+      return constructor.newInstance();
+    }//newInstance()
+
+    /** The values of the block.  These are shared, so don't change them. */
+    public Properties getProperties() {return properties;}
+  }//Block
+
+
+  protected CompiledScenario(Vector blockList) {
+    blocks = (Block[])blockList.toArray(new Block[blockList.size()]);
+  }//constructor
+
+
+  /** Compile the text of a parameters file, throwing an exception if it
+   *  is malformed. */
+  public static CompiledScenario compile(String apParamsString) throws Exception {
+    StreamTokenizer tokenizer = new StreamTokenizer(new StringReader(apParamsString));
+    APParser parser = new APParser(null,null);
+    Vector blockList = new Vector();
+
+    while (true) {
+      int token = tokenizer.nextToken();
+      if (token == StreamTokenizer.TT_EOF) break;
+      String blockName = tokenizer.sval;
+      String blockValues = parser.getBlockValues(tokenizer,blockName);
+      blockList.add(new Block(blockName,blockValues));
+      tokenizer.eolIsSignificant(false);
+    }
+
+    return new CompiledScenario(blockList);
+  }//compile()
+
+
+  /** The compiled form of the given parameters, from the cache if they
+   *  have been seen recently. */
+  public static CompiledScenario forString(String apParamsString) throws Exception {
+    if (cacheSize <= 0) return compile(apParamsString);
+
+    synchronized (cache) {
+      CompiledScenario scenario = (CompiledScenario)cache.get(apParamsString);
+      if (scenario != null) {
+        numHits++;
+        return scenario;
+      }
+      numMisses++;
+    }
+
+    // Compile outside the lock; two threads may both compile the same
+    // text, which does no harm
+    CompiledScenario scenario = compile(apParamsString);
+    synchronized (cache) {
+      cache.put(apParamsString,scenario);
+      Iterator it = cache.keySet().iterator();
+      while (cache.size() > cacheSize) {
+        it.next();
+        it.remove();
+      }
+    }
+    return scenario;
+  }//forString()
+
+
+  public static CompiledScenario forFile(String fileName) throws Exception {
+    return forString(ParamsTemplate.readFile(fileName));
+  }//forFile()
+
+
+  public static void clearCache() {
+    synchronized (cache) {
+      cache.clear();
+      numHits = 0;
+      numMisses = 0;
+    }
+  }//clearCache()
+
+  public static long getNumHits() {synchronized (cache) {return numHits;}}
+  public static long getNumMisses() {synchronized (cache) {return numMisses;}}
+
+
+  public int getNumBlocks() {return blocks.length;}
+  public Block getBlock(int i) {return blocks[i];}
+
+}
@@ -0,0 +1,196 @@
+package dsmllab.apmodel;
+
+import sim.engine.*;
+
+/**
+ *  This class watches a running model and decides when its formation has
+ *  settled, so the trial can be stopped early rather than running out
+ *  the rest of numSteps with nothing changing.  Each step it computes
+ *  one of the following and compares it with a threshold:
+ *
+ *    kineticEnergy    total kinetic energy of the particles
+ *    maxDisplacement  largest distance any particle moved this step
+ *    coverage         change in the fraction of targets covered
+ *                     (Surveillance models only)
+ *
+ *  Once the value has been at or below the threshold for K consecutive
+ *  steps the model is considered converged.  The monitor doesn't touch
+ *  the schedule; the loops in APModel (evaluate(), runTrial(), test())
+ *  check hasConverged() after each step and stop there, so the UI keeps
+ *  running as before.
+ *
+ *  The monitor is configured by convergenceCriterion ("none" turns it
+ *  off), convergenceThreshold and convergenceSteps (K) in the experiment
+ *  parameters.  It is scheduled after everything else in a step, so it
+ *  sees the positions the step ends with.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class ConvergenceMonitor implements Steppable {
+  public static final String NONE = "none";
+  public static final String KINETIC_ENERGY = "kineticEnergy";
+  public static final String MAX_DISPLACEMENT = "maxDisplacement";
+  public static final String COVERAGE = "coverage";
+
+  // Run after the particles, the force engine and the measures
+  public static final int ORDERING = 100;
+
+  protected String criterion;
+  protected double threshold;
+  protected int requiredSteps;
+
+  protected long stepCount = 0;
+  protected int quietSteps = 0;
+  protected long convergedStep = -1;
+  protected double lastValue = Double.NaN;
+
+  // Positions at the end of the last step, for maxDisplacement
+  protected double lastX[] = new double[0];
+  protected double lastY[] = new double[0];
+  protected double lastCoverage = Double.NaN;
+
+
+  public ConvergenceMonitor(String criterion, double threshold, int requiredSteps) {
+    this.criterion = criterion;
+    this.threshold = threshold;
+    this.requiredSteps = Math.max(1,requiredSteps);
+  }//constructor
+
+
+  /** Return a monitor for the model as its experiment parameters ask,
+   *  or null if they don't ask for one (or ask for one that can't work
+   *  on this model). */
+  public static ConvergenceMonitor create(APModel ap) {
+    APExperimentParameters expParams = ap.expParams;
+    String criterion = expParams.convergenceCriterion;
+    if ((criterion == null) || criterion.equalsIgnoreCase(NONE)) return null;
+
+    if (!criterion.equals(KINETIC_ENERGY) && !criterion.equals(MAX_DISPLACEMENT) &&
+        !criterion.equals(COVERAGE)) {
+      System.err.println("Warning:  Unknown convergence criterion " + criterion + "; trials will run to the end");
+      return null;
+    }
+
+    if (criterion.equals(COVERAGE) && !(ap instanceof Surveillance)) {
+      System.err.println("Warning:  The coverage criterion needs a Surveillance model; trials will run to the end");
+      return null;
+    }
+
+    ConvergenceMonitor monitor = new ConvergenceMonitor(criterion,expParams.convergenceThreshold,
+                                                        expParams.convergenceSteps);
+    monitor.reset(ap);
+    return monitor;
+  }//create()
+
+
+  public String getCriterion() {return criterion;}
+  public boolean hasConverged() {return (convergedStep >= 0);}
+
+  /** The step (counting from 1) at which the criterion was first met
+   *  for K steps running, or -1 */
+  public long getConvergedStep() {return convergedStep;}
+
+  /** The value of the criterion computed on the last step */
+  public double getLastValue() {return lastValue;}
+
+
+  /** Start watching the model afresh from its current state */
+  public void reset(APModel ap) {
+    stepCount = 0;
+    quietSteps = 0;
+    convergedStep = -1;
+    lastValue = Double.NaN;
+    rememberPositions(ap.particleStore);
+    lastCoverage = (criterion.equals(COVERAGE) ? ((Surveillance)ap).targets_covered() : Double.NaN);
+  }//reset()
+
+
+  public void step(SimState state) {
+    APModel ap = (APModel)state;
+    long start = (ap.profiler != null ? System.nanoTime() : 0);
+    stepCount++;
+
+    if (criterion.equals(KINETIC_ENERGY)) lastValue = kineticEnergy(ap.particleStore);
+    else if (criterion.equals(MAX_DISPLACEMENT)) lastValue = maxDisplacement(ap.particleStore);
+    else {
+      double coverage = ((Surveillance)ap).targets_covered();
+      lastValue = Math.abs(coverage - lastCoverage);
+      lastCoverage = coverage;
+    }
+
+    // NaN never counts as quiet
+    if (lastValue <= threshold) quietSteps++;
+    else quietSteps = 0;
+
+    if ((quietSteps >= requiredSteps) && (convergedStep < 0)) convergedStep = stepCount;
+    if (ap.profiler != null) ap.profiler.addTime(StepProfiler.MEASURES,System.nanoTime() - start);
+  }//step()
+
+
+  public void writeState(ModelCheckpoint.Output out) throws java.io.IOException {
+    out.putLong(stepCount);
+    out.putInt(quietSteps);
+    out.putLong(convergedStep);
+    out.putDouble(lastValue);
+    out.putDouble(lastCoverage);
+    out.putDoubles(lastX,lastX.length);
+    out.putDoubles(lastY,lastY.length);
+  }//writeState()
+
+
+  public void readState(ModelCheckpoint.Input in) throws java.io.IOException {
+    stepCount = in.getLong();
+    quietSteps = in.getInt();
+    convergedStep = in.getLong();
+    lastValue = in.getDouble();
+    lastCoverage = in.getDouble();
+    lastX = in.getDoubleArray();
+    lastY = in.getDoubleArray();
+  }//readState()
+
+
+  //--------------- Helper functions --------------
+
+  protected static double kineticEnergy(ParticleStore store) {
+    double energy = 0.0;
+    for (int slot=0; slot<store.getNumParticles(); slot++)
+      energy += 0.5*store.mass[slot]*(store.vx[slot]*store.vx[slot] + store.vy[slot]*store.vy[slot]);
+    return energy;
+  }//kineticEnergy()
+
+
+  protected double maxDisplacement(ParticleStore store) {
+    int numParticles = store.getNumParticles();
+    if (numParticles != lastX.length) {
+      // Particles came or went; start over from here
+      rememberPositions(store);
+      return Double.POSITIVE_INFINITY;
+    }
+
+    double maxSquared = 0.0;
+    for (int slot=0; slot<numParticles; slot++) {
+      double dx = store.x[slot] - lastX[slot];
+      double dy = store.y[slot] - lastY[slot];
+      double squared = dx*dx + dy*dy;
+      if (squared > maxSquared) maxSquared = squared;
+      lastX[slot] = store.x[slot];
+      lastY[slot] = store.y[slot];
+    }
+
+    return Math.sqrt(maxSquared);
+  }//maxDisplacement()
+
+
+  protected void rememberPositions(ParticleStore store) {
+    int numParticles = (store == null ? 0 : store.getNumParticles());
+    lastX = new double[numParticles];
+    lastY = new double[numParticles];
+    for (int slot=0; slot<numParticles; slot++) {
+      lastX[slot] = store.x[slot];
+      lastY[slot] = store.y[slot];
+    }
+  }//rememberPositions()
+
+}
@@ -0,0 +1,223 @@
+package dsmllab.apmodel;
+
+import sim.util.IntBag;
+
+/**
+ *  This class counts the targets covered by the particles, a target
+ *  being covered when it lies closer to some particle than that
+ *  particle's sensor radius.  Rather than checking every target against
+ *  every particle, the particles are kept in a CellList with cells as
+ *  wide as the largest radius, so only the particles in the cells
+ *  around a target are checked, and the search for a target stops at
+ *  the first particle covering it.  The targets are bucketed by the same
+ *  cells.
+ *
+ *  update() is the incremental form, meant to be called every step.  It
+ *  only rechecks the targets in the cells near particles that moved
+ *  since the last call (near where they were and where they are now),
+ *  since the coverage of no other target can have changed.  When the
+ *  formation has settled, a step costs next to nothing however many
+ *  targets there are.  countCovered() always checks every target.
+ *
+ *  The positions are read from the ParticleStore, and the radii are
+ *  copied from the particles when the index is built, so the index has
+ *  to be rebuilt if particles are added or their radii change.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class CoverageIndex {
+  protected ParticleStore store;
+  protected int numParticles;
+  protected double radiusSquared[];
+  protected double maxRadius = 0.0;
+  protected CellList particleCells;
+
+  // The targets, bucketed by cell:  those in cell c are
+  // cellTargets[cellStart[c]] to cellTargets[cellStart[c+1]-1]
+  protected double targetX[];
+  protected double targetY[];
+  protected int cellStart[];
+  protected int cellTargets[];
+
+  protected boolean covered[];
+  protected int numCovered = 0;
+
+  // Where each particle was at the last update
+  protected double lastX[];
+  protected double lastY[];
+  protected boolean dirty[];
+  protected IntBag dirtyCells = new IntBag();
+
+
+  /** Index the particles of the store and the given targets on a field
+   *  of the given width and height. */
+  public CoverageIndex(ParticleStore store, Target targets[], double width, double height) {
+    this.store = store;
+    this.numParticles = store.getNumParticles();
+
+    radiusSquared = new double[numParticles];
+    for (int slot=0; slot<numParticles; slot++) {
+      double radius = store.particles[slot].radius;
+      radiusSquared[slot] = radius*radius;
+      if (radius > maxRadius) maxRadius = radius;
+    }
+
+    particleCells = new CellList(maxRadius,width,height,numParticles);
+    lastX = new double[numParticles];
+    lastY = new double[numParticles];
+    for (int slot=0; slot<numParticles; slot++) {
+      lastX[slot] = store.x[slot];
+      lastY[slot] = store.y[slot];
+      particleCells.insert(slot,lastX[slot],lastY[slot]);
+    }
+
+    bucketTargets(targets);
+    dirty = new boolean[particleCells.getNumCells()];
+
+    for (int t=0; t<covered.length; t++) {
+      covered[t] = isCovered(targetX[t],targetY[t]);
+      if (covered[t]) numCovered++;
+    }
+  }//constructor
+
+
+  public int getNumTargets() {return covered.length;}
+  public int getNumCovered() {return numCovered;}
+  public double getMaxRadius() {return maxRadius;}
+
+
+  /** True if the index no longer matches the store it was built on */
+  public boolean isStale(ParticleStore store) {
+    return ((store != this.store) || (store.getNumParticles() != numParticles));
+  }
+
+
+  /** Return the fraction of the targets covered (0 if there are none) */
+  public double getFractionCovered() {
+    return (covered.length == 0 ? 0.0 : (double)numCovered/covered.length);
+  }
+
+
+  /** Bring the coverage up to date with the particles' current positions,
+   *  rechecking only the targets near particles that moved, and return
+   *  the number of targets covered. */
+  public int update() {
+    for (int slot=0; slot<numParticles; slot++) {
+      double x = store.x[slot];
+      double y = store.y[slot];
+      if ((x == lastX[slot]) && (y == lastY[slot])) continue;
+
+      markCells(lastX[slot],lastY[slot]);
+      markCells(x,y);
+      particleCells.move(slot,x,y);
+      lastX[slot] = x;
+      lastY[slot] = y;
+    }
+
+    for (int i=0; i<dirtyCells.numObjs; i++) {
+      int cell = dirtyCells.objs[i];
+      dirty[cell] = false;
+      for (int k=cellStart[cell]; k<cellStart[cell+1]; k++) {
+        int t = cellTargets[k];
+        boolean nowCovered = isCovered(targetX[t],targetY[t]);
+        if (nowCovered != covered[t]) {
+          covered[t] = nowCovered;
+          numCovered += (nowCovered ? 1 : -1);
+        }
+      }
+    }
+    dirtyCells.clear();
+
+    return numCovered;
+  }//update()
+
+
+  /** Check every target against the particles' current positions and
+   *  return the number covered. */
+  public int countCovered() {
+    for (int slot=0; slot<numParticles; slot++) {
+      lastX[slot] = store.x[slot];
+      lastY[slot] = store.y[slot];
+      particleCells.move(slot,lastX[slot],lastY[slot]);
+    }
+    for (int i=0; i<dirtyCells.numObjs; i++) dirty[dirtyCells.objs[i]] = false;
+    dirtyCells.clear();
+
+    numCovered = 0;
+    for (int t=0; t<covered.length; t++) {
+      covered[t] = isCovered(targetX[t],targetY[t]);
+      if (covered[t]) numCovered++;
+    }
+
+    return numCovered;
+  }//countCovered()
+
+
+  /** True if some particle's radius reaches the given location */
+  public boolean isCovered(double x, double y) {
+    int cxLow  = particleCells.getCellX(x-maxRadius);
+    int cxHigh = particleCells.getCellX(x+maxRadius);
+    int cyLow  = particleCells.getCellY(y-maxRadius);
+    int cyHigh = particleCells.getCellY(y+maxRadius);
+    int numCellsX = particleCells.getNumCellsX();
+
+    for (int cy=cyLow; cy<=cyHigh; cy++)
+      for (int cx=cxLow; cx<=cxHigh; cx++)
+        for (int slot=particleCells.getFirst(cy*numCellsX + cx); slot != CellList.EMPTY;
+             slot=particleCells.getNext(slot)) {
+          double dx = store.x[slot] - x;
+          double dy = store.y[slot] - y;
+          if (dx*dx + dy*dy < radiusSquared[slot]) return true;
+        }
+
+    return false;
+  }//isCovered()
+
+
+  //--------------- Helper functions --------------
+
+  /** Sort the targets into the cells with a counting sort */
+  protected void bucketTargets(Target targets[]) {
+    int numTargets = (targets == null ? 0 : targets.length);
+    int numCells = particleCells.getNumCells();
+    targetX = new double[numTargets];
+    targetY = new double[numTargets];
+    covered = new boolean[numTargets];
+    cellStart = new int[numCells+1];
+    cellTargets = new int[numTargets];
+
+    int cellOf[] = new int[numTargets];
+    for (int t=0; t<numTargets; t++) {
+      targetX[t] = targets[t].x;
+      targetY[t] = targets[t].y;
+      cellOf[t] = particleCells.getCell(targetX[t],targetY[t]);
+      cellStart[cellOf[t]+1]++;
+    }
+    for (int c=0; c<numCells; c++) cellStart[c+1] += cellStart[c];
+
+    int fill[] = (int[])cellStart.clone();
+    for (int t=0; t<numTargets; t++) cellTargets[fill[cellOf[t]]++] = t;
+  }//bucketTargets()
+
+
+  /** Flag the cells whose targets a particle at (x,y) could reach */
+  protected void markCells(double x, double y) {
+    int cxLow  = particleCells.getCellX(x-maxRadius);
+    int cxHigh = particleCells.getCellX(x+maxRadius);
+    int cyLow  = particleCells.getCellY(y-maxRadius);
+    int cyHigh = particleCells.getCellY(y+maxRadius);
+    int numCellsX = particleCells.getNumCellsX();
+
+    for (int cy=cyLow; cy<=cyHigh; cy++)
+      for (int cx=cxLow; cx<=cxHigh; cx++) {
+        int cell = cy*numCellsX + cx;
+        if (!dirty[cell] && (cellStart[cell] != cellStart[cell+1])) {
+          dirty[cell] = true;
+          dirtyCells.add(cell);
+        }
+      }
+  }//markCells()
+
+}
@@ -0,0 +1,27 @@
+package dsmllab.apmodel;
+
+/**
+ *  This measure samples the fraction of targets covered every step of a
+ *  Surveillance model.  It relies on the incremental update of the
+ *  model's CoverageIndex, so sampling every step stays cheap even with
+ *  a great many targets.  On any other model it measures 0.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class CoverageMeasure extends AbstractMeasure {
+
+  public CoverageMeasure() {super("CoverageMeasure");}
+
+
+  public double computeStepMeasure(APModel ap) {
+    incStepCount(1);
+    if (!(ap instanceof Surveillance)) return 0.0;
+
+    Surveillance surveillance = (Surveillance)ap;
+    if ((surveillance.targets == null) || (surveillance.n == 0)) return 0.0;
+    return surveillance.targets_covered();
+  }//computeStepMeasure()
+
+}
@@ -0,0 +1,354 @@
+package dsmllab.apmodel;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  This class implements a resident evaluator for the learners.  Rather
+ *  than compiling and starting a new JVM for every candidate and
+ *  scraping the last line it prints, a learner starts one server and
+ *  sends it AP model parameters as strings.  Each is parsed with
+ *  APParser.loadFromString(), simulated, and answered with a single line
+ *  of JSON holding the fitness (the mean over the trials of
+ *  resolveFinalFitness()).
+ *
+ *  Requests are read from stdin, or from connections to a port on the
+ *  loopback interface.  A request is a header line, followed by the
+ *  parameters, followed by a line holding a single period:
+ *
+ *    EVALUATE <id> [trials=<n>] [steps=<n>] [seed=<n>]
+ *    dsmllab.apmodel.Particle {
+ *      ...
+ *    }
+ *    .
+ *
+ *  A parameters line that really starts with a period must have it
+ *  doubled.  The answer is either
+ *
+ *    {"id":"<id>","fitness":0.53,"trials":1,"steps":1000,"stepsRun":412.0,"seed":42,"millis":812.4}
+ *
+ *  or {"id":"<id>","error":"<message>"}.  A request whose header is
+ *  wrong is answered with an error, and its parameters are skipped.
+ *  The trials and steps default to those of the experiment parameters,
+ *  and stepsRun is the mean number of steps the trials actually took
+ *  (see ConvergenceMonitor).  The seed defaults to the one given to the
+ *  server, so unless told otherwise every candidate is judged on the
+ *  same random numbers.  Trial t of a request uses seed plus t.  QUIT
+ *  ends a session.
+ *
+ *  Every request runs on a thread of its own (a virtual thread, when the
+ *  JVM has them), so a learner may send a whole population at once and
+ *  read the answers as they come; they are not necessarily in order.
+ *  A semaphore keeps the number of trials running at once to the number
+ *  of processors (or whatever is asked for).
+ *
+ *  Usage:  java dsmllab.apmodel.EvaluationServer [-port n] [-experiment file]
+ *                  [-model class] [-concurrent n] [-seed n]
+ *
+ *  In stdin mode, the answers are the only thing written to stdout;
+ *  anything else the simulation prints is sent to stderr.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class EvaluationServer {
+  public static final String EVALUATE = "EVALUATE";
+  public static final String QUIT = "QUIT";
+  public static final String END_OF_PARAMS = ".";
+
+  protected Class modelClass;
+  protected APExperimentParameters expParams;
+  protected long baseSeed;
+  protected Semaphore trialSlots;
+  protected ExecutorService requestThreads;
+
+
+  public EvaluationServer(Class modelClass, APExperimentParameters expParams,
+                          int maxConcurrentTrials, long baseSeed) {
+    this.modelClass = modelClass;
+    this.expParams = expParams;
+    this.baseSeed = baseSeed;
+
+    if (!expParams.isLoaded()) expParams.loadParameters();
+    if (maxConcurrentTrials <= 0) maxConcurrentTrials = Runtime.getRuntime().availableProcessors();
+    trialSlots = new Semaphore(maxConcurrentTrials,true);
+    requestThreads = newRequestExecutor();
+  }//constructor
+
+
+  public static void main(String args[]) {
+    int port = -1;
+    int maxConcurrentTrials = 0;
+    long seed = System.currentTimeMillis();
+    String experimentFile = null;
+    String modelClassName = "dsmllab.apmodel.Surveillance";
+
+    for (int i=0; i<args.length-1; i+=2) {
+      if (args[i].equals("-port")) port = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-experiment")) experimentFile = args[i+1];
+      else if (args[i].equals("-model")) modelClassName = args[i+1];
+      else if (args[i].equals("-concurrent")) maxConcurrentTrials = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-seed")) seed = Long.parseLong(args[i+1]);
+      else System.err.println("Warning:  Ignoring unknown option " + args[i]);
+    }
+
+    // Keep stdout for the answers
+    PrintStream answers = System.out;
+    System.setOut(System.err);
+
+    try {
+      APExperimentParameters expParams = (experimentFile == null ? new APExperimentParameters()
+                                          : new APExperimentParameters(experimentFile));
+      EvaluationServer server = new EvaluationServer(Class.forName(modelClassName),expParams,
+                                                     maxConcurrentTrials,seed);
+      if (port >= 0)
+        server.serveSocket(port);
+      else
+        server.serveStream(new BufferedReader(new InputStreamReader(System.in)),
+                           new OutputStreamWriter(answers));
+      server.shutdown();
+    }
+    catch (Exception e) {
+      System.err.println("Error running the evaluation server: " + e);
+      System.exit(1);
+    }
+  }//main()
+
+
+  /** Listen on the given port of the loopback interface, and serve each
+   *  connection on a thread of its own.  This only returns if the server
+   *  socket fails. */
+  public void serveSocket(int port) throws IOException {
+    ServerSocket serverSocket = new ServerSocket(port,50,InetAddress.getLoopbackAddress());
+    System.err.println("Evaluation server listening on " + serverSocket.getLocalSocketAddress());
+
+    try {
+      while (true) {
+        final Socket socket = serverSocket.accept();
+        requestThreads.submit(new Runnable() {
+            public void run() {
+              try {
+                serveStream(new BufferedReader(new InputStreamReader(socket.getInputStream())),
+                            new OutputStreamWriter(socket.getOutputStream()));
+              }
+              catch (Exception e) {
+                System.err.println("Error serving " + socket + ": " + e);
+              }
+              finally {
+                try { socket.close(); } catch (IOException e) {}
+              }
+            }
+          });
+      }
+    }
+    finally {
+      serverSocket.close();
+    }
+  }//serveSocket()
+
+
+  /** Read requests until the end of the input or QUIT, answering each on
+   *  the given writer as it is done.  This returns once every request
+   *  read has been answered. */
+  public void serveStream(BufferedReader in, final Writer out) throws IOException {
+    Vector pending = new Vector();
+
+    String line;
+    while ((line = in.readLine()) != null) {
+      line = line.trim();
+      if (line.length() == 0) continue;
+      if (line.equalsIgnoreCase(QUIT)) break;
+
+      StringTokenizer header = new StringTokenizer(line);
+      String command = header.nextToken();
+      if (!command.equalsIgnoreCase(EVALUATE) || !header.hasMoreTokens()) {
+        answer(out,"{\"id\":null,\"error\":" + quote("Expected 'EVALUATE <id>' but got '" + line + "'") + "}");
+        // Skip its parameters, so their lines aren't taken for headers
+        if (!line.equals(END_OF_PARAMS)) readParams(in);
+        continue;
+      }
+
+      final String id = header.nextToken();
+      final Request request = new Request(id);
+      try {
+        while (header.hasMoreTokens()) request.setOption(header.nextToken());
+      }
+      catch (Exception e) {
+        request.error = "Bad option in '" + line + "': " + e.getMessage();
+      }
+      request.apParamsString = readParams(in);
+
+      pending.add(requestThreads.submit(new Runnable() {
+          public void run() {
+            answer(out,request.run());
+          }
+        }));
+    }
+
+    for (int i=0; i<pending.size(); i++) {
+      try {
+        ((Future)pending.get(i)).get();
+      }
+      catch (Exception e) {
+        System.err.println("Error waiting for a request: " + e);
+      }
+    }
+  }//serveStream()
+
+
+  /** Evaluate the parameters with the given number of trials and steps,
+   *  trial t using seed plus t, and return the mean fitness. */
+  public double evaluate(String apParamsString, int numTrials, int numSteps, long seed)
+    throws Exception {
+    return evaluate(apParamsString,numTrials,numSteps,seed,null);
+  }//evaluate()
+
+
+  /** As above, also leaving the mean number of steps the trials ran
+   *  (fewer than numSteps if they converged) in meanStepsRun[0], unless
+   *  it is null. */
+  public double evaluate(String apParamsString, int numTrials, int numSteps, long seed,
+                         double meanStepsRun[]) throws Exception {
+    APExperimentParameters trialParams = expParams.copy();
+    trialParams.readFromParamFile = false;
+    trialParams.numSimTrials = numTrials;
+    trialParams.numSteps = numSteps;
+
+    double total = 0.0;
+    long totalSteps = 0;
+    for (int trial=0; trial<numTrials; trial++) {
+      APModel ap = APModel.newInstance(modelClass,seed+trial);
+      trialSlots.acquire();
+      try {
+        total += ap.runTrial(trialParams,apParamsString);
+        totalSteps += ap.stepsRun;
+      }
+      finally {
+        trialSlots.release();
+      }
+    }
+
+    if (meanStepsRun != null) meanStepsRun[0] = (double)totalSteps/numTrials;
+    return (total / (double)numTrials);
+  }//evaluate()
+
+
+  public void shutdown() {
+    requestThreads.shutdown();
+  }
+
+
+  /** Use a virtual thread per request if this JVM has them (looked up by
+   *  reflection, so the code still builds for older JVMs), and otherwise
+   *  a pool that grows as needed. */
+  protected static ExecutorService newRequestExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor",new Class[0]);
+      return (ExecutorService)factory.invoke(null,new Object[0]);
+    }
+    catch (Exception e) {
+      return Executors.newCachedThreadPool();
+    }
+  }//newRequestExecutor()
+
+
+  //--------------- Helper functions --------------
+
+  /** Read parameter lines up to the terminating period. */
+  protected String readParams(BufferedReader in) throws IOException {
+    StringBuffer params = new StringBuffer();
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (line.trim().equals(END_OF_PARAMS)) break;
+      if (line.startsWith("..")) line = line.substring(1);
+      params.append(line).append('\n');
+    }
+    return params.toString();
+  }//readParams()
+
+
+  protected void answer(Writer out, String json) {
+    synchronized (out) {
+      try {
+        out.write(json);
+        out.write('\n');
+        out.flush();
+      }
+      catch (IOException e) {
+        System.err.println("Error writing an answer: " + e);
+      }
+    }
+  }//answer()
+
+
+  protected static String quote(String s) {
+    if (s == null) return "null";
+
+    StringBuffer quoted = new StringBuffer("\"");
+    for (int i=0; i<s.length(); i++) {
+      char ch = s.charAt(i);
+      if ((ch == '"') || (ch == '\\')) quoted.append('\\').append(ch);
+      else if (ch == '\n') quoted.append("\\n");
+      else if (ch == '\r') quoted.append("\\r");
+      else if (ch == '\t') quoted.append("\\t");
+      else if (ch < 0x20) quoted.append("\\u").append(String.format("%04x",(int)ch));
+      else quoted.append(ch);
+    }
+    return quoted.append('"').toString();
+  }//quote()
+
+
+  /** One request, with the options from its header line. */
+  protected class Request {
+    protected String id;
+    protected String apParamsString;
+    protected int numTrials = expParams.numSimTrials;
+    protected int numSteps = expParams.numSteps;
+    protected long seed = baseSeed;
+    protected String error = null;
+
+    protected Request(String id) {
+      this.id = id;
+    }
+
+    protected void setOption(String option) {
+      int equals = option.indexOf('=');
+      if (equals < 0) throw new IllegalArgumentException("expected key=value");
+
+      String key = option.substring(0,equals);
+      String value = option.substring(equals+1);
+      if (key.equals("trials")) numTrials = Integer.parseInt(value);
+      else if (key.equals("steps")) numSteps = Integer.parseInt(value);
+      else if (key.equals("seed")) seed = Long.parseLong(value);
+      else throw new IllegalArgumentException("unknown option " + key);
+    }
+
+    /** Run the request and return its answer */
+    protected String run() {
+      if (error != null) return "{\"id\":" + quote(id) + ",\"error\":" + quote(error) + "}";
+      if (numTrials <= 0) return "{\"id\":" + quote(id) + ",\"error\":\"trials must be positive\"}";
+
+      try {
+        long start = System.nanoTime();
+        double stepsRun[] = new double[1];
+        double fitness = evaluate(apParamsString,numTrials,numSteps,seed,stepsRun);
+        double millis = (System.nanoTime() - start)/1.0e6;
+
+        String value = (Double.isNaN(fitness) || Double.isInfinite(fitness) ? "null" : "" + fitness);
+
+        return "{\"id\":" + quote(id) + ",\"fitness\":" + value +
+          ",\"trials\":" + numTrials + ",\"steps\":" + numSteps + ",\"stepsRun\":" + stepsRun[0] +
+          ",\"seed\":" + seed +
+          ",\"millis\":" + millis + "}";
+      }
+      catch (Throwable e) {
+        return "{\"id\":" + quote(id) + ",\"error\":" + quote(e.toString()) + "}";
+      }
+    }
+  }//Request
+
+}
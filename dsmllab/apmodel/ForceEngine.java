@@ -0,0 +1,1005 @@
+package dsmllab.apmodel;
+
+import sim.engine.*;
+import sim.util.IntBag;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  This class carries out the force phase of the simulation.  It keeps
+ *  a CellList over the slots of the model's ParticleStore, so a particle
+ *  imparting its force only looks at the particles in the cells within
+ *  its maximum range of effect, rather than asking the Continuous2D
+ *  environment (which allocates a Bag for every query and returns the
+ *  targets and every other kind of object as well).
+ *
+ *  The cell size comes from the ranges of effect registered in the
+ *  ForceInteractionModel, so the engine must be initialized after the
+ *  force laws have been set up.  Particles tell the engine when they
+ *  move, and the cell list is updated incrementally.
+ *
+ *  Optionally (see APExperimentParameters.useVerletLists), the engine
+ *  keeps Verlet neighbor lists built from the cell list, and only goes
+ *  back to the cell list when particles have moved far enough that the
+ *  lists must be rebuilt.  In the sequential mode a particle's neighbors
+ *  may already have moved this step when it uses its list, so the skin
+ *  is raised to at least twice the furthest a particle moves in a step.
+ *
+ *  There are two update modes (see APExperimentParameters.updateMode).
+ *  In the sequential mode, each particle is scheduled on its own and
+ *  imparts its force and then immediately moves, so every particle
+ *  sees the others part way through the step.  In the synchronous mode,
+ *  the particles are not scheduled at all; the engine itself is, and
+ *  each step happens in two phases.  First, the forces of all particles
+ *  are computed at once from the positions at the start of the step.
+ *  Second, all particles are moved.  Both phases are split into chunks
+ *  of slots and run on a fork-join pool.  Each chunk accumulates forces
+ *  into its own buffer, and the buffers are summed in a fixed order, so
+ *  a run is reproducible for a given number of threads.  The moved
+ *  particles' handles, the cells they have moved into and their Verlet
+ *  displacements are also worked out in the chunks; only relinking the
+ *  cell list (in slot order, so the neighbor order doesn't depend on the
+ *  threads) is left to the calling thread.  Telling the MASON
+ *  environment, which the engine itself doesn't use, can be put off for
+ *  a number of steps (see APExperimentParameters.environmentSyncInterval)
+ *  or until the end of the run.
+ *
+ *  Since all forces in the synchronous mode come from the same positions,
+ *  a pair of particles whose types interact reciprocally (see
+ *  ForceInteractionModel) only needs to be evaluated once:  the particle
+ *  in the lower slot computes the force and applies it to both, with
+ *  opposite signs.  This can be turned off with
+ *  APExperimentParameters.useReciprocalPairs.
+ *
+ *  Also in the synchronous mode, NewtonianForceLaws whose range of effect
+ *  covers the whole field can be approximated with Barnes-Hut trees
+ *  (see APExperimentParameters.useTreeCode and BarnesHutTree).  One tree
+ *  is built per type of particle exerting such a force at the start of
+ *  each step, and each particle gathers the force of the trees on
+ *  itself.  Those interactions are left out of the neighbor search
+ *  altogether; laws with a shorter range are always done exactly.
+ *
+ *  The synchronous mode can also use multiple time stepping.  Each
+ *  interaction has an interval K, and its forces are computed only every
+ *  K steps and reused in between.  A law's interval is its mtsInterval,
+ *  if it sets one in the params file; otherwise laws whose range covers
+ *  the whole field (as for the tree code) get
+ *  APExperimentParameters.mtsInterval and all other laws get 1.  So the
+ *  slowly changing, expensive whole-field forces can be recomputed every
+ *  few steps while the short-range forces that hold the formation
+ *  together are computed every step.  The interactions with the same
+ *  interval make up a pass:  pass 0 holds those done every step, and
+ *  each other pass keeps the forces it last computed in a cache of its
+ *  own, which is added to the fresh forces of pass 0 on every step.
+ *
+ *  When the SIMD kernel can be loaded (see NewtonianKernel and
+ *  APExperimentParameters.useVectorKernel), the candidates of a particle
+ *  whose outgoing laws are all plain NewtonianForceLaws are packed by
+ *  type into a PairBatch, their pair forces are computed a register at
+ *  a time, and the forces are then added up in the order the candidates
+ *  were found, so the results are the same as one pair at a time.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class ForceEngine implements Steppable {
+  public static final String SEQUENTIAL_UPDATE  = "sequential";
+  public static final String SYNCHRONOUS_UPDATE = "synchronous";
+
+  // Below this many particles per chunk, it isn't worth splitting
+  public static final int MIN_CHUNK_SIZE = 64;
+
+  protected static final int FORCE_PHASE     = 0;
+  protected static final int REDUCTION_PHASE = 1;
+  protected static final int MOVEMENT_PHASE  = 2;
+
+  protected APModel ap;
+  protected ParticleStore store;
+  protected ForceInteractionModel forceInteractionModel;
+  protected CellList neighborIndex = null;
+  protected VerletList verletList = null;
+
+  // The schedule step for which the force phase was last begun
+  protected long currentStep = -1;
+
+  // Scratch space for neighbor queries, reused on every call
+  protected IntBag neighbors = new IntBag();
+
+  // The SIMD kernel, if there is one, and the types whose outgoing
+  // interactions it can compute
+  protected NewtonianKernel kernel = null;
+  protected boolean packTypes[] = null;
+  protected PairBatch batch = new PairBatch();
+
+  // Synchronous update state:  one force buffer and one scratch bag per chunk
+  protected boolean synchronous = false;
+  protected boolean useReciprocalPairs = false;
+  protected int numThreads = 1;
+  protected int numChunks = 1;
+  protected double chunkForceX[][] = null;
+  protected double chunkForceY[][] = null;
+  protected IntBag chunkNeighbors[] = null;
+  protected IntBag chunkStacks[] = null;
+  protected PairBatch chunkBatches[] = null;
+  protected StepProfiler.Tally chunkTallies[] = null;
+  protected transient ForkJoinPool pool = null;
+
+  // Movement phase state:  the cell each slot has moved into (EMPTY if it
+  // hasn't moved), the largest Verlet displacement in each chunk, and the
+  // slots whose location the environment hasn't been told yet
+  protected int movedCell[] = null;
+  protected double chunkMaxDisplacement[] = null;
+  protected boolean environmentStale[] = null;
+  protected int environmentSyncInterval = 1;
+  protected long stepsSinceEnvironmentSync = 0;
+
+  // Ranges of the interactions done with the neighbor search, which are
+  // all of them unless the tree code is in use
+  protected double nearRangesSquared[][] = null;  // -1 where there is no such interaction
+  protected double nearMaxRangeFrom[] = null;     // -1 where there are none
+
+  // Tree code state, indexed by the type affected and then the type
+  // exerting the force, and null where the force is done exactly
+  protected boolean useTreeCode = false;
+  protected double openingAngle = 0.5;
+  protected NewtonianForceLaw treeLaws[][] = null;
+  protected BarnesHutTree treeFor[][] = null;
+  protected boolean hasTreeInteractionsTo[] = null;
+  protected Vector trees = new Vector();
+
+  // Multiple time stepping state, by pass.  Pass 0 is computed every
+  // step; the others are computed every passIntervals[p] steps into
+  // their caches.  currentPass is the pass the force phase is computing.
+  protected int interactionIntervals[][] = null;  // by type exerting, then affected; 0 where none
+  protected int passIntervals[] = null;
+  protected double passRangesSquared[][][] = null;
+  protected double passMaxRangeFrom[][] = null;
+  protected boolean passHasTrees[] = null;
+  protected double cacheForceX[][] = null;
+  protected double cacheForceY[][] = null;
+  protected long lastUpdate[] = null;             // step each cache was computed, -1 if never
+  protected int cachedParticles[] = null;         // particles each cache was computed for
+  protected int currentPass = 0;
+
+  // Pools are shared by every engine asking for the same number of
+  // threads, and shut down with the JVM or by shutdownPools()
+  protected static Map pools = new HashMap();
+  protected static boolean hasShutdownHook = false;
+
+
+  public ForceEngine(APModel ap) {
+    this.ap = ap;
+    this.store = ap.particleStore;
+    this.forceInteractionModel = ap.forceInteractionModel;
+  }//constructor
+
+
+  public CellList getNeighborIndex() {return neighborIndex;}
+  public VerletList getVerletList() {return verletList;}
+  public boolean isSynchronous() {return synchronous;}
+  public int getNumThreads() {return numThreads;}
+  public boolean isUsingTreeCode() {return useTreeCode;}
+  public Vector getTrees() {return trees;}
+  public int getNumPasses() {return passIntervals.length;}
+  public int getPassInterval(int pass) {return passIntervals[pass];}
+  public int getInteractionInterval(int fromType, int toType) {return interactionIntervals[fromType][toType];}
+  public NewtonianKernel getKernel() {return kernel;}
+
+
+  /** Size the cell list from the ranges of effect of the registered
+   *  force laws and insert every particle in the store. */
+  public void initialize() {
+    double cellSize = forceInteractionModel.getMinEffectRange();
+    double width = ap.XMAX - ap.XMIN;
+    double height = ap.YMAX - ap.YMIN;
+    if (cellSize <= 0) cellSize = Math.max(width,height);
+
+    neighborIndex = new CellList(cellSize,width,height,store.getCapacity());
+    for (int slot=0; slot<store.getNumParticles(); slot++)
+      neighborIndex.insert(slot,store.x[slot],store.y[slot]);
+
+    synchronous = isSynchronousMode(ap.expParams);
+    useReciprocalPairs = synchronous && ap.expParams.useReciprocalPairs;
+    initializeTreeCode(width,height);
+    initializeMultipleTimeStepping(width,height);
+
+    verletList = null;
+    if ((ap.expParams != null) && ap.expParams.useVerletLists) {
+      double timeStep = (ap.integrator == null ? 1.0 : ap.integrator.getTimeStep());
+      double skin = ap.expParams.verletSkin;
+      if (!synchronous) {
+        double maxVelocity = 0.0;
+        for (int slot=0; slot<store.getNumParticles(); slot++)
+          maxVelocity = Math.max(maxVelocity,store.maxVelocity[slot]);
+        if (skin < 2.0*maxVelocity*timeStep) {
+          skin = 2.0*maxVelocity*timeStep;
+          System.err.println("Warning:  In the sequential update mode the Verlet skin must be at least " +
+                             "twice maxVelocity*dt.  Using " + skin + " instead of " + ap.expParams.verletSkin + ".");
+        }
+      }
+      verletList = new VerletList(skin,timeStep);
+      verletList.build(store,nearRangesSquared,nearMaxRangeFrom,neighborIndex);
+    }
+
+    initializeKernel();
+    if (synchronous) initializeThreads(ap.expParams.numThreads);
+    environmentSyncInterval = (ap.expParams == null ? 1 : ap.expParams.environmentSyncInterval);
+
+    currentStep = -1;
+  }//initialize()
+
+
+  /** Write the neighbor search state and the cached forces of multiple
+   *  time stepping to a checkpoint.  The trees are rebuilt every step, so
+   *  they aren't needed. */
+  public void writeState(ModelCheckpoint.Output out) throws java.io.IOException {
+    neighborIndex.writeState(out,store.getNumParticles());
+    out.putBoolean(verletList != null);
+    if (verletList != null) verletList.writeState(out);
+
+    out.putInts(passIntervals,passIntervals.length);
+    for (int pass=1; pass<passIntervals.length; pass++) {
+      out.putLong(lastUpdate[pass]);
+      if (lastUpdate[pass] < 0) continue;
+      out.putDoubles(cacheForceX[pass],cachedParticles[pass]);
+      out.putDoubles(cacheForceY[pass],cachedParticles[pass]);
+    }
+  }//writeState()
+
+
+  /** Read back what writeState() wrote into an engine initialized for
+   *  the same model. */
+  public void readState(ModelCheckpoint.Input in) throws java.io.IOException {
+    neighborIndex.readState(in,store.getNumParticles());
+    if (in.getBoolean() != (verletList != null))
+      throw new java.io.IOException("The checkpoint and the model don't agree on the Verlet lists");
+    if (verletList != null) verletList.readState(in);
+
+    int intervals[] = in.getIntArray();
+    if (!Arrays.equals(intervals,passIntervals))
+      throw new java.io.IOException("The checkpoint and the model don't agree on the time step intervals");
+    prepareCaches();
+    for (int pass=1; pass<passIntervals.length; pass++) {
+      lastUpdate[pass] = in.getLong();
+      if (lastUpdate[pass] < 0) continue;
+      cachedParticles[pass] = in.getDoubles(cacheForceX[pass]);
+      in.getDoubles(cacheForceY[pass]);
+    }
+  }//readState()
+
+
+  /** Decide which interactions are done with the tree code, and set up
+   *  the ranges of those left to the neighbor search.  A law is done with
+   *  the tree code when it is a NewtonianForceLaw whose range of effect
+   *  is at least the diagonal of the field, so that it never actually
+   *  cuts off, and whose force falls off with distance. */
+  protected void initializeTreeCode(double width, double height) {
+    int numTypes = forceInteractionModel.getNumParticleTypes();
+    double diagonal = Math.sqrt(width*width + height*height);
+
+    useTreeCode = (ap.expParams != null) && ap.expParams.useTreeCode;
+    if (useTreeCode && !synchronous) {
+      System.err.println("Warning:  The tree code is only used in the synchronous update mode.  " +
+                         "All forces will be computed exactly.");
+      useTreeCode = false;
+    }
+
+    treeLaws = null;
+    treeFor = null;
+    trees.clear();
+    hasTreeInteractionsTo = new boolean[numTypes];
+    if (useTreeCode) {
+      openingAngle = ap.expParams.treeOpeningAngle;
+      treeLaws = new NewtonianForceLaw[numTypes][numTypes];
+      treeFor = new BarnesHutTree[numTypes][numTypes];
+    }
+
+    nearRangesSquared = new double[numTypes][];
+    nearMaxRangeFrom = new double[numTypes];
+    for (int fromType=0; fromType<numTypes; fromType++) {
+      nearRangesSquared[fromType] = (double[])forceInteractionModel.getEffectRangesSquaredFrom(fromType).clone();
+      nearMaxRangeFrom[fromType] = -1.0;
+
+      for (int toType=0; toType<numTypes; toType++) {
+        ForceLaw fl = forceInteractionModel.getInteractionFromTo(fromType,toType);
+        if (fl == null) continue;
+
+        if (useTreeCode && (fl instanceof NewtonianForceLaw) && (fl.getEffectRange() >= diagonal) &&
+            (((NewtonianForceLaw)fl).distancePower > 0)) {
+          treeLaws[toType][fromType] = (NewtonianForceLaw)fl;
+          treeFor[toType][fromType] = getTree(fromType,((NewtonianForceLaw)fl).massPower);
+          hasTreeInteractionsTo[toType] = true;
+          nearRangesSquared[fromType][toType] = -1.0;
+        }
+        else if (fl.getEffectRange() > nearMaxRangeFrom[fromType])
+          nearMaxRangeFrom[fromType] = fl.getEffectRange();
+      }
+    }
+
+    if (trees.isEmpty()) useTreeCode = false;
+  }//initializeTreeCode()
+
+
+  /** Give every interaction its interval, and split the interactions
+   *  into a pass for each interval, with the ranges of the neighbor
+   *  search interactions in each.  Outside the synchronous mode every
+   *  interval is 1, and there is only pass 0. */
+  protected void initializeMultipleTimeStepping(double width, double height) {
+    int numTypes = forceInteractionModel.getNumParticleTypes();
+    double diagonal = Math.sqrt(width*width + height*height);
+    int defaultInterval = ((ap.expParams == null) ? 1 : Math.max(1,ap.expParams.mtsInterval));
+
+    // Pass 0 is always there, so an interval of 1 comes first
+    int intervals[] = new int[numTypes*numTypes + 1];
+    int numPasses = 0;
+    intervals[numPasses++] = 1;
+    boolean ignored = false;
+    interactionIntervals = new int[numTypes][numTypes];
+    for (int fromType=0; fromType<numTypes; fromType++)
+      for (int toType=0; toType<numTypes; toType++) {
+        ForceLaw fl = forceInteractionModel.getInteractionFromTo(fromType,toType);
+        if (fl == null) continue;
+
+        int interval = fl.getMTSInterval();
+        if (interval <= 0) interval = ((fl.getEffectRange() >= diagonal) ? defaultInterval : 1);
+        if ((interval > 1) && !synchronous) {
+          ignored = true;
+          interval = 1;
+        }
+
+        interactionIntervals[fromType][toType] = interval;
+        boolean found = false;
+        for (int pass=0; pass<numPasses; pass++) found |= (intervals[pass] == interval);
+        if (!found) intervals[numPasses++] = interval;
+      }
+    if (ignored)
+      System.err.println("Warning:  Multiple time stepping is only used in the synchronous update mode.  " +
+                         "All forces will be computed every step.");
+    passIntervals = Arrays.copyOf(intervals,numPasses);
+    Arrays.sort(passIntervals);
+
+    passRangesSquared = new double[numPasses][numTypes][];
+    passMaxRangeFrom = new double[numPasses][numTypes];
+    passHasTrees = new boolean[numPasses];
+    for (int pass=0; pass<numPasses; pass++) {
+      int interval = passIntervals[pass];
+
+      for (int fromType=0; fromType<numTypes; fromType++) {
+        double rangesSquared[] = (double[])nearRangesSquared[fromType].clone();
+        double maxRange = -1.0;
+        for (int toType=0; toType<numTypes; toType++) {
+          if (interactionIntervals[fromType][toType] != interval) rangesSquared[toType] = -1.0;
+          else if (rangesSquared[toType] >= 0)
+            maxRange = Math.max(maxRange,forceInteractionModel.getInteractionFromTo(fromType,toType).getEffectRange());
+          else if (useTreeCode && (treeLaws[toType][fromType] != null))
+            passHasTrees[pass] = true;
+        }
+        passRangesSquared[pass][fromType] = rangesSquared;
+        passMaxRangeFrom[pass][fromType] = maxRange;
+      }
+    }
+
+    cacheForceX = new double[numPasses][];
+    cacheForceY = new double[numPasses][];
+    lastUpdate = new long[numPasses];
+    cachedParticles = new int[numPasses];
+    Arrays.fill(lastUpdate,-1);
+    currentPass = 0;
+  }//initializeMultipleTimeStepping()
+
+
+  /** Use the vector kernel for the types whose laws to the neighbor
+   *  search are all ones it computes, if it can be loaded and the
+   *  parameters ask for it. */
+  protected void initializeKernel() {
+    kernel = null;
+    packTypes = null;
+    if ((ap.expParams == null) || !ap.expParams.useVectorKernel) return;
+
+    NewtonianKernel fastest = NewtonianKernel.create();
+    if (!fastest.isVectorized()) return;
+
+    int numTypes = forceInteractionModel.getNumParticleTypes();
+    packTypes = new boolean[numTypes];
+    for (int fromType=0; fromType<numTypes; fromType++) {
+      packTypes[fromType] = (nearMaxRangeFrom[fromType] >= 0);
+      for (int toType=0; toType<numTypes; toType++) {
+        ForceLaw fl = forceInteractionModel.getInteractionFromTo(fromType,toType);
+        if ((fl != null) && (nearRangesSquared[fromType][toType] >= 0) && !NewtonianKernel.canCompute(fl))
+          packTypes[fromType] = false;
+      }
+      if (packTypes[fromType]) kernel = fastest;
+    }
+  }//initializeKernel()
+
+
+  /** Return the tree over the given type weighting the masses with the
+   *  given power, creating it if need be.  Laws from the same type with
+   *  the same massPower share a tree. */
+  protected BarnesHutTree getTree(int particleType, double massPower) {
+    for (int i=0; i<trees.size(); i++) {
+      BarnesHutTree tree = (BarnesHutTree)trees.get(i);
+      if ((tree.getParticleType() == particleType) && (tree.getMassPower() == massPower))
+        return tree;
+    }
+
+    BarnesHutTree tree = new BarnesHutTree(particleType,massPower);
+    trees.add(tree);
+    return tree;
+  }//getTree()
+
+
+  /** Return true if the parameters call for the synchronous update mode */
+  public static boolean isSynchronousMode(APExperimentParameters expParams) {
+    return (expParams != null) &&
+      (expParams.updateMode.compareToIgnoreCase(SYNCHRONOUS_UPDATE) == 0);
+  }
+
+
+  /** Tell the engine the particle in the given slot has moved. */
+  public void particleMoved(int slot) {
+    if (neighborIndex != null)
+      neighborIndex.move(slot,store.x[slot],store.y[slot]);
+    if (verletList != null)
+      verletList.particleMoved(slot,store.x[slot],store.y[slot]);
+  }
+
+
+  /** Particles are stepped one at a time, so the first call into the
+   *  force phase on each schedule step does the per-step bookkeeping. */
+  protected void beginStep() {
+    long step = ap.schedule.getSteps();
+    if (step == currentStep) return;
+    currentStep = step;
+
+    if (verletList != null) {
+      long start = (ap.profiler != null ? System.nanoTime() : 0);
+      verletList.beginStep(store,nearRangesSquared,nearMaxRangeFrom,neighborIndex);
+      if (ap.profiler != null) ap.profiler.addTime(StepProfiler.INDEX_UPDATE,System.nanoTime() - start);
+    }
+  }//beginStep()
+
+
+  /** Find all particles within range of the particle in the given slot
+   *  and add the force it exerts on each of them to their accumulated
+   *  force in the store.  This is the sequential update. */
+  public void impartForce(int slot) {
+    beginStep();
+    impartForce(slot,neighbors,batch,store.fx,store.fy,
+                (ap.profiler != null ? ap.profiler.getTally() : null));
+  }//impartForce()
+
+
+  /** Add the force the particle in the given slot exerts on each of the
+   *  particles within its range to forceX and forceY, for the
+   *  interactions of the current pass.  Types with no outgoing
+   *  interactions in the pass skip the neighbor query entirely.  The work
+   *  is recorded in the tally, unless it is null. */
+  protected void impartForce(int slot, IntBag scratch, PairBatch pairs,
+                             double forceX[], double forceY[], StepProfiler.Tally tally) {
+    int fromType = store.type[slot];
+    if (passMaxRangeFrom[currentPass][fromType] < 0) return;
+
+    long start = (tally != null ? System.nanoTime() : 0);
+    int others[], from, to;
+    if (verletList != null) {
+      int listStart[] = verletList.getListStarts();
+      others = verletList.getNeighborList();
+      from = listStart[slot];
+      to = listStart[slot+1];
+    }
+    else {
+      scratch.clear();
+      neighborIndex.gather(store.x[slot],store.y[slot],
+                           passMaxRangeFrom[currentPass][fromType],scratch);
+      others = scratch.objs;
+      from = 0;
+      to = scratch.numObjs;
+    }
+
+    boolean packed = (kernel != null) && packTypes[fromType];
+    if (tally == null) {
+      if (packed) impartPackedForce(slot,others,from,to,pairs,forceX,forceY,null);
+      else impartForce(slot,others,from,to,forceX,forceY,null);
+    }
+    else {
+      long queried = System.nanoTime();
+      if (packed) impartPackedForce(slot,others,from,to,pairs,forceX,forceY,tally);
+      else impartForce(slot,others,from,to,forceX,forceY,tally);
+      tally.nanos[StepProfiler.NEIGHBOR_QUERY] += queried - start;
+      tally.nanos[StepProfiler.FORCE] += System.nanoTime() - queried;
+    }
+  }//impartForce()
+
+
+  /** Impart the force of the particle in the given slot on the candidate
+   *  slots others[from] up to (but not including) others[to]. */
+  protected void impartForce(int slot, int others[], int from, int to,
+                             double forceX[], double forceY[], StepProfiler.Tally tally) {
+    int fromType = store.type[slot];
+    ForceLaw laws[] = forceInteractionModel.getInteractionsFrom(fromType);
+    double rangesSquared[] = passRangesSquared[currentPass][fromType];
+    boolean reciprocal[] = forceInteractionModel.getReciprocalFrom(fromType);
+
+    Particle source = store.particles[slot];
+    double sourceX = store.x[slot];
+    double sourceY = store.y[slot];
+    int types[] = store.type;
+    int numEvaluations = 0;
+    int numPairwise = 0;
+
+    for (int i=from; i<to; i++) {
+      int other = others[i];
+      int toType = types[other];
+      if ((other == slot) || (laws[toType] == null)) continue;
+
+      // The lower slot of a reciprocal pair does the work for both
+      boolean pairwise = useReciprocalPairs && reciprocal[toType];
+      if (pairwise && (other < slot)) continue;
+
+      double dx = store.x[other] - sourceX;
+      double dy = store.y[other] - sourceY;
+      double distanceSquared = dx*dx + dy*dy;
+      if (distanceSquared > rangesSquared[toType]) continue;
+
+      double distance = Math.sqrt(distanceSquared);
+      numEvaluations++;
+      if (pairwise) {
+        numPairwise++;
+        double forceScalar = laws[toType].getForceScalar(distance,store.mass[slot],store.mass[other]);
+        double pairForceX = dx/distance*forceScalar;
+        double pairForceY = dy/distance*forceScalar;
+        forceX[other] += pairForceX;
+        forceY[other] += pairForceY;
+        forceX[slot] -= pairForceX;
+        forceY[slot] -= pairForceY;
+      }
+      else
+        laws[toType].accumulate(source,store.particles[other],dx,dy,distance,
+                                forceX,forceY,other);
+    }
+
+    if (tally != null) {
+      // Each reciprocal pair is one evaluation, but two interactions
+      int numInteracting = numEvaluations + numPairwise;
+      tally.counts[StepProfiler.CANDIDATE_PAIRS] += to - from;
+      tally.counts[StepProfiler.INTERACTING_PAIRS] += numInteracting;
+      tally.counts[StepProfiler.FORCE_EVALUATIONS] += numEvaluations;
+      tally.neighborHistogram[StepProfiler.bucketOf(numEvaluations)]++;
+    }
+  }//impartForce()
+
+
+  /** As impartForce(), with the pair forces computed by the kernel.  The
+   *  candidates in range are packed by type, each type's law is applied
+   *  to its run of the batch, and the forces are added up in the order
+   *  the candidates came in. */
+  protected void impartPackedForce(int slot, int others[], int from, int to, PairBatch pairs,
+                                   double forceX[], double forceY[], StepProfiler.Tally tally) {
+    int fromType = store.type[slot];
+    ForceLaw laws[] = forceInteractionModel.getInteractionsFrom(fromType);
+    double rangesSquared[] = passRangesSquared[currentPass][fromType];
+    boolean reciprocal[] = forceInteractionModel.getReciprocalFrom(fromType);
+    int types[] = store.type;
+    int regionSize = to - from;
+    pairs.ensureCapacity(regionSize,laws.length);
+
+    // Keep the candidates the force applies to, packing each type into
+    // its own region of the batch
+    int numCandidates = 0;
+    int typeEnds[] = pairs.typeEnds;
+    for (int t=0; t<laws.length; t++) typeEnds[t] = t*regionSize;
+    for (int i=from; i<to; i++) {
+      int other = others[i];
+      int toType = types[other];
+      if ((other == slot) || (laws[toType] == null) || (rangesSquared[toType] < 0)) continue;
+      if (useReciprocalPairs && reciprocal[toType] && (other < slot)) continue;
+
+      int position = typeEnds[toType]++;
+      pairs.slots[numCandidates] = other;
+      pairs.positions[numCandidates++] = position;
+      pairs.x[position] = store.x[other];
+      pairs.y[position] = store.y[other];
+      pairs.mass[position] = store.mass[other];
+    }
+
+    double sourceX = store.x[slot];
+    double sourceY = store.y[slot];
+    double sourceMass = store.mass[slot];
+    for (int t=0; t<laws.length; t++)
+      if (typeEnds[t] > t*regionSize)
+        kernel.computePairForces((NewtonianForceLaw)laws[t],sourceX,sourceY,sourceMass,
+                                 rangesSquared[t],pairs.x,pairs.y,pairs.mass,
+                                 t*regionSize,typeEnds[t],pairs.forceX,pairs.forceY,pairs.hit);
+
+    int numEvaluations = 0;
+    int numPairwise = 0;
+    for (int k=0; k<numCandidates; k++) {
+      int position = pairs.positions[k];
+      if (!pairs.hit[position]) continue;
+
+      int other = pairs.slots[k];
+      double pairForceX = pairs.forceX[position];
+      double pairForceY = pairs.forceY[position];
+      numEvaluations++;
+      forceX[other] += pairForceX;
+      forceY[other] += pairForceY;
+      if (useReciprocalPairs && reciprocal[types[other]]) {
+        numPairwise++;
+        forceX[slot] -= pairForceX;
+        forceY[slot] -= pairForceY;
+      }
+    }
+
+    if (tally != null) {
+      tally.counts[StepProfiler.CANDIDATE_PAIRS] += to - from;
+      tally.counts[StepProfiler.INTERACTING_PAIRS] += numEvaluations + numPairwise;
+      tally.counts[StepProfiler.FORCE_EVALUATIONS] += numEvaluations;
+      tally.neighborHistogram[StepProfiler.bucketOf(numEvaluations)]++;
+    }
+  }//impartPackedForce()
+
+
+  /** Scratch space for impartPackedForce():  the candidates of one
+   *  particle in the order they were found, and their coordinates,
+   *  masses and pair forces packed by type.  Each type has a region big
+   *  enough for all of the candidates, so they are packed in one pass. */
+  protected static class PairBatch {
+    public int slots[] = new int[0];
+    public int positions[] = new int[0];
+    public double x[] = new double[0];
+    public double y[] = new double[0];
+    public double mass[] = new double[0];
+    public double forceX[] = new double[0];
+    public double forceY[] = new double[0];
+    public boolean hit[] = new boolean[0];
+    public int typeEnds[] = new int[0];
+
+    public void ensureCapacity(int numCandidates, int numTypes) {
+      if (slots.length < numCandidates) {
+        int capacity = Math.max(numCandidates,2*slots.length);
+        slots = new int[capacity];
+        positions = new int[capacity];
+      }
+      if (x.length < (long)numCandidates*numTypes) {
+        int capacity = Math.max(numCandidates*numTypes,2*x.length);
+        x = new double[capacity];
+        y = new double[capacity];
+        mass = new double[capacity];
+        forceX = new double[capacity];
+        forceY = new double[capacity];
+        hit = new boolean[capacity];
+      }
+      if (typeEnds.length < numTypes) typeEnds = new int[numTypes];
+    }
+  }//PairBatch
+
+
+  /** Add the force of the trees on the particle in the given slot to
+   *  forceX and forceY, for the interactions of the current pass. */
+  protected void imposeTreeForces(int slot, IntBag stack, double forceX[], double forceY[]) {
+    int toType = store.type[slot];
+    if (!hasTreeInteractionsTo[toType]) return;
+
+    NewtonianForceLaw laws[] = treeLaws[toType];
+    int interval = passIntervals[currentPass];
+    for (int fromType=0; fromType<laws.length; fromType++)
+      if ((laws[fromType] != null) && (interactionIntervals[fromType][toType] == interval))
+        treeFor[toType][fromType].accumulate(store,slot,laws[fromType],openingAngle,
+                                             stack,forceX,forceY);
+  }//imposeTreeForces()
+
+
+  //--------------- Synchronous update --------------
+
+  /** In the synchronous mode the engine is scheduled in place of the
+   *  particles, and steps all of them at once. */
+  public void step(final SimState state) {
+    beginStep();
+    computeForces();
+    moveParticles();
+  }//step()
+
+
+  /** Phase one:  compute the force on every particle from the positions
+   *  at the start of the step.  The caches that are due are brought up to
+   *  date first, and pass 0 then adds them to its own forces. */
+  public void computeForces() {
+    prepareChunks();
+
+    int numParticles = store.getNumParticles();
+    for (int pass=1; pass<passIntervals.length; pass++)
+      if ((lastUpdate[pass] < 0) || (currentStep - lastUpdate[pass] >= passIntervals[pass]) ||
+          (cachedParticles[pass] != numParticles)) {
+        computePass(pass);
+        lastUpdate[pass] = currentStep;
+        cachedParticles[pass] = numParticles;
+      }
+    computePass(0);
+  }//computeForces()
+
+
+  /** Compute the forces of the interactions in the given pass, into the
+   *  store for pass 0, or into the pass's cache. */
+  protected void computePass(int pass) {
+    StepProfiler profiler = ap.profiler;
+    currentPass = pass;
+
+    long start = (profiler != null ? System.nanoTime() : 0);
+    if (useTreeCode && passHasTrees[pass])
+      for (int i=0; i<trees.size(); i++) ((BarnesHutTree)trees.get(i)).build(store);
+    if (profiler != null) profiler.addTime(StepProfiler.INDEX_UPDATE,System.nanoTime() - start);
+
+    runPhase(FORCE_PHASE);
+
+    start = (profiler != null ? System.nanoTime() : 0);
+    runPhase(REDUCTION_PHASE);
+    if (profiler != null) {
+      profiler.addTime(StepProfiler.FORCE,System.nanoTime() - start);
+      for (int c=0; c<numChunks; c++) profiler.merge(chunkTallies[c]);
+    }
+    currentPass = 0;
+  }//computePass()
+
+
+  /** Phase two:  update the velocity and position of every particle, and
+   *  its handle, in the chunks.  Then relink the moved particles in the
+   *  cell list, which is not thread-safe, on the calling thread, and tell
+   *  the environment if it is due. */
+  public void moveParticles() {
+    prepareMovement();
+    long start = (ap.profiler != null ? System.nanoTime() : 0);
+    runPhase(MOVEMENT_PHASE);
+    if (ap.profiler != null) {
+      long now = System.nanoTime();
+      ap.profiler.addTime(StepProfiler.INTEGRATION,now - start);
+      start = now;
+    }
+
+    int numParticles = store.getNumParticles();
+    for (int slot=0; slot<numParticles; slot++)
+      if (movedCell[slot] != CellList.EMPTY) neighborIndex.moveToCell(slot,movedCell[slot]);
+    if (verletList != null)
+      for (int c=0; c<numChunks; c++) verletList.noteDisplacement(chunkMaxDisplacement[c]);
+
+    stepsSinceEnvironmentSync++;
+    if ((environmentSyncInterval > 0) && (stepsSinceEnvironmentSync >= environmentSyncInterval))
+      syncEnvironment();
+    if (ap.profiler != null) ap.profiler.addTime(StepProfiler.INDEX_UPDATE,System.nanoTime() - start);
+  }//moveParticles()
+
+
+  /** Tell the environment where every particle the synchronous update has
+   *  moved since it was last told now is.  Slots are done in order, as
+   *  setLocation() would have done them. */
+  public void syncEnvironment() {
+    stepsSinceEnvironmentSync = 0;
+    if (environmentStale == null) return;
+
+    int numParticles = Math.min(store.getNumParticles(),environmentStale.length);
+    for (int slot=0; slot<numParticles; slot++)
+      if (environmentStale[slot]) {
+        Particle particle = store.particles[slot];
+        ap.environment.setObjectLocation(particle,particle.particleLocation);
+        environmentStale[slot] = false;
+      }
+  }//syncEnvironment()
+
+
+  /** Carry out the given phase for the slots of one chunk. */
+  protected void runChunk(int phase, int chunk) {
+    int numParticles = store.getNumParticles();
+    int from = (int)((long)numParticles*chunk/numChunks);
+    int to = (int)((long)numParticles*(chunk+1)/numChunks);
+
+    if (phase == FORCE_PHASE) {
+      double forceX[] = chunkForceX[chunk];
+      double forceY[] = chunkForceY[chunk];
+      StepProfiler.Tally tally = (ap.profiler != null ? chunkTallies[chunk] : null);
+      for (int slot=from; slot<to; slot++)
+        impartForce(slot,chunkNeighbors[chunk],chunkBatches[chunk],forceX,forceY,tally);
+      if (useTreeCode && passHasTrees[currentPass]) {
+        long start = (tally != null ? System.nanoTime() : 0);
+        for (int slot=from; slot<to; slot++)
+          imposeTreeForces(slot,chunkStacks[chunk],forceX,forceY);
+        if (tally != null) tally.nanos[StepProfiler.FORCE] += System.nanoTime() - start;
+      }
+    }
+
+    else if (phase == REDUCTION_PHASE) {
+      double totalX[] = (currentPass == 0 ? store.fx : cacheForceX[currentPass]);
+      double totalY[] = (currentPass == 0 ? store.fy : cacheForceY[currentPass]);
+      if (currentPass > 0) {
+        Arrays.fill(totalX,from,to,0.0);
+        Arrays.fill(totalY,from,to,0.0);
+      }
+
+      for (int c=0; c<numChunks; c++) {
+        double forceX[] = chunkForceX[c];
+        double forceY[] = chunkForceY[c];
+        for (int slot=from; slot<to; slot++) {
+          totalX[slot] += forceX[slot];
+          totalY[slot] += forceY[slot];
+          forceX[slot] = 0.0;
+          forceY[slot] = 0.0;
+        }
+      }
+
+      if (currentPass == 0)
+        for (int pass=1; pass<passIntervals.length; pass++) {
+          double cacheX[] = cacheForceX[pass];
+          double cacheY[] = cacheForceY[pass];
+          for (int slot=from; slot<to; slot++) {
+            totalX[slot] += cacheX[slot];
+            totalY[slot] += cacheY[slot];
+          }
+        }
+    }
+
+    else if (phase == MOVEMENT_PHASE) {
+      double maxDisplacementSquared = 0.0;
+      for (int slot=from; slot<to; slot++) {
+        moveParticle(slot);
+
+        if (!store.particles[slot].syncHandle()) {
+          movedCell[slot] = CellList.EMPTY;
+          continue;
+        }
+
+        double x = store.x[slot];
+        double y = store.y[slot];
+        movedCell[slot] = neighborIndex.getCell(x,y);
+        environmentStale[slot] = true;
+        if (verletList != null)
+          maxDisplacementSquared = Math.max(maxDisplacementSquared,verletList.getDisplacementSquared(slot,x,y));
+      }
+      chunkMaxDisplacement[chunk] = maxDisplacementSquared;
+    }
+  }//runChunk()
+
+
+  /** Update the velocity and position of the particle in the given slot,
+   *  working on the store alone, with the model's Integrator. */
+  protected void moveParticle(int slot) {
+    double timeStep = 1.0;
+    if (ap.integrator == null) store.updateVelocity(slot);
+    else {
+      ap.integrator.updateVelocity(store,slot,(currentStep == 0));
+      timeStep = ap.integrator.getTimeStep();
+    }
+
+    double newX = store.x[slot] + store.vx[slot]*timeStep;
+    double newY = store.y[slot] + store.vy[slot]*timeStep;
+    if (ap.acceptablePosition(store.particles[slot],newX,newY)) {
+      store.x[slot] = newX;
+      store.y[slot] = newY;
+    }
+  }//moveParticle()
+
+
+  /** Run all chunks of a phase, on the pool if there is more than one. */
+  protected void runPhase(int phase) {
+    if (numChunks == 1 || pool == null)
+      for (int chunk=0; chunk<numChunks; chunk++) runChunk(phase,chunk);
+    else
+      pool.invoke(new PhaseTask(phase,0,numChunks));
+  }//runPhase()
+
+
+  /** Make sure there is a force buffer for every chunk that can hold
+   *  every slot in the store. */
+  protected void prepareChunks() {
+    int numParticles = store.getNumParticles();
+    int wantedChunks = Math.max(1,Math.min(numThreads,numParticles/MIN_CHUNK_SIZE));
+
+    if ((chunkForceX == null) || (wantedChunks != numChunks) ||
+        (chunkForceX[0].length < store.getCapacity())) {
+      numChunks = wantedChunks;
+      chunkForceX = new double[numChunks][store.getCapacity()];
+      chunkForceY = new double[numChunks][store.getCapacity()];
+      chunkNeighbors = new IntBag[numChunks];
+      chunkStacks = new IntBag[numChunks];
+      chunkBatches = new PairBatch[numChunks];
+      chunkTallies = new StepProfiler.Tally[numChunks];
+      for (int c=0; c<numChunks; c++) {
+        chunkNeighbors[c] = new IntBag();
+        chunkStacks[c] = new IntBag();
+        chunkBatches[c] = new PairBatch();
+        chunkTallies[c] = new StepProfiler.Tally();
+      }
+      if (ap.profiler != null) ap.profiler.addCount(StepProfiler.BAG_ALLOCATIONS,2*numChunks);
+    }
+    prepareCaches();
+  }//prepareChunks()
+
+
+  /** Make sure the movement phase has room for every slot in the store */
+  protected void prepareMovement() {
+    if ((movedCell == null) || (movedCell.length < store.getCapacity())) {
+      movedCell = new int[store.getCapacity()];
+      environmentStale = (environmentStale == null ? new boolean[store.getCapacity()]
+                          : Arrays.copyOf(environmentStale,store.getCapacity()));
+    }
+    if ((chunkMaxDisplacement == null) || (chunkMaxDisplacement.length != numChunks))
+      chunkMaxDisplacement = new double[numChunks];
+  }//prepareMovement()
+
+
+  /** Make sure every pass but pass 0 has a cache that can hold every
+   *  slot in the store.  A cache that has to grow is computed afresh. */
+  protected void prepareCaches() {
+    for (int pass=1; pass<passIntervals.length; pass++)
+      if ((cacheForceX[pass] == null) || (cacheForceX[pass].length < store.getCapacity())) {
+        cacheForceX[pass] = new double[store.getCapacity()];
+        cacheForceY[pass] = new double[store.getCapacity()];
+        lastUpdate[pass] = -1;
+      }
+  }//prepareCaches()
+
+
+  /** Setup the pool for the given number of threads (all available
+   *  processors if it isn't positive). */
+  protected void initializeThreads(int requestedThreads) {
+    numThreads = requestedThreads;
+    if (numThreads <= 0) numThreads = Runtime.getRuntime().availableProcessors();
+
+    pool = null;
+    if (numThreads > 1) pool = getPool(numThreads);
+    chunkForceX = null;
+  }//initializeThreads()
+
+
+  protected static synchronized ForkJoinPool getPool(int numThreads) {
+    Integer key = Integer.valueOf(numThreads);
+    ForkJoinPool pool = (ForkJoinPool)pools.get(key);
+    if (pool == null) {
+      pool = new ForkJoinPool(numThreads);
+      pools.put(key,pool);
+    }
+
+    if (!hasShutdownHook) {
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+          public void run() {shutdownPools();}
+        });
+      hasShutdownHook = true;
+    }
+    return pool;
+  }//getPool()
+
+
+  /** Shut down every pool made so far.  Engines already using one must
+   *  not step again; engines initialized afterwards get new pools. */
+  public static synchronized void shutdownPools() {
+    Iterator i = pools.values().iterator();
+    while (i.hasNext()) ((ForkJoinPool)i.next()).shutdown();
+    pools.clear();
+  }//shutdownPools()
+
+
+  /** Splits a range of chunks in half until there is one chunk left to
+   *  run, so idle threads can steal the other halves. */
+  protected class PhaseTask extends RecursiveAction {
+    protected int phase;
+    protected int firstChunk;
+    protected int lastChunk;
+
+    protected PhaseTask(int phase, int firstChunk, int lastChunk) {
+      this.phase = phase;
+      this.firstChunk = firstChunk;
+      this.lastChunk = lastChunk;
+    }
+
+    protected void compute() {
+      if (lastChunk - firstChunk == 1)
+        runChunk(phase,firstChunk);
+      else {
+        int middle = (firstChunk + lastChunk)/2;
+        invokeAll(new PhaseTask(phase,firstChunk,middle),
+                  new PhaseTask(phase,middle,lastChunk));
+      }
+    }
+  }//PhaseTask
+
+}
@@ -19,6 +19,20 @@ import java.util.*;
  * that particles can have "subtypes", so the type of a particle is uniquely determined
  * by the class of particle and the particle's subtype.
  *
+ * Once a particle is registered, its type is kept on the particle itself, so
+ * looking up the interaction between two particles is just indexing into the
+ * adjacency matrix.  Alongside the matrix, the model keeps a few per-type
+ * tables (squared ranges of effect, the maximum range of effect from each
+ * type, whether a type has any outgoing interactions at all, and which
+ * pairs of types interact reciprocally) that are updated whenever an
+ * interaction is set, so the force phase never has to search for them.
+ *
+ * An interaction between types a and b is reciprocal when the laws from a
+ * to b and from b to a are the same instance, or have equal parameters, and
+ * the law is symmetric.  The force of a particle of type a on one of type
+ * b is then exactly opposite the force of the second on the first, so the
+ * force engine can evaluate each such pair once.
+ *
  * Using the model works as follows:  
  *   1.) Create a ForceInteractionModel
  *   2.) Register all particles
@@ -37,6 +51,12 @@ public class ForceInteractionModel
   protected ForceLaw interactions[][];  // adjacency matrix for graph
   protected int maxParticleSubtype = 0;
 
+  // Per-type tables derived from the adjacency matrix
+  protected double effectRangeSquared[][];  // -1 where there is no interaction
+  protected double maxEffectRangeFrom[];    // -1 where there are no interactions
+  protected boolean hasInteractionsFrom[];
+  protected boolean reciprocal[][];
+
   /** Constructer creates the internal map and resets the particle type counter.*/
   public ForceInteractionModel() {
     typeTable = new HashMap();
@@ -73,15 +93,56 @@ public class ForceInteractionModel
    *  can actually be defined and/or used.*/
   public void initializeInteractions() {
     interactions = new ForceLaw[numParticleTypes][];
-    for (int i=0; i<numParticleTypes; i++) 
+    effectRangeSquared = new double[numParticleTypes][];
+    maxEffectRangeFrom = new double[numParticleTypes];
+    hasInteractionsFrom = new boolean[numParticleTypes];
+    reciprocal = new boolean[numParticleTypes][numParticleTypes];
+    for (int i=0; i<numParticleTypes; i++) {
       interactions[i] = new ForceLaw[numParticleTypes];
+      effectRangeSquared[i] = new double[numParticleTypes];
+      Arrays.fill(effectRangeSquared[i],-1.0);
+      maxEffectRangeFrom[i] = -1.0;
+      hasInteractionsFrom[i] = false;
+    }
   }//initializeInteractions()
 
 
+  /** Recompute the per-type tables for interactions from the given type.
+   *  This is called whenever an interaction is set, and should also be
+   *  called if the range of effect of a law already in the model is
+   *  changed. */
+  public void updateInteractionsFrom(int fromType) {
+    maxEffectRangeFrom[fromType] = -1.0;
+    hasInteractionsFrom[fromType] = false;
+
+    for (int toType=0; toType<numParticleTypes; toType++) {
+      ForceLaw fl = interactions[fromType][toType];
+      ForceLaw back = interactions[toType][fromType];
+      reciprocal[fromType][toType] = (fl != null) && fl.isSymmetric() && fl.usesScalarKernel() &&
+                                     fl.hasSameParameters(back);
+      reciprocal[toType][fromType] = reciprocal[fromType][toType];
+
+      if (fl == null) {
+        effectRangeSquared[fromType][toType] = -1.0;
+        continue;
+      }
+
+      double range = fl.getEffectRange();
+      effectRangeSquared[fromType][toType] = range*range;
+      if (range > maxEffectRangeFrom[fromType]) maxEffectRangeFrom[fromType] = range;
+      hasInteractionsFrom[fromType] = true;
+    }
+  }//updateInteractionsFrom()
+
+
   /** Use the class and subtype of the particle instance to compute
    *  the particle type.  If there is no such particle registered,
    *  the function returns a -1. */
   public int getParticleType(Particle particle) {
+    // The type was resolved when the particle registered with us
+    if ((particle.forceInteractionModel == this) && (particle.particleType >= 0))
+      return particle.particleType;
+
     String key = particle.getClass().getName() + particle.getParticleSubtype();
     int particleType = -1;
     Object val = typeTable.get(key);
@@ -112,17 +173,30 @@ public class ForceInteractionModel
     return(maxParticleSubtype);
   }
 
+  public int getNumParticleTypes() {
+    return(numParticleTypes);
+  }
+
 
   /** Given two particles, return a boolean indicating whether or not an
    *  interaction from the first to the second has been setup in the
    *  model.*/
   public boolean isInteractionFromTo(final Particle fromParticle, final Particle toParticle) {
     if (interactions == null) return false;
+    if (fromParticle == toParticle) return false;
     
-    double distance = Particle.distanceBetween(fromParticle,toParticle);
-    ForceLaw fl = interactions[getParticleType(fromParticle)][getParticleType(toParticle)];
+    double dX = fromParticle.particleLocation.x - toParticle.particleLocation.x;
+    double dY = fromParticle.particleLocation.y - toParticle.particleLocation.y;
     
-    return ( (fromParticle != toParticle) && (fl != null) && (distance <= fl.getEffectRange()) );
+    return isInteractionFromTo(getParticleType(fromParticle),getParticleType(toParticle),dX*dX + dY*dY);
+  }//isInteractionFromTo()
+
+
+  /** Given two particle types and the squared distance between two
+   *  particles of those types, return whether or not the first affects
+   *  the second. */
+  public boolean isInteractionFromTo(int fromType, int toType, double distanceSquared) {
+    return (distanceSquared <= effectRangeSquared[fromType][toType]);
   }//isInteractionFromTo()
 
 
@@ -141,6 +215,7 @@ public class ForceInteractionModel
                                 getParticleType(toParticle));
   }
   public ForceLaw getInteractionFromTo(int fromType, int toType) {
+    if (interactions == null) return null;
     return interactions[fromType][toType];
   }
 
@@ -152,7 +227,38 @@ public class ForceInteractionModel
   }
   public void setInteractionFromTo(int fromType, int toType, 
                                    ForceLaw interaction) {
+    if (interaction != null) interaction.checkSupport();
     interactions[fromType][toType] = interaction;    
+    updateInteractionsFrom(fromType);
+  }
+
+  /** Return the row of the adjacency matrix for interactions from the
+   *  given type, indexed by the type of the particle affected.  This is
+   *  the model's own array, for use in inner loops; do not change it. */
+  public ForceLaw[] getInteractionsFrom(int fromType) {
+    return interactions[fromType];
+  }
+
+  /** Return the squared ranges of effect of the interactions from the
+   *  given type, indexed by the type of the particle affected, with -1
+   *  where there is no interaction.  Do not change the array. */
+  public double[] getEffectRangesSquaredFrom(int fromType) {
+    return effectRangeSquared[fromType];
+  }
+
+  /** Return the row of the reciprocity table for interactions from the
+   *  given type, indexed by the type of the particle affected.  Do not
+   *  change the array. */
+  public boolean[] getReciprocalFrom(int fromType) {
+    return reciprocal[fromType];
+  }
+
+  public boolean isReciprocal(int fromType, int toType) {
+    return reciprocal[fromType][toType];
+  }
+
+  public boolean hasInteractionsFrom(int fromType) {
+    return (hasInteractionsFrom != null) && hasInteractionsFrom[fromType];
   }
 
 
@@ -161,15 +267,44 @@ public class ForceInteractionModel
    *  the given particle and return the maximum range of effect of all
    *  force laws associated with those interactions.*/
   public double getMaxEffectRangeFrom(final Particle fromParticle) {
+    return getMaxEffectRangeFrom(getParticleType(fromParticle));
+  }
+
+  public double getMaxEffectRangeFrom(int fromType) {
+    return(maxEffectRangeFrom[fromType]);
+  }
+
+
+  /** Return the largest range of effect of any interaction in the model,
+   *  or -1 if no interactions have been set. */
+  public double getMaxEffectRange() {
     double maxEffectRange = -1;
-    ForceLaw laws[] = interactions[getParticleType(fromParticle)];
+    if (interactions == null) return maxEffectRange;
 
-    for (int i=0; i<laws.length; i++)
-      if (laws[i] != null)
-        if (laws[i].getEffectRange() > maxEffectRange) 
-          maxEffectRange = laws[i].getEffectRange();
+    for (int i=0; i<interactions.length; i++)
+      for (int j=0; j<interactions[i].length; j++)
+        if (interactions[i][j] != null)
+          if (interactions[i][j].getEffectRange() > maxEffectRange) 
+            maxEffectRange = interactions[i][j].getEffectRange();
 
     return(maxEffectRange);
   }
 
+
+  /** Return the smallest positive range of effect of any interaction in
+   *  the model, or -1 if no interactions have been set.  This is what
+   *  sizes the cells of the neighbor search used in the force phase. */
+  public double getMinEffectRange() {
+    double minEffectRange = -1;
+    if (interactions == null) return minEffectRange;
+
+    for (int i=0; i<interactions.length; i++)
+      for (int j=0; j<interactions[i].length; j++)
+        if (interactions[i][j] != null && interactions[i][j].getEffectRange() > 0)
+          if ((minEffectRange < 0) || (interactions[i][j].getEffectRange() < minEffectRange))
+            minEffectRange = interactions[i][j].getEffectRange();
+
+    return(minEffectRange);
+  }
+
 }
\ No newline at end of file
@@ -24,12 +24,24 @@ import java.io.*;
  */
 
 public abstract class ForceLaw implements Parsable {
-  public static APParser apparser; // Ugly hack ... it is set by APPaser's constructor
+  public APParser apparser = null; // set by the APParser creating the law
 
   protected double effectRange = 100.0;
   protected double arBoundary  = 50;
   protected double maxForce    = 100000.0;
 
+  // Optional lookup table for the distance dependent part of the law
+  protected ForceTable forceTable = null;
+
+  // Set by checkSupport() if hasScalarKernel() answers true but
+  // getForceScalar() isn't implemented
+  protected boolean missingScalarKernel = false;
+
+  // Steps between evaluations of the law in the synchronous mode, when
+  // multiple time stepping is on; 0 leaves it to the experiment (see
+  // ForceEngine)
+  protected int mtsInterval = 0;
+
   // Used by APParser to automatically register laws defined in
   // the params file.
   protected String fromParticleName;
@@ -41,6 +53,9 @@ public abstract class ForceLaw implements Parsable {
   public double getEffectRange() {return effectRange;}
   public double getARBoundary()  {return arBoundary;}
   public double getMaxForce()    {return maxForce;}
+  public ForceTable getForceTable() {return forceTable;}
+  public int getMTSInterval()    {return mtsInterval;}
+  public void setMTSInterval(int mtsInterval) {this.mtsInterval = Math.max(0,mtsInterval);}
 
   public ForceLaw() {
     // take the defaults
@@ -57,16 +72,142 @@ public abstract class ForceLaw implements Parsable {
   public abstract Double2D apply(final Particle particle1, final Particle particle2);
 
 
+  /** Allocation-free form of apply().  The caller supplies the offset
+   *  (dx,dy) from particle1 to particle2 and the distance between them,
+   *  which it has usually computed already to decide whether the two
+   *  interact, and the force of particle1 on particle2 is added to
+   *  forceX[index] and forceY[index].
+   *
+   *  This default adapts apply(), so laws that only override apply()
+   *  keep working.  Laws that can, should override it (or better yet
+   *  implement getForceScalar()) to avoid the allocations. */
+  public void accumulate(final Particle particle1, final Particle particle2,
+                         double dx, double dy, double distance,
+                         double forceX[], double forceY[], int index) {
+    if (usesScalarKernel()) {
+      double forceScalar = getForceScalar(distance,particle1.mass,particle2.mass);
+      forceX[index] += dx/distance*forceScalar;
+      forceY[index] += dy/distance*forceScalar;
+    }
+    else {
+      Double2D force = apply(particle1,particle2);
+      forceX[index] += force.x;
+      forceY[index] += force.y;
+    }
+  }//accumulate()
+
+
+  /** Returns true if the magnitude of this law's force depends only on
+   *  the distance and the masses of the two particles, in which case
+   *  getForceScalar() is implemented. */
+  public boolean hasScalarKernel() {return false;}
+
+
+  /** Returns true if the engines should use getForceScalar():  the law
+   *  has a scalar kernel, and checkSupport() didn't find it missing. */
+  public boolean usesScalarKernel() {return hasScalarKernel() && !missingScalarKernel;}
+
+
+  /** Check that getForceScalar() is implemented if hasScalarKernel() says
+   *  it is, and if not, warn and use apply() instead (see
+   *  usesScalarKernel()).  ForceInteractionModel does this when the law
+   *  is set as an interaction, before any engine looks at it. */
+  public void checkSupport() {
+    if (!hasScalarKernel() || missingScalarKernel) return;
+    try {
+      getForceScalar(Math.max(arBoundary,1.0),1.0,1.0);
+    }
+    catch (UnsupportedOperationException e) {
+      System.err.println("Warning:  " + getClass().getName() + " has a scalar force kernel but no " +
+                         "getForceScalar().  Using apply() instead.");
+      missingScalarKernel = true;
+    }
+  }//checkSupport()
+
+
+  /** Returns true if the force this law has one particle exert on another
+   *  is always equal and opposite to the force it would have the second
+   *  exert on the first.  This is what lets the force engine evaluate a
+   *  reciprocal pair once.  Laws must also implement getForceScalar(). */
+  public boolean isSymmetric() {return false;}
+
+
+  /** Returns true if the other law computes exactly the same forces as
+   *  this one:  it is the same instance, or of the same class with equal
+   *  parameters.  Subclasses with parameters of their own must extend
+   *  this. */
+  public boolean hasSameParameters(ForceLaw other) {
+    if (other == this) return true;
+    if ((other == null) || (other.getClass() != getClass())) return false;
+
+    return ( (other.effectRange == effectRange) &&
+             (other.arBoundary == arBoundary) &&
+             (other.maxForce == maxForce) &&
+             (other.mtsInterval == mtsInterval) );
+  }//hasSameParameters()
+
+
+  /** The signed magnitude of the force a particle of mass1 exerts on a
+   *  particle of mass2 at the given distance.  Positive values push the
+   *  second particle away from the first.  Only laws that answer true
+   *  to hasScalarKernel() implement this; one that doesn't is run with
+   *  apply() instead (see checkSupport()). */
+  public double getForceScalar(double distance, double mass1, double mass2) {
+    throw new UnsupportedOperationException(getClass().getName() + " does not implement a scalar force kernel.");
+  }
+
+
+  /** Build a lookup table for the law (see ForceTable) with the given
+   *  relative error bound, replacing any table built before.  This is
+   *  done when the law registers with a model if the experiment asks
+   *  for it, and must be done again if the law's parameters change.
+   *  Laws that don't tabulate anything (see getNumTableColumns()) are
+   *  left alone, and laws that don't implement getTabulatedValue() are
+   *  left without a table, so their forces are computed exactly. */
+  public void buildForceTable(double errorBound) {
+    if (getNumTableColumns() <= 0) return;
+    try {
+      forceTable = new ForceTable(this,getNumTableColumns(),effectRange,
+                                  getTableFloor(),errorBound);
+    }
+    catch (UnsupportedOperationException e) {
+      System.err.println("Warning:  " + getClass().getName() + " has table columns but no " +
+                         "getTabulatedValue().  Computing its force exactly.");
+      forceTable = null;
+    }
+  }//buildForceTable()
+
+  public void clearForceTable() {forceTable = null;}
+
+
+  /** The number of functions of the distance this law tabulates.  The
+   *  default is none. */
+  protected int getNumTableColumns() {return 0;}
+
+
+  /** The distance below which the law doesn't mind computing its force
+   *  exactly.  Particles rarely come much closer than half the
+   *  attractive-repulsive boundary. */
+  protected double getTableFloor() {return 0.5*arBoundary;}
+
+
+  /** The exact value of the given tabulated function at the given
+   *  squared distance.  Laws with table columns must implement this, or
+   *  they get no table (see buildForceTable()). */
+  protected double getTabulatedValue(int column, double distanceSquared) {
+    throw new UnsupportedOperationException(getClass().getName() + " does not tabulate its force.");
+  }
+
+
   // --- Everything from here down has to do with loading from the parser ----
   protected void loadFromProperties(Properties properties) {
     effectRange   = getParamFromProp(properties,"effectRange",effectRange,0,100000.0);
     maxForce      = getParamFromProp(properties,"maxForce",maxForce,0,100000.0);
     arBoundary    = getParamFromProp(properties,"arBoundary",arBoundary,0,100000.0);
+    mtsInterval   = (int)getParamFromProp(properties,"mtsInterval",mtsInterval,0,100000.0);
   }
 
   public Vector createCopiesFromParse(String instantiationValues) {
-    Vector laws = new Vector();
-
     Properties properties = new Properties();
     try {
       StringBufferInputStream sbis = new StringBufferInputStream(instantiationValues);
@@ -78,6 +219,15 @@ public abstract class ForceLaw implements Parsable {
       System.out.println("Error while creating from the parse of " + getClass().getName() + ": " + e);
     }
 
+    return createCopiesFromProperties(properties);
+  }
+
+
+  /** Create the copies from values already parsed.  The properties may
+   *  be shared, so they are only read. */
+  public Vector createCopiesFromProperties(Properties properties) {
+    Vector laws = new Vector();
+
     fromParticleName = properties.getProperty("fromParticleName","ncarai.apmodel.Particle");
     String strFromSubtype = properties.getProperty("fromParticleSubtype","0");
     toParticleName = properties.getProperty("toParticleName","ncarai.apmodel.Particle");
@@ -85,8 +235,8 @@ public abstract class ForceLaw implements Parsable {
 
     // The subtypes are specified numberically
     if ((strFromSubtype.compareTo("*")!=0)  && (strToSubtype.compareTo("*")!=0) ) {
-      fromParticleSubtype = (int)(new Double(strFromSubtype)).doubleValue();
-      toParticleSubtype = (int)(new Double(strToSubtype)).doubleValue();
+      fromParticleSubtype = (int)Double.parseDouble(strFromSubtype);
+      toParticleSubtype = (int)Double.parseDouble(strToSubtype);
       loadFromProperties(properties);
       laws.add(this);
     }
@@ -96,8 +246,9 @@ public abstract class ForceLaw implements Parsable {
       int subtypes[] = apparser.getAllRegisteredParticleSubtypes(fromParticleName);
       for (int i=0; i<subtypes.length; i++) {
 	ForceLaw fl = newForceLawInstance();
+        fl.apparser = apparser;
         fromParticleSubtype = subtypes[i];
-        toParticleSubtype = (int)(new Double(strToSubtype)).doubleValue();
+        toParticleSubtype = (int)Double.parseDouble(strToSubtype);
 
 	fl.fromParticleName = fromParticleName;
 	fl.fromParticleSubtype = fromParticleSubtype;
@@ -113,7 +264,8 @@ public abstract class ForceLaw implements Parsable {
       int subtypes[] = apparser.getAllRegisteredParticleSubtypes(toParticleName);
       for (int i=0; i<subtypes.length; i++) {
 	ForceLaw fl = newForceLawInstance();
-        fromParticleSubtype = (int)(new Double(strFromSubtype)).doubleValue();
+        fl.apparser = apparser;
+        fromParticleSubtype = (int)Double.parseDouble(strFromSubtype);
         toParticleSubtype = subtypes[i];
 
 	fl.fromParticleName = fromParticleName;
@@ -152,6 +304,9 @@ public abstract class ForceLaw implements Parsable {
 
     forceInteractionModel.setInteractionFromTo(fromType,toType,this);
 
+    if ((ap != null) && (ap.expParams != null) && ap.expParams.useForceTables)
+      buildForceTable(ap.expParams.forceTableError);
+
     if (APParser.VERBOSE_LOAD) printInteractionInfo();
   }
 
@@ -164,7 +319,7 @@ public abstract class ForceLaw implements Parsable {
 
   protected double getParamFromProp(Properties properties, String key, 
                                     double defaultVal, double lb, double ub) {
-    double rawValue = (new Double(properties.getProperty(key,"" + defaultVal))).doubleValue();
+    double rawValue = Double.parseDouble(properties.getProperty(key,"" + defaultVal));
 
     if (rawValue < lb) rawValue = lb;
     if (rawValue > ub) rawValue = ub;
@@ -0,0 +1,109 @@
+package dsmllab.apmodel;
+
+/**
+ *  This class holds a lookup table for the part of a force law that
+ *  depends only on the distance between the particles.  The values are
+ *  sampled at evenly spaced squared distances from zero up to the
+ *  law's range of effect, and looked up by linear interpolation, so
+ *  the force phase no longer calls Math.pow() for every pair.  A table
+ *  may hold several such functions (columns), all sampled at the same
+ *  points.
+ *
+ *  Force laws blow up near zero distance, where no reasonable number of
+ *  samples is accurate.  So after sampling, the table checks the
+ *  interpolated value against the exact one at the middle of every
+ *  interval, and only covers squared distances above the last interval
+ *  where the relative error is more than the bound.  Below that, the law
+ *  computes its force exactly.  The number of samples is doubled (up to
+ *  MAX_SAMPLES) until the table covers everything beyond the floor
+ *  distance the law asks for.
+ *
+ *  A table is built for a law's parameters at the time; if they change,
+ *  the table must be rebuilt (see ForceLaw.buildForceTable()).
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class ForceTable {
+  public static final int MIN_SAMPLES = 256;
+  public static final int MAX_SAMPLES = 1 << 16;
+
+  protected double errorBound;
+  protected int numIntervals;
+  protected double spacing;
+  protected double inverseSpacing;
+  protected double minDistanceSquared;
+  protected double maxDistanceSquared;
+  protected double values[][];   // [column][sample]
+
+
+  /** Tabulate the given number of columns of the law (see
+   *  ForceLaw.getTabulatedValue()) out to maxDistance, so that the
+   *  relative error is no more than errorBound beyond floorDistance, if
+   *  that can be done with MAX_SAMPLES samples. */
+  public ForceTable(ForceLaw law, int numColumns, double maxDistance,
+                    double floorDistance, double errorBound) {
+    this.errorBound = errorBound;
+    this.maxDistanceSquared = maxDistance*maxDistance;
+    double floorSquared = floorDistance*floorDistance;
+
+    for (numIntervals=MIN_SAMPLES; ; numIntervals*=2) {
+      sample(law,numColumns);
+      minDistanceSquared = findFirstAccurateInterval(law)*spacing;
+      if ((minDistanceSquared <= floorSquared) || (numIntervals >= MAX_SAMPLES)) break;
+    }
+  }//constructor
+
+
+  public double getErrorBound() {return errorBound;}
+  public int getNumSamples() {return numIntervals+1;}
+  public double getMinDistance() {return Math.sqrt(minDistanceSquared);}
+  public double getMaxDistance() {return Math.sqrt(maxDistanceSquared);}
+
+
+  /** Returns true if the table can be used at the given squared distance */
+  public boolean covers(double distanceSquared) {
+    return (distanceSquared >= minDistanceSquared) && (distanceSquared <= maxDistanceSquared);
+  }
+
+
+  /** Interpolate the given column at the given squared distance, which
+   *  must be covered by the table. */
+  public double lookup(int column, double distanceSquared) {
+    double position = distanceSquared*inverseSpacing;
+    int i = (int)position;
+    if (i >= numIntervals) i = numIntervals-1;
+
+    double samples[] = values[column];
+    return samples[i] + (position-i)*(samples[i+1]-samples[i]);
+  }//lookup()
+
+
+  //--------------- Helper functions --------------
+  protected void sample(ForceLaw law, int numColumns) {
+    spacing = maxDistanceSquared/numIntervals;
+    inverseSpacing = 1.0/spacing;
+
+    values = new double[numColumns][numIntervals+1];
+    for (int column=0; column<numColumns; column++)
+      for (int i=0; i<=numIntervals; i++)
+        values[column][i] = law.getTabulatedValue(column,i*spacing);
+  }//sample()
+
+
+  /** Return the index of the first interval from which on every
+   *  interval is within the error bound at its midpoint. */
+  protected int findFirstAccurateInterval(ForceLaw law) {
+    for (int i=numIntervals-1; i>=0; i--) {
+      double distanceSquared = (i+0.5)*spacing;
+      for (int column=0; column<values.length; column++) {
+        double exact = law.getTabulatedValue(column,distanceSquared);
+        double error = Math.abs(0.5*(values[column][i]+values[column][i+1]) - exact);
+        if (!(error <= errorBound*Math.abs(exact))) return i+1;
+      }
+    }
+    return 0;
+  }//findFirstAccurateInterval()
+
+}
@@ -0,0 +1,75 @@
+package dsmllab.apmodel;
+
+/**
+ *  This class implements a (1+lambda) hill climber, the Java counterpart
+ *  of hillclimber.py.  Each generation the current point is perturbed
+ *  lambda times with Gaussian noise, all of the neighbors are evaluated
+ *  at once, and the best of them replaces the current point if it is at
+ *  least as good.  The step size, a fraction of the ranges, grows after
+ *  a generation that finds an improvement and shrinks after one that
+ *  doesn't.  The first generation also evaluates the starting point,
+ *  the values in the template.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class HillClimber extends Optimizer {
+  public static final double MIN_STEP_SIZE = 1e-6;
+  public static final double GROWTH = 1.5;
+  public static final double SHRINKAGE = 0.8;
+
+  protected int lambda;
+  protected double stepSize;
+  protected double current[];
+  protected double currentFitness = Double.NaN;
+
+
+  public HillClimber(ParamsTemplate template, APExperimentParameters expParams,
+                     Class modelClass, long seed, int populationSize, double stepSize) {
+    super(template,expParams,modelClass,seed);
+    this.lambda = (populationSize > 0 ? populationSize : Runtime.getRuntime().availableProcessors());
+    this.stepSize = stepSize;
+    this.current = normalize(template.getInitialValues());
+  }//constructor
+
+
+  public double getStepSize() {return stepSize;}
+
+  public boolean isDone() {return (stepSize < MIN_STEP_SIZE);}
+
+
+  protected double[][] ask() {
+    boolean first = Double.isNaN(currentFitness);
+    double candidates[][] = new double[lambda + (first ? 1 : 0)][];
+
+    int k = 0;
+    if (first) candidates[k++] = denormalize(current);
+    while (k < candidates.length) {
+      double y[] = new double[current.length];
+      for (int i=0; i<y.length; i++) y[i] = reflect(current[i] + stepSize*random.nextGaussian());
+      candidates[k++] = denormalize(y);
+    }
+
+    return candidates;
+  }//ask()
+
+
+  protected void tell(double candidates[][], double fitness[]) {
+    int k = 0;
+    if (Double.isNaN(currentFitness)) currentFitness = fitness[k++];
+
+    int best = -1;
+    for (; k<candidates.length; k++)
+      if ((best < 0) || (fitness[k] > fitness[best])) best = k;
+
+    if (fitness[best] > currentFitness) stepSize *= GROWTH;
+    else stepSize *= SHRINKAGE;
+
+    if (fitness[best] >= currentFitness) {
+      current = normalize(candidates[best]);
+      currentFitness = fitness[best];
+    }
+  }//tell()
+
+}
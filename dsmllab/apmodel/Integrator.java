@@ -0,0 +1,105 @@
+package dsmllab.apmodel;
+
+/**
+ *  This class advances the velocity of a particle from the force on it,
+ *  over a time step dt (APExperimentParameters.timeStep); the particle
+ *  then moves by its new velocity times dt.  The model has one, made by
+ *  create() from the experiment parameters (APExperimentParameters.
+ *  integrator), and both the sequential and the synchronous updates use
+ *  it.
+ *
+ *  This base class is the scheme the model has always used, the default:
+ *
+ *    v' = c(v + F/m dt),   x' = x + v' dt
+ *
+ *  a first-order (semi-implicit) Euler step in which the friction damps
+ *  the force as well as the velocity.  c = (1-friction)^dt, so friction
+ *  is still the fraction of the velocity lost in a unit of time, and with
+ *  dt = 1 the results are exactly those of ParticleStore.updateVelocity().
+ *  VerletIntegrator and SemiImplicitIntegrator are second-order schemes
+ *  meant to allow larger steps.
+ *
+ *  Every scheme caps the speed at the particle's maxVelocity, so no
+ *  particle moves further than maxVelocity*dt in a step, and clears the
+ *  force for the next step.  An integrator keeps no state of its own
+ *  about the particles, so it needs nothing saved in checkpoints; the
+ *  schemes that treat the first step differently are told when it is.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class Integrator {
+  public static final String EULER = "euler";
+  public static final String VERLET = "verlet";
+  public static final String SEMI_IMPLICIT = "semiImplicit";
+
+  protected double timeStep;
+
+
+  public Integrator(double timeStep) {
+    this.timeStep = timeStep;
+  }//constructor
+
+
+  public double getTimeStep() {return timeStep;}
+  public String getName() {return EULER;}
+
+
+  /** Return the integrator the model's experiment parameters ask for */
+  public static Integrator create(APModel ap) {
+    String name = ap.expParams.integrator;
+    double timeStep = ap.expParams.timeStep;
+    if (!(timeStep > 0.0)) {
+      System.err.println("Warning:  The time step must be positive; using 1");
+      timeStep = 1.0;
+    }
+
+    if ((name == null) || name.equalsIgnoreCase(EULER)) return new Integrator(timeStep);
+    if (name.equalsIgnoreCase(VERLET)) return new VerletIntegrator(timeStep);
+    if (name.equalsIgnoreCase(SEMI_IMPLICIT)) return new SemiImplicitIntegrator(timeStep);
+
+    System.err.println("Warning:  Unknown integrator " + name + "; using " + EULER);
+    return new Integrator(timeStep);
+  }//create()
+
+
+  /** The fraction of the velocity left after a step with the given
+   *  friction, (1-friction)^dt. */
+  protected double getDamping(double friction) {
+    if (timeStep == 1.0) return 1.0-friction;
+    return Math.pow(1.0-friction,timeStep);
+  }
+
+
+  /** Update the velocity of the particle in the given slot with the force
+   *  accumulated on it, and clear the force.  firstStep is true on the
+   *  first step of a run. */
+  public void updateVelocity(ParticleStore store, int slot, boolean firstStep) {
+    double momentumFactor = (store.useMomentum[slot] ? 1.0/store.mass[slot] : 1.0);
+    double damping = (store.useFriction[slot] ? getDamping(store.friction[slot]) : 1.0);
+    double kick = momentumFactor*timeStep;
+
+    setVelocity(store,slot,
+                damping*(store.fx[slot]*kick + store.vx[slot]),
+                damping*(store.fy[slot]*kick + store.vy[slot]));
+  }//updateVelocity()
+
+
+  /** Store the new velocity, capped at maxVelocity, and clear the force */
+  protected void setVelocity(ParticleStore store, int slot, double newVx, double newVy) {
+    if (Math.sqrt(newVx*newVx + newVy*newVy) <= store.maxVelocity[slot]) {
+      store.vx[slot] = newVx;
+      store.vy[slot] = newVy;
+    }
+    else {
+      double velocityScalar = Math.sqrt(newVx*newVx + newVy*newVy)/store.maxVelocity[slot];
+      store.vx[slot] = newVx/velocityScalar;
+      store.vy[slot] = newVy/velocityScalar;
+    }
+
+    store.fx[slot] = 0.0;
+    store.fy[slot] = 0.0;
+  }//setVelocity()
+
+}
@@ -19,9 +19,9 @@ import java.io.StringBufferInputStream;
 public class LennardJonesForceLaw extends ForceLaw implements Parsable {
   public static final boolean VERBOSE_LOAD = true;
 
-  public static double d = 0.5;
-  public static double c = 0.5;
-  public static double epsilon = 1.0;
+  public double d = 0.5;
+  public double c = 0.5;
+  public double epsilon = 1.0;
   
   public LennardJonesForceLaw() {
     // Take the defaults
@@ -45,12 +45,44 @@ public class LennardJonesForceLaw extends ForceLaw implements Parsable {
 
   public Double2D apply(final Particle particle1, final Particle particle2) {
     double distance = Particle.distanceBetween(particle1,particle2);
+    double forceScalar = getForceScalar(distance,particle1.mass,particle2.mass);
+
+    Double2D forceVect = Particle.unitVectorTowards(particle2.particleLocation,particle1.particleLocation);
+
+    return new Double2D(forceVect.x*forceScalar,forceVect.y*forceScalar);
+  }//apply()
+
+
+  public boolean hasScalarKernel() {return true;}
+  public boolean isSymmetric() {return true;}
+
+
+  public boolean hasSameParameters(ForceLaw other) {
+    if (!super.hasSameParameters(other)) return false;
+
+    LennardJonesForceLaw law = (LennardJonesForceLaw)other;
+    return ( (law.d == d) &&
+             (law.c == c) &&
+             (law.epsilon == epsilon) );
+  }//hasSameParameters()
 
-    double repelTerm = (2.0 * d * Math.pow(arBoundary,12.0)) /
-      (Math.pow(distance,13.0));
 
-    double attractTerm = (c * Math.pow(arBoundary,6.0)) /
-      (Math.pow(distance,7.0));
+  /** Compute the signed magnitude of the force at the given distance.
+   *  The Lennard-Jones law does not depend on the masses. */
+  public double getForceScalar(double distance, double mass1, double mass2) {
+    double repelTerm, attractTerm;
+    double distanceSquared = distance*distance;
+    if ((forceTable != null) && forceTable.covers(distanceSquared)) {
+      repelTerm = 2.0 * d * forceTable.lookup(0,distanceSquared);
+      attractTerm = c * forceTable.lookup(1,distanceSquared);
+    }
+    else {
+      repelTerm = (2.0 * d * Math.pow(arBoundary,12.0)) /
+        (Math.pow(distance,13.0));
+
+      attractTerm = (c * Math.pow(arBoundary,6.0)) /
+        (Math.pow(distance,7.0));
+    }
 
     double forceScalar = 24 * epsilon * (repelTerm - attractTerm);
     
@@ -58,10 +90,32 @@ public class LennardJonesForceLaw extends ForceLaw implements Parsable {
     // model-level maxForce property.
     if (forceScalar > maxForce) forceScalar = maxForce;
 
-    Double2D forceVect = Particle.unitVectorTowards(particle2.particleLocation,particle1.particleLocation);
+    return forceScalar;
+  }//getForceScalar()
 
-    return new Double2D(forceVect.x*forceScalar,forceVect.y*forceScalar);
-  }//apply()
+
+  /** The table holds the repelling and attracting terms without their
+   *  coefficients.  Each is accurate to the error bound on its own, so
+   *  the error of the force is bounded relative to the larger of the two
+   *  terms rather than to their difference. */
+  protected int getNumTableColumns() {return 2;}
+
+  protected double getTabulatedValue(int column, double distanceSquared) {
+    double distance = Math.sqrt(distanceSquared);
+    if (column == 0) return Math.pow(arBoundary,12.0) / Math.pow(distance,13.0);
+    else return Math.pow(arBoundary,6.0) / Math.pow(distance,7.0);
+  }
+
+
+  /** Allocation-free form of apply(), using the offset and distance
+   *  the caller has already computed. */
+  public void accumulate(final Particle particle1, final Particle particle2,
+                         double dx, double dy, double distance,
+                         double forceX[], double forceY[], int index) {
+    double forceScalar = getForceScalar(distance,particle1.mass,particle2.mass);
+    forceX[index] += dx/distance*forceScalar;
+    forceY[index] += dy/distance*forceScalar;
+  }//accumulate()
 
 
   protected void loadFromProperties(Properties properties) {
@@ -0,0 +1,60 @@
+package dsmllab.apmodel;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ *  This class connects the ranks of a distributed run that are threads
+ *  of one JVM, with a queue for each ordered pair of ranks.  It is meant
+ *  for testing the decomposition without any networking; createGroup()
+ *  makes the transports of all the ranks at once.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class LocalTransport implements TileTransport {
+  protected int rank;
+  protected LinkedBlockingQueue queues[][];   // [from][to]
+
+
+  protected LocalTransport(int rank, LinkedBlockingQueue queues[][]) {
+    this.rank = rank;
+    this.queues = queues;
+  }//constructor
+
+
+  /** Create connected transports for the given number of ranks */
+  public static LocalTransport[] createGroup(int numRanks) {
+    LinkedBlockingQueue queues[][] = new LinkedBlockingQueue[numRanks][numRanks];
+    for (int from=0; from<numRanks; from++)
+      for (int to=0; to<numRanks; to++) queues[from][to] = new LinkedBlockingQueue();
+
+    LocalTransport transports[] = new LocalTransport[numRanks];
+    for (int r=0; r<numRanks; r++) transports[r] = new LocalTransport(r,queues);
+    return transports;
+  }//createGroup()
+
+
+  public int getRank() {return rank;}
+  public int getNumRanks() {return queues.length;}
+
+
+  public void send(int toRank, byte message[]) {
+    queues[rank][toRank].add(message);
+  }
+
+
+  public byte[] receive(int fromRank) throws IOException {
+    try {
+      return (byte[])queues[fromRank][rank].take();
+    }
+    catch (InterruptedException e) {
+      throw new IOException("Interrupted waiting for rank " + fromRank);
+    }
+  }//receive()
+
+
+  public void close() {}
+
+}
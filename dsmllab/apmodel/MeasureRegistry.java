@@ -71,6 +71,14 @@ public class MeasureRegistry {
   }
 
 
+  /** The ids of the registered measures, in sorted order */
+  public String[] getMeasureIDs() {
+    String ids[] = (String[])registry.keySet().toArray(new String[registry.size()]);
+    java.util.Arrays.sort(ids);
+    return ids;
+  }
+
+
   public double getAggregateForMsr(String id, double defaultVal) {
     double retVal = defaultVal;
     AbstractMeasure msr = (AbstractMeasure)registry.get(id);
@@ -103,6 +111,7 @@ public class MeasureRegistry {
     double distance = 5.0*Math.max(Math.abs(ap.XMAX - ap.XMIN),Math.abs(ap.YMAX-ap.YMIN));
     Double2D center = new Double2D(Math.abs(ap.XMAX - ap.XMIN)/2.0,Math.abs(ap.YMAX - ap.YMIN)/2.0);
     Bag allParticles = ap.environment.getObjectsWithinDistance(center,distance);
+    if (ap.profiler != null) ap.profiler.addCount(StepProfiler.BAG_ALLOCATIONS,1);
 
     // Count the types of particles
     particles = new Particle[allParticles.numObjs];
@@ -0,0 +1,522 @@
+package dsmllab.apmodel;
+
+import sim.engine.*;
+import ec.util.MersenneTwisterFast;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ *  This class saves the full state of a running model to a binary file
+ *  and restores it, so a long run can be picked up again after a crash,
+ *  or an experiment can start from a settled formation.  The file holds
+ *
+ *    a header          format version, number of particles, step count
+ *    the params        the AP model parameters the run was started with
+ *    the type registry the class and subtype of each particle type
+ *    the store         positions, velocities, accumulated forces and the
+ *                      per-particle parameters of every slot
+ *    the engine        the cell list and Verlet lists, in their current
+ *                      order, so forces are summed in the same order,
+ *                      and the forces kept by multiple time stepping
+ *    the monitor and the statistics of the measures
+ *    the schedule and the random number generator, serialized
+ *
+ *  The bulk of it is written and read through memory-mapped buffers a
+ *  few hundred megabytes at a time, with the arrays copied in and out
+ *  whole.  The schedule is serialized with each particle, the engine,
+ *  the monitor and the measures replaced by a small handle, so it stays
+ *  small unless every particle is scheduled (the sequential mode).
+ *
+ *  restore() starts a fresh trial from the model's own parameters and
+ *  then overwrites its state, so the model must be set up as it was when
+ *  the checkpoint was taken.  The number of particles and the type
+ *  registry have to match, or an IOException is thrown.  If the params
+ *  differ only in the values of the laws, a warning is printed and the
+ *  state is restored anyway, which is how a settled formation is carried
+ *  into a new experiment.  With the same params, the restored run
+ *  repeats the original exactly.
+ *
+ *  A checkpoint is written to a temporary file and moved into place, as
+ *  in Optimizer.checkpoint(), so a crash while writing never leaves a
+ *  damaged one behind.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class ModelCheckpoint {
+  public static final int MAGIC = 0x4150434b;   // "APCK"
+  public static final int VERSION = 2;
+
+  // Largest region of the file mapped at once
+  protected static final int MAP_SIZE = 1 << 28;
+
+
+  /** Save the state of the model between two steps. */
+  public static void save(APModel ap, String fileName) throws IOException {
+    File file = new File(fileName);
+    File temp = new File(fileName + ".tmp");
+
+    ParticleStore store = ap.particleStore;
+    Output out = new Output(temp);
+    try {
+      out.putInt(MAGIC);
+      out.putInt(VERSION);
+      out.putInt(store.getNumParticles());
+      out.putLong(ap.schedule.getSteps());
+      out.putLong(ap.stepsRun);
+      out.putDouble(ap.fitness);
+      out.putDouble(ap.penalty);
+
+      out.putString(getParamsString(ap));
+      out.putStrings(getTypeKeys(ap));
+
+      store.writeState(out);
+      ap.forceEngine.writeState(out);
+
+      out.putBoolean(ap.convergenceMonitor != null);
+      if (ap.convergenceMonitor != null) ap.convergenceMonitor.writeState(out);
+
+      Vector measures = getMeasures(ap);
+      out.putInt(measures.size());
+      for (int i=0; i<measures.size(); i++) {
+        AbstractMeasure measure = (AbstractMeasure)measures.get(i);
+        out.putString(measure.getID());
+        measure.writeState(out);
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream objects = new HandleOutputStream(bytes,ap);
+      objects.writeObject(ap.random);
+      objects.writeObject(ap.schedule);
+      objects.close();
+      out.putBytes(bytes.toByteArray());
+    }
+    finally {
+      out.close();
+    }
+
+    try {
+      Files.move(temp.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+    }
+  }//save()
+
+
+  /** Start a fresh trial of the model and restore the saved state into
+   *  it.  The model is ready to step on from where the checkpoint was
+   *  taken; the steps taken before then are in stepsRun. */
+  public static void restore(APModel ap, String fileName) throws IOException {
+    Input in = new Input(new File(fileName));
+    try {
+      if (in.getInt() != MAGIC) throw new IOException(fileName + " is not a model checkpoint");
+      int version = in.getInt();
+      if (version != VERSION)
+        throw new IOException("Can't read version " + version + " of the checkpoint format");
+
+      ap.start();
+      ParticleStore store = ap.particleStore;
+
+      int numParticles = in.getInt();
+      if (numParticles != store.getNumParticles())
+        throw new IOException("The checkpoint has " + numParticles + " particles, but the model has " +
+                              store.getNumParticles());
+      long scheduleSteps = in.getLong();
+      long stepsRun = in.getLong();
+      double fitness = in.getDouble();
+      double penalty = in.getDouble();
+
+      String paramsString = in.getString();
+      String typeKeys[] = in.getStrings();
+      if (!Arrays.equals(typeKeys,getTypeKeys(ap)))
+        throw new IOException("The particle types of the checkpoint don't match those of the model");
+      if (!paramsString.equals(getParamsString(ap)))
+        System.err.println("Warning:  The checkpoint was taken with different AP model parameters; " +
+                           "the run won't repeat the original");
+
+      store.readState(in);
+      ap.forceEngine.readState(in);
+
+      boolean hasMonitor = in.getBoolean();
+      if (hasMonitor != (ap.convergenceMonitor != null))
+        throw new IOException("The checkpoint and the model don't agree on the convergence criterion");
+      if (hasMonitor) ap.convergenceMonitor.readState(in);
+
+      int numMeasures = in.getInt();
+      for (int i=0; i<numMeasures; i++) {
+        String id = in.getString();
+        AbstractMeasure measure = (ap.measures == null ? null : ap.measures.findMeasure(id));
+        if (measure == null) throw new IOException("The model has no measure " + id);
+        measure.readState(in);
+      }
+
+      ObjectInputStream objects = new HandleInputStream(new ByteArrayInputStream(in.getBytes()),ap);
+      try {
+        ap.random = (MersenneTwisterFast)objects.readObject();
+        ap.schedule = (Schedule)objects.readObject();
+      }
+      catch (ClassNotFoundException e) {
+        throw new IOException("Could not read the schedule: " + e);
+      }
+      objects.close();
+
+      if (ap.schedule.getSteps() != scheduleSteps)
+        throw new IOException("The schedule of the checkpoint is damaged");
+      ap.stepsRun = stepsRun;
+      ap.fitness = fitness;
+      ap.penalty = penalty;
+
+      // Bring the handles and the environment up to date with the store
+      for (int slot=0; slot<numParticles; slot++) {
+        Particle particle = store.particles[slot];
+        particle.mass = store.mass[slot];
+        particle.friction = store.friction[slot];
+        particle.maxVelocity = store.maxVelocity[slot];
+        particle.useMomentum = store.useMomentum[slot];
+        particle.useFriction = store.useFriction[slot];
+        particle.particleLocation = store.getLocation(slot);
+        particle.lastLocation = particle.particleLocation;
+        ap.environment.setObjectLocation(particle,particle.particleLocation);
+      }
+      ap.checkpointRestored();
+    }
+    finally {
+      in.close();
+    }
+  }//restore()
+
+
+  //--------------- Helper functions --------------
+
+  /** The text of the params the model was started with, or "" if they
+   *  can't be read. */
+  protected static String getParamsString(APModel ap) {
+    if (!ap.expParams.readFromParamFile && (ap.apParamsString != null)) return ap.apParamsString;
+    try {
+      return ParamsTemplate.readFile(ap.expParams.apParamFileName);
+    }
+    catch (IOException e) {
+      return "";
+    }
+  }//getParamsString()
+
+
+  /** The class and subtype of each registered particle type, by type */
+  protected static String[] getTypeKeys(APModel ap) {
+    ParticleStore store = ap.particleStore;
+    String keys[] = new String[ap.forceInteractionModel.getNumParticleTypes()];
+    for (int slot=0; slot<store.getNumParticles(); slot++) {
+      Particle particle = store.particles[slot];
+      int type = store.type[slot];
+      if ((type >= 0) && (type < keys.length) && (keys[type] == null))
+        keys[type] = particle.getClass().getName() + "-" + particle.getParticleSubtype();
+    }
+    for (int i=0; i<keys.length; i++)
+      if (keys[i] == null) keys[i] = "";
+    return keys;
+  }//getTypeKeys()
+
+
+  /** The measures of the model, sorted by id */
+  protected static Vector getMeasures(APModel ap) {
+    Vector measures = new Vector();
+    if (ap.measures == null) return measures;
+    measures.addAll(ap.measures.registry.values());
+    Collections.sort(measures,new Comparator() {
+        public int compare(Object a, Object b) {
+          return ((AbstractMeasure)a).getID().compareTo(((AbstractMeasure)b).getID());
+        }
+      });
+    return measures;
+  }//getMeasures()
+
+
+  /** Stands in for an object of the model in the serialized schedule */
+  protected static class Handle implements Serializable {
+    public static final int MODEL    = 0;
+    public static final int PARTICLE = 1;
+    public static final int ENGINE   = 2;
+    public static final int MONITOR  = 3;
+    public static final int MEASURE  = 4;
+    public static final int REGISTRY = 5;
+    public static final int RECORDER = 6;
+    public static final int PLAYER   = 7;
+
+    public final int kind;
+    public final int slot;
+    public final String id;
+
+    public Handle(int kind, int slot, String id) {
+      this.kind = kind;
+      this.slot = slot;
+      this.id = id;
+    }
+  }//Handle
+
+
+  protected static class HandleOutputStream extends ObjectOutputStream {
+    protected APModel ap;
+
+    public HandleOutputStream(OutputStream out, APModel ap) throws IOException {
+      super(out);
+      this.ap = ap;
+      enableReplaceObject(true);
+    }
+
+    protected Object replaceObject(Object obj) throws IOException {
+      if (obj == ap) return new Handle(Handle.MODEL,-1,null);
+      if ((obj instanceof Particle) && (((Particle)obj).getStore() == ap.particleStore))
+        return new Handle(Handle.PARTICLE,((Particle)obj).getSlot(),null);
+      if (obj == ap.forceEngine) return new Handle(Handle.ENGINE,-1,null);
+      if (obj == ap.convergenceMonitor) return new Handle(Handle.MONITOR,-1,null);
+      if ((obj instanceof AbstractMeasure) && (ap.measures != null) &&
+          (ap.measures.findMeasure(((AbstractMeasure)obj).getID()) == obj))
+        return new Handle(Handle.MEASURE,-1,((AbstractMeasure)obj).getID());
+      if ((obj == ap.measures) && (obj != null)) return new Handle(Handle.REGISTRY,-1,null);
+      if ((obj == ap.trajectoryRecorder) && (obj != null)) return new Handle(Handle.RECORDER,-1,null);
+      if ((obj == ap.trajectoryPlayer) && (obj != null)) return new Handle(Handle.PLAYER,-1,null);
+      return obj;
+    }
+  }//HandleOutputStream
+
+
+  protected static class HandleInputStream extends ObjectInputStream {
+    protected APModel ap;
+
+    public HandleInputStream(InputStream in, APModel ap) throws IOException {
+      super(in);
+      this.ap = ap;
+      enableResolveObject(true);
+    }
+
+    protected Object resolveObject(Object obj) throws IOException {
+      if (!(obj instanceof Handle)) return obj;
+      Handle handle = (Handle)obj;
+      switch (handle.kind) {
+      case Handle.MODEL:    return ap;
+      case Handle.PARTICLE: return ap.particleStore.particles[handle.slot];
+      case Handle.ENGINE:   return ap.forceEngine;
+      case Handle.MONITOR:  return ap.convergenceMonitor;
+      case Handle.MEASURE:  return ap.measures.findMeasure(handle.id);
+      case Handle.REGISTRY: return ap.measures;
+      case Handle.RECORDER: return ap.trajectoryRecorder;
+      case Handle.PLAYER:   return ap.trajectoryPlayer;
+      }
+      throw new IOException("Unknown handle in the schedule");
+    }
+  }//HandleInputStream
+
+
+  /** Writes primitives and whole arrays to a file through mapped buffers,
+   *  mapping a new region whenever the current one runs out. */
+  public static class Output {
+    protected FileChannel channel;
+    protected MappedByteBuffer buffer = null;
+    protected long bufferStart = 0;
+
+    public Output(File file) throws IOException {
+      channel = FileChannel.open(file.toPath(),StandardOpenOption.CREATE,StandardOpenOption.READ,
+                                 StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    protected long getPosition() {return (buffer == null ? 0 : bufferStart + buffer.position());}
+
+    /** Make sure the next numBytes (at most MAP_SIZE) can be put */
+    protected void ensure(int numBytes) throws IOException {
+      if ((buffer != null) && (buffer.remaining() >= numBytes)) return;
+      long position = getPosition();
+      int size = (buffer == null ? 1 << 20 : Math.min(MAP_SIZE,2*buffer.capacity()));
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE,position,Math.max(numBytes,size));
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      bufferStart = position;
+    }
+
+    public void putInt(int value) throws IOException {ensure(4); buffer.putInt(value);}
+    public void putLong(long value) throws IOException {ensure(8); buffer.putLong(value);}
+    public void putDouble(double value) throws IOException {ensure(8); buffer.putDouble(value);}
+    public void putBoolean(boolean value) throws IOException {ensure(1); buffer.put((byte)(value ? 1 : 0));}
+
+    public void putDoubles(double values[], int length) throws IOException {
+      putInt(length);
+      for (int from=0; from<length; ) {
+        int count = Math.min(length-from,MAP_SIZE/8);
+        ensure(8*count);
+        buffer.asDoubleBuffer().put(values,from,count);
+        buffer.position(buffer.position() + 8*count);
+        from += count;
+      }
+    }//putDoubles()
+
+    public void putInts(int values[], int length) throws IOException {
+      putInt(length);
+      for (int from=0; from<length; ) {
+        int count = Math.min(length-from,MAP_SIZE/4);
+        ensure(4*count);
+        buffer.asIntBuffer().put(values,from,count);
+        buffer.position(buffer.position() + 4*count);
+        from += count;
+      }
+    }//putInts()
+
+    public void putBooleans(boolean values[], int length) throws IOException {
+      putInt(length);
+      for (int i=0; i<length; i++) putBoolean(values[i]);
+    }//putBooleans()
+
+    public void putBytes(byte values[]) throws IOException {
+      putInt(values.length);
+      for (int from=0; from<values.length; ) {
+        int count = Math.min(values.length-from,MAP_SIZE);
+        ensure(count);
+        buffer.put(values,from,count);
+        from += count;
+      }
+    }//putBytes()
+
+    public void putString(String value) throws IOException {putBytes(value.getBytes("UTF-8"));}
+
+    public void putStrings(String values[]) throws IOException {
+      putInt(values.length);
+      for (int i=0; i<values.length; i++) putString(values[i]);
+    }//putStrings()
+
+    /** Cut the file to what was written and close it */
+    public void close() throws IOException {
+      long length = getPosition();
+      buffer = null;
+      try {
+        channel.truncate(length);
+      }
+      finally {
+        channel.close();
+      }
+    }//close()
+  }//Output
+
+
+  /** Reads back what an Output wrote */
+  public static class Input {
+    protected FileChannel channel;
+    protected long fileSize;
+    protected MappedByteBuffer buffer = null;
+    protected long bufferStart = 0;
+
+    public Input(File file) throws IOException {
+      channel = FileChannel.open(file.toPath(),StandardOpenOption.READ);
+      fileSize = channel.size();
+    }
+
+    protected long getPosition() {return (buffer == null ? 0 : bufferStart + buffer.position());}
+
+    /** Make sure the next numBytes (at most MAP_SIZE) can be got */
+    protected void ensure(int numBytes) throws IOException {
+      if ((buffer != null) && (buffer.remaining() >= numBytes)) return;
+      long position = getPosition();
+      if (position + numBytes > fileSize) throw new EOFException("The checkpoint is cut short");
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY,position,
+                           Math.max(numBytes,Math.min(MAP_SIZE,fileSize-position)));
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      bufferStart = position;
+    }
+
+    public int getInt() throws IOException {ensure(4); return buffer.getInt();}
+    public long getLong() throws IOException {ensure(8); return buffer.getLong();}
+    public double getDouble() throws IOException {ensure(8); return buffer.getDouble();}
+    public boolean getBoolean() throws IOException {ensure(1); return (buffer.get() != 0);}
+
+    /** Read an array into values, which must be long enough, and return
+     *  its length */
+    public int getDoubles(double values[]) throws IOException {
+      return getDoubles(values,getLength(values.length));
+    }//getDoubles()
+
+    protected int getDoubles(double values[], int length) throws IOException {
+      for (int from=0; from<length; ) {
+        int count = Math.min(length-from,MAP_SIZE/8);
+        ensure(8*count);
+        buffer.asDoubleBuffer().get(values,from,count);
+        buffer.position(buffer.position() + 8*count);
+        from += count;
+      }
+      return length;
+    }//getDoubles()
+
+    public int getInts(int values[]) throws IOException {
+      return getInts(values,getLength(values.length));
+    }//getInts()
+
+    /** Read an array into a new array of its own length */
+    public double[] getDoubleArray() throws IOException {
+      double values[] = new double[getLength((int)Math.min(Integer.MAX_VALUE,fileSize/8))];
+      getDoubles(values,values.length);
+      return values;
+    }//getDoubleArray()
+
+    public int[] getIntArray() throws IOException {
+      int values[] = new int[getLength((int)Math.min(Integer.MAX_VALUE,fileSize/4))];
+      getInts(values,values.length);
+      return values;
+    }//getIntArray()
+
+    protected int getInts(int values[], int length) throws IOException {
+      for (int from=0; from<length; ) {
+        int count = Math.min(length-from,MAP_SIZE/4);
+        ensure(4*count);
+        buffer.asIntBuffer().get(values,from,count);
+        buffer.position(buffer.position() + 4*count);
+        from += count;
+      }
+      return length;
+    }//getInts()
+
+    public int getBooleans(boolean values[]) throws IOException {
+      int length = getLength(values.length);
+      for (int i=0; i<length; i++) values[i] = getBoolean();
+      return length;
+    }//getBooleans()
+
+    /** The length of the next array, which must fit in room elements */
+    public int getLength(int room) throws IOException {
+      int length = getInt();
+      if ((length < 0) || (length > room))
+        throw new IOException("An array in the checkpoint doesn't fit the model");
+      return length;
+    }//getLength()
+
+    public byte[] getBytes() throws IOException {
+      int length = getInt();
+      if ((length < 0) || (length > fileSize - getPosition()))
+        throw new IOException("The checkpoint is damaged");
+      byte values[] = new byte[length];
+      for (int from=0; from<length; ) {
+        int count = Math.min(length-from,MAP_SIZE);
+        ensure(count);
+        buffer.get(values,from,count);
+        from += count;
+      }
+      return values;
+    }//getBytes()
+
+    public String getString() throws IOException {return new String(getBytes(),"UTF-8");}
+
+    public String[] getStrings() throws IOException {
+      int length = getLength(Integer.MAX_VALUE);
+      String values[] = new String[length];
+      for (int i=0; i<length; i++) values[i] = getString();
+      return values;
+    }//getStrings()
+
+    public void close() throws IOException {
+      buffer = null;
+      channel.close();
+    }//close()
+  }//Input
+
+}
@@ -46,12 +46,36 @@ public class NewtonianForceLaw extends ForceLaw {
    *  model. */
   public Double2D apply(final Particle particle1, final Particle particle2) {
     double distance = Particle.distanceBetween(particle1,particle2);
-    
+    double forceScalar = getForceScalar(distance,particle1.mass,particle2.mass);
+
+    Double2D forceVect = Particle.unitVectorTowards(particle2.particleLocation,particle1.particleLocation);
+
+    return new Double2D(forceVect.x*forceScalar,forceVect.y*forceScalar);
+  }//apply()
+
+
+  public boolean hasScalarKernel() {return true;}
+  public boolean isSymmetric() {return true;}
+
+
+  public boolean hasSameParameters(ForceLaw other) {
+    if (!super.hasSameParameters(other)) return false;
+
+    NewtonianForceLaw law = (NewtonianForceLaw)other;
+    return ( (law.G == G) &&
+             (law.distancePower == distancePower) &&
+             (law.massPower == massPower) );
+  }//hasSameParameters()
+
+
+  /** Compute the signed magnitude of the force between particles of the
+   *  given masses at the given distance. */
+  public double getForceScalar(double distance, double mass1, double mass2) {
     // I generalized the model in a fairly unrealistic way here ... the
     // mass factors are raised to a power (called massPower here).  While
     // true Newtonian physics doesn't do this, it allows me to easily weight
     // the importance of mass for a given instantiation of the force law.    
-    double massFactor = Math.pow(particle1.mass*particle2.mass,massPower);
+    double massFactor = getMassFactor(mass1,mass2);
 
     //NOTE:  Here we depart from the AP model as published by
     //       providing a linear gradient to transition between
@@ -59,7 +83,12 @@ public class NewtonianForceLaw extends ForceLaw {
     //       using the dampingFactor variable. */
     double delta = arBoundary * 1.0;
     double dampingFactor = Math.abs(arBoundary - distance)/delta;
-    double forceScalar = (G * massFactor) / Math.pow(distance,distancePower);
+    double forceScalar;
+    double distanceSquared = distance*distance;
+    if ((forceTable != null) && forceTable.covers(distanceSquared))
+      forceScalar = G * massFactor * forceTable.lookup(0,distanceSquared);
+    else
+      forceScalar = (G * massFactor) / Math.pow(distance,distancePower);
 
     // Don't let the magnitude of the force be bigger than the
     // model-level maxForce property.
@@ -73,10 +102,56 @@ public class NewtonianForceLaw extends ForceLaw {
     // that occurs along the attractive-repulsing boundary.
     if (Math.abs(arBoundary - distance) < delta) forceScalar *= dampingFactor;
 
-    Double2D forceVect = Particle.unitVectorTowards(particle2.particleLocation,particle1.particleLocation);
+    return forceScalar;
+  }//getForceScalar()
 
-    return new Double2D(forceVect.x*forceScalar,forceVect.y*forceScalar);
-  }//apply()
+
+  /** Return the product of the masses raised to massPower, skipping the
+   *  pow() in the usual case of a massPower of 1. */
+  protected double getMassFactor(double mass1, double mass2) {
+    double massProduct = mass1*mass2;
+    return (massPower == 1.0 ? massProduct : Math.pow(massProduct,massPower));
+  }//getMassFactor()
+
+
+  /** The table holds the distance raised to -distancePower. */
+  protected int getNumTableColumns() {return 1;}
+
+  protected double getTabulatedValue(int column, double distanceSquared) {
+    return 1.0 / Math.pow(Math.sqrt(distanceSquared),distancePower);
+  }
+
+
+  /** Returns true if particles of mass weight (mass^massPower) up to
+   *  maxWeight, at least minDistance away from a particle of weight
+   *  targetWeight, are all attracting it with no damping and none of
+   *  them reaches maxForce.  Their forces are then linear in the weights,
+   *  and a group of them can be treated as one particle at their
+   *  weighted centroid (see BarnesHutTree). */
+  public boolean isFarField(double minDistance, double maxWeight, double targetWeight) {
+    if ((distancePower <= 0) || (minDistance < 2.0*arBoundary)) return false;
+    return (G * maxWeight * targetWeight / Math.pow(minDistance,distancePower) <= maxForce);
+  }//isFarField()
+
+
+  /** The signed magnitude of the force that particles of total weight
+   *  (the sum of their masses raised to massPower) exert on a particle
+   *  of weight targetWeight at the given distance, when all of them are
+   *  in the far field (see isFarField()). */
+  public double getFarFieldForceScalar(double distance, double weight, double targetWeight) {
+    return -(G * weight * targetWeight) / Math.pow(distance,distancePower);
+  }//getFarFieldForceScalar()
+
+
+  /** Allocation-free form of apply(), using the offset and distance
+   *  the caller has already computed. */
+  public void accumulate(final Particle particle1, final Particle particle2,
+                         double dx, double dy, double distance,
+                         double forceX[], double forceY[], int index) {
+    double forceScalar = getForceScalar(distance,particle1.mass,particle2.mass);
+    forceX[index] += dx/distance*forceScalar;
+    forceY[index] += dy/distance*forceScalar;
+  }//accumulate()
 
 
   protected void loadFromProperties(Properties properties) {
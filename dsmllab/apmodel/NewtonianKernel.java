@@ -0,0 +1,115 @@
+package dsmllab.apmodel;
+
+/**
+ *  This class computes the pair forces of a NewtonianForceLaw from one
+ *  particle on a batch of others, whose coordinates and masses have been
+ *  packed into arrays by the ForceEngine.  For each packed particle
+ *  within the range, hit is set and the force on it is left in forceX
+ *  and forceY; nothing is accumulated, so the engine can add the forces
+ *  up in the same order as it does one pair at a time.
+ *
+ *  This base class works one pair at a time with getForceScalar().  The
+ *  subclass dsmllab.apmodel.vector.VectorNewtonianKernel does the same
+ *  arithmetic on whole SIMD registers with the incubating JDK Vector API,
+ *  with the range cutoff, the maxForce clamp, the attract/repel switch
+ *  and the damping done with lane masks.  create() loads it by name, so
+ *  this package builds and runs without the jdk.incubator.vector module,
+ *  and falls back to this class when the module isn't there (it must be
+ *  added with --add-modules jdk.incubator.vector).  Both give exactly
+ *  the same forces when distancePower is 1 or 2 and massPower is 1; with
+ *  other powers the vector pow() may differ in the last place.
+ *
+ *  Laws with force tables, and subclasses of NewtonianForceLaw, aren't
+ *  handed to the kernels (see canCompute()).
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class NewtonianKernel {
+  public static final String VECTOR_KERNEL = "dsmllab.apmodel.vector.VectorNewtonianKernel";
+
+  // The kernel create() settled on, so the lookup is only done once
+  protected static NewtonianKernel fastest = null;
+
+
+  /** True if the kernel works a register of pairs at a time */
+  public boolean isVectorized() {return false;}
+
+  /** The number of pairs done at once */
+  public int getNumLanes() {return 1;}
+
+  public String getName() {return "scalar";}
+
+
+  /** Return true if the kernels compute exactly what the law itself does */
+  public static boolean canCompute(ForceLaw law) {
+    return (law != null) && (law.getClass() == NewtonianForceLaw.class) && (law.getForceTable() == null);
+  }
+
+
+  /** Compute the force of the law from a particle of the given mass at
+   *  (sourceX,sourceY) on each of the packed particles from up to (but
+   *  not including) to. */
+  public void computePairForces(NewtonianForceLaw law, double sourceX, double sourceY,
+                                double sourceMass, double rangeSquared,
+                                double x[], double y[], double mass[], int from, int to,
+                                double forceX[], double forceY[], boolean hit[]) {
+    for (int i=from; i<to; i++) {
+      double dx = x[i] - sourceX;
+      double dy = y[i] - sourceY;
+      double distanceSquared = dx*dx + dy*dy;
+      hit[i] = !(distanceSquared > rangeSquared);
+      if (!hit[i]) continue;
+
+      double distance = Math.sqrt(distanceSquared);
+      double forceScalar = law.getForceScalar(distance,sourceMass,mass[i]);
+      forceX[i] = dx/distance*forceScalar;
+      forceY[i] = dy/distance*forceScalar;
+    }
+  }//computePairForces()
+
+
+  /** Return the vector kernel if it can be loaded and gives the same
+   *  forces as this one on a few test pairs, or else this one. */
+  public static synchronized NewtonianKernel create() {
+    if (fastest != null) return fastest;
+
+    fastest = new NewtonianKernel();
+    try {
+      NewtonianKernel kernel = (NewtonianKernel)Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+      if (agrees(kernel,fastest)) fastest = kernel;
+      else System.err.println("Warning:  The vector force kernel doesn't agree with the scalar one; not using it");
+    }
+    catch (Throwable t) {
+      // No Vector API (or no vector package):  stay with the scalar kernel
+    }
+    return fastest;
+  }//create()
+
+
+  /** Compare two kernels on pairs spread across the attracting, repelling
+   *  and damped regions of a law, and past its range. */
+  protected static boolean agrees(NewtonianKernel kernel, NewtonianKernel reference) {
+    NewtonianForceLaw law = new NewtonianForceLaw(50.0,120.0,30.0,100.0,2.0,1.0);
+    int n = 37;
+    double x[] = new double[n], y[] = new double[n], mass[] = new double[n];
+    for (int i=0; i<n; i++) {
+      x[i] = 10.0 + 4.0*i;
+      y[i] = 7.0 - 1.5*i;
+      mass[i] = 1.0 + (i % 3);
+    }
+
+    double fx1[] = new double[n], fy1[] = new double[n], fx2[] = new double[n], fy2[] = new double[n];
+    boolean hit1[] = new boolean[n], hit2[] = new boolean[n];
+    kernel.computePairForces(law,12.0,3.0,2.0,120.0*120.0,x,y,mass,1,n,fx1,fy1,hit1);
+    reference.computePairForces(law,12.0,3.0,2.0,120.0*120.0,x,y,mass,1,n,fx2,fy2,hit2);
+
+    for (int i=1; i<n; i++) {
+      if (hit1[i] != hit2[i]) return false;
+      if (hit1[i] && ((fx1[i] != fx2[i]) || (fy1[i] != fy2[i]))) return false;
+    }
+    return true;
+  }//agrees()
+
+}
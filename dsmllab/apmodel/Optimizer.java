@@ -0,0 +1,324 @@
+package dsmllab.apmodel;
+
+import ec.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  This is the abstract base class for the optimizers that tune the
+ *  physics of an AP model.  An optimizer searches over the tuned values
+ *  of a ParamsTemplate one generation at a time:  ask() hands out a
+ *  population of candidates, all of them are evaluated at once, and
+ *  tell() gets their fitness, which is maximized.
+ *
+ *  The trials of every candidate of a generation are submitted to one
+ *  pool of threads (see APModel.submitTrials()) before any is waited on,
+ *  so all of the processors stay busy.  Trial t of every candidate uses
+ *  the seed baseSeed plus t, so candidates are compared on the same
+ *  random numbers and the results don't depend on the number of threads.
+ *
+ *  After every checkpointInterval generations the whole optimizer,
+ *  including its random number generator, is serialized to the
+ *  checkpoint file, and an interrupted run carries on from there when
+ *  started again with the same file.  The checkpoint is written to a
+ *  temporary file first and then moved into place, so a crash while
+ *  writing it leaves the last one intact.
+ *
+ *  Usage:  java dsmllab.apmodel.Optimizer -params file -tune block:key:lower:upper ...
+ *                  [-method cmaes|hillclimber] [-generations n] [-population n]
+ *                  [-stepSize s] [-trials n] [-steps n] [-threads n] [-seed n]
+ *                  [-checkpoint file] [-checkpointInterval n] [-output file]
+ *                  [-experiment file] [-model class]
+ *
+ *  Step sizes are fractions of the range between the bounds.  The best
+ *  parameters found are written to the output file (the params file name
+ *  plus ".best" by default).
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public abstract class Optimizer implements Serializable {
+  public static final String CMAES = "cmaes";
+  public static final String HILL_CLIMBER = "hillclimber";
+
+  protected ParamsTemplate template;
+  protected APExperimentParameters expParams;
+  protected Class modelClass;
+  protected long baseSeed;
+  protected MersenneTwisterFast random;
+
+  protected int generation = 0;
+  protected long numEvaluations = 0;
+  protected double bestValues[] = null;
+  protected double bestFitness = Double.NEGATIVE_INFINITY;
+
+  public int numThreads = 0;             // 0 = all processors
+  public String checkpointFile = null;
+  public int checkpointInterval = 1;
+  public transient PrintStream log = System.out;
+
+  protected transient ExecutorService pool = null;
+
+
+  public Optimizer(ParamsTemplate template, APExperimentParameters expParams,
+                   Class modelClass, long seed) {
+    if (template.getNumTunedParams() == 0)
+      throw new IllegalArgumentException("Nothing to tune");
+
+    this.template = template;
+    this.expParams = expParams.copy();
+    this.modelClass = modelClass;
+    this.baseSeed = seed;
+    this.random = new MersenneTwisterFast(seed);
+
+    this.expParams.readFromParamFile = false;
+    if (!this.expParams.isLoaded()) this.expParams.loadParameters();
+  }//constructor
+
+
+  /** Return the candidates of the next generation, as tuned values */
+  protected abstract double[][] ask();
+
+  /** Learn from the fitness of the candidates ask() returned */
+  protected abstract void tell(double candidates[][], double fitness[]);
+
+  /** True if the search has nowhere left to go */
+  public boolean isDone() {return false;}
+
+
+  public int getGeneration() {return generation;}
+  public long getNumEvaluations() {return numEvaluations;}
+  public double getBestFitness() {return bestFitness;}
+  public double[] getBestValues() {return bestValues;}
+  public String getBestParams() {return (bestValues == null ? null : template.instantiate(bestValues));}
+
+
+  /** Run until the given number of generations is reached (counting any
+   *  run before a checkpoint was taken) or the search is done. */
+  public void run(int numGenerations) throws IOException {
+    try {
+      while ((generation < numGenerations) && !isDone()) {
+        long start = System.currentTimeMillis();
+
+        double candidates[][] = ask();
+        double fitness[] = evaluate(candidates);
+        tell(candidates,fitness);
+
+        double total = 0.0;
+        int numValid = 0;
+        for (int i=0; i<candidates.length; i++) {
+          if (fitness[i] > bestFitness) {
+            bestFitness = fitness[i];
+            bestValues = template.clip(candidates[i]);
+          }
+          if (!Double.isInfinite(fitness[i])) {total += fitness[i]; numValid++;}
+        }
+        generation++;
+        numEvaluations += candidates.length;
+
+        if (log != null)
+          log.println("generation " + generation + " : best=" + bestFitness +
+                      " : mean=" + (numValid > 0 ? total/numValid : Double.NaN) +
+                      " : evaluations=" + numEvaluations +
+                      " : millis=" + (System.currentTimeMillis() - start));
+
+        if ((checkpointFile != null) && ((generation % checkpointInterval == 0) ||
+                                         (generation == numGenerations) || isDone()))
+          checkpoint(checkpointFile);
+      }
+    }
+    finally {
+      if (pool != null) pool.shutdown();
+      pool = null;
+    }
+  }//run()
+
+
+  /** Evaluate all of the candidates at once and return their fitness.  A
+   *  candidate whose trials fail gets a fitness of negative infinity. */
+  public double[] evaluate(double candidates[][]) {
+    if (pool == null) {
+      int threads = (numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors());
+      pool = Executors.newFixedThreadPool(threads);
+    }
+
+    Vector trials[] = new Vector[candidates.length];
+    for (int i=0; i<candidates.length; i++)
+      trials[i] = APModel.submitTrials(modelClass,expParams,template.instantiate(candidates[i]),
+                                       pool,baseSeed);
+
+    double fitness[] = new double[candidates.length];
+    for (int i=0; i<candidates.length; i++) {
+      try {
+        fitness[i] = APModel.meanFitness(trials[i]);
+        if (Double.isNaN(fitness[i])) fitness[i] = Double.NEGATIVE_INFINITY;
+      }
+      catch (RuntimeException e) {
+        System.err.println("Warning:  Candidate " + template.describe(template.clip(candidates[i])) +
+                           " failed: " + e.getMessage());
+        fitness[i] = Double.NEGATIVE_INFINITY;
+      }
+    }
+
+    return fitness;
+  }//evaluate()
+
+
+  /** Serialize this optimizer to the given file */
+  public void checkpoint(String fileName) throws IOException {
+    File file = new File(fileName);
+    File temp = new File(fileName + ".tmp");
+
+    ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeObject(this);
+    }
+    finally {
+      out.close();
+    }
+
+    try {
+      Files.move(temp.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+    }
+  }//checkpoint()
+
+
+  /** Read an optimizer back from a checkpoint */
+  public static Optimizer resume(String fileName) throws IOException, ClassNotFoundException {
+    ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+    try {
+      Optimizer optimizer = (Optimizer)in.readObject();
+      optimizer.log = System.out;
+      return optimizer;
+    }
+    finally {
+      in.close();
+    }
+  }//resume()
+
+
+  public static void main(String args[]) {
+    String paramsFile = null;
+    String method = CMAES;
+    String experimentFile = null;
+    String modelClassName = "dsmllab.apmodel.Surveillance";
+    String checkpointFile = null;
+    String outputFile = null;
+    Vector tuned = new Vector();
+    int numGenerations = 100;
+    int populationSize = 0;
+    double stepSize = 0.2;
+    int numTrials = -1;
+    int numSteps = -1;
+    int numThreads = 0;
+    int checkpointInterval = 1;
+    long seed = System.currentTimeMillis();
+
+    for (int i=0; i<args.length-1; i+=2) {
+      if (args[i].equals("-params")) paramsFile = args[i+1];
+      else if (args[i].equals("-tune")) tuned.add(args[i+1]);
+      else if (args[i].equals("-method")) method = args[i+1];
+      else if (args[i].equals("-generations")) numGenerations = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-population")) populationSize = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-stepSize")) stepSize = Double.parseDouble(args[i+1]);
+      else if (args[i].equals("-trials")) numTrials = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-steps")) numSteps = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-threads")) numThreads = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-seed")) seed = Long.parseLong(args[i+1]);
+      else if (args[i].equals("-checkpoint")) checkpointFile = args[i+1];
+      else if (args[i].equals("-checkpointInterval")) checkpointInterval = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-output")) outputFile = args[i+1];
+      else if (args[i].equals("-experiment")) experimentFile = args[i+1];
+      else if (args[i].equals("-model")) modelClassName = args[i+1];
+      else System.err.println("Warning:  Ignoring unknown option " + args[i]);
+    }
+
+    try {
+      Optimizer optimizer;
+      if ((checkpointFile != null) && new File(checkpointFile).exists()) {
+        optimizer = resume(checkpointFile);
+        System.out.println("Resuming from " + checkpointFile + " at generation " + optimizer.getGeneration());
+      }
+      else {
+        if ((paramsFile == null) || tuned.isEmpty()) {
+          System.err.println("Specify a params file and at least one parameter to tune");
+          System.exit(1);
+        }
+
+        ParamsTemplate template = ParamsTemplate.fromFile(paramsFile);
+        for (int i=0; i<tuned.size(); i++) template.addTunedParam((String)tuned.get(i));
+
+        APExperimentParameters expParams = (experimentFile == null ? new APExperimentParameters()
+                                            : new APExperimentParameters(experimentFile));
+        expParams.loadParameters();
+        if (numTrials > 0) expParams.numSimTrials = numTrials;
+        if (numSteps > 0) expParams.numSteps = numSteps;
+
+        Class modelClass = Class.forName(modelClassName);
+        if (method.equalsIgnoreCase(CMAES))
+          optimizer = new CMAESOptimizer(template,expParams,modelClass,seed,populationSize,stepSize);
+        else if (method.equalsIgnoreCase(HILL_CLIMBER))
+          optimizer = new HillClimber(template,expParams,modelClass,seed,populationSize,stepSize);
+        else
+          throw new IllegalArgumentException("Unknown method " + method);
+      }
+
+      optimizer.numThreads = numThreads;
+      optimizer.checkpointFile = checkpointFile;
+      optimizer.checkpointInterval = Math.max(1,checkpointInterval);
+      optimizer.run(numGenerations);
+
+      if (outputFile == null) outputFile = (paramsFile != null ? paramsFile : "optimizer.params") + ".best";
+      Writer out = new FileWriter(outputFile);
+      out.write(optimizer.getBestParams());
+      out.close();
+
+      System.out.println("Best fitness " + optimizer.getBestFitness() + " : " +
+                         optimizer.template.describe(optimizer.getBestValues()));
+      System.out.println("Wrote the best parameters to " + outputFile);
+    }
+    catch (Exception e) {
+      System.err.println("Error running the optimizer: " + e);
+      System.exit(1);
+    }
+  }//main()
+
+
+  //--------------- Helper functions --------------
+
+  /** Map tuned values to [0,1], where the bounds are 0 and 1 */
+  protected double[] normalize(double x[]) {
+    double y[] = new double[x.length];
+    for (int p=0; p<x.length; p++) {
+      ParamsTemplate.TunedParam param = template.getTunedParam(p);
+      y[p] = (x[p] - param.lowerBound)/(param.upperBound - param.lowerBound);
+    }
+    return y;
+  }//normalize()
+
+
+  /** Map values in [0,1] back to tuned values */
+  protected double[] denormalize(double y[]) {
+    double x[] = new double[y.length];
+    for (int p=0; p<y.length; p++) {
+      ParamsTemplate.TunedParam param = template.getTunedParam(p);
+      x[p] = param.lowerBound + y[p]*(param.upperBound - param.lowerBound);
+    }
+    return x;
+  }//denormalize()
+
+
+  /** Fold a value back into [0,1] as if the bounds were mirrors */
+  protected static double reflect(double y) {
+    y = Math.abs(y) % 2.0;
+    return (y > 1.0 ? 2.0 - y : y);
+  }//reflect()
+
+}
@@ -0,0 +1,252 @@
+package dsmllab.apmodel;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  This class turns an AP model parameters file into a template for the
+ *  optimizers.  Some of the numeric values in it are tuned; each is named
+ *  by the number of its block (counting from 1, in the order the blocks
+ *  appear in the file) and its key, and given bounds, as in
+ *
+ *    2:effectRange:100:2000
+ *
+ *  which tunes the effectRange of the second block between 100 and 2000.
+ *  A candidate is an array with one value per tuned parameter, and
+ *  instantiate() writes it into a copy of the file, which can be handed
+ *  to APParser.loadFromString().  Everything else in the file, including
+ *  its layout, is kept as it is.  A tuned key the block
+ *  doesn't have is added at the end of the block.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class ParamsTemplate implements Serializable {
+  protected String lines[];
+  protected int blockOfLine[];     // 0 outside of any block
+  protected int numBlocks = 0;
+
+  protected Vector tunedParams = new Vector();
+
+
+  /** Create a template from the text of a parameters file. */
+  public ParamsTemplate(String apParamsString) {
+    StringTokenizer st = new StringTokenizer(apParamsString,"\n",true);
+    Vector lineList = new Vector();
+    String previous = "\n";
+    while (st.hasMoreTokens()) {
+      String token = st.nextToken();
+      if (!token.equals("\n")) lineList.add(token);
+      else if (previous.equals("\n")) lineList.add("");
+      previous = token;
+    }
+
+    lines = (String[])lineList.toArray(new String[lineList.size()]);
+    blockOfLine = new int[lines.length];
+
+    int level = 0;
+    for (int i=0; i<lines.length; i++) {
+      String line = lines[i];
+      for (int j=0; j<line.length(); j++) {
+        char ch = line.charAt(j);
+        if (ch == '{') {
+          if (level == 0) numBlocks++;
+          level++;
+        }
+        else if (ch == '}') level--;
+      }
+      blockOfLine[i] = ((level > 0) || (line.indexOf('}') >= 0) ? numBlocks : 0);
+    }
+  }//constructor
+
+
+  public static ParamsTemplate fromFile(String fileName) throws IOException {
+    return new ParamsTemplate(readFile(fileName));
+  }
+
+
+  public int getNumBlocks() {return numBlocks;}
+  public int getNumTunedParams() {return tunedParams.size();}
+  public TunedParam getTunedParam(int i) {return (TunedParam)tunedParams.get(i);}
+
+
+  /** Tune the value of the given key in the given block (counting from 1)
+   *  between the given bounds. */
+  public void addTunedParam(int block, String key, double lowerBound, double upperBound) {
+    if ((block < 1) || (block > numBlocks))
+      throw new IllegalArgumentException("There is no block " + block + " (the file has " + numBlocks + ")");
+    if (!(lowerBound < upperBound))
+      throw new IllegalArgumentException("Bad bounds for " + block + ":" + key + ": [" +
+                                         lowerBound + "," + upperBound + "]");
+
+    tunedParams.add(new TunedParam(block,key,lowerBound,upperBound));
+  }//addTunedParam()
+
+
+  /** Parse a block:key:lower:upper description and tune it. */
+  public void addTunedParam(String description) {
+    StringTokenizer st = new StringTokenizer(description,":");
+    if (st.countTokens() != 4)
+      throw new IllegalArgumentException("Expected block:key:lower:upper but got '" + description + "'");
+
+    try {
+      int block = Integer.parseInt(st.nextToken().trim());
+      String key = st.nextToken().trim();
+      double lowerBound = Double.parseDouble(st.nextToken().trim());
+      double upperBound = Double.parseDouble(st.nextToken().trim());
+      addTunedParam(block,key,lowerBound,upperBound);
+    }
+    catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Expected block:key:lower:upper but got '" + description + "'");
+    }
+  }//addTunedParam()
+
+
+  /** Return the values the file gives the tuned parameters, moved inside
+   *  their bounds.  A tuned key the file doesn't give starts in the
+   *  middle of its bounds. */
+  public double[] getInitialValues() {
+    double x[] = new double[tunedParams.size()];
+    for (int p=0; p<x.length; p++) {
+      TunedParam param = getTunedParam(p);
+      x[p] = 0.5*(param.lowerBound + param.upperBound);
+
+      int i = findLine(param);
+      if (i >= 0) {
+        try {
+          x[p] = Double.parseDouble(valueOf(lines[i]));
+        }
+        catch (NumberFormatException e) {
+          System.err.println("Warning:  " + param + " isn't a number in the template; starting it at " + x[p]);
+        }
+      }
+    }
+
+    return clip(x);
+  }//getInitialValues()
+
+
+  /** Return a copy of x with each value moved inside its bounds */
+  public double[] clip(double x[]) {
+    double clipped[] = new double[x.length];
+    for (int p=0; p<x.length; p++) {
+      TunedParam param = getTunedParam(p);
+      clipped[p] = Math.max(param.lowerBound,Math.min(param.upperBound,x[p]));
+    }
+    return clipped;
+  }//clip()
+
+
+  /** Return the parameters file with the tuned values replaced by x,
+   *  which are first moved inside their bounds. */
+  public String instantiate(double x[]) {
+    if (x.length != tunedParams.size())
+      throw new IllegalArgumentException("Expected " + tunedParams.size() + " values but got " + x.length);
+    x = clip(x);
+
+    String instance[] = (String[])lines.clone();
+    String added[] = new String[numBlocks+1];
+    for (int p=0; p<x.length; p++) {
+      TunedParam param = getTunedParam(p);
+      int i = findLine(param);
+      if (i >= 0) {
+        // Keep a closing brace sharing the line
+        int equals = instance[i].indexOf('=');
+        int brace = instance[i].indexOf('}',equals);
+        instance[i] = instance[i].substring(0,equals+1) + " " + x[p] +
+          (brace >= 0 ? " " + instance[i].substring(brace) : "");
+      }
+      else {
+        String line = param.key + " = " + x[p] + "\n";
+        added[param.block] = (added[param.block] == null ? line : added[param.block] + line);
+      }
+    }
+
+    StringBuffer sb = new StringBuffer();
+    for (int i=0; i<instance.length; i++) {
+      // Keys the block didn't have go just before its closing brace
+      if ((blockOfLine[i] > 0) && (added[blockOfLine[i]] != null) && isBlockEnd(i)) {
+        sb.append(added[blockOfLine[i]]);
+        added[blockOfLine[i]] = null;
+      }
+      sb.append(instance[i]).append('\n');
+    }
+
+    return sb.toString();
+  }//instantiate()
+
+
+  /** Describe a point as block:key=value pairs */
+  public String describe(double x[]) {
+    StringBuffer sb = new StringBuffer();
+    for (int p=0; p<x.length; p++) {
+      TunedParam param = getTunedParam(p);
+      if (p > 0) sb.append(' ');
+      sb.append(param.block).append(':').append(param.key).append('=').append(x[p]);
+    }
+    return sb.toString();
+  }//describe()
+
+
+  //--------------- Helper functions --------------
+
+  /** Return the line giving the value of the tuned parameter, or -1 */
+  protected int findLine(TunedParam param) {
+    for (int i=0; i<lines.length; i++) {
+      if (blockOfLine[i] != param.block) continue;
+      String line = lines[i];
+      int equals = line.indexOf('=');
+      if ((equals > 0) && line.substring(0,equals).trim().equals(param.key)) return i;
+    }
+    return -1;
+  }//findLine()
+
+
+  /** True if line i closes its block */
+  protected boolean isBlockEnd(int i) {
+    return ((i+1 >= lines.length) || (blockOfLine[i+1] != blockOfLine[i]));
+  }
+
+
+  protected static String valueOf(String line) {
+    String value = line.substring(line.indexOf('=')+1);
+    int brace = value.indexOf('}');
+    return (brace >= 0 ? value.substring(0,brace) : value).trim();
+  }
+
+
+  public static String readFile(String fileName) throws IOException {
+    BufferedReader in = new BufferedReader(new FileReader(fileName));
+    StringBuffer sb = new StringBuffer();
+    try {
+      String line;
+      while ((line = in.readLine()) != null) sb.append(line).append('\n');
+    }
+    finally {
+      in.close();
+    }
+    return sb.toString();
+  }//readFile()
+
+
+  /** A tuned value of the template */
+  public static class TunedParam implements Serializable {
+    public final int block;
+    public final String key;
+    public final double lowerBound;
+    public final double upperBound;
+
+    public TunedParam(int block, String key, double lowerBound, double upperBound) {
+      this.block = block;
+      this.key = key;
+      this.lowerBound = lowerBound;
+      this.upperBound = upperBound;
+    }
+
+    public String toString() {
+      return block + ":" + key + ":" + lowerBound + ":" + upperBound;
+    }
+  }//TunedParam
+
+}
@@ -40,16 +40,25 @@ public class Particle extends SimplePortrayal2D implements Steppable, Parsable {
   protected int particleSubtype = -1;  
   protected Color particleColor = new Color(255,0,0);
 
-  // Physical state information
+  // Physical state information.  Once the particle is registered with a
+  // model, its velocity and accumulated force live in the model's
+  // ParticleStore, and the particle is only a handle over its slot there.
+  // The location is mirrored in particleLocation for the environment.
+  protected ParticleStore store = null;
+  protected int slot = -1;
   public Double2D particleLocation; 
   public Double2D lastLocation;
-  public Double2D particleVelocity;
-  public Double2D forceOnParticle;
   public double setPosition;
   public double setx;
   public double sety;
 
-  // Properties of the particle/particle
+  // The velocity and accumulated force were once kept here too, as
+  // particleVelocity and forceOnParticle.  They are gone:  a subclass
+  // reads them with getVelocity() and getForce(), and changes them in the
+  // store's vx, vy, fx and fy at its slot, where the engine will see it.
+
+  // Properties of the particle/particle.  These are copied into the
+  // ParticleStore at registration; use the setters to change them later.
   public double mass = 1.0;
   public double maxVelocity = 2.0;
   public double diameter = 4.0;	
@@ -65,8 +74,6 @@ public class Particle extends SimplePortrayal2D implements Steppable, Parsable {
                   ForceInteractionModel forceInteractionModel) {
     this.id = id;
     this.particleLocation = location;
-    this.particleVelocity = new Double2D(0,0);	
-    this.forceOnParticle = new Double2D(0,0);
     this.mass = mass;
     this.particleSubtype = subtype;
     this.forceInteractionModel = forceInteractionModel;
@@ -80,8 +87,6 @@ public class Particle extends SimplePortrayal2D implements Steppable, Parsable {
   public Particle() {
     this.id = "Particle";
     this.particleLocation = new Double2D(0,0);
-    this.particleVelocity = new Double2D(0,0);
-    this.forceOnParticle = new Double2D(0,0);
     this.mass = 1.0;
     this.particleSubtype = 0;
     this.forceInteractionModel = null;
@@ -91,7 +96,7 @@ public class Particle extends SimplePortrayal2D implements Steppable, Parsable {
 
 
   protected void loadFromProperties(Properties properties) {
-    this.particleSubtype = (int)(new Double(properties.getProperty("subtype","0"))).doubleValue();
+    this.particleSubtype = (int)Double.parseDouble(properties.getProperty("subtype","0"));
     this.mass = getParamFromProp(properties,"mass",mass,0.001,100000.0);
     this.friction = getParamFromProp(properties,"friction",friction,0.0,1.0);
     this.diameter = getParamFromProp(properties,"diamter",diameter,0.01,1000.0);
@@ -122,7 +127,14 @@ public class Particle extends SimplePortrayal2D implements Steppable, Parsable {
       System.err.println("Error while creating from the parse of " + getClass().getName() + ": " + e);
     }
 
-    int number =(int)(new Double(properties.getProperty("number","1"))).doubleValue();
+    return createCopiesFromProperties(properties);
+  }
+
+
+  /** Create the copies from values already parsed.  The properties may
+   *  be shared, so they are only read. */
+  public Vector createCopiesFromProperties(Properties properties) {
+    int number =(int)Double.parseDouble(properties.getProperty("number","1"));
     int subtype = -1;
     Vector particles = new Vector(number);
     for (int i=0; i<number; i++) {
@@ -145,8 +157,9 @@ public class Particle extends SimplePortrayal2D implements Steppable, Parsable {
     this.forceInteractionModel = forceInteractionModel;
     this.particleType = forceInteractionModel.registerParticle(this,this.particleSubtype);
     this.particleLocation = this.getInitialPosition(ap);
+    ap.particleStore.addParticle(this);
     ap.environment.setObjectLocation(this,this.particleLocation);
-    ap.schedule.scheduleRepeating(this);
+    ap.scheduleParticle(this);
   }  
 
 
@@ -181,12 +194,81 @@ public class Particle extends SimplePortrayal2D implements Steppable, Parsable {
 
   public int getParticleType() {return particleType;}
   public int getParticleSubtype() {return particleSubtype;}
+  public int getSlot() {return slot;}
+  public ParticleStore getStore() {return store;}
+
+  public Double2D getLocation() {return particleLocation;}
+  public Double2D getVelocity() {
+    return (store == null ? new Double2D(0,0) : new Double2D(store.vx[slot],store.vy[slot]));
+  }
+  public Double2D getForce() {
+    return (store == null ? new Double2D(0,0) : new Double2D(store.fx[slot],store.fy[slot]));
+  }
+
+  public double getFriction() {return friction;}
+
+  public void setMass(double mass) {
+    this.mass = mass;
+    if (store != null) store.mass[slot] = mass;
+  }
+  public void setFriction(double friction) {
+    this.friction = friction;
+    if (store != null) store.friction[slot] = friction;
+  }
+  public void setMaxVelocity(double maxVelocity) {
+    this.maxVelocity = maxVelocity;
+    if (store != null) store.maxVelocity[slot] = maxVelocity;
+  }
+
+
+  /** Move the particle to the given location, keeping the store, the
+   *  mirrored particleLocation and the environment in agreement. */
+  public void setLocation(APModel ap, double x, double y) {
+    if (store != null) {
+      store.x[slot] = x;
+      store.y[slot] = y;
+    }
+    lastLocation = particleLocation;
+    particleLocation = new Double2D(x,y);
+
+    long start = (ap.profiler != null ? System.nanoTime() : 0);
+    ap.environment.setObjectLocation(this,particleLocation);
+    if (ap.forceEngine != null) ap.forceEngine.particleMoved(slot);
+    if (ap.profiler != null) ap.profiler.addTime(StepProfiler.INDEX_UPDATE,System.nanoTime() - start);
+  }//setLocation()
+
+
+  /** Bring particleLocation and the environment up to date after the
+   *  location in the store has been changed directly, as the engine's
+   *  synchronous update does. */
+  public void syncLocation(APModel ap) {
+    double x = store.x[slot];
+    double y = store.y[slot];
+    if ((x != particleLocation.x) || (y != particleLocation.y))
+      setLocation(ap,x,y);
+  }//syncLocation()
+
+
+  /** Bring particleLocation and lastLocation alone up to date with the
+   *  store, and return true if the particle has moved.  The synchronous
+   *  update calls this from its worker threads, each on its own
+   *  particles, and then brings the environment and the neighbor search
+   *  up to date itself (so setLocation() isn't called). */
+  public boolean syncHandle() {
+    double x = store.x[slot];
+    double y = store.y[slot];
+    if ((x == particleLocation.x) && (y == particleLocation.y)) return false;
+
+    lastLocation = particleLocation;
+    particleLocation = new Double2D(x,y);
+    return true;
+  }//syncHandle()
 
 
 
   protected double getParamFromProp(Properties properties, String key, 
                                     double defaultVal, double lb, double ub) {
-    double rawValue = (new Double(properties.getProperty(key,"" + defaultVal))).doubleValue();
+    double rawValue = Double.parseDouble(properties.getProperty(key,"" + defaultVal));
 
     if (rawValue < lb) rawValue = lb;
     if (rawValue > ub) rawValue = ub;
@@ -254,70 +336,33 @@ public class Particle extends SimplePortrayal2D implements Steppable, Parsable {
 
 
   /** Find all particles that are nearby and force each of those particles
-   *  to compute the force effects this particle has on them. */
+   *  to compute the force effects this particle has on them.  The search
+   *  is done by the model's ForceEngine over its cell list. */
   protected void impartForce(final APModel ap) {
-    double forceX = 0;
-    double forceY = 0;
-    double maxVision = forceInteractionModel.getMaxEffectRangeFrom(this);
-    Bag nearbyParticles = ap.environment.getObjectsWithinDistance(particleLocation,maxVision);
-
-    if (nearbyParticles != null)
-      for (int i=0; i<nearbyParticles.numObjs; i++) {
-        if (nearbyParticles.objs[i] instanceof Particle) {
-          if (forceInteractionModel.isInteractionFromTo(this,(Particle)nearbyParticles.objs[i]))
-	  ((Particle)nearbyParticles.objs[i]).applyForce(ap,this);
-        }
-      }
-	
+    ap.forceEngine.impartForce(slot);
   }//impartForce()
 
 
   /** The affecting particle will call this method, which must compute
-   *  the force of the calling particle on this particle and update the
-   *  forceOnParticle physical state variable.  This method selects
+   *  the force of the calling particle on this particle and add it to
+   *  the accumulated force for this particle's slot.  This method selects
    *  a force law based on the forceLaw indicator variable. */
   protected void applyForce(final APModel ap, final Particle other) {
-    Double2D force = forceInteractionModel.apply(other,this);
-    forceOnParticle = new Double2D(forceOnParticle.x + force.x,
-                                   forceOnParticle.y + force.y);
+    ForceLaw law = forceInteractionModel.getInteractionFromTo(other,this);
+    double dx = store.x[slot] - other.store.x[other.slot];
+    double dy = store.y[slot] - other.store.y[other.slot];
+    double distance = Math.sqrt(dx*dx + dy*dy);
+    law.accumulate(other,this,dx,dy,distance,store.fx,store.fy,slot);
   }//applyForce()
 
 
   /** Change the velocity physical state variable with the collected force
    *  data, then reset the force physical state variable.  The velocity 
-   *  magnitude is capped at maxVelocity.*/
+   *  magnitude is capped at maxVelocity.  The work is done directly on
+   *  the arrays of the ParticleStore, by the model's Integrator.*/
   public void updateVelocity(final APModel ap) {
-    double momentumFactor = (useMomentum ? 1.0/mass : 1.0);
-    // This was the old way I was implementing friction...
-    double frictionFactor = (useFriction ? 1.0-friction : 1.0);
-
-    double newVx = frictionFactor*(forceOnParticle.x * momentumFactor + particleVelocity.x);
-    double newVy = frictionFactor*(forceOnParticle.y * momentumFactor + particleVelocity.y);
-
-    // This is the way Bill implements friction
-    //     double frictX = (useFriction ? friction * Math.abs(particleVelocity.x) : 0.0);
-    //     double frictY = (useFriction ? friction * Math.abs(particleVelocity.y) : 0.0);
-
-    //     double dVx = (forceOnParticle.x - frictX) * momentumFactor;
-    //     double dVy = (forceOnParticle.y - frictY) * momentumFactor;
-    //     double newVx = dVx + particleVelocity.x;
-    //     double newVy = dVy + particleVelocity.y;
-
-    if (Math.sqrt(newVx*newVx + newVy*newVy) <= maxVelocity)
-      particleVelocity = new Double2D(newVx,newVy);
-    else {
-      double velocityScalar = Math.sqrt(newVx*newVx + newVy*newVy)/maxVelocity;
-      particleVelocity = new Double2D(newVx/velocityScalar,newVy/velocityScalar);
-    }
-
-    if (Double.isNaN(newVx)) {
-      System.out.println("DEBUG:  Updating " + id + " with an invalid vecolity");
-      System.out.println("     newV = (" + newVx + "," + newVy + ")");
-      System.out.println("     force = (" + forceOnParticle.x + "," + forceOnParticle.y + ")");
-      System.out.println("     mass = " + mass);
-    }
-
-    forceOnParticle = new Double2D(0,0);
+    if (ap.integrator == null) store.updateVelocity(slot);
+    else ap.integrator.updateVelocity(store,slot,(ap.schedule.getSteps() == 0));
   }//updateVelocity()
 
 
@@ -325,21 +370,20 @@ public class Particle extends SimplePortrayal2D implements Steppable, Parsable {
    *  Use the model-level method acceptablePosition() to validate that the
    *  position is on the field.*/
   public void updatePosition(final APModel ap) {
-    Double2D oldLocation = particleLocation;
-
-    if( ap.acceptablePosition(this, new Double2D(particleLocation.x + particleVelocity.x, 
-						 particleLocation.y + particleVelocity.y)) ) {
-      particleLocation = new Double2D(particleLocation.x + particleVelocity.x, 
-                                      particleLocation.y + particleVelocity.y);
-
-      if (Double.isNaN(particleLocation.x)) {
+    double timeStep = (ap.integrator == null ? 1.0 : ap.integrator.getTimeStep());
+    double oldX = store.x[slot];
+    double oldY = store.y[slot];
+    double newX = oldX + store.vx[slot]*timeStep;
+    double newY = oldY + store.vy[slot]*timeStep;
+
+    if( ap.acceptablePosition(this, newX, newY) ) {
+      if (Double.isNaN(newX)) {
         System.out.println("DEBUG:  Updating " + id + " with an invalid position");
-	System.out.println("     oldLocation = (" + oldLocation.x + "," + oldLocation.y + ")");
-	System.out.println("     velocity= (" + particleVelocity.x + "," + particleVelocity.y + ")");
+	System.out.println("     oldLocation = (" + oldX + "," + oldY + ")");
+	System.out.println("     velocity= (" + store.vx[slot] + "," + store.vy[slot] + ")");
       }
 
-      lastLocation = oldLocation;
-      ap.environment.setObjectLocation(this,particleLocation);
+      setLocation(ap,newX,newY);
     }
   }//updatePosition
 
@@ -352,9 +396,8 @@ public class Particle extends SimplePortrayal2D implements Steppable, Parsable {
     double cX = (ap.XMAX + ap.XMIN)/2.0;
     double cY = (ap.YMAX + ap.YMIN)/2.0;
     double radius = Math.min(cX,cY);
-    particleLocation = new Double2D(cX + radius*Math.cos(angle),
-                                    cY + radius*Math.sin(angle));		
-    ap.environment.setObjectLocation(this,particleLocation);
+    setLocation(ap,cX + radius*Math.cos(angle),
+                   cY + radius*Math.sin(angle));
   }//resetPosition()
 
 
@@ -363,23 +406,23 @@ public class Particle extends SimplePortrayal2D implements Steppable, Parsable {
     APModel ap = (APModel)state;
     //Surveillance s = (Surveillance)state;
 
-    impartForce(ap);  
-    updateVelocity(ap);
-    updatePosition(ap);	
-    //double num = s.targets_covered();
-
-    
-    /*
-    try(FileWriter fw = new FileWriter("heterog.txt", true);
-    BufferedWriter bw = new BufferedWriter(fw);
-    PrintWriter out = new PrintWriter(bw))
-    {
-    out.println(num);
-    } catch (IOException e) {
-    //exception handling left as an exercise for the reader
-    }*/
-
-    //System.out.println(num);
+    StepProfiler profiler = ap.profiler;
+    if (profiler == null) {
+      impartForce(ap);  
+      updateVelocity(ap);
+      updatePosition(ap);	
+    }
+    else {
+      // setLocation() times the index update itself, so leave it out
+      impartForce(ap);
+      long start = System.nanoTime();
+      long indexNanos = profiler.getNanos(StepProfiler.INDEX_UPDATE);
+      updateVelocity(ap);
+      updatePosition(ap);
+      profiler.addTime(StepProfiler.INTEGRATION,System.nanoTime() - start -
+                       (profiler.getNanos(StepProfiler.INDEX_UPDATE) - indexNanos));
+    }
+    // Trajectories are recorded by TrajectoryRecorder, off this thread
   }
 
 
@@ -0,0 +1,281 @@
+package dsmllab.apmodel;
+
+import sim.util.Double2D;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+/**
+ *  This class holds the particles of a very large swarm (millions of
+ *  them) off the Java heap, with no Particle object for any of them.
+ *  Each particle is a fixed record of RECORD_SIZE bytes in direct
+ *  buffers:
+ *
+ *    X, Y      position
+ *    VX, VY    velocity
+ *    FX, FY    force accumulated this step
+ *    MASS      mass
+ *    KIND      the parameters block the particle came from
+ *    NEXT      link used by ArenaEngine's cell lists
+ *
+ *  Everything else about a particle (its class, type, friction, maximum
+ *  velocity, diameter, color and so on) is the same for every particle
+ *  of a block, so it is kept once per block, in a Kind holding a
+ *  prototype Particle loaded from the block.  The heap then holds a few
+ *  objects per block whatever the number of particles, and the records
+ *  take 64 bytes each off the heap.  The records are split into pages of
+ *  PAGE_SIZE records, so the arena can grow past the 2GB a single buffer
+ *  can hold without copying what is there.  The JVM may have to be given
+ *  a larger -XX:MaxDirectMemorySize.
+ *
+ *  APParser.loadFromScenario() can load the particle blocks of a scenario
+ *  into an arena instead of creating the particles, and ArenaEngine steps
+ *  them.  When a particle has to be looked at as an object, as when the
+ *  UI inspects it, materialize() makes a detached Particle with its
+ *  current state.
+ *
+ *  The arena is meant to hold the model's only copy of the particles, and
+ *  only the synchronous update of ArenaEngine works on it, so it does not
+ *  replace ParticleStore for ordinary runs.  (On JDK 22 and later these
+ *  pages could be MemorySegments from an Arena; direct buffers do the same
+ *  job on the JDKs the model runs on now.)
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class ParticleArena {
+  // Record layout, in bytes
+  public static final int X    = 0;
+  public static final int Y    = 8;
+  public static final int VX   = 16;
+  public static final int VY   = 24;
+  public static final int FX   = 32;
+  public static final int FY   = 40;
+  public static final int MASS = 48;
+  public static final int KIND = 56;
+  public static final int NEXT = 60;
+  public static final int RECORD_SIZE = 64;
+
+  // 2^20 records (64MB) to a page
+  public static final int PAGE_SHIFT = 20;
+  public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+  protected static final int RECORD_SHIFT = 6;
+
+  protected ByteBuffer pages[] = new ByteBuffer[0];
+  protected int numParticles = 0;
+  protected int capacity = 0;
+
+  protected Vector kinds = new Vector();
+  protected int kindTypes[] = new int[0];   // particle type of each kind
+
+
+  /** What the particles of one parameters block have in common */
+  public static class Kind {
+    public final Particle prototype;
+    public final Properties properties;
+    public int number;                     // particles the block asks for
+    public int particleType = -1;
+    public int firstParticle = -1;
+
+    public Kind(Particle prototype, Properties properties, int number) {
+      this.prototype = prototype;
+      this.properties = properties;
+      this.number = number;
+    }
+  }//Kind
+
+
+  public int getNumParticles() {return numParticles;}
+  public int getCapacity() {return capacity;}
+  public int getNumKinds() {return kinds.size();}
+  public Kind getKind(int kind) {return (Kind)kinds.get(kind);}
+
+  /** Bytes of off-heap memory held by the records */
+  public long getBytesAllocated() {return (long)pages.length*PAGE_SIZE*RECORD_SIZE;}
+
+
+  //--------------- Loading --------------
+
+  /** Add the particle block of a scenario as a kind, without creating
+   *  its particles, and return the index of the kind.  The particles are
+   *  placed by placeParticles(). */
+  public int addBlock(CompiledScenario.Block block) throws Exception {
+    Properties properties = block.getProperties();
+    Particle prototype = ((Particle)block.newInstance()).newParticleInstance();
+    prototype.loadFromProperties(properties);
+    prototype.id = prototype.getClass().getName() + "-" + prototype.getParticleSubtype();
+
+    int number = (int)Double.parseDouble(properties.getProperty("number","1"));
+    kinds.add(new Kind(prototype,properties,Math.max(0,number)));
+    return kinds.size()-1;
+  }//addBlock()
+
+
+  /** Register the type of each kind with the interaction model, place
+   *  all of the particles in the model's field as Particle would, and
+   *  make room for them all at once.  The kinds are placed in the order
+   *  they were added. */
+  public void placeParticles(ForceInteractionModel forceInteractionModel, APModel ap) {
+    long total = numParticles;
+    for (int k=0; k<kinds.size(); k++) total += getKind(k).number;
+    if (total > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("An arena can't hold " + total + " particles");
+    ensureCapacity((int)total);
+
+    kindTypes = new int[kinds.size()];
+    for (int k=0; k<kinds.size(); k++) {
+      Kind kind = getKind(k);
+      Particle prototype = kind.prototype;
+      kind.particleType = forceInteractionModel.registerParticle(prototype,prototype.getParticleSubtype());
+      prototype.forceInteractionModel = forceInteractionModel;
+      prototype.particleType = kind.particleType;
+      kindTypes[k] = kind.particleType;
+
+      kind.firstParticle = numParticles;
+      for (int i=0; i<kind.number; i++) {
+        Double2D location = prototype.getInitialPosition(ap);
+        add(k,location.x,location.y,prototype.mass);
+      }
+    }
+  }//placeParticles()
+
+
+  /** Add a particle of the given kind at rest, and return its index */
+  public int add(int kind, double x, double y, double mass) {
+    if (numParticles == capacity) ensureCapacity(numParticles+1);
+
+    int i = numParticles++;
+    ByteBuffer page = pages[i >>> PAGE_SHIFT];
+    int offset = (i & (PAGE_SIZE-1)) << RECORD_SHIFT;
+    page.putDouble(offset+X,x);
+    page.putDouble(offset+Y,y);
+    page.putDouble(offset+VX,0.0);
+    page.putDouble(offset+VY,0.0);
+    page.putDouble(offset+FX,0.0);
+    page.putDouble(offset+FY,0.0);
+    page.putDouble(offset+MASS,mass);
+    page.putInt(offset+KIND,kind);
+    page.putInt(offset+NEXT,-1);
+    return i;
+  }//add()
+
+
+  /** Remove a particle by moving the last one into its place, so the
+   *  indices of the others don't change, but that of the last does. */
+  public void remove(int i) {
+    int last = numParticles-1;
+    if (i != last) {
+      ByteBuffer page = pageOf(i), lastPage = pageOf(last);
+      int offset = offsetOf(i), lastOffset = offsetOf(last);
+      for (int b=0; b<RECORD_SIZE; b+=8) page.putLong(offset+b,lastPage.getLong(lastOffset+b));
+    }
+    numParticles = last;
+  }//remove()
+
+
+  /** Drop every particle from the given index on.  The pages are kept. */
+  public void truncate(int numParticles) {
+    if (numParticles < this.numParticles) this.numParticles = Math.max(0,numParticles);
+  }
+
+
+  /** Write the state of a particle, to be read into another arena loaded
+   *  from the same scenario (so with the same kinds). */
+  public void writeRecord(int i, DataOutput out) throws IOException {
+    ByteBuffer page = pageOf(i);
+    int offset = offsetOf(i);
+    out.writeInt(page.getInt(offset+KIND));
+    out.writeDouble(page.getDouble(offset+X));
+    out.writeDouble(page.getDouble(offset+Y));
+    out.writeDouble(page.getDouble(offset+VX));
+    out.writeDouble(page.getDouble(offset+VY));
+    out.writeDouble(page.getDouble(offset+MASS));
+  }//writeRecord()
+
+
+  /** Add a particle written by writeRecord(), and return its index */
+  public int readRecord(DataInput in) throws IOException {
+    int kind = in.readInt();
+    if ((kind < 0) || (kind >= kinds.size()))
+      throw new IOException("A particle of kind " + kind + " doesn't fit an arena of " + kinds.size() + " kinds");
+    double x = in.readDouble();
+    double y = in.readDouble();
+    double vx = in.readDouble();
+    double vy = in.readDouble();
+    int i = add(kind,x,y,in.readDouble());
+    setVelocity(i,vx,vy);
+    return i;
+  }//readRecord()
+
+
+  /** Make sure there are pages for the given number of particles */
+  public void ensureCapacity(int numRecords) {
+    int numPages = (int)(((long)numRecords + PAGE_SIZE - 1) >>> PAGE_SHIFT);
+    if (numPages <= pages.length) return;
+
+    ByteBuffer grown[] = new ByteBuffer[numPages];
+    System.arraycopy(pages,0,grown,0,pages.length);
+    for (int p=pages.length; p<numPages; p++)
+      grown[p] = ByteBuffer.allocateDirect(PAGE_SIZE*RECORD_SIZE).order(ByteOrder.nativeOrder());
+    pages = grown;
+    capacity = (int)Math.min(Integer.MAX_VALUE,(long)numPages*PAGE_SIZE);
+  }//ensureCapacity()
+
+
+  //--------------- Access --------------
+
+  /** The page holding a particle, and the offset of its record there */
+  public ByteBuffer pageOf(int i) {return pages[i >>> PAGE_SHIFT];}
+  public static int offsetOf(int i) {return (i & (PAGE_SIZE-1)) << RECORD_SHIFT;}
+
+  public double getX(int i)    {return pageOf(i).getDouble(offsetOf(i)+X);}
+  public double getY(int i)    {return pageOf(i).getDouble(offsetOf(i)+Y);}
+  public double getVX(int i)   {return pageOf(i).getDouble(offsetOf(i)+VX);}
+  public double getVY(int i)   {return pageOf(i).getDouble(offsetOf(i)+VY);}
+  public double getFX(int i)   {return pageOf(i).getDouble(offsetOf(i)+FX);}
+  public double getFY(int i)   {return pageOf(i).getDouble(offsetOf(i)+FY);}
+  public double getMass(int i) {return pageOf(i).getDouble(offsetOf(i)+MASS);}
+  public int getKindOf(int i)  {return pageOf(i).getInt(offsetOf(i)+KIND);}
+  public int getType(int i)    {return kindTypes[pageOf(i).getInt(offsetOf(i)+KIND)];}
+
+  public void setLocation(int i, double x, double y) {
+    ByteBuffer page = pageOf(i);
+    int offset = offsetOf(i);
+    page.putDouble(offset+X,x);
+    page.putDouble(offset+Y,y);
+  }
+  public void setVelocity(int i, double vx, double vy) {
+    ByteBuffer page = pageOf(i);
+    int offset = offsetOf(i);
+    page.putDouble(offset+VX,vx);
+    page.putDouble(offset+VY,vy);
+  }
+  public void setMass(int i, double mass) {pageOf(i).putDouble(offsetOf(i)+MASS,mass);}
+
+  public int[] getKindTypes() {return kindTypes;}
+
+
+  /** Return a new Particle with the state and properties of the given
+   *  one, for the UI and other callers that need an object.  It isn't
+   *  registered with any model, and changing it doesn't change the
+   *  arena. */
+  public Particle materialize(int i) {
+    ByteBuffer page = pageOf(i);
+    int offset = offsetOf(i);
+    Kind kind = getKind(page.getInt(offset+KIND));
+
+    Particle particle = kind.prototype.newParticleInstance();
+    particle.loadFromProperties(kind.properties);
+    particle.id = kind.prototype.getClass().getName() + "-" + particle.getParticleSubtype() + "-" +
+      (i - kind.firstParticle);
+    particle.forceInteractionModel = kind.prototype.forceInteractionModel;
+    particle.particleType = kind.particleType;
+    particle.mass = page.getDouble(offset+MASS);
+    particle.particleLocation = new Double2D(page.getDouble(offset+X),page.getDouble(offset+Y));
+    return particle;
+  }//materialize()
+
+}
@@ -0,0 +1,208 @@
+package dsmllab.apmodel;
+
+import sim.util.Double2D;
+
+/**
+ *  This class holds the physical state of all particles registered with
+ *  a model as a structure of arrays.  Each particle is assigned a slot
+ *  when it registers, and its position, velocity, accumulated force and
+ *  the handful of properties used by the integration (mass, friction,
+ *  maximum velocity) are kept in contiguous primitive arrays indexed by
+ *  that slot.  The Particle object itself becomes a thin handle over its
+ *  slot.
+ *
+ *  The point of this is that the inner loops of the simulation (force
+ *  accumulation, velocity and position updates) can work directly on
+ *  the arrays without creating a new Double2D for every intermediate
+ *  quantity on every step.
+ *
+ *  The per-particle properties are copied from the particle when it is
+ *  registered, so changes made afterward should go through the setters
+ *  on Particle, which keep both copies in agreement.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class ParticleStore {
+  public static final int DEFAULT_CAPACITY = 64;
+
+  protected int numParticles = 0;
+  protected int capacity = 0;
+
+  // Handles, indexed by slot
+  public Particle particles[];
+
+  // Physical state information
+  public double x[];
+  public double y[];
+  public double vx[];
+  public double vy[];
+  public double fx[];
+  public double fy[];
+
+  // Particle type, as registered with the ForceInteractionModel
+  public int type[];
+
+  // Properties of the particles used by the integration
+  public double mass[];
+  public double friction[];
+  public double maxVelocity[];
+  public boolean useMomentum[];
+  public boolean useFriction[];
+
+
+  public ParticleStore() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public ParticleStore(int initialCapacity) {
+    allocate(Math.max(1,initialCapacity));
+  }//constructor
+
+
+  public int getNumParticles() {return numParticles;}
+  public int getCapacity() {return capacity;}
+
+
+  /** Add a particle to the store, copying its current location and
+   *  properties into a new slot.  The particle is bound to the slot
+   *  and the slot index is returned.  Velocity and force start at zero. */
+  public int addParticle(Particle particle) {
+    if (numParticles == capacity) allocate(2*capacity);
+
+    int slot = numParticles++;
+    particles[slot]   = particle;
+    x[slot]           = particle.particleLocation.x;
+    y[slot]           = particle.particleLocation.y;
+    vx[slot]          = 0.0;
+    vy[slot]          = 0.0;
+    fx[slot]          = 0.0;
+    fy[slot]          = 0.0;
+    type[slot]        = particle.particleType;
+    mass[slot]        = particle.mass;
+    friction[slot]    = particle.friction;
+    maxVelocity[slot] = particle.maxVelocity;
+    useMomentum[slot] = particle.useMomentum;
+    useFriction[slot] = particle.useFriction;
+
+    particle.store = this;
+    particle.slot  = slot;
+
+    return slot;
+  }//addParticle()
+
+
+  /** Change the velocity of the particle in the given slot with the
+   *  collected force data, then reset the force for the new round.  The
+   *  velocity magnitude is capped at maxVelocity. */
+  public void updateVelocity(int slot) {
+    double momentumFactor = (useMomentum[slot] ? 1.0/mass[slot] : 1.0);
+    double frictionFactor = (useFriction[slot] ? 1.0-friction[slot] : 1.0);
+
+    double newVx = frictionFactor*(fx[slot] * momentumFactor + vx[slot]);
+    double newVy = frictionFactor*(fy[slot] * momentumFactor + vy[slot]);
+
+    if (Math.sqrt(newVx*newVx + newVy*newVy) <= maxVelocity[slot]) {
+      vx[slot] = newVx;
+      vy[slot] = newVy;
+    }
+    else {
+      double velocityScalar = Math.sqrt(newVx*newVx + newVy*newVy)/maxVelocity[slot];
+      vx[slot] = newVx/velocityScalar;
+      vy[slot] = newVy/velocityScalar;
+    }
+
+    if (Double.isNaN(newVx)) {
+      System.out.println("DEBUG:  Updating " + particles[slot].id + " with an invalid vecolity");
+      System.out.println("     newV = (" + newVx + "," + newVy + ")");
+      System.out.println("     force = (" + fx[slot] + "," + fy[slot] + ")");
+      System.out.println("     mass = " + mass[slot]);
+    }
+
+    fx[slot] = 0.0;
+    fy[slot] = 0.0;
+  }//updateVelocity()
+
+
+  /** Return a new Double2D for the location of the given slot.  This
+   *  is meant for the UI and other infrequent callers, not inner loops. */
+  public Double2D getLocation(int slot) {
+    return new Double2D(x[slot],y[slot]);
+  }
+
+
+  /** Grow (or initially create) all arrays to the given capacity. */
+  protected void allocate(int newCapacity) {
+    particles   = (Particle[])grow(particles,new Particle[newCapacity]);
+    x           = grow(x,newCapacity);
+    y           = grow(y,newCapacity);
+    vx          = grow(vx,newCapacity);
+    vy          = grow(vy,newCapacity);
+    fx          = grow(fx,newCapacity);
+    fy          = grow(fy,newCapacity);
+    type        = grow(type,newCapacity);
+    mass        = grow(mass,newCapacity);
+    friction    = grow(friction,newCapacity);
+    maxVelocity = grow(maxVelocity,newCapacity);
+    useMomentum = grow(useMomentum,newCapacity);
+    useFriction = grow(useFriction,newCapacity);
+    capacity = newCapacity;
+  }//allocate()
+
+
+  /** Write the state of every slot to a checkpoint */
+  public void writeState(ModelCheckpoint.Output out) throws java.io.IOException {
+    out.putDoubles(x,numParticles);
+    out.putDoubles(y,numParticles);
+    out.putDoubles(vx,numParticles);
+    out.putDoubles(vy,numParticles);
+    out.putDoubles(fx,numParticles);
+    out.putDoubles(fy,numParticles);
+    out.putInts(type,numParticles);
+    out.putDoubles(mass,numParticles);
+    out.putDoubles(friction,numParticles);
+    out.putDoubles(maxVelocity,numParticles);
+    out.putBooleans(useMomentum,numParticles);
+    out.putBooleans(useFriction,numParticles);
+  }//writeState()
+
+
+  /** Read back the state written by writeState() into a store holding
+   *  the same number of particles.  The handles are left alone. */
+  public void readState(ModelCheckpoint.Input in) throws java.io.IOException {
+    int lengths[] = {in.getDoubles(x), in.getDoubles(y), in.getDoubles(vx), in.getDoubles(vy),
+                     in.getDoubles(fx), in.getDoubles(fy), in.getInts(type), in.getDoubles(mass),
+                     in.getDoubles(friction), in.getDoubles(maxVelocity),
+                     in.getBooleans(useMomentum), in.getBooleans(useFriction)};
+    for (int i=0; i<lengths.length; i++)
+      if (lengths[i] != numParticles)
+        throw new java.io.IOException("The particles of the checkpoint don't match the store");
+  }//readState()
+
+
+  //--------------- Helper functions --------------
+  protected double[] grow(double[] old, int newCapacity) {
+    double grown[] = new double[newCapacity];
+    if (old != null) System.arraycopy(old,0,grown,0,numParticles);
+    return grown;
+  }
+
+  protected int[] grow(int[] old, int newCapacity) {
+    int grown[] = new int[newCapacity];
+    if (old != null) System.arraycopy(old,0,grown,0,numParticles);
+    return grown;
+  }
+
+  protected boolean[] grow(boolean[] old, int newCapacity) {
+    boolean grown[] = new boolean[newCapacity];
+    if (old != null) System.arraycopy(old,0,grown,0,numParticles);
+    return grown;
+  }
+
+  protected Object[] grow(Object[] old, Object[] grown) {
+    if (old != null) System.arraycopy(old,0,grown,0,numParticles);
+    return grown;
+  }
+
+}
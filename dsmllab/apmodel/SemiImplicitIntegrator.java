@@ -0,0 +1,51 @@
+package dsmllab.apmodel;
+
+/**
+ *  This class is a leapfrog integrator with the friction treated
+ *  semi-implicitly, averaged over the start and end of the step:
+ *
+ *    v(n+1/2) = ((1 - g dt/2) v(n-1/2) + F(n)/m dt) / (1 + g dt/2)
+ *    x(n+1)   = x(n) + v(n+1/2) dt
+ *
+ *  where g = -ln(1-friction) is the friction as a rate, so a particle
+ *  coasting with no force loses the same fraction of its velocity per
+ *  unit of time as in the other schemes (to second order).  Treating the
+ *  damping this way keeps it stable however large g dt gets, where an
+ *  explicit damping term would overshoot, so heavily damped swarms can
+ *  take the largest steps.  As in VerletIntegrator, the velocity kept is
+ *  the one at the half step, and the first step kicks by half of dt.
+ *  Particles with a friction of 1 stop dead, as in the Euler step.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class SemiImplicitIntegrator extends Integrator {
+
+  public SemiImplicitIntegrator(double timeStep) {
+    super(timeStep);
+  }//constructor
+
+
+  public String getName() {return SEMI_IMPLICIT;}
+
+
+  public void updateVelocity(ParticleStore store, int slot, boolean firstStep) {
+    double momentumFactor = (store.useMomentum[slot] ? 1.0/store.mass[slot] : 1.0);
+    double kick = momentumFactor*(firstStep ? 0.5*timeStep : timeStep);
+
+    double friction = (store.useFriction[slot] ? store.friction[slot] : 0.0);
+    if (friction >= 1.0) {
+      setVelocity(store,slot,0.0,0.0);
+      return;
+    }
+
+    double halfDamping = -0.5*Math.log(1.0-friction)*timeStep;
+    double retained = (1.0 - halfDamping)/(1.0 + halfDamping);
+    double gain = kick/(1.0 + halfDamping);
+    setVelocity(store,slot,
+                retained*store.vx[slot] + store.fx[slot]*gain,
+                retained*store.vy[slot] + store.fy[slot]*gain);
+  }//updateVelocity()
+
+}
@@ -0,0 +1,163 @@
+package dsmllab.apmodel;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/**
+ *  This class connects the ranks of a distributed run over TCP, one
+ *  connection for every pair of ranks.  Each rank is given the same list
+ *  of host:port addresses, indexed by rank.  A rank listens on its own
+ *  port, accepts the ranks above it, and connects to the ranks below it
+ *  (retrying until they are up, for up to CONNECT_TIMEOUT milliseconds).
+ *  Several processes on one machine can be run over the loopback
+ *  interface, as TileCoordinator -spawn does.
+ *
+ *  Messages are framed with their length.  A thread per connection reads
+ *  them into a queue as they come in, so send() never waits on the other
+ *  side to receive, which could deadlock two workers sending each other
+ *  large halos at once.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class SocketTransport implements TileTransport {
+  public static final int CONNECT_TIMEOUT = 60000;
+  public static final int RETRY_INTERVAL = 100;
+
+  // Put in the queue of a connection that has closed
+  protected static final byte CLOSED[] = new byte[0];
+
+  protected int rank;
+  protected int numRanks;
+  protected Socket sockets[];
+  protected DataOutputStream outputs[];
+  protected LinkedBlockingQueue inboxes[];
+
+
+  /** Connect this rank to all of the others, given the address of every
+   *  rank as host:port. */
+  public SocketTransport(int rank, String addresses[]) throws IOException {
+    this.rank = rank;
+    this.numRanks = addresses.length;
+    sockets = new Socket[numRanks];
+    outputs = new DataOutputStream[numRanks];
+    inboxes = new LinkedBlockingQueue[numRanks];
+
+    ServerSocket server = null;
+    try {
+      if (rank < numRanks-1) server = new ServerSocket(getPort(addresses[rank]));
+
+      for (int r=0; r<rank; r++) {
+        Socket socket = connect(addresses[r]);
+        new DataOutputStream(socket.getOutputStream()).writeInt(rank);
+        attach(r,socket);
+      }
+
+      for (int n=rank+1; n<numRanks; n++) {
+        Socket socket = server.accept();
+        int r = new DataInputStream(socket.getInputStream()).readInt();
+        if ((r <= rank) || (r >= numRanks) || (sockets[r] != null))
+          throw new IOException("Unexpected connection from rank " + r);
+        attach(r,socket);
+      }
+    }
+    catch (IOException e) {
+      close();
+      throw e;
+    }
+    finally {
+      if (server != null) server.close();
+    }
+  }//constructor
+
+
+  protected static String getHost(String address) {
+    return address.substring(0,address.lastIndexOf(':'));
+  }
+  protected static int getPort(String address) {
+    return Integer.parseInt(address.substring(address.lastIndexOf(':')+1));
+  }
+
+
+  /** Connect to a rank, retrying while it isn't listening yet */
+  protected Socket connect(String address) throws IOException {
+    long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+    while (true) {
+      try {
+        return new Socket(getHost(address),getPort(address));
+      }
+      catch (ConnectException e) {
+        if (System.currentTimeMillis() > deadline)
+          throw new IOException("Could not connect to " + address + ": " + e.getMessage());
+        try {Thread.sleep(RETRY_INTERVAL);} catch (InterruptedException ie) {}
+      }
+    }
+  }//connect()
+
+
+  /** Start reading the messages of the given rank off its socket */
+  protected void attach(final int r, Socket socket) throws IOException {
+    socket.setTcpNoDelay(true);
+    sockets[r] = socket;
+    outputs[r] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    inboxes[r] = new LinkedBlockingQueue();
+
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    Thread reader = new Thread("SocketTransport reader " + rank + "<-" + r) {
+        public void run() {
+          try {
+            while (true) {
+              byte message[] = new byte[input.readInt()];
+              input.readFully(message);
+              inboxes[r].add(message);
+            }
+          }
+          catch (IOException e) {
+            inboxes[r].add(CLOSED);
+          }
+        }
+      };
+    reader.setDaemon(true);
+    reader.start();
+  }//attach()
+
+
+  public int getRank() {return rank;}
+  public int getNumRanks() {return numRanks;}
+
+
+  public void send(int toRank, byte message[]) throws IOException {
+    DataOutputStream output = outputs[toRank];
+    synchronized (output) {
+      output.writeInt(message.length);
+      output.write(message);
+      output.flush();
+    }
+  }//send()
+
+
+  public byte[] receive(int fromRank) throws IOException {
+    try {
+      byte message[] = (byte[])inboxes[fromRank].take();
+      if (message == CLOSED) {
+        inboxes[fromRank].add(CLOSED);
+        throw new IOException("The connection to rank " + fromRank + " has closed");
+      }
+      return message;
+    }
+    catch (InterruptedException e) {
+      throw new IOException("Interrupted waiting for rank " + fromRank);
+    }
+  }//receive()
+
+
+  public void close() {
+    for (int r=0; r<numRanks; r++)
+      if (sockets[r] != null) {
+        try {sockets[r].close();} catch (IOException e) {}
+      }
+  }//close()
+
+}
@@ -0,0 +1,135 @@
+package dsmllab.apmodel;
+
+import java.io.*;
+
+/**
+ *  This class collects timings and counts from the hot paths of a
+ *  running model, to show where the time of a slow run goes.  It is
+ *  turned on with APExperimentParameters.profileSteps, in which case
+ *  APModel.start() gives the model a fresh profiler for each trial
+ *  (APModel.profiler), and test() prints its report after each trial.
+ *  Otherwise the profiler is null, and the instrumented code does no
+ *  more than check that.
+ *
+ *  The timers, in nanoseconds, are
+ *
+ *    neighborQuery   finding the candidate neighbors of a particle
+ *    force           evaluating the force laws on the candidates (and
+ *                    summing the chunk buffers, in the synchronous mode)
+ *    integration     updating velocities and positions
+ *    indexUpdate     keeping the environment, cell list, Verlet lists
+ *                    and Barnes-Hut trees up to date
+ *    measures        the measures and the convergence monitor
+ *
+ *  and the counters are the candidate pairs looked at, the pairs found
+ *  in range, the force law evaluations (a reciprocal pair is one
+ *  evaluation for two forces), and the Bags allocated by the model's
+ *  own code.  There is also a histogram of the number of particles in
+ *  range of each particle imparting its force, in power of two buckets:
+ *  0, 1, 2-3, 4-7, and so on.  With reciprocal pairs, a pair is only
+ *  counted for the lower of its two slots.
+ *
+ *  In the synchronous mode the force phase runs on many threads, each
+ *  chunk of particles recording into a Tally of its own, and the tallies
+ *  are added up after the phase.  The neighborQuery and force timers then
+ *  hold the time summed over the threads, not the elapsed time.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class StepProfiler {
+  public static final int NEIGHBOR_QUERY = 0;
+  public static final int FORCE          = 1;
+  public static final int INTEGRATION    = 2;
+  public static final int INDEX_UPDATE   = 3;
+  public static final int MEASURES       = 4;
+  public static final String TIMER_NAMES[] = {"neighborQuery","force","integration",
+                                              "indexUpdate","measures"};
+
+  public static final int CANDIDATE_PAIRS   = 0;
+  public static final int INTERACTING_PAIRS = 1;
+  public static final int FORCE_EVALUATIONS = 2;
+  public static final int BAG_ALLOCATIONS   = 3;
+  public static final String COUNTER_NAMES[] = {"candidatePairs","interactingPairs",
+                                                "forceEvaluations","bagAllocations"};
+
+  public static final int NUM_BUCKETS = 32;
+
+  protected Tally totals = new Tally();
+  protected long numSteps = 0;
+
+
+  /** The timings and counts gathered by one thread */
+  public static class Tally {
+    public long nanos[] = new long[TIMER_NAMES.length];
+    public long counts[] = new long[COUNTER_NAMES.length];
+    public long neighborHistogram[] = new long[NUM_BUCKETS];
+
+    public void add(Tally other) {
+      for (int i=0; i<nanos.length; i++) nanos[i] += other.nanos[i];
+      for (int i=0; i<counts.length; i++) counts[i] += other.counts[i];
+      for (int i=0; i<NUM_BUCKETS; i++) neighborHistogram[i] += other.neighborHistogram[i];
+    }//add()
+
+    public void clear() {
+      java.util.Arrays.fill(nanos,0);
+      java.util.Arrays.fill(counts,0);
+      java.util.Arrays.fill(neighborHistogram,0);
+    }//clear()
+  }//Tally
+
+
+  /** The tally for code running on the model's own thread */
+  public Tally getTally() {return totals;}
+
+  public long getNanos(int timer) {return totals.nanos[timer];}
+  public long getCount(int counter) {return totals.counts[counter];}
+  public long[] getNeighborHistogram() {return (long[])totals.neighborHistogram.clone();}
+  public long getNumSteps() {return numSteps;}
+  public void setNumSteps(long numSteps) {this.numSteps = numSteps;}
+
+  public void addTime(int timer, long nanos) {totals.nanos[timer] += nanos;}
+  public void addCount(int counter, long count) {totals.counts[counter] += count;}
+
+  /** Fold in (and clear) the tally of another thread */
+  public void merge(Tally tally) {
+    totals.add(tally);
+    tally.clear();
+  }//merge()
+
+  public void clear() {
+    totals.clear();
+    numSteps = 0;
+  }//clear()
+
+
+  /** Bucket 0 holds 0, and bucket b > 0 holds 2^(b-1) to 2^b - 1 */
+  public static int bucketOf(int n) {
+    int bucket = (n <= 0 ? 0 : 32 - Integer.numberOfLeadingZeros(n));
+    return Math.min(bucket,NUM_BUCKETS-1);
+  }//bucketOf()
+
+
+  /** Print the timers (total and per step), the counters and the
+   *  non-empty buckets of the histogram. */
+  public void report(PrintStream out) {
+    long steps = Math.max(1,numSteps);
+    out.println("Profile : steps : " + numSteps);
+    for (int i=0; i<TIMER_NAMES.length; i++)
+      out.println("Profile : " + TIMER_NAMES[i] + " : " + totals.nanos[i]/1.0e6 + " ms : " +
+                  totals.nanos[i]/1.0e3/steps + " us/step");
+    for (int i=0; i<COUNTER_NAMES.length; i++)
+      out.println("Profile : " + COUNTER_NAMES[i] + " : " + totals.counts[i] + " : " +
+                  (double)totals.counts[i]/steps + " /step");
+
+    for (int b=0; b<NUM_BUCKETS; b++) {
+      if (totals.neighborHistogram[b] == 0) continue;
+      long low = (b == 0 ? 0 : 1L << (b-1));
+      long high = (b == 0 ? 0 : (1L << b) - 1);
+      out.println("Profile : neighbors " + low + (high > low ? "-" + high : "") + " : " +
+                  totals.neighborHistogram[b]);
+    }
+  }//report()
+
+}
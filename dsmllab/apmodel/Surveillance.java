@@ -1,7 +1,8 @@
 /*
   Surveillance.java extends APModel.java, adding/overriding the following methods
     - initializeEnvironment: registers the particles/agents. Also reads targets from a file and adds them to the environment
-    - targets_covered: determines percentage of targets that are covered by at least one agent 
+    - targets_covered: determines percentage of targets that are covered by at least one agent,
+      using a spatial index over the particles
 */
 
 package dsmllab.apmodel;
@@ -16,9 +17,10 @@ import java.io.File;
 
 public class Surveillance extends APModel {
 
-  public static Target[] targets;
-  public static int n;
+  public Target[] targets;
+  public int n;
   public double num_covered;
+  public CoverageIndex coverage = null;
 
   public Surveillance (long seed) {
     super(seed);
@@ -30,29 +32,20 @@ public class Surveillance extends APModel {
     environment = new Continuous2D(25.0, (super.XMAX-super.XMIN), (super.YMAX-super.YMIN) );
 
     super.apParamsParser.registerAllParticles();
+    coverage = null;
 
     if (super.measures != null) super.measures.scheduleAllMeasures(this);
 
     // try to open the file that has the list of points in it
     try {
-      Scanner scanner = new Scanner(new File("points.txt"));
-
-      //the first number in the file is how many points we have
-      n = scanner.nextInt();
+      int points[][] = readPoints("points.txt");
+      n = points.length;
       targets = new Target[n];
 
-      // points in the file are of the form (diameter, x coordinate, y coord, red color, green color, blue color)
       for (int i = 0; i < n; i++) {
-          int diam = scanner.nextInt();
-          double x = scanner.nextInt();
-          double y = scanner.nextInt();
-          int r = scanner.nextInt();
-          int g = scanner.nextInt();
-          int b = scanner.nextInt();
-
-          Paint this_color = new Color(r, g, b);
+          Paint this_color = new Color(points[i][3], points[i][4], points[i][5]);
 
-          Target targ = new Target( diam,this_color,x,y);
+          Target targ = new Target( points[i][0],this_color,points[i][1],points[i][2]);
           targets[i] = targ;
 
           environment.setObjectLocation( targ, new Double2D( targ.x, targ.y ));
@@ -68,48 +61,68 @@ public class Surveillance extends APModel {
 
 
   /* 
-    This function will return the percentage of targets that are within range of at least one agent
+    Read the targets from the points file, keeping what was read so the following trials can skip
+    the parse.  The file is read again if its length or modification time changes.
   */
-  public double targets_covered() {
+  protected static String pointsKey = null;
+  protected static int cachedPoints[][] = null;
+
+  protected static int[][] readPoints(String fileName) throws Exception {
+    File file = new File(fileName);
+    String key = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    synchronized (Surveillance.class) {
+      if (key.equals(pointsKey)) return cachedPoints;
+    }
 
+    Scanner scanner = new Scanner(file);
 
-    int num_covered = 0;
+    //the first number in the file is how many points we have
+    int numPoints = scanner.nextInt();
+    int points[][] = new int[numPoints][6];
 
-    //grab all the objects from the environment
-    Bag particles = environment.allObjects;
+    // points in the file are of the form (diameter, x coordinate, y coord, red color, green color, blue color)
+    for (int i = 0; i < numPoints; i++)
+      for (int j = 0; j < 6; j++)
+        points[i][j] = scanner.nextInt();
+    scanner.close();
 
-    for (int i = 0; i < n; i++) {
-      boolean thisTargCovered = false;
-      double Tx = targets[i].x;
-      double Ty = targets[i].y;
+    synchronized (Surveillance.class) {
+      pointsKey = key;
+      cachedPoints = points;
+    }
+    return points;
+  }//readPoints()
 
-      for (int j=0; j < particles.numObjs; j++){
 
-        //check that we have a particle, not a target
-        if (particles.objs[j] instanceof Particle) {
-          Particle thisPart = (Particle)particles.objs[j];
-          double Px = thisPart.particleLocation.x;
-          double Py = thisPart.particleLocation.y;
+  /* 
+    The coverage index was built for the positions the trial started with, so start it over
+  */
+  @Override protected void checkpointRestored() {
+    super.checkpointRestored();
+    coverage = null;
+  }
 
-          //if the dist bt the particle and the targ is less than the radius, that target is within range
-          double distance = Math.sqrt( (Py -Ty)*(Py -Ty) + (Px -Tx)*(Px -Tx));
 
-          if (distance < thisPart.radius) {
-            thisTargCovered = true;
-          }
+  /* 
+    The fitness of a trial is the fraction of the targets covered at the end of it
+  */
+  protected double resolveTrialFitness() {return targets_covered();}
+  public double resolveFinalFitness() {return fitness;}
 
-        }
-      }
-      // after checking each particle, if that target is covered, increment our total
-      if (thisTargCovered) num_covered++;
-    }
 
-    //System.out.println("total covered");
-    //System.out.println(num_covered);
-    //System.out.println("n");
-    //System.out.println(n);
+  /* 
+    This function will return the percentage of targets that are within range of at least one agent.
+    The first call of a trial indexes the particles and targets (see CoverageIndex); after that only
+    the targets near particles that have moved are rechecked, so it is cheap enough to call every step.
+  */
+  public double targets_covered() {
+    if ((coverage == null) || coverage.isStale(particleStore))
+      coverage = new CoverageIndex(particleStore,targets,(XMAX-XMIN),(YMAX-YMIN));
+    else
+      coverage.update();
 
-    return (double)num_covered/n;
+    num_covered = coverage.getNumCovered();
+    return (double)coverage.getNumCovered()/n;
   }//targets_covered()
 
 
@@ -0,0 +1,424 @@
+package dsmllab.apmodel;
+
+import ec.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  This class runs a parameter sweep over an AP model without the
+ *  display, in one JVM.  The sweep is laid over a base parameters file
+ *  the same way the optimizers tune one:  each swept parameter is named
+ *  by its block and key and given bounds (see ParamsTemplate), so
+ *
+ *    -sweep 2:G:50:500 -sweep 1:friction:0.1:0.9 -levels 10
+ *
+ *  runs a 10 by 10 grid over G in the second block and friction in the
+ *  first.  With -design lhs the points are instead a Latin hypercube of
+ *  -points points, which covers each range evenly with far fewer runs.
+ *
+ *  The trials of every point are submitted at once to a work-stealing
+ *  pool, so fast points don't leave threads idle while slow ones finish.
+ *  Trial t of every point uses the seed baseSeed plus t, as in
+ *  Optimizer.  As soon as the last trial of a point is done, a row is
+ *  appended to the results file and flushed:  the point's number, its
+ *  values, the number of trials, and the means over the trials of the
+ *  fitness, the steps run, the fraction that converged, the wall time
+ *  in milliseconds and each measure's aggregate for the trial.  Rows
+ *  come in the order the points finish.
+ *
+ *  Running the same sweep again with the same results file carries on
+ *  where it stopped:  the points already in the file are skipped, and a
+ *  row cut short by a crash is dropped.  The design is rebuilt from the
+ *  same seed, so the points are numbered the same way.  A point whose
+ *  trials fail gets no row, so it is tried again next time.
+ *
+ *  Usage:  java dsmllab.apmodel.SweepRunner -params file -sweep block:key:lower:upper ...
+ *                  [-design grid|lhs] [-levels n] [-points n] [-trials n]
+ *                  [-steps n] [-threads n] [-seed n] [-output file]
+ *                  [-experiment file] [-model class]
+ *
+ *  The results go to the params file name plus ".sweep.csv" by default,
+ *  and the seed is 0 unless given.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class SweepRunner {
+  public static final String GRID = "grid";
+  public static final String LATIN_HYPERCUBE = "lhs";
+
+  protected ParamsTemplate template;
+  protected APExperimentParameters expParams;
+  protected Class modelClass;
+  protected long baseSeed;
+  protected String measureIDs[];
+
+  public int numThreads = 0;             // 0 = all processors
+  public PrintStream log = System.out;
+
+  protected Writer out = null;
+  protected int numWritten = 0;
+  protected int numFailed = 0;
+
+
+  /** The trials of one point of the sweep */
+  protected class Point {
+    public final int index;
+    public final double values[];
+    public final String apParamsString;
+    public final double fitness[];
+    public final long stepsRun[];
+    public final boolean converged[];
+    public final long millis[];
+    public final double measures[][];
+    protected int numRemaining;
+    protected boolean failed = false;
+
+    public Point(int index, double values[]) {
+      this.index = index;
+      this.values = values;
+      this.apParamsString = template.instantiate(values);
+      int numTrials = expParams.numSimTrials;
+      fitness = new double[numTrials];
+      stepsRun = new long[numTrials];
+      converged = new boolean[numTrials];
+      millis = new long[numTrials];
+      measures = new double[numTrials][measureIDs.length];
+      numRemaining = numTrials;
+    }
+
+    /** Run the given trial, and write the point out if it was the last */
+    public void runTrial(int trial) {
+      try {
+        long start = System.currentTimeMillis();
+        APModel ap = APModel.newInstance(modelClass,baseSeed + trial);
+        fitness[trial] = ap.runTrial(expParams,apParamsString);
+        millis[trial] = System.currentTimeMillis() - start;
+        stepsRun[trial] = ap.stepsRun;
+        converged[trial] = ap.hasConverged();
+        for (int m=0; m<measureIDs.length; m++) {
+          AbstractMeasure msr = (ap.measures == null ? null : ap.measures.findMeasure(measureIDs[m]));
+          measures[trial][m] = (msr == null ? Double.NaN : msr.getStepsAggregateForCurrentTrial());
+        }
+      }
+      catch (Throwable t) {
+        synchronized (this) {
+          if (!failed)
+            System.err.println("Warning:  Point " + index + " (" + template.describe(values) +
+                               ") failed: " + t);
+          failed = true;
+        }
+      }
+
+      boolean last;
+      synchronized (this) {
+        last = (--numRemaining == 0);
+      }
+      if (last) pointDone(this);
+    }//runTrial()
+  }//Point
+
+
+  public SweepRunner(ParamsTemplate template, APExperimentParameters expParams,
+                     Class modelClass, long seed) {
+    if (template.getNumTunedParams() == 0)
+      throw new IllegalArgumentException("Nothing to sweep");
+
+    this.template = template;
+    this.expParams = expParams.copy();
+    this.modelClass = modelClass;
+    this.baseSeed = seed;
+
+    this.expParams.readFromParamFile = false;
+    if (!this.expParams.isLoaded()) this.expParams.loadParameters();
+
+    MeasureRegistry registry = this.expParams.createMeasureRegistry();
+    measureIDs = (registry == null ? new String[0] : registry.getMeasureIDs());
+  }//constructor
+
+
+  /** Return a grid with the given number of levels of each parameter,
+   *  evenly spaced from its lower bound to its upper bound. */
+  public double[][] grid(int levels) {
+    levels = Math.max(1,levels);
+    int numParams = template.getNumTunedParams();
+    long numPoints = 1;
+    for (int p=0; p<numParams; p++) numPoints *= levels;
+    if (numPoints > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("A grid of " + levels + " levels of " + numParams +
+                                         " parameters is too large");
+
+    double points[][] = new double[(int)numPoints][numParams];
+    for (int i=0; i<points.length; i++) {
+      int rest = i;
+      for (int p=numParams-1; p>=0; p--) {
+        ParamsTemplate.TunedParam param = template.getTunedParam(p);
+        int level = rest % levels;
+        rest /= levels;
+        points[i][p] = (levels == 1 ? 0.5*(param.lowerBound + param.upperBound) :
+                        param.lowerBound + level*(param.upperBound - param.lowerBound)/(levels-1));
+      }
+    }
+    return points;
+  }//grid()
+
+
+  /** Return a Latin hypercube of the given number of points:  the range
+   *  of each parameter is cut into that many equal strata, and each
+   *  stratum of each parameter holds exactly one point. */
+  public double[][] latinHypercube(int numPoints) {
+    MersenneTwisterFast random = new MersenneTwisterFast(baseSeed);
+    int numParams = template.getNumTunedParams();
+    double points[][] = new double[numPoints][numParams];
+
+    int strata[] = new int[numPoints];
+    for (int p=0; p<numParams; p++) {
+      ParamsTemplate.TunedParam param = template.getTunedParam(p);
+      for (int i=0; i<numPoints; i++) strata[i] = i;
+      for (int i=numPoints-1; i>0; i--) {
+        int j = random.nextInt(i+1);
+        int swap = strata[i]; strata[i] = strata[j]; strata[j] = swap;
+      }
+      for (int i=0; i<numPoints; i++)
+        points[i][p] = param.lowerBound + (param.upperBound - param.lowerBound)*
+          (strata[i] + random.nextDouble())/numPoints;
+    }
+    return points;
+  }//latinHypercube()
+
+
+  /** Run the trials of all the points not already in the results file,
+   *  appending a row for each to the file as it finishes. */
+  public void run(double points[][], String outputFile) throws IOException {
+    String header = header();
+    BitSet done = readDone(outputFile,header);
+    boolean fresh = !new File(outputFile).exists();
+
+    Vector todo = new Vector();
+    for (int i=0; i<points.length; i++)
+      if (!done.get(i)) todo.add(new Point(i,points[i]));
+    if (log != null)
+      log.println("Sweep : " + points.length + " points : " + (points.length - todo.size()) +
+                  " already done : " + expParams.numSimTrials + " trials each");
+    if (todo.isEmpty()) return;
+
+    out = new BufferedWriter(new FileWriter(outputFile,true));
+    if (fresh) {
+      out.write(header);
+      out.write('\n');
+      out.flush();
+    }
+    numWritten = 0;
+    numFailed = 0;
+
+    int threads = (numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors());
+    ExecutorService pool = Executors.newWorkStealingPool(threads);
+    long start = System.currentTimeMillis();
+    try {
+      Vector futures = new Vector();
+      for (int i=0; i<todo.size(); i++) {
+        final Point point = (Point)todo.get(i);
+        for (int trial=0; trial<expParams.numSimTrials; trial++) {
+          final int t = trial;
+          futures.add(pool.submit(new Runnable() {
+              public void run() {point.runTrial(t);}
+            }));
+        }
+      }
+
+      for (int i=0; i<futures.size(); i++) {
+        try {
+          ((Future)futures.get(i)).get();
+        }
+        catch (ExecutionException e) {
+          throw new RuntimeException("Error while running a trial: " + e.getCause(),e.getCause());
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException("Interrupted while waiting for the sweep",e);
+        }
+      }
+    }
+    finally {
+      pool.shutdownNow();
+      synchronized (this) {
+        out.close();
+        out = null;
+      }
+    }
+
+    if (log != null)
+      log.println("Sweep : wrote " + numWritten + " points : " + numFailed + " failed : millis=" +
+                  (System.currentTimeMillis() - start));
+  }//run()
+
+
+  /** Write the row of a point whose trials are all done */
+  protected synchronized void pointDone(Point point) {
+    if (point.failed) {
+      numFailed++;
+      return;
+    }
+
+    int numTrials = point.fitness.length;
+    StringBuffer row = new StringBuffer();
+    row.append(point.index);
+    for (int p=0; p<point.values.length; p++) row.append(',').append(point.values[p]);
+    row.append(',').append(numTrials);
+
+    double fitness = 0.0, steps = 0.0, converged = 0.0, millis = 0.0;
+    double measures[] = new double[measureIDs.length];
+    for (int t=0; t<numTrials; t++) {
+      fitness += point.fitness[t];
+      steps += point.stepsRun[t];
+      converged += (point.converged[t] ? 1 : 0);
+      millis += point.millis[t];
+      for (int m=0; m<measures.length; m++) measures[m] += point.measures[t][m];
+    }
+    row.append(',').append(fitness/numTrials);
+    row.append(',').append(steps/numTrials);
+    row.append(',').append(converged/numTrials);
+    row.append(',').append(millis/numTrials);
+    for (int m=0; m<measures.length; m++) row.append(',').append(measures[m]/numTrials);
+    row.append('\n');
+
+    try {
+      out.write(row.toString());
+      out.flush();
+      numWritten++;
+    }
+    catch (IOException e) {
+      System.err.println("Warning:  Could not write the results of point " + point.index + ": " + e);
+    }
+  }//pointDone()
+
+
+  /** The first line of the results file */
+  protected String header() {
+    StringBuffer sb = new StringBuffer("point");
+    for (int p=0; p<template.getNumTunedParams(); p++) {
+      ParamsTemplate.TunedParam param = template.getTunedParam(p);
+      sb.append(',').append(param.block).append(':').append(param.key);
+    }
+    sb.append(",trials,fitness,steps,converged,millis");
+    for (int m=0; m<measureIDs.length; m++) sb.append(',').append(measureIDs[m]);
+    return sb.toString();
+  }//header()
+
+
+  /** Return the points already in the results file, after cutting off a
+   *  row the last run didn't finish writing. */
+  protected BitSet readDone(String outputFile, String header) throws IOException {
+    BitSet done = new BitSet();
+    File file = new File(outputFile);
+    if (!file.exists()) return done;
+
+    RandomAccessFile raf = new RandomAccessFile(file,"rw");
+    try {
+      long length = raf.length();
+      long end = length;
+      while ((end > 0) && (readByteAt(raf,end-1) != '\n')) end--;
+      if (end < length) {
+        System.err.println("Warning:  Dropping an unfinished row at the end of " + outputFile);
+        raf.setLength(end);
+      }
+    }
+    finally {
+      raf.close();
+    }
+
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line = in.readLine();
+      if (line == null) throw new IOException(outputFile + " is empty; delete it to start over");
+      if (!line.equals(header))
+        throw new IOException(outputFile + " holds the results of a different sweep");
+
+      int numColumns = header.split(",").length;
+      while ((line = in.readLine()) != null) {
+        String columns[] = line.split(",");
+        if (columns.length != numColumns) continue;
+        try {
+          done.set(Integer.parseInt(columns[0]));
+        }
+        catch (NumberFormatException e) {}
+      }
+    }
+    finally {
+      in.close();
+    }
+    return done;
+  }//readDone()
+
+
+  protected static int readByteAt(RandomAccessFile raf, long position) throws IOException {
+    raf.seek(position);
+    return raf.read();
+  }
+
+
+  public static void main(String args[]) {
+    String paramsFile = null;
+    String design = GRID;
+    String experimentFile = null;
+    String modelClassName = "dsmllab.apmodel.Surveillance";
+    String outputFile = null;
+    Vector swept = new Vector();
+    int levels = 5;
+    int numPoints = 100;
+    int numTrials = -1;
+    int numSteps = -1;
+    int numThreads = 0;
+    long seed = 0;
+
+    for (int i=0; i<args.length-1; i+=2) {
+      if (args[i].equals("-params")) paramsFile = args[i+1];
+      else if (args[i].equals("-sweep")) swept.add(args[i+1]);
+      else if (args[i].equals("-design")) design = args[i+1];
+      else if (args[i].equals("-levels")) levels = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-points")) numPoints = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-trials")) numTrials = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-steps")) numSteps = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-threads")) numThreads = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-seed")) seed = Long.parseLong(args[i+1]);
+      else if (args[i].equals("-output")) outputFile = args[i+1];
+      else if (args[i].equals("-experiment")) experimentFile = args[i+1];
+      else if (args[i].equals("-model")) modelClassName = args[i+1];
+      else System.err.println("Warning:  Ignoring unknown option " + args[i]);
+    }
+
+    if ((paramsFile == null) || swept.isEmpty()) {
+      System.err.println("Specify a params file and at least one parameter to sweep");
+      System.exit(1);
+    }
+
+    try {
+      ParamsTemplate template = ParamsTemplate.fromFile(paramsFile);
+      for (int i=0; i<swept.size(); i++) template.addTunedParam((String)swept.get(i));
+
+      APExperimentParameters expParams = (experimentFile == null ? new APExperimentParameters()
+                                          : new APExperimentParameters(experimentFile));
+      expParams.loadParameters();
+      if (numTrials > 0) expParams.numSimTrials = numTrials;
+      if (numSteps > 0) expParams.numSteps = numSteps;
+
+      SweepRunner runner = new SweepRunner(template,expParams,Class.forName(modelClassName),seed);
+      runner.numThreads = numThreads;
+
+      double points[][];
+      if (design.equalsIgnoreCase(GRID)) points = runner.grid(levels);
+      else if (design.equalsIgnoreCase(LATIN_HYPERCUBE)) points = runner.latinHypercube(numPoints);
+      else throw new IllegalArgumentException("Unknown design " + design);
+
+      if (outputFile == null) outputFile = paramsFile + ".sweep.csv";
+      runner.run(points,outputFile);
+      System.out.println("Wrote the results to " + outputFile);
+    }
+    catch (Exception e) {
+      System.err.println("Error running the sweep: " + e);
+      System.exit(1);
+    }
+  }//main()
+
+}
@@ -0,0 +1,382 @@
+package dsmllab.apmodel;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  This class runs a swarm split across several worker processes, each
+ *  stepping the particles in one tile of the field (see TileWorker and
+ *  TileLayout), for swarms too big for the cores or memory of one
+ *  machine.  The coordinator loads the scenario into a ParticleArena and
+ *  places the particles, exactly as a single ArenaEngine run with the
+ *  same seed would, hands each worker the particles in its tile, and then
+ *  only listens:  the workers step in lockstep with their neighbors by
+ *  themselves.  Every reportInterval steps each worker sends a Summary of
+ *  its particles and of the targets they cover, and the coordinator
+ *  combines them into the global measures (the particle count, the
+ *  centroid, the kinetic energy, the bounding box, and the fraction of
+ *  the targets covered, which is what Surveillance.targets_covered()
+ *  counts).  When the run is over the particles are gathered back into
+ *  the coordinator's arena.
+ *
+ *  The processes talk through a TileTransport.  From the command line,
+ *
+ *    java dsmllab.apmodel.TileCoordinator -params file -workers n
+ *         [-mode local|spawn|socket] [-steps n] [-report n] [-threads n]
+ *         [-seed n] [-scale s] [-targets points.txt] [-port p]
+ *
+ *  runs the workers as threads of the same JVM (local, the default, over
+ *  a LocalTransport), or as child JVMs talking over the loopback
+ *  interface from port p on (spawn).  To run across machines, start every
+ *  rank with -mode socket -rank r -hosts host:port,host:port,..., the
+ *  list (by rank) being the same everywhere; rank 0 is the coordinator,
+ *  and needs the other options, and the workers need nothing else.
+ *  -scale is as for ArenaEngine.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class TileCoordinator {
+  public static final String LOCAL_MODE  = "local";
+  public static final String SPAWN_MODE  = "spawn";
+  public static final String SOCKET_MODE = "socket";
+  public static final int DEFAULT_PORT = 7100;
+
+  protected TileTransport transport;
+  protected APModel ap;
+  protected String apParams;
+  protected ArenaEngine engine = null;
+  protected TileLayout layout = null;
+
+  public int numThreads = 0;         // per worker; 0 = all processors
+  public int reportInterval = 10;
+  public double targetX[] = new double[0];
+  public double targetY[] = new double[0];
+  public PrintStream log = System.out;
+
+  protected Summary lastSummary = null;
+  protected int numScattered = 0;
+
+
+  /** Coordinate a run of the given scenario over the transport, on the
+   *  field of the given model, whose random number generator places the
+   *  particles. */
+  public TileCoordinator(TileTransport transport, APModel ap, String apParams) {
+    this.transport = transport;
+    this.ap = ap;
+    this.apParams = apParams;
+  }//constructor
+
+
+  public int getNumWorkers() {return transport.getNumRanks()-1;}
+  public TileLayout getLayout() {return layout;}
+  public Summary getLastSummary() {return lastSummary;}
+  public int getNumScattered() {return numScattered;}
+
+  /** The particles, as placed before the run and gathered after it */
+  public ParticleArena getArena() {return (engine == null ? null : engine.getArena());}
+
+
+  /** Use the targets of a Surveillance points file */
+  public void loadTargets(String fileName) throws Exception {
+    int points[][] = Surveillance.readPoints(fileName);
+    targetX = new double[points.length];
+    targetY = new double[points.length];
+    for (int t=0; t<points.length; t++) {
+      targetX[t] = points[t][1];
+      targetY[t] = points[t][2];
+    }
+  }//loadTargets()
+
+
+  /** Place the particles, scatter them to the workers, take in their
+   *  summaries for the given number of steps, and gather the particles
+   *  back. */
+  public void run(long numSteps, int scale) throws Exception {
+    if (ap.expParams == null) ap.expParams = new APExperimentParameters();
+    if (!ap.expParams.isLoaded()) ap.expParams.loadParameters();
+    ap.expParams.readFromParamFile = false;
+    ap.apParamsString = apParams;
+
+    engine = ArenaEngine.create(ap,scale);
+    ParticleArena arena = engine.getArena();
+    layout = TileLayout.create(getNumWorkers(),ap);
+
+    // Scatter
+    int numParticles = arena.getNumParticles();
+    numScattered = numParticles;
+    int tiles[] = new int[numParticles];
+    for (int i=0; i<numParticles; i++) tiles[i] = layout.getTile(arena.getX(i),arena.getY(i));
+
+    byte params[] = apParams.getBytes("UTF-8");
+    for (int tile=0; tile<getNumWorkers(); tile++) {
+      TileWorker.MessageBuffer message = new TileWorker.MessageBuffer(TileWorker.INIT);
+      layout.write(message.out);
+      message.out.writeInt(params.length);
+      message.out.write(params);
+      message.out.writeLong(numSteps);
+      message.out.writeInt(reportInterval);
+      message.out.writeInt(numThreads);
+      message.out.writeInt(targetX.length);
+      for (int t=0; t<targetX.length; t++) {
+        message.out.writeDouble(targetX[t]);
+        message.out.writeDouble(targetY[t]);
+      }
+      transport.send(TileWorker.rankOf(tile),message.toByteArray());
+      TileWorker.sendParticles(transport,arena,TileWorker.rankOf(tile),TileWorker.PARTICLES,tiles,tile);
+    }
+    tiles = null;
+    arena.truncate(0);
+
+    log.println(numParticles + " particles : " + layout.tilesX + "x" + layout.tilesY + " tiles of " +
+                layout.getTileWidth() + "x" + layout.getTileHeight());
+
+    // Reduce the summaries
+    long start = System.currentTimeMillis();
+    for (long step=(numSteps == 0 ? 0 : 1); step<=numSteps; step++) {
+      if ((step != 0) && (step % reportInterval != 0) && (step != numSteps)) continue;
+      Summary summary = new Summary(step,targetX.length);
+      for (int tile=0; tile<getNumWorkers(); tile++) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(transport.receive(TileWorker.rankOf(tile))));
+        TileWorker.expectTag(in,TileWorker.SUMMARY);
+        summary.combine(Summary.read(in));
+      }
+      lastSummary = summary;
+      log.println(summary);
+    }
+    long finished = System.currentTimeMillis();
+
+    // Gather
+    for (int tile=0; tile<getNumWorkers(); tile++)
+      TileWorker.receiveParticles(transport,arena,TileWorker.rankOf(tile),TileWorker.PARTICLES);
+    if (arena.getNumParticles() != numParticles)
+      System.err.println("Warning:  Gathered " + arena.getNumParticles() + " of " + numParticles + " particles");
+
+    log.println("step=" + ((double)(finished-start)/Math.max(1,numSteps)) + " ms");
+  }//run()
+
+
+  /** The global measures, summed over the particles of one or more tiles */
+  public static class Summary {
+    public long step;
+    public long numParticles = 0;
+    public double sumX = 0.0, sumY = 0.0;
+    public double kineticEnergy = 0.0;
+    public double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+    public double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+    public boolean covered[];
+
+    public Summary(long step, int numTargets) {
+      this.step = step;
+      covered = new boolean[numTargets];
+    }
+
+    /** Add the particles of an arena */
+    public void add(ParticleArena arena) {
+      for (int i=0; i<arena.getNumParticles(); i++) {
+        double x = arena.getX(i), y = arena.getY(i);
+        double vx = arena.getVX(i), vy = arena.getVY(i);
+        numParticles++;
+        sumX += x;
+        sumY += y;
+        kineticEnergy += 0.5*arena.getMass(i)*(vx*vx + vy*vy);
+        minX = Math.min(minX,x);
+        maxX = Math.max(maxX,x);
+        minY = Math.min(minY,y);
+        maxY = Math.max(maxY,y);
+      }
+    }//add()
+
+    /** Add the particles and covered targets of another summary */
+    public void combine(Summary other) {
+      numParticles += other.numParticles;
+      sumX += other.sumX;
+      sumY += other.sumY;
+      kineticEnergy += other.kineticEnergy;
+      minX = Math.min(minX,other.minX);
+      maxX = Math.max(maxX,other.maxX);
+      minY = Math.min(minY,other.minY);
+      maxY = Math.max(maxY,other.maxY);
+      for (int t=0; t<covered.length; t++) covered[t] |= other.covered[t];
+    }//combine()
+
+    public int getNumCovered() {
+      int numCovered = 0;
+      for (int t=0; t<covered.length; t++) if (covered[t]) numCovered++;
+      return numCovered;
+    }
+
+    /** The fraction of the targets covered, as targets_covered() */
+    public double getFractionCovered() {
+      return (covered.length == 0 ? 0.0 : (double)getNumCovered()/covered.length);
+    }
+
+    public double getCentroidX() {return (numParticles == 0 ? 0.0 : sumX/numParticles);}
+    public double getCentroidY() {return (numParticles == 0 ? 0.0 : sumY/numParticles);}
+
+    public String toString() {
+      return "step=" + step + " : particles=" + numParticles +
+        " : centroid=(" + getCentroidX() + "," + getCentroidY() + ")" +
+        " : kinetic=" + kineticEnergy +
+        " : bounds=(" + minX + "," + minY + ")-(" + maxX + "," + maxY + ")" +
+        (covered.length > 0 ? " : covered=" + getFractionCovered() : "");
+    }
+
+    public void write(DataOutput out) throws IOException {
+      out.writeLong(step);
+      out.writeLong(numParticles);
+      out.writeDouble(sumX);
+      out.writeDouble(sumY);
+      out.writeDouble(kineticEnergy);
+      out.writeDouble(minX);
+      out.writeDouble(minY);
+      out.writeDouble(maxX);
+      out.writeDouble(maxY);
+      out.writeInt(covered.length);
+      for (int t=0; t<covered.length; t++) out.writeBoolean(covered[t]);
+    }//write()
+
+    public static Summary read(DataInput in) throws IOException {
+      long step = in.readLong();
+      long numParticles = in.readLong();
+      double sumX = in.readDouble(), sumY = in.readDouble(), kineticEnergy = in.readDouble();
+      double minX = in.readDouble(), minY = in.readDouble();
+      double maxX = in.readDouble(), maxY = in.readDouble();
+      Summary summary = new Summary(step,in.readInt());
+      summary.numParticles = numParticles;
+      summary.sumX = sumX;
+      summary.sumY = sumY;
+      summary.kineticEnergy = kineticEnergy;
+      summary.minX = minX;
+      summary.minY = minY;
+      summary.maxX = maxX;
+      summary.maxY = maxY;
+      for (int t=0; t<summary.covered.length; t++) summary.covered[t] = in.readBoolean();
+      return summary;
+    }//read()
+  }//Summary
+
+
+  //--------------- Command line --------------
+
+  protected static String readFile(String fileName) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+    byte contents[] = new byte[(int)new File(fileName).length()];
+    in.readFully(contents);
+    in.close();
+    return new String(contents,"UTF-8");
+  }//readFile()
+
+
+  /** Start a child JVM for each worker rank, on the same classpath and
+   *  with the same JVM options as this one. */
+  public static Process[] spawnWorkers(String hosts) throws IOException {
+    String addresses[] = hosts.split(",");
+    Process workers[] = new Process[addresses.length-1];
+    String javaCommand = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    for (int rank=1; rank<addresses.length; rank++) {
+      Vector command = new Vector();
+      command.add(javaCommand);
+      command.addAll(java.lang.management.ManagementFactory.getRuntimeMXBean().getInputArguments());
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(TileCoordinator.class.getName());
+      command.add("-mode");
+      command.add(SOCKET_MODE);
+      command.add("-rank");
+      command.add("" + rank);
+      command.add("-hosts");
+      command.add(hosts);
+      ProcessBuilder builder = new ProcessBuilder(command);
+      builder.inheritIO();
+      workers[rank-1] = builder.start();
+    }
+    return workers;
+  }//spawnWorkers()
+
+
+  public static void main(String args[]) {
+    String paramsFile = null;
+    String mode = LOCAL_MODE;
+    String hosts = null;
+    String targetsFile = null;
+    int rank = 0;
+    int numWorkers = 2;
+    long numSteps = 100;
+    int reportInterval = 10;
+    int numThreads = 1;
+    long seed = 0;
+    int scale = 1;
+    int port = DEFAULT_PORT;
+
+    for (int i=0; i<args.length-1; i+=2) {
+      if (args[i].equals("-params")) paramsFile = args[i+1];
+      else if (args[i].equals("-mode")) mode = args[i+1];
+      else if (args[i].equals("-hosts")) hosts = args[i+1];
+      else if (args[i].equals("-rank")) rank = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-workers")) numWorkers = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-steps")) numSteps = Long.parseLong(args[i+1]);
+      else if (args[i].equals("-report")) reportInterval = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-threads")) numThreads = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-seed")) seed = Long.parseLong(args[i+1]);
+      else if (args[i].equals("-scale")) scale = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-targets")) targetsFile = args[i+1];
+      else if (args[i].equals("-port")) port = Integer.parseInt(args[i+1]);
+      else System.err.println("Warning:  Ignoring unknown option " + args[i]);
+    }
+
+    try {
+      TileTransport transport;
+      Process children[] = new Process[0];
+      Thread workers[] = new Thread[0];
+
+      if (mode.equalsIgnoreCase(LOCAL_MODE)) {
+        LocalTransport transports[] = LocalTransport.createGroup(numWorkers+1);
+        workers = new Thread[numWorkers];
+        for (int w=0; w<numWorkers; w++) {
+          workers[w] = new Thread(new TileWorker(transports[w+1]),"TileWorker " + w);
+          workers[w].start();
+        }
+        transport = transports[0];
+      }
+      else if (mode.equalsIgnoreCase(SPAWN_MODE)) {
+        hosts = "";
+        for (int r=0; r<=numWorkers; r++) hosts += (r == 0 ? "" : ",") + "127.0.0.1:" + (port+r);
+        children = spawnWorkers(hosts);
+        transport = new SocketTransport(0,hosts.split(","));
+      }
+      else if (mode.equalsIgnoreCase(SOCKET_MODE)) {
+        if (hosts == null) throw new IllegalArgumentException("Give the address of every rank with -hosts");
+        transport = new SocketTransport(rank,hosts.split(","));
+        if (rank != TileTransport.COORDINATOR) {
+          TileWorker worker = new TileWorker(transport);
+          worker.run();
+          System.exit(worker.getFailure() == null ? 0 : 1);
+        }
+      }
+      else throw new IllegalArgumentException("Unknown mode " + mode);
+
+      if (paramsFile == null) throw new IllegalArgumentException("Specify a params file");
+      APModel ap = new APModel(seed);
+      double side = Math.sqrt(scale);
+      ap.XMAX = ap.XMIN + side*(ap.XMAX-ap.XMIN);
+      ap.YMAX = ap.YMIN + side*(ap.YMAX-ap.YMIN);
+
+      TileCoordinator coordinator = new TileCoordinator(transport,ap,readFile(paramsFile));
+      coordinator.numThreads = numThreads;
+      coordinator.reportInterval = reportInterval;
+      if (targetsFile != null) coordinator.loadTargets(targetsFile);
+      coordinator.run(numSteps,scale);
+      transport.close();
+
+      for (int w=0; w<workers.length; w++) workers[w].join();
+      for (int c=0; c<children.length; c++) children[c].waitFor();
+    }
+    catch (Exception e) {
+      System.err.println("Error running the tiles: " + e);
+      System.exit(1);
+    }
+  }//main()
+
+}
@@ -0,0 +1,104 @@
+package dsmllab.apmodel;
+
+import java.io.*;
+
+/**
+ *  This class divides the field of a model into a grid of equal tiles,
+ *  one for each worker of a distributed run (see TileCoordinator).  Tile
+ *  t is column t%tilesX and row t/tilesX, and owns the particles whose
+ *  location falls in it; locations on the far edges of the field belong
+ *  to the last column and row.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class TileLayout {
+  public final int tilesX, tilesY;
+  public final double xmin, ymin, width, height;
+  protected final double tileWidth, tileHeight;
+
+
+  public TileLayout(int tilesX, int tilesY, double xmin, double ymin, double width, double height) {
+    this.tilesX = tilesX;
+    this.tilesY = tilesY;
+    this.xmin = xmin;
+    this.ymin = ymin;
+    this.width = width;
+    this.height = height;
+    tileWidth = width/tilesX;
+    tileHeight = height/tilesY;
+  }//constructor
+
+
+  /** Divide the field of the model into the given number of tiles, as
+   *  close to square as the number allows. */
+  public static TileLayout create(int numTiles, APModel ap) {
+    double width = ap.XMAX - ap.XMIN;
+    double height = ap.YMAX - ap.YMIN;
+
+    int bestX = numTiles;
+    double bestRatio = Double.MAX_VALUE;
+    for (int tilesX=1; tilesX<=numTiles; tilesX++) {
+      if (numTiles % tilesX != 0) continue;
+      double ratio = Math.abs(Math.log((width/tilesX)/(height/(numTiles/tilesX))));
+      if (ratio < bestRatio) {
+        bestRatio = ratio;
+        bestX = tilesX;
+      }
+    }
+    return new TileLayout(bestX,numTiles/bestX,ap.XMIN,ap.YMIN,width,height);
+  }//create()
+
+
+  public int getNumTiles() {return tilesX*tilesY;}
+  public double getTileWidth() {return tileWidth;}
+  public double getTileHeight() {return tileHeight;}
+
+
+  /** The tile owning the given location */
+  public int getTile(double x, double y) {
+    int tx = (int)((x - xmin)/tileWidth);
+    int ty = (int)((y - ymin)/tileHeight);
+    tx = (tx < 0 ? 0 : (tx >= tilesX ? tilesX-1 : tx));
+    ty = (ty < 0 ? 0 : (ty >= tilesY ? tilesY-1 : ty));
+    return ty*tilesX + tx;
+  }//getTile()
+
+
+  /** The squared distance from a location to the nearest point of a
+   *  tile, 0 if it is in the tile. */
+  public double distanceSquared(int tile, double x, double y) {
+    double xlo = xmin + (tile % tilesX)*tileWidth;
+    double ylo = ymin + (tile / tilesX)*tileHeight;
+    double dx = Math.max(0.0,Math.max(xlo - x,x - (xlo + tileWidth)));
+    double dy = Math.max(0.0,Math.max(ylo - y,y - (ylo + tileHeight)));
+    return dx*dx + dy*dy;
+  }//distanceSquared()
+
+
+  /** The squared distance between the nearest points of two tiles */
+  public double distanceSquared(int tile, int other) {
+    int gapX = Math.max(0,Math.abs(tile % tilesX - other % tilesX) - 1);
+    int gapY = Math.max(0,Math.abs(tile / tilesX - other / tilesX) - 1);
+    double dx = gapX*tileWidth;
+    double dy = gapY*tileHeight;
+    return dx*dx + dy*dy;
+  }//distanceSquared()
+
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(tilesX);
+    out.writeInt(tilesY);
+    out.writeDouble(xmin);
+    out.writeDouble(ymin);
+    out.writeDouble(width);
+    out.writeDouble(height);
+  }//write()
+
+  public static TileLayout read(DataInput in) throws IOException {
+    return new TileLayout(in.readInt(),in.readInt(),in.readDouble(),in.readDouble(),
+                          in.readDouble(),in.readDouble());
+  }//read()
+
+}
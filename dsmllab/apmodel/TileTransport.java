@@ -0,0 +1,33 @@
+package dsmllab.apmodel;
+
+import java.io.IOException;
+
+/**
+ *  This interface carries the messages of a distributed run (see
+ *  TileCoordinator) between its processes, numbered by rank:  the
+ *  coordinator is rank 0 and the workers are ranks 1 and up.  Messages
+ *  between any two ranks arrive in the order they were sent, and send()
+ *  must not wait for the other side to receive, since every worker sends
+ *  to all of its neighbors before it receives from any of them.
+ *
+ *  LocalTransport connects threads of one JVM, for testing, and
+ *  SocketTransport connects processes over TCP.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public interface TileTransport {
+  public static final int COORDINATOR = 0;
+
+  public int getRank();
+  public int getNumRanks();
+
+  /** Send a message to the given rank */
+  public void send(int toRank, byte message[]) throws IOException;
+
+  /** Wait for and return the next message from the given rank */
+  public byte[] receive(int fromRank) throws IOException;
+
+  public void close();
+}
@@ -0,0 +1,307 @@
+package dsmllab.apmodel;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  This class runs one tile of a distributed run (see TileCoordinator).
+ *  The worker owns the particles in its tile of the field, kept in a
+ *  ParticleArena and stepped by an ArenaEngine, and the coordinator tells
+ *  it the scenario, the layout of the tiles and the particles it starts
+ *  with.  Every step then goes:
+ *
+ *    1. Send each neighboring tile a copy of the owned particles within
+ *       the largest range of effect of it (the halo), and add the copies
+ *       the neighbors send to the end of the arena.
+ *    2. Step the owned particles; the halo exerts its forces on them, but
+ *       doesn't move.
+ *    3. Drop the halo, and hand the particles that moved out of the tile
+ *       to the tiles they moved into.
+ *
+ *  The neighbors are the tiles within the range of effect plus the
+ *  largest velocity, since no particle can get further than that in a
+ *  step.  Every so many steps, and after the last, the worker sends the
+ *  coordinator a TileCoordinator.Summary of its particles and of the
+ *  targets they cover, and when the run is over it sends its particles
+ *  back.
+ *
+ *  The forces on a particle are summed in the order its neighbors are
+ *  found, which isn't the same as in a single arena, so a distributed run
+ *  matches one in a single JVM to round-off rather than to the bit.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class TileWorker implements Runnable {
+  // Message tags
+  public static final int INIT      = 1;
+  public static final int PARTICLES = 2;
+  public static final int HALO      = 3;
+  public static final int MIGRATE   = 4;
+  public static final int SUMMARY   = 5;
+
+  // The most particles sent in one PARTICLES message
+  public static final int PARTICLES_PER_MESSAGE = 65536;
+
+  protected TileTransport transport;
+  protected int tile;
+  protected TileLayout layout;
+  protected APModel ap;
+  protected ArenaEngine engine;
+  protected ParticleArena arena;
+
+  protected int neighbors[];          // tiles, in order
+  protected double haloRangeSquared;
+  protected long numSteps;
+  protected int reportInterval;
+  protected double targetX[], targetY[];
+
+  protected Throwable failure = null;
+
+
+  public TileWorker(TileTransport transport) {
+    this.transport = transport;
+    this.tile = transport.getRank()-1;
+  }//constructor
+
+
+  public static int rankOf(int tile) {return tile+1;}
+  public static int tileOf(int rank) {return rank-1;}
+
+  public int getTile() {return tile;}
+  public Throwable getFailure() {return failure;}
+
+
+  /** Run the worker until the coordinator's run is over, for a thread.
+   *  What went wrong, if anything, is left in getFailure(). */
+  public void run() {
+    try {
+      work();
+    }
+    catch (Throwable t) {
+      failure = t;
+      System.err.println("Error in the worker for tile " + tile + ": " + t);
+    }
+    finally {
+      transport.close();
+    }
+  }//run()
+
+
+  /** Set up from the coordinator's messages, take every step, and send
+   *  the particles back. */
+  public void work() throws Exception {
+    initialize(new DataInputStream(new ByteArrayInputStream(transport.receive(TileTransport.COORDINATOR))));
+    receiveParticles(TileTransport.COORDINATOR,PARTICLES);
+    if (numSteps == 0) sendSummary(0);
+
+    for (long step=1; step<=numSteps; step++) {
+      int numOwned = arena.getNumParticles();
+      exchangeHalo(numOwned);
+      engine.stepOwned(numOwned);
+      arena.truncate(numOwned);
+      migrate();
+
+      if ((step % reportInterval == 0) || (step == numSteps)) sendSummary(step);
+    }
+
+    sendParticles(TileTransport.COORDINATOR,PARTICLES,null);
+  }//work()
+
+
+  /** Load the scenario and settings of the INIT message into an empty
+   *  arena, and find the neighbors. */
+  protected void initialize(DataInputStream in) throws Exception {
+    expectTag(in,INIT);
+    layout = TileLayout.read(in);
+    byte params[] = new byte[in.readInt()];
+    in.readFully(params);
+    numSteps = in.readLong();
+    reportInterval = Math.max(1,in.readInt());
+    int numThreads = in.readInt();
+    targetX = new double[in.readInt()];
+    targetY = new double[targetX.length];
+    for (int t=0; t<targetX.length; t++) {
+      targetX[t] = in.readDouble();
+      targetY[t] = in.readDouble();
+    }
+
+    ap = new APModel(0);
+    ap.XMIN = layout.xmin;
+    ap.YMIN = layout.ymin;
+    ap.XMAX = layout.xmin + layout.width;
+    ap.YMAX = layout.ymin + layout.height;
+    ap.expParams = new APExperimentParameters();
+    ap.expParams.loadParameters();
+    ap.expParams.readFromParamFile = false;
+    ap.expParams.numThreads = numThreads;
+    ap.apParamsString = new String(params,"UTF-8");
+
+    engine = ArenaEngine.create(ap,0);
+    arena = engine.getArena();
+
+    double range = Math.max(0.0,ap.forceInteractionModel.getMaxEffectRange());
+    double reach = range + engine.getMaxVelocity();
+    haloRangeSquared = range*range;
+    int found[] = new int[layout.getNumTiles()];
+    int numFound = 0;
+    for (int other=0; other<layout.getNumTiles(); other++)
+      if ((other != tile) && (layout.distanceSquared(tile,other) <= reach*reach))
+        found[numFound++] = other;
+    neighbors = Arrays.copyOf(found,numFound);
+  }//initialize()
+
+
+  /** Trade halos with the neighbors, leaving the neighbors' particles
+   *  after the numOwned owned ones. */
+  protected void exchangeHalo(int numOwned) throws IOException {
+    for (int n=0; n<neighbors.length; n++) {
+      MessageBuffer message = new MessageBuffer(HALO);
+      int count = 0;
+      for (int i=0; i<numOwned; i++)
+        if (layout.distanceSquared(neighbors[n],arena.getX(i),arena.getY(i)) <= haloRangeSquared) count++;
+      message.out.writeInt(count);
+      for (int i=0; i<numOwned; i++)
+        if (layout.distanceSquared(neighbors[n],arena.getX(i),arena.getY(i)) <= haloRangeSquared)
+          arena.writeRecord(i,message.out);
+      transport.send(rankOf(neighbors[n]),message.toByteArray());
+    }
+
+    for (int n=0; n<neighbors.length; n++) readBatch(rankOf(neighbors[n]),HALO);
+  }//exchangeHalo()
+
+
+  /** Send the particles that have left the tile to their new tiles, and
+   *  take in those that have come in. */
+  protected void migrate() throws IOException {
+    int numParticles = arena.getNumParticles();
+    int destinations[] = new int[numParticles];
+    int numLeaving = 0;
+    for (int i=0; i<numParticles; i++) {
+      destinations[i] = layout.getTile(arena.getX(i),arena.getY(i));
+      if (destinations[i] != tile) numLeaving++;
+    }
+
+    if (numLeaving > 0) {
+      for (int i=0; i<numParticles; i++)
+        if ((destinations[i] != tile) && (Arrays.binarySearch(neighbors,destinations[i]) < 0))
+          throw new IllegalStateException("A particle of tile " + tile + " moved past the neighboring tiles to " +
+                                          destinations[i]);
+    }
+
+    for (int n=0; n<neighbors.length; n++) {
+      MessageBuffer message = new MessageBuffer(MIGRATE);
+      int count = 0;
+      for (int i=0; i<numParticles; i++) if (destinations[i] == neighbors[n]) count++;
+      message.out.writeInt(count);
+      for (int i=0; i<numParticles; i++)
+        if (destinations[i] == neighbors[n]) arena.writeRecord(i,message.out);
+      transport.send(rankOf(neighbors[n]),message.toByteArray());
+    }
+
+    // Remove from the end, so the particles moved into the holes have
+    // already been checked
+    if (numLeaving > 0)
+      for (int i=numParticles-1; i>=0; i--)
+        if (destinations[i] != tile) arena.remove(i);
+
+    for (int n=0; n<neighbors.length; n++) readBatch(rankOf(neighbors[n]),MIGRATE);
+  }//migrate()
+
+
+  /** Send the coordinator a summary of the owned particles */
+  protected void sendSummary(long step) throws IOException {
+    TileCoordinator.Summary summary = new TileCoordinator.Summary(step,targetX.length);
+    summary.add(arena);
+    if (targetX.length > 0) engine.markCovered(targetX,targetY,summary.covered);
+
+    MessageBuffer message = new MessageBuffer(SUMMARY);
+    summary.write(message.out);
+    transport.send(TileTransport.COORDINATOR,message.toByteArray());
+  }//sendSummary()
+
+
+  //--------------- Messages --------------
+
+  /** A message being written */
+  public static class MessageBuffer {
+    protected ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    public final DataOutputStream out = new DataOutputStream(bytes);
+
+    public MessageBuffer(int tag) throws IOException {out.writeInt(tag);}
+    public byte[] toByteArray() throws IOException {
+      out.flush();
+      return bytes.toByteArray();
+    }
+  }//MessageBuffer
+
+
+  protected static void expectTag(DataInput in, int tag) throws IOException {
+    int found = in.readInt();
+    if (found != tag) throw new IOException("Expected a message tagged " + tag + " but got " + found);
+  }
+
+
+  /** Read one message of particles from the given rank into the arena,
+   *  and return the number read. */
+  protected int readBatch(int fromRank, int tag) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(transport.receive(fromRank)));
+    expectTag(in,tag);
+    int count = in.readInt();
+    arena.ensureCapacity(arena.getNumParticles() + count);
+    for (int i=0; i<count; i++) arena.readRecord(in);
+    return count;
+  }//readBatch()
+
+
+  /** Send particles in messages of up to PARTICLES_PER_MESSAGE, with the
+   *  last message marked.  If tiles isn't null, only the particles whose
+   *  entry is the given tile are sent. */
+  public static void sendParticles(TileTransport transport, ParticleArena arena, int toRank,
+                                   int tag, int tiles[], int tile) throws IOException {
+    int numParticles = arena.getNumParticles();
+    int i = 0;
+    do {
+      MessageBuffer message = new MessageBuffer(tag);
+      int start = i;
+      int count = 0;
+      for (int j=start; (j<numParticles) && (count<PARTICLES_PER_MESSAGE); j++, i++)
+        if ((tiles == null) || (tiles[j] == tile)) count++;
+
+      message.out.writeBoolean(i >= numParticles);
+      message.out.writeInt(count);
+      for (int j=start; j<i; j++)
+        if ((tiles == null) || (tiles[j] == tile)) arena.writeRecord(j,message.out);
+      transport.send(toRank,message.toByteArray());
+    } while (i < numParticles);
+  }//sendParticles()
+
+  protected void sendParticles(int toRank, int tag, int tiles[]) throws IOException {
+    sendParticles(transport,arena,toRank,tag,tiles,tile);
+  }
+
+
+  /** Read the messages of sendParticles() into the arena, and return the
+   *  number of particles read. */
+  public static int receiveParticles(TileTransport transport, ParticleArena arena,
+                                     int fromRank, int tag) throws IOException {
+    int total = 0;
+    boolean last = false;
+    while (!last) {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(transport.receive(fromRank)));
+      expectTag(in,tag);
+      last = in.readBoolean();
+      int count = in.readInt();
+      arena.ensureCapacity(arena.getNumParticles() + count);
+      for (int i=0; i<count; i++) arena.readRecord(in);
+      total += count;
+    }
+    return total;
+  }//receiveParticles()
+
+  protected int receiveParticles(int fromRank, int tag) throws IOException {
+    return receiveParticles(transport,arena,fromRank,tag);
+  }
+
+}
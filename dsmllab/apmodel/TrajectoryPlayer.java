@@ -0,0 +1,120 @@
+package dsmllab.apmodel;
+
+import sim.engine.*;
+
+import java.io.*;
+
+/**
+ *  This class plays a recorded trajectory back through a model instead
+ *  of simulating it, so a long run can be watched again in the UI at any
+ *  speed.  When replayFileName is set in the experiment parameters,
+ *  APModel.start() sets the particles up from the params as usual, but
+ *  schedules the player in place of the particles and the force engine.
+ *  Each step the player moves every particle to where it was in the
+ *  next frame.  replaySpeed is the number of frames to advance per step,
+ *  so 0.25 shows each frame for four steps and 10 shows every tenth
+ *  frame; the console's delay sets how fast the steps go by.  At the end
+ *  of the recording the last frame is held.
+ *
+ *  The model must be set up with the params the trajectory was recorded
+ *  with, or at least with as many particles; any particles beyond those
+ *  in the recording are left where they were placed.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class TrajectoryPlayer implements Steppable {
+  protected transient TrajectoryReader reader;
+  protected double speed;
+  protected double position = 0.0;     // frame to show on the next step
+  protected int shownFrame = -1;
+
+  protected double x[], y[], vx[], vy[];
+
+
+  public TrajectoryPlayer(TrajectoryReader reader, double speed) {
+    this.reader = reader;
+    this.speed = speed;
+
+    int numParticles = reader.getNumParticles();
+    x = new double[numParticles];
+    y = new double[numParticles];
+    vx = new double[numParticles];
+    vy = new double[numParticles];
+  }//constructor
+
+
+  /** Return a player for the model as its experiment parameters ask, or
+   *  null if they don't ask for one or the recording can't be read. */
+  public static TrajectoryPlayer create(APModel ap) {
+    String fileName = ap.expParams.replayFileName;
+    if (fileName == null) return null;
+
+    try {
+      TrajectoryReader reader = new TrajectoryReader(fileName);
+      if (reader.getNumParticles() > ap.particleStore.getNumParticles())
+        System.err.println("Warning:  " + fileName + " has more particles than the model; " +
+                           "only the first " + ap.particleStore.getNumParticles() + " are shown");
+      TrajectoryPlayer player = new TrajectoryPlayer(reader,ap.expParams.replaySpeed);
+      player.showFrame(ap,0);
+      return player;
+    }
+    catch (IOException e) {
+      System.err.println("Error reading trajectory " + fileName + ": " + e);
+      return null;
+    }
+  }//create()
+
+
+  public int getNumFrames() {return reader.getNumFrames();}
+  public int getShownFrame() {return shownFrame;}
+  public long getShownStep() {return (shownFrame < 0 ? -1 : reader.getStep(shownFrame));}
+
+  public double getSpeed() {return speed;}
+  public void setSpeed(double speed) {this.speed = speed;}
+
+  /** Jump to the frame recorded at or before the given step */
+  public void seek(long step) {position = Math.max(0,reader.findFrame(step));}
+
+
+  public void step(SimState state) {
+    position += speed;
+    if (position < 0) position = 0;
+
+    int frame = (int)Math.min(position,reader.getNumFrames()-1);
+    if (frame != shownFrame) showFrame((APModel)state,frame);
+  }//step()
+
+
+  /** Move the particles to where they were in the given frame */
+  protected void showFrame(APModel ap, int frame) {
+    if ((frame < 0) || (frame >= reader.getNumFrames())) return;
+
+    try {
+      reader.readFrame(frame,x,y,vx,vy);
+    }
+    catch (IOException e) {
+      System.err.println("Error reading trajectory: " + e);
+      return;
+    }
+
+    ParticleStore store = ap.particleStore;
+    int numParticles = Math.min(x.length,store.getNumParticles());
+    for (int slot=0; slot<numParticles; slot++) {
+      store.vx[slot] = vx[slot];
+      store.vy[slot] = vy[slot];
+      store.particles[slot].setLocation(ap,x[slot],y[slot]);
+    }
+    shownFrame = frame;
+  }//showFrame()
+
+
+  public void close() {
+    try {
+      reader.close();
+    }
+    catch (IOException e) {}
+  }//close()
+
+}
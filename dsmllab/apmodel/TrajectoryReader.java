@@ -0,0 +1,238 @@
+package dsmllab.apmodel;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ *  This class reads back the files written by TrajectoryRecorder (see
+ *  there for the format).  Opening a file reads its header and indexes
+ *  its frames, so any frame can be read in any order; reading them in
+ *  order is the fast case, since a DELTA file is decoded onward from the
+ *  last frame read, or else from the keyframe before the one asked for.
+ *  A file cut short by a crash is read up to its last complete frame.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class TrajectoryReader {
+  protected RandomAccessFile file;
+  protected String fileName;
+
+  protected int numParticles;
+  protected int interval;
+  protected boolean delta;
+  protected double resolution;
+  protected int framesPerKeyframe;
+  protected double width;
+  protected double height;
+  protected int types[];
+
+  // Index of the frames
+  protected int numFrames = 0;
+  protected long frameOffsets[] = new long[16];
+  protected long frameSteps[] = new long[16];
+  protected boolean keyframes[] = new boolean[16];
+
+  // Decoding state:  the frame last decoded and its quantized columns
+  protected int currentFrame = -1;
+  protected long quanta[][];
+  protected byte frameBytes[] = new byte[0];
+
+
+  public TrajectoryReader(String fileName) throws IOException {
+    this.fileName = fileName;
+    file = new RandomAccessFile(fileName,"r");
+    try {
+      readHeader();
+      indexFrames();
+    }
+    catch (IOException e) {
+      file.close();
+      throw e;
+    }
+  }//constructor
+
+
+  protected void readHeader() throws IOException {
+    if (file.readInt() != TrajectoryRecorder.MAGIC)
+      throw new IOException(fileName + " is not a trajectory file");
+    int version = file.readInt();
+    if (version != TrajectoryRecorder.VERSION)
+      throw new IOException("Can't read version " + version + " of the trajectory format");
+
+    numParticles = file.readInt();
+    interval = file.readInt();
+    delta = (file.readByte() == TrajectoryRecorder.DELTA);
+    resolution = file.readDouble();
+    framesPerKeyframe = file.readInt();
+    width = file.readDouble();
+    height = file.readDouble();
+    if (numParticles < 0) throw new IOException(fileName + " is damaged");
+
+    types = new int[numParticles];
+    byte bytes[] = new byte[4*numParticles];
+    file.readFully(bytes);
+    ByteBuffer.wrap(bytes).asIntBuffer().get(types);
+
+    quanta = new long[TrajectoryRecorder.NUM_COLUMNS][numParticles];
+  }//readHeader()
+
+
+  /** Find the offset, step and kind of every complete frame */
+  protected void indexFrames() throws IOException {
+    long length = file.length();
+    long offset = file.getFilePointer();
+    byte head[] = new byte[9];
+
+    while (offset + 4 + head.length <= length) {
+      file.seek(offset);
+      int frameLength = file.readInt();
+      if ((frameLength < head.length) || (offset + 4 + frameLength > length)) break;
+      file.readFully(head);
+
+      if (numFrames == frameOffsets.length) {
+        frameOffsets = java.util.Arrays.copyOf(frameOffsets,2*numFrames);
+        frameSteps = java.util.Arrays.copyOf(frameSteps,2*numFrames);
+        keyframes = java.util.Arrays.copyOf(keyframes,2*numFrames);
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(head);
+      keyframes[numFrames] = (buffer.get() != 0);
+      frameSteps[numFrames] = buffer.getLong();
+      frameOffsets[numFrames] = offset;
+      numFrames++;
+
+      offset += 4 + frameLength;
+    }
+  }//indexFrames()
+
+
+  public int getNumParticles() {return numParticles;}
+  public int getNumFrames() {return numFrames;}
+  public int getInterval() {return interval;}
+  public boolean isDeltaEncoded() {return delta;}
+  public double getResolution() {return resolution;}
+  public double getWidth() {return width;}
+  public double getHeight() {return height;}
+  public int[] getTypes() {return (int[])types.clone();}
+  public long getStep(int frame) {return frameSteps[frame];}
+
+
+  /** Return the last frame recorded at or before the given step, or -1 */
+  public int findFrame(long step) {
+    int low = 0, high = numFrames-1, found = -1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (frameSteps[middle] <= step) {
+        found = middle;
+        low = middle + 1;
+      }
+      else high = middle - 1;
+    }
+    return found;
+  }//findFrame()
+
+
+  /** Read the given frame into the arrays, any of which may be null if
+   *  that column isn't wanted, and return its step. */
+  public long readFrame(int frame, double x[], double y[], double vx[], double vy[])
+    throws IOException {
+    if ((frame < 0) || (frame >= numFrames))
+      throw new IndexOutOfBoundsException("No frame " + frame + " in " + fileName);
+    double columns[][] = {x, y, vx, vy};
+
+    if (!delta) {
+      ByteBuffer buffer = readFrameBytes(frame);
+      for (int c=0; c<columns.length; c++) {
+        if (columns[c] != null) buffer.asDoubleBuffer().get(columns[c],0,numParticles);
+        buffer.position(buffer.position() + 8*numParticles);
+      }
+      return frameSteps[frame];
+    }
+
+    // Decode onward from the frame last decoded, or from a keyframe
+    int from = frame;
+    while (!keyframes[from] && (from > 0)) from--;
+    if ((currentFrame >= from) && (currentFrame <= frame)) from = currentFrame + 1;
+    for (int f=from; f<=frame; f++) decodeFrame(f);
+
+    for (int c=0; c<columns.length; c++) {
+      if (columns[c] == null) continue;
+      long column[] = quanta[c];
+      for (int i=0; i<numParticles; i++) columns[c][i] = column[i]*resolution;
+    }
+    return frameSteps[frame];
+  }//readFrame()
+
+
+  protected void decodeFrame(int frame) throws IOException {
+    ByteBuffer buffer = readFrameBytes(frame);
+    boolean keyframe = keyframes[frame];
+    for (int c=0; c<quanta.length; c++) {
+      long column[] = quanta[c];
+      for (int i=0; i<numParticles; i++) {
+        long difference = TrajectoryRecorder.unzigzag(TrajectoryRecorder.getVarLong(buffer));
+        column[i] = (keyframe ? 0 : column[i]) + difference;
+      }
+    }
+    currentFrame = frame;
+  }//decodeFrame()
+
+
+  /** The bytes of a frame, positioned after its keyframe flag and step */
+  protected ByteBuffer readFrameBytes(int frame) throws IOException {
+    file.seek(frameOffsets[frame]);
+    int frameLength = file.readInt();
+    if (frameBytes.length < frameLength) frameBytes = new byte[frameLength];
+    file.readFully(frameBytes,0,frameLength);
+
+    ByteBuffer buffer = ByteBuffer.wrap(frameBytes,0,frameLength);
+    buffer.position(9);
+    return buffer;
+  }//readFrameBytes()
+
+
+  public void close() throws IOException {
+    file.close();
+  }//close()
+
+
+  /** Print a summary of a trajectory file, or the frame at the given
+   *  step as lines of "slot type x y vx vy". */
+  public static void main(String args[]) {
+    if (args.length < 1) {
+      System.out.println("Usage:  TrajectoryReader file [step]");
+      System.exit(1);
+    }
+
+    try {
+      TrajectoryReader reader = new TrajectoryReader(args[0]);
+      int n = reader.getNumParticles();
+      if (args.length < 2) {
+        System.out.println("Particles : " + n);
+        System.out.println("Frames : " + reader.getNumFrames());
+        System.out.println("Interval : " + reader.getInterval());
+        System.out.println("Encoding : " + (reader.isDeltaEncoded() ?
+                                            "delta, resolution " + reader.getResolution() : "raw"));
+        if (reader.getNumFrames() > 0)
+          System.out.println("Steps : " + reader.getStep(0) + " to " +
+                             reader.getStep(reader.getNumFrames()-1));
+      }
+      else {
+        int frame = reader.findFrame(Long.parseLong(args[1]));
+        if (frame < 0) throw new IOException("No frame at or before step " + args[1]);
+        double x[] = new double[n], y[] = new double[n], vx[] = new double[n], vy[] = new double[n];
+        System.out.println("Step : " + reader.readFrame(frame,x,y,vx,vy));
+        int types[] = reader.getTypes();
+        for (int i=0; i<n; i++)
+          System.out.println(i + " " + types[i] + " " + x[i] + " " + y[i] + " " + vx[i] + " " + vy[i]);
+      }
+      reader.close();
+    }
+    catch (IOException e) {
+      System.err.println("Error reading trajectory: " + e);
+      System.exit(1);
+    }
+  }//main()
+
+}
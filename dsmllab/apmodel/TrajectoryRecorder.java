@@ -0,0 +1,336 @@
+package dsmllab.apmodel;
+
+import sim.engine.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+/**
+ *  This class records the positions and velocities of the particles
+ *  every K steps while a model runs.  It is scheduled after everything
+ *  that moves the particles, and all it does on the model's thread is
+ *  copy the store's arrays into a free frame of a small ring of frames.
+ *  A background thread takes the filled frames, encodes them and writes
+ *  them out, then hands them back to the ring.  If the writer falls so
+ *  far behind that no frame is free, the step isn't recorded rather than
+ *  holding up the simulation; the number of frames dropped is reported
+ *  when the recorder is closed.
+ *
+ *  The recorder is turned on with trajectoryFileName in the experiment
+ *  parameters, and trajectoryInterval, trajectoryBufferFrames,
+ *  trajectoryDelta, trajectoryResolution and trajectoryKeyframeInterval
+ *  set it up.  APModel.start() opens a new file for each trial
+ *  (overwriting the last one), with the positions the trial starts from
+ *  as its first frame, and finish() closes it.  The file can be read
+ *  with TrajectoryReader and played back with TrajectoryPlayer.
+ *
+ *  The file starts with a header
+ *
+ *    int     magic number, "APTR"
+ *    int     format version
+ *    int     number of particles, n
+ *    int     steps between frames
+ *    byte    encoding:  RAW or DELTA
+ *    double  resolution of the DELTA encoding
+ *    int     frames between keyframes
+ *    double  width and height of the field
+ *    int[n]  type of each particle
+ *
+ *  followed by the frames, each of which is
+ *
+ *    int     length of the frame after this field
+ *    byte    1 for a keyframe, 0 otherwise
+ *    long    step
+ *    x[n], y[n], vx[n], vy[n]
+ *
+ *  The columns are doubles in RAW files.  In DELTA files each value is
+ *  rounded to a multiple of the resolution, and the difference of that
+ *  multiple from the one in the previous frame (from zero in keyframes)
+ *  is written as a zigzag varint, so a particle that barely moves costs
+ *  a byte or two per column.  The values read back are then within half
+ *  the resolution of the ones recorded.  Keyframes let a reader start
+ *  decoding part way through the file.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class TrajectoryRecorder implements Steppable {
+  public static final int MAGIC = 0x41505452;   // "APTR"
+  public static final int VERSION = 1;
+  public static final byte RAW = 0;
+  public static final byte DELTA = 1;
+  public static final int NUM_COLUMNS = 4;
+
+  // Run after the particles and the force engine have moved everything
+  public static final int ORDERING = 90;
+
+  protected String fileName;
+  protected int interval;
+  protected int numFrames;
+  protected boolean delta;
+  protected double resolution;
+  protected int keyframeInterval;
+
+  protected int framesPerKeyframe = 1;
+  protected int numParticles = 0;          // the particles in the file
+
+  protected long stepCount = 0;
+  protected long numRecorded = 0;
+  protected long numDropped = 0;
+
+  // The ring:  frames waiting to be filled and frames waiting to be written
+  protected transient BlockingQueue freeFrames = null;
+  protected transient BlockingQueue filledFrames = null;
+  protected transient Thread writerThread = null;
+  protected transient volatile IOException writeError = null;
+
+  // Marks the end of the recording for the writer
+  protected static final Frame END = new Frame(0);
+
+
+  /** One recorded step */
+  protected static class Frame {
+    public long step;
+    public int numParticles;
+    public double columns[][];
+
+    public Frame(int capacity) {
+      columns = new double[NUM_COLUMNS][capacity];
+    }
+  }//Frame
+
+
+  public TrajectoryRecorder(String fileName, int interval, int numFrames,
+                            boolean delta, double resolution, int keyframeInterval) {
+    this.fileName = fileName;
+    this.interval = Math.max(1,interval);
+    this.numFrames = Math.max(2,numFrames);
+    this.delta = delta;
+    this.resolution = resolution;
+    this.keyframeInterval = keyframeInterval;
+  }//constructor
+
+
+  /** Return a recorder for the model as its experiment parameters ask,
+   *  or null if they don't ask for one. */
+  public static TrajectoryRecorder create(APModel ap) {
+    APExperimentParameters expParams = ap.expParams;
+    if (expParams.trajectoryFileName == null) return null;
+    if (expParams.trajectoryDelta && !(expParams.trajectoryResolution > 0)) {
+      System.err.println("Warning:  The trajectory resolution must be positive; recording raw values");
+      expParams.trajectoryDelta = false;
+    }
+    return new TrajectoryRecorder(expParams.trajectoryFileName,expParams.trajectoryInterval,
+                                  expParams.trajectoryBufferFrames,expParams.trajectoryDelta,
+                                  expParams.trajectoryResolution,expParams.trajectoryKeyframeInterval);
+  }//create()
+
+
+  public String getFileName() {return fileName;}
+  public long getNumRecorded() {return numRecorded;}
+  public long getNumDropped() {return numDropped;}
+  public boolean isOpen() {return (writerThread != null);}
+
+
+  /** Open the file and record the current state of the model as the
+   *  first frame, at the model's current step.  A recording already open
+   *  is closed first. */
+  public void open(APModel ap) throws IOException {
+    close();
+
+    ParticleStore store = ap.particleStore;
+    numParticles = store.getNumParticles();
+    final DataOutputStream out =
+      new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName),1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(numParticles);
+      out.writeInt(interval);
+      out.writeByte(delta ? DELTA : RAW);
+      out.writeDouble(resolution);
+      framesPerKeyframe = Math.max(1,keyframeInterval);
+      out.writeInt(framesPerKeyframe);
+      out.writeDouble(ap.XMAX - ap.XMIN);
+      out.writeDouble(ap.YMAX - ap.YMIN);
+      for (int slot=0; slot<numParticles; slot++) out.writeInt(store.type[slot]);
+    }
+    catch (IOException e) {
+      out.close();
+      throw e;
+    }
+
+    freeFrames = new ArrayBlockingQueue(numFrames);
+    filledFrames = new ArrayBlockingQueue(numFrames+1);
+    for (int i=0; i<numFrames; i++) freeFrames.add(new Frame(numParticles));
+    writeError = null;
+    stepCount = ap.schedule.getSteps();
+    numRecorded = 0;
+    numDropped = 0;
+
+    final BlockingQueue free = freeFrames;
+    final BlockingQueue filled = filledFrames;
+    writerThread = new Thread("Trajectory writer: " + fileName) {
+        public void run() {writeFrames(out,free,filled);}
+      };
+    writerThread.setDaemon(true);
+    writerThread.start();
+
+    record(store,stepCount);
+  }//open()
+
+
+  public void step(SimState state) {
+    APModel ap = (APModel)state;
+    stepCount++;
+    if ((writerThread != null) && (stepCount % interval == 0))
+      record(ap.particleStore,stepCount);
+  }//step()
+
+
+  /** Copy the store into a free frame and pass it to the writer, or count
+   *  the step as dropped if there is no free frame. */
+  protected void record(ParticleStore store, long step) {
+    if (writeError != null) return;
+
+    Frame frame = (Frame)freeFrames.poll();
+    if (frame == null) {
+      numDropped++;
+      return;
+    }
+
+    if (frame.columns[0].length < numParticles) frame = new Frame(numParticles);
+    frame.step = step;
+    frame.numParticles = numParticles;
+    System.arraycopy(store.x,0,frame.columns[0],0,numParticles);
+    System.arraycopy(store.y,0,frame.columns[1],0,numParticles);
+    System.arraycopy(store.vx,0,frame.columns[2],0,numParticles);
+    System.arraycopy(store.vy,0,frame.columns[3],0,numParticles);
+    filledFrames.add(frame);
+    numRecorded++;
+  }//record()
+
+
+  /** Wait for the writer to finish the frames already recorded, then
+   *  close the file.  Does nothing if the recorder isn't open. */
+  public void close() throws IOException {
+    if (writerThread == null) return;
+
+    filledFrames.add(END);
+    boolean interrupted = false;
+    while (writerThread.isAlive()) {
+      try {
+        writerThread.join();
+      }
+      catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+    writerThread = null;
+    freeFrames = null;
+    filledFrames = null;
+
+    if (numDropped > 0)
+      System.err.println("Warning:  The trajectory writer fell behind; " + numDropped +
+                         " frames were not recorded in " + fileName);
+    if (writeError != null) throw writeError;
+  }//close()
+
+
+  //--------------- Writer thread --------------
+
+  protected void writeFrames(DataOutputStream out, BlockingQueue free, BlockingQueue filled) {
+    ByteBuffer buffer = ByteBuffer.allocate(1024);
+    long previous[][] = null;
+    long numWritten = 0;
+
+    try {
+      while (true) {
+        Frame frame = (Frame)takeUninterruptibly(filled);
+        if (frame == END) break;
+
+        int numParticles = frame.numParticles;
+        boolean keyframe = (numWritten % framesPerKeyframe == 0);
+        int maxBytes = 13 + NUM_COLUMNS*numParticles*(delta ? 10 : 8);
+        if (buffer.capacity() < maxBytes) buffer = ByteBuffer.allocate(maxBytes);
+        buffer.clear();
+
+        buffer.put((byte)(keyframe ? 1 : 0));
+        buffer.putLong(frame.step);
+        if (!delta) {
+          for (int c=0; c<NUM_COLUMNS; c++)
+            for (int i=0; i<numParticles; i++) buffer.putDouble(frame.columns[c][i]);
+        }
+        else {
+          if ((previous == null) || (previous[0].length != numParticles))
+            previous = new long[NUM_COLUMNS][numParticles];
+          for (int c=0; c<NUM_COLUMNS; c++) {
+            double column[] = frame.columns[c];
+            long last[] = previous[c];
+            for (int i=0; i<numParticles; i++) {
+              long quantum = Math.round(column[i]/resolution);
+              putVarLong(buffer,zigzag(quantum - (keyframe ? 0 : last[i])));
+              last[i] = quantum;
+            }
+          }
+        }
+        free.offer(frame);
+
+        out.writeInt(buffer.position());
+        out.write(buffer.array(),0,buffer.position());
+        numWritten++;
+      }
+    }
+    catch (IOException e) {
+      writeError = e;
+      // Keep taking frames, so the recorder can still be closed
+      while (takeUninterruptibly(filled) != END);
+    }
+    finally {
+      try {
+        out.close();
+      }
+      catch (IOException e) {
+        if (writeError == null) writeError = e;
+      }
+    }
+  }//writeFrames()
+
+
+  protected static Object takeUninterruptibly(BlockingQueue queue) {
+    while (true) {
+      try {
+        return queue.take();
+      }
+      catch (InterruptedException e) {}
+    }
+  }//takeUninterruptibly()
+
+
+  //--------------- Helper functions --------------
+
+  public static long zigzag(long value) {return (value << 1) ^ (value >> 63);}
+  public static long unzigzag(long value) {return (value >>> 1) ^ -(value & 1);}
+
+  public static void putVarLong(ByteBuffer buffer, long value) {
+    while ((value & ~0x7fL) != 0) {
+      buffer.put((byte)((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte)value);
+  }//putVarLong()
+
+  public static long getVarLong(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift=0; shift<64; shift+=7) {
+      byte b = buffer.get();
+      value |= (long)(b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IllegalArgumentException("Malformed varint in trajectory");
+  }//getVarLong()
+
+}
@@ -0,0 +1,40 @@
+package dsmllab.apmodel;
+
+/**
+ *  This class is the velocity-Verlet integrator, written in its leapfrog
+ *  form so that it needs one force evaluation a step, like the others:
+ *
+ *    v(n+1/2) = c v(n-1/2) + F(n)/m dt,   x(n+1) = x(n) + v(n+1/2) dt
+ *
+ *  The velocity kept in the store is the one at the half step, and the
+ *  first step kicks by half of dt to get there from the velocity at the
+ *  start.  The positions are those of velocity-Verlet, second order in
+ *  dt where the Euler step is first order.  Unlike the Euler step, only
+ *  the velocity is damped (by c = (1-friction)^dt), not the force, so
+ *  a particle at rest responds to a force at full strength.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class VerletIntegrator extends Integrator {
+
+  public VerletIntegrator(double timeStep) {
+    super(timeStep);
+  }//constructor
+
+
+  public String getName() {return VERLET;}
+
+
+  public void updateVelocity(ParticleStore store, int slot, boolean firstStep) {
+    double momentumFactor = (store.useMomentum[slot] ? 1.0/store.mass[slot] : 1.0);
+    double damping = (store.useFriction[slot] ? getDamping(store.friction[slot]) : 1.0);
+    double kick = momentumFactor*(firstStep ? 0.5*timeStep : timeStep);
+
+    setVelocity(store,slot,
+                damping*store.vx[slot] + store.fx[slot]*kick,
+                damping*store.vy[slot] + store.fy[slot]*kick);
+  }//updateVelocity()
+
+}
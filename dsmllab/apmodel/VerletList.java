@@ -0,0 +1,260 @@
+package dsmllab.apmodel;
+
+import sim.util.IntBag;
+
+/**
+ *  This class implements Verlet neighbor lists for the force phase.  For
+ *  each particle, it keeps the list of particles it affects that were
+ *  within their range of effect plus a "skin" distance when the lists
+ *  were last built.  So long as no particle has moved more than half the
+ *  skin since then, every interacting pair is guaranteed to still be in
+ *  the lists, and the force phase can skip the spatial search entirely.
+ *  Once formations settle, particles move a tiny fraction of their range
+ *  per step and the lists are rarely rebuilt.
+ *
+ *  Displacements are tracked as particles move, so deciding whether to
+ *  rebuild costs nothing extra.  Since a particle can also move by up to
+ *  its maxVelocity times the time step dt (see Integrator) during the
+ *  step that is about to happen, that bound is added to the displacement
+ *  when the decision is made.  That only covers the step if every
+ *  particle computes its forces before any moves, as in the synchronous
+ *  mode.  In the sequential mode, neighbors may already have moved by
+ *  maxVelocity*dt when a particle uses its list, so the skin must be at
+ *  least twice that (ForceEngine makes sure it is).
+ *
+ *  The lists are held in compressed form:  the neighbors of slot i are
+ *  neighborList[listStart[i]] up to (but not including)
+ *  neighborList[listStart[i+1]].
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class VerletList {
+  protected double skin;
+  protected double timeStep;
+
+  protected int listStart[] = new int[1];
+  protected int neighborList[] = new int[0];
+  protected int numListed = 0;       // number of slots the lists were built for
+
+  // Reference positions from the last build
+  protected double referenceX[] = new double[0];
+  protected double referenceY[] = new double[0];
+  protected double maxDisplacementSquared = 0.0;
+  protected double maxVelocityBound = 0.0;  // furthest a particle moves in a step
+
+  // Counters reporting how often the lists are rebuilt
+  protected long numBuilds = 0;
+  protected long numSteps = 0;
+  protected long stepsSinceBuild = 0;
+  protected long totalPairsListed = 0;
+
+  // Scratch space for the cell list queries while building
+  protected IntBag candidates = new IntBag();
+
+
+  public VerletList(double skin) {
+    this(skin,1.0);
+  }//constructor
+
+
+  /** Lists for a model whose steps have the given time step */
+  public VerletList(double skin, double timeStep) {
+    this.skin = skin;
+    this.timeStep = timeStep;
+  }//constructor
+
+
+  public double getSkin() {return skin;}
+  public double getTimeStep() {return timeStep;}
+  public int[] getListStarts() {return listStart;}
+  public int[] getNeighborList() {return neighborList;}
+
+
+  /** Tell the lists the particle in the given slot has moved to (x,y). */
+  public void particleMoved(int slot, double x, double y) {
+    noteDisplacement(getDisplacementSquared(slot,x,y));
+  }//particleMoved()
+
+
+  /** The squared distance from the particle in the given slot, at (x,y),
+   *  to where it was when the lists were built.  This only reads the
+   *  lists, so threads can work out the displacements of their own
+   *  particles and hand the largest to noteDisplacement(). */
+  public double getDisplacementSquared(int slot, double x, double y) {
+    if (slot >= numListed) return 0.0;
+
+    double dx = x - referenceX[slot];
+    double dy = y - referenceY[slot];
+    return dx*dx + dy*dy;
+  }//getDisplacementSquared()
+
+
+  public void noteDisplacement(double displacementSquared) {
+    if (displacementSquared > maxDisplacementSquared)
+      maxDisplacementSquared = displacementSquared;
+  }
+
+
+  /** Return true if some pair might have come within range without
+   *  being listed by the end of the coming step. */
+  public boolean needsRebuild(ParticleStore store) {
+    if (store.getNumParticles() != numListed) return true;
+
+    double bound = Math.sqrt(maxDisplacementSquared) + maxVelocityBound;
+    return (2.0*bound > skin);
+  }//needsRebuild()
+
+
+  /** Called once at the start of the force phase of every step.  The
+   *  lists are rebuilt if needed. */
+  public void beginStep(ParticleStore store, ForceInteractionModel fim, CellList index) {
+    beginStep(store,getRangesSquared(fim),getMaxRanges(fim),index);
+  }
+
+  /** As above, but only listing the interactions with the given squared
+   *  ranges, indexed by the type exerting the force and then the type
+   *  affected (-1 where there is none), and the given maximum range from
+   *  each type (-1 where there are none). */
+  public void beginStep(ParticleStore store, double rangesSquared[][], double maxRangeFrom[],
+                        CellList index) {
+    numSteps++;
+    if (needsRebuild(store)) build(store,rangesSquared,maxRangeFrom,index);
+    else stepsSinceBuild++;
+  }//beginStep()
+
+
+  /** Build the lists from scratch, using the cell list to find the
+   *  candidates for each particle. */
+  public void build(ParticleStore store, ForceInteractionModel fim, CellList index) {
+    build(store,getRangesSquared(fim),getMaxRanges(fim),index);
+  }
+
+  public void build(ParticleStore store, double rangesSquaredFrom[][], double maxRangeFrom[],
+                    CellList index) {
+    int numParticles = store.getNumParticles();
+    if (listStart.length < numParticles+1) listStart = new int[numParticles+1];
+    if (referenceX.length < numParticles) {
+      referenceX = new double[store.getCapacity()];
+      referenceY = new double[store.getCapacity()];
+    }
+
+    int count = 0;
+    maxVelocityBound = 0.0;
+    for (int slot=0; slot<numParticles; slot++) {
+      listStart[slot] = count;
+      referenceX[slot] = store.x[slot];
+      referenceY[slot] = store.y[slot];
+      if (store.maxVelocity[slot]*timeStep > maxVelocityBound) maxVelocityBound = store.maxVelocity[slot]*timeStep;
+
+      int fromType = store.type[slot];
+      if (maxRangeFrom[fromType] < 0) continue;
+
+      double rangesSquared[] = rangesSquaredFrom[fromType];
+      double maxRange = maxRangeFrom[fromType] + skin;
+
+      candidates.clear();
+      index.gather(store.x[slot],store.y[slot],maxRange,candidates);
+      for (int i=0; i<candidates.numObjs; i++) {
+        int other = candidates.objs[i];
+        double rangeSquared = rangesSquared[store.type[other]];
+        if ((other == slot) || (rangeSquared < 0)) continue;
+
+        double dx = store.x[other] - store.x[slot];
+        double dy = store.y[other] - store.y[slot];
+        double listedRange = Math.sqrt(rangeSquared) + skin;
+        if (dx*dx + dy*dy <= listedRange*listedRange) {
+          if (count == neighborList.length)
+            neighborList = java.util.Arrays.copyOf(neighborList,Math.max(16,2*count));
+          neighborList[count++] = other;
+        }
+      }
+    }
+    listStart[numParticles] = count;
+
+    numListed = numParticles;
+    maxDisplacementSquared = 0.0;
+    stepsSinceBuild = 0;
+    numBuilds++;
+    totalPairsListed += count;
+  }//build()
+
+
+  /** Write the lists and the reference positions to a checkpoint */
+  public void writeState(ModelCheckpoint.Output out) throws java.io.IOException {
+    out.putInt(numListed);
+    out.putInts(listStart,numListed+1);
+    out.putInts(neighborList,listStart[numListed]);
+    out.putDoubles(referenceX,numListed);
+    out.putDoubles(referenceY,numListed);
+    out.putDouble(maxDisplacementSquared);
+    out.putDouble(maxVelocityBound);
+    out.putLong(numBuilds);
+    out.putLong(numSteps);
+    out.putLong(stepsSinceBuild);
+    out.putLong(totalPairsListed);
+  }//writeState()
+
+
+  public void readState(ModelCheckpoint.Input in) throws java.io.IOException {
+    numListed = in.getInt();
+    listStart = in.getIntArray();
+    neighborList = in.getIntArray();
+    referenceX = in.getDoubleArray();
+    referenceY = in.getDoubleArray();
+    if ((listStart.length != numListed+1) || (referenceX.length != numListed))
+      throw new java.io.IOException("The Verlet lists of the checkpoint are damaged");
+    maxDisplacementSquared = in.getDouble();
+    maxVelocityBound = in.getDouble();
+    numBuilds = in.getLong();
+    numSteps = in.getLong();
+    stepsSinceBuild = in.getLong();
+    totalPairsListed = in.getLong();
+  }//readState()
+
+
+  // Accessor methods for the counters
+  public long getNumBuilds() {return numBuilds;}
+  public long getNumSteps() {return numSteps;}
+  public long getStepsSinceBuild() {return stepsSinceBuild;}
+  public int getNumPairsListed() {return listStart[numListed];}
+
+  /** Fraction of steps on which the lists were rebuilt. */
+  public double getRebuildRate() {
+    return (numSteps == 0 ? 0.0 : (double)numBuilds/(double)numSteps);
+  }
+
+  public double getMeanPairsListed() {
+    return (numBuilds == 0 ? 0.0 : (double)totalPairsListed/(double)numBuilds);
+  }
+
+  public void clearCounters() {
+    numBuilds = 0;
+    numSteps = 0;
+    totalPairsListed = 0;
+  }
+
+  public void reportCounters() {
+    System.out.println("VerletList : builds=" + numBuilds + " : steps=" + numSteps +
+                       " : rebuildRate=" + getRebuildRate() +
+                       " : meanPairsListed=" + getMeanPairsListed());
+  }
+
+
+  //--------------- Helper functions --------------
+  protected double[][] getRangesSquared(ForceInteractionModel fim) {
+    double rangesSquared[][] = new double[fim.getNumParticleTypes()][];
+    for (int type=0; type<rangesSquared.length; type++)
+      rangesSquared[type] = fim.getEffectRangesSquaredFrom(type);
+    return rangesSquared;
+  }
+
+  protected double[] getMaxRanges(ForceInteractionModel fim) {
+    double maxRanges[] = new double[fim.getNumParticleTypes()];
+    for (int type=0; type<maxRanges.length; type++)
+      maxRanges[type] = (fim.hasInteractionsFrom(type) ? fim.getMaxEffectRangeFrom(type) : -1.0);
+    return maxRanges;
+  }
+
+}
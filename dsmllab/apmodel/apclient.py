@@ -0,0 +1,59 @@
+import json
+import subprocess
+
+# Client for dsmllab.apmodel.EvaluationServer.  Rather than compiling and
+# starting a new JVM for every candidate, start the server once and send
+# it the params strings; the answers come back as JSON lines.
+
+class EvaluationClient:
+
+  def __init__(self, server_args=None, java="java"):
+    command = [java, "dsmllab.apmodel.EvaluationServer"] + (server_args or [])
+    self.server = subprocess.Popen(command, stdin=subprocess.PIPE, stdout=subprocess.PIPE,
+                                   universal_newlines=True, bufsize=1)
+    self.next_id = 0
+
+  def send(self, params, options):
+    request_id = str(self.next_id)
+    self.next_id += 1
+
+    header = "EVALUATE " + request_id
+    for key in sorted(options):
+      header += " %s=%s" % (key, options[key])
+
+    lines = [header]
+    for line in params.splitlines():
+      # a params line starting with a period has it doubled
+      if line.startswith("."): line = "." + line
+      lines.append(line)
+    lines.append(".")
+
+    self.server.stdin.write("\n".join(lines) + "\n")
+    return request_id
+
+  def evaluate_all(self, params_list, **options):
+    # send every candidate at once, so the server can run them side by
+    # side, then collect the answers (which may come in any order)
+    ids = [self.send(params, options) for params in params_list]
+    self.server.stdin.flush()
+
+    answers = {}
+    while len(answers) < len(ids):
+      line = self.server.stdout.readline()
+      if not line:
+        raise RuntimeError("The evaluation server quit unexpectedly")
+      answer = json.loads(line)
+      if "error" in answer:
+        raise RuntimeError("Evaluation %s failed: %s" % (answer["id"], answer["error"]))
+      answers[answer["id"]] = answer["fitness"]
+
+    return [answers[request_id] for request_id in ids]
+
+  def evaluate(self, params, **options):
+    return self.evaluate_all([params], **options)[0]
+
+  def close(self):
+    if self.server.poll() is None:
+      self.server.stdin.write("QUIT\n")
+      self.server.stdin.close()
+      self.server.wait()
@@ -4,25 +4,28 @@ import os
 import re
 import random
 import copy
+import apclient
 import cma
 
 setting ="het"
 
+client = None
+
 def execute_java():
   
-  # this method calls mason and then grabs the output
-
-  try:
-    s = subprocess.check_output("javac *.java ../utilities/*.java;java dsmllab.apmodel.Surveillance homog.params", shell = True,stderr=subprocess.STDOUT)
-  except subprocess.CalledProcessError as e:
-    raise RuntimeError("\n\n command '{}' return with error (code {}): {}".format(e.cmd, e.returncode, e.output))
-
-  s =s.decode("utf-8")
-  s = s.splitlines()[-1]
-  s =re.sub("[^\d\.]", "", s)
-  #s = s.rstrip('\n')
-
-  return float(s)
+  # this method sends the params file to a resident evaluation server
+  # (compiled and started the first time through) and grabs the fitness
+
+  global client
+  if client is None:
+    try:
+      subprocess.check_output("javac *.java ../utilities/*.java", shell = True,stderr=subprocess.STDOUT)
+    except subprocess.CalledProcessError as e:
+      raise RuntimeError("\n\n command '{}' return with error (code {}): {}".format(e.cmd, e.returncode, e.output))
+    client = apclient.EvaluationClient()
+
+  with open('het.params') as myfile:
+    return client.evaluate(myfile.read())
 
 
 def update_block(block_num, new_values):
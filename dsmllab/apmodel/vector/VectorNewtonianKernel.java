@@ -0,0 +1,88 @@
+package dsmllab.apmodel.vector;
+
+import dsmllab.apmodel.*;
+
+import jdk.incubator.vector.*;
+
+/**
+ *  This class computes Newtonian pair forces on the widest SIMD registers
+ *  the processor has, with the incubating JDK Vector API:  4 pairs at a
+ *  time with AVX2, 8 with AVX-512.  It is kept in a package of its own so
+ *  the rest of the model builds without the jdk.incubator.vector module;
+ *  build and run it with --add-modules jdk.incubator.vector, and
+ *  NewtonianKernel.create() will find it.
+ *
+ *  Each lane follows NewtonianForceLaw.getForceScalar() operation for
+ *  operation, so the forces are the same to the last bit; the branches
+ *  there become lane masks here (min() is the same as the maxForce test,
+ *  NaN included).  Lanes past the range are still computed, but left out
+ *  of hit.  The square root and the divisions dominate, and wide
+ *  registers divide at a lower rate per lane, so expect something like
+ *  twice the pairs per second of the scalar kernel rather than eight
+ *  times.
+ *
+ *  @author R. Paul Wiegand
+ *  @version Version 0.1 beta
+ */
+
+public class VectorNewtonianKernel extends NewtonianKernel {
+  protected static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+
+  public boolean isVectorized() {return true;}
+  public int getNumLanes() {return SPECIES.length();}
+  public String getName() {return "vector " + SPECIES;}
+
+
+  public void computePairForces(NewtonianForceLaw law, double sourceX, double sourceY,
+                                double sourceMass, double rangeSquared,
+                                double x[], double y[], double mass[], int from, int to,
+                                double forceX[], double forceY[], boolean hit[]) {
+    double G = law.G;
+    double maxForce = law.getMaxForce();
+    double arBoundary = law.getARBoundary();
+    double delta = arBoundary * 1.0;
+    double distancePower = law.distancePower;
+    double massPower = law.massPower;
+    DoubleVector boundary = DoubleVector.broadcast(SPECIES,arBoundary);
+
+    int numLanes = SPECIES.length();
+    int bound = from + SPECIES.loopBound(to - from);
+    for (int i=from; i<bound; i+=numLanes) {
+      DoubleVector dx = DoubleVector.fromArray(SPECIES,x,i).sub(sourceX);
+      DoubleVector dy = DoubleVector.fromArray(SPECIES,y,i).sub(sourceY);
+      DoubleVector distanceSquared = dx.mul(dx).add(dy.mul(dy));
+      distanceSquared.compare(VectorOperators.LE,rangeSquared).intoArray(hit,i);
+      DoubleVector distance = distanceSquared.lanewise(VectorOperators.SQRT);
+
+      DoubleVector massFactor = DoubleVector.fromArray(SPECIES,mass,i).mul(sourceMass);
+      if (massPower != 1.0) massFactor = massFactor.lanewise(VectorOperators.POW,massPower);
+
+      DoubleVector falloff;
+      if (distancePower == 2.0) falloff = distance.mul(distance);
+      else if (distancePower == 1.0) falloff = distance;
+      else falloff = distance.lanewise(VectorOperators.POW,distancePower);
+      DoubleVector forceScalar = massFactor.mul(G).div(falloff);
+
+      // Clamp to maxForce, attract beyond the boundary and damp near it.
+      // Few pairs are near the boundary, so the division for the damping
+      // is skipped when none of the lanes are.
+      forceScalar = forceScalar.min(maxForce);
+      forceScalar = forceScalar.blend(forceScalar.neg(),distance.compare(VectorOperators.GT,arBoundary));
+      DoubleVector gap = boundary.sub(distance).abs();
+      VectorMask<Double> damped = gap.compare(VectorOperators.LT,delta);
+      if (damped.anyTrue())
+        forceScalar = forceScalar.blend(forceScalar.mul(gap.div(delta)),damped);
+
+      dx.div(distance).mul(forceScalar).intoArray(forceX,i);
+      dy.div(distance).mul(forceScalar).intoArray(forceY,i);
+    }
+
+    // The last few pairs don't fill a register.  Masked loads and stores
+    // are slow on some processors, so they are done one at a time.
+    if (bound < to)
+      super.computePairForces(law,sourceX,sourceY,sourceMass,rangeSquared,
+                              x,y,mass,bound,to,forceX,forceY,hit);
+  }//computePairForces()
+
+}
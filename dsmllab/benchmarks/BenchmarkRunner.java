@@ -0,0 +1,237 @@
+//
+// BenchmarkRunner.java
+//
+
+package dsmllab.benchmarks;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ *  This class is a small harness for timing benchmark cases, in the
+ *  manner of JMH but without needing its annotation processor in the
+ *  build.  Each case is first calibrated, by doubling the number of
+ *  operations until a call takes a noticeable time, so an iteration
+ *  lasts about iterationMillis.  Then it is run for a number of warmup
+ *  iterations, which are thrown away, and a number of measured ones.
+ *  The time per operation is reported as the mean, standard deviation
+ *  and minimum over the measured iterations.
+ *
+ *  The results can be written as JSON or CSV, so runs can be kept and
+ *  compared to catch regressions.  A case can also record other
+ *  measures of its last run with setMetric() (how many steps a model
+ *  took, say), which are written along with its timing.  Anything a case
+ *  returns is folded into a sink, so the JIT can't drop its work.
+ *
+ *  @author R. Paul Wiegand
+ */
+
+public class BenchmarkRunner {
+  public static final String JSON = "json";
+  public static final String CSV = "csv";
+
+  public int warmupIterations = 3;
+  public int iterations = 5;
+  public long iterationMillis = 500;
+  public String filter = null;            // regular expression on group/name
+  public PrintStream progress = System.err;
+
+  protected Vector results = new Vector();
+  protected double sink = 0.0;
+
+
+  /** One benchmark.  run() carries out numOps operations and returns
+   *  something computed from them. */
+  public static abstract class Case {
+    public String group;
+    public String name;
+    public String params;
+    protected Vector metricNames = new Vector();
+    protected Vector metricValues = new Vector();
+
+    public Case(String group, String name, String params) {
+      this.group = group;
+      this.name = name;
+      this.params = params;
+    }
+
+    public String getID() {return group + "/" + name + (params.length() > 0 ? "[" + params + "]" : "");}
+
+    public void setup() throws Exception {}
+    public abstract double run(long numOps) throws Exception;
+    public void teardown() {}
+
+    /** Record a measure besides the time, replacing any of the same name */
+    public void setMetric(String name, double value) {
+      int index = metricNames.indexOf(name);
+      if (index < 0) {
+        metricNames.add(name);
+        metricValues.add(Double.valueOf(value));
+      }
+      else metricValues.set(index,Double.valueOf(value));
+    }
+  }//Case
+
+
+  /** The timing of one case */
+  public static class Result {
+    public String group, name, params;
+    public long opsPerIteration;
+    public double meanNanos, stdDevNanos, minNanos;   // per operation
+    public Vector metricNames = new Vector();
+    public Vector metricValues = new Vector();
+
+    public double getMetric(String name) {
+      int index = metricNames.indexOf(name);
+      return (index < 0 ? Double.NaN : ((Double)metricValues.get(index)).doubleValue());
+    }
+
+    public double getOpsPerSecond() {return 1.0e9/meanNanos;}
+  }//Result
+
+
+  public Vector getResults() {return results;}
+
+
+  /** Time the case, unless it doesn't match the filter, and keep the result */
+  public Result run(Case c) {
+    if ((filter != null) && !c.getID().matches(filter)) return null;
+
+    try {
+      if (progress != null) progress.println("Running " + c.getID() + " ...");
+      c.setup();
+
+      // Calibrate
+      long numOps = 1;
+      long elapsed = 0;
+      while (true) {
+        long start = System.nanoTime();
+        sink += c.run(numOps);
+        elapsed = System.nanoTime() - start;
+        if ((elapsed >= iterationMillis*1000000L/10) || (numOps >= (Long.MAX_VALUE >> 2))) break;
+        numOps *= 2;
+      }
+      numOps = Math.max(1,(long)(numOps*(iterationMillis*1.0e6/Math.max(elapsed,1))));
+
+      for (int i=0; i<warmupIterations; i++) sink += c.run(numOps);
+
+      double nanos[] = new double[iterations];
+      for (int i=0; i<iterations; i++) {
+        long start = System.nanoTime();
+        sink += c.run(numOps);
+        nanos[i] = (double)(System.nanoTime() - start)/numOps;
+      }
+
+      Result result = new Result();
+      result.group = c.group;
+      result.name = c.name;
+      result.params = c.params;
+      result.opsPerIteration = numOps;
+      result.minNanos = Double.MAX_VALUE;
+      for (int i=0; i<iterations; i++) {
+        result.meanNanos += nanos[i]/iterations;
+        result.minNanos = Math.min(result.minNanos,nanos[i]);
+      }
+      for (int i=0; i<iterations; i++)
+        result.stdDevNanos += (nanos[i] - result.meanNanos)*(nanos[i] - result.meanNanos);
+      result.stdDevNanos = Math.sqrt(result.stdDevNanos/Math.max(1,iterations-1));
+      result.metricNames.addAll(c.metricNames);
+      result.metricValues.addAll(c.metricValues);
+
+      results.add(result);
+      if (progress != null)
+        progress.println("  " + result.meanNanos + " ns/op (+/- " + result.stdDevNanos + ")");
+      return result;
+    }
+    catch (Exception e) {
+      System.err.println("Error running benchmark " + c.getID() + ": " + e);
+      return null;
+    }
+    finally {
+      c.teardown();
+    }
+  }//run()
+
+
+  /** Write all results in the given format */
+  public void write(PrintStream out, String format) {
+    if (format.equalsIgnoreCase(CSV)) writeCSV(out);
+    else writeJSON(out);
+    out.flush();
+  }//write()
+
+
+  public void writeJSON(PrintStream out) {
+    out.println("{");
+    out.println("  \"date\": " + quote(new Date().toString()) + ",");
+    out.println("  \"java\": " + quote(System.getProperty("java.version")) + ",");
+    out.println("  \"vm\": " + quote(System.getProperty("java.vm.name")) + ",");
+    out.println("  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",");
+    out.println("  \"warmupIterations\": " + warmupIterations + ",");
+    out.println("  \"iterations\": " + iterations + ",");
+    out.println("  \"results\": [");
+    for (int i=0; i<results.size(); i++) {
+      Result r = (Result)results.get(i);
+      String metrics = "";
+      for (int m=0; m<r.metricNames.size(); m++)
+        metrics += (m == 0 ? ", \"metrics\": {" : ", ") + quote((String)r.metricNames.get(m)) + ": " +
+                   formatNumber(r.getMetric((String)r.metricNames.get(m))) +
+                   (m == r.metricNames.size()-1 ? "}" : "");
+      out.println("    {\"group\": " + quote(r.group) + ", \"name\": " + quote(r.name) +
+                  ", \"params\": " + quote(r.params) +
+                  ", \"nsPerOp\": " + r.meanNanos + ", \"nsPerOpStdDev\": " + r.stdDevNanos +
+                  ", \"nsPerOpMin\": " + r.minNanos + ", \"opsPerSecond\": " + r.getOpsPerSecond() +
+                  ", \"opsPerIteration\": " + r.opsPerIteration + metrics + "}" +
+                  (i < results.size()-1 ? "," : ""));
+    }
+    out.println("  ],");
+    out.println("  \"sink\": " + (Double.isNaN(sink) || Double.isInfinite(sink) ? "0" : "" + sink));
+    out.println("}");
+  }//writeJSON()
+
+
+  /** Write a row per result, with a column for each metric any of them has */
+  public void writeCSV(PrintStream out) {
+    Vector metricNames = new Vector();
+    for (int i=0; i<results.size(); i++) {
+      Result r = (Result)results.get(i);
+      for (int m=0; m<r.metricNames.size(); m++)
+        if (!metricNames.contains(r.metricNames.get(m))) metricNames.add(r.metricNames.get(m));
+    }
+
+    String header = "group,name,params,nsPerOp,nsPerOpStdDev,nsPerOpMin,opsPerSecond,opsPerIteration";
+    for (int m=0; m<metricNames.size(); m++) header += "," + metricNames.get(m);
+    out.println(header);
+    for (int i=0; i<results.size(); i++) {
+      Result r = (Result)results.get(i);
+      String row = r.group + "," + r.name + ",\"" + r.params.replace("\"","\"\"") + "\"," + r.meanNanos + "," +
+                   r.stdDevNanos + "," + r.minNanos + "," + r.getOpsPerSecond() + "," + r.opsPerIteration;
+      for (int m=0; m<metricNames.size(); m++) {
+        double value = r.getMetric((String)metricNames.get(m));
+        row += "," + (Double.isNaN(value) ? "" : formatNumber(value));
+      }
+      out.println(row);
+    }
+  }//writeCSV()
+
+
+  /** Whole numbers without a fraction, and NaN and infinities as null */
+  protected static String formatNumber(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) return "null";
+    if ((value == Math.rint(value)) && (Math.abs(value) < 1e15)) return "" + (long)value;
+    return "" + value;
+  }//formatNumber()
+
+
+  protected static String quote(String s) {
+    StringBuffer quoted = new StringBuffer("\"");
+    for (int i=0; i<s.length(); i++) {
+      char ch = s.charAt(i);
+      if ((ch == '"') || (ch == '\\')) quoted.append('\\');
+      quoted.append(ch);
+    }
+    return quoted.append('"').toString();
+  }//quote()
+
+}
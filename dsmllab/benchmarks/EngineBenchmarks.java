@@ -0,0 +1,397 @@
+//
+// EngineBenchmarks.java
+//
+
+package dsmllab.benchmarks;
+
+import dsmllab.apmodel.*;
+import ec.util.MersenneTwisterFast;
+import sim.util.Double2D;
+import java.io.*;
+import java.util.*;
+
+
+/**
+ *  This class is the benchmark suite for the simulation engine.  It
+ *  times, with BenchmarkRunner:
+ *
+ *    kernel    NewtonianForceLaw.apply(), LennardJonesForceLaw.apply() and
+ *              Particle.distanceBetween() on random pairs of particles,
+ *              and the Newtonian pair kernels (see PairKernelBenchmark)
+ *    impart    one particle imparting its force on its neighbors (what
+ *              Particle.impartForce() does) in swarms of several densities
+ *    step      whole schedule steps of the shipped scenarios and of
+ *              synthetic swarms of 10^2 to 10^5 particles
+ *    scaling   synchronous steps of a swarm of SCALING_PARTICLES on 1, 2,
+ *              4, ... threads, up to the number of processors, with the
+ *              MASON environment told every step and only at the end
+ *    coverage  Surveillance coverage, counted from scratch and updated
+ *              incrementally, for points.txt and random target sets
+ *
+ *  The synthetic swarms all have the same density, so each particle has
+ *  about the same number of neighbors whatever the size of the swarm.
+ *  The shipped scenarios are run as Surveillance models, so this has to
+ *  be run from the directory holding them and points.txt.
+ *
+ *  Usage:  java dsmllab.benchmarks.EngineBenchmarks [-filter regex] [-format json|csv]
+ *                  [-output file] [-warmup n] [-iterations n] [-millis n]
+ *                  [-maxParticles n]
+ *
+ *  The filter is matched against group/name[params], e.g. "step/.*".
+ *  The results go to standard output unless an output file is given.
+ *
+ *  @author R. Paul Wiegand
+ */
+
+public class EngineBenchmarks {
+  public static final String SCENARIOS[] = {"homog.params","het.params","hex.params","ring.params"};
+  public static final int NUM_PAIRS = 1024;
+
+  // Synthetic swarms
+  public static final double SWARM_RANGE = 50.0;
+  public static final int SWARM_NEIGHBORS = 20;
+  public static final int IMPART_PARTICLES = 2000;
+  public static final int IMPART_NEIGHBORS[] = {5,20,80};
+  public static final int TARGET_COUNTS[] = {1000,10000,100000};
+  public static final int SCALING_PARTICLES = 20000;
+
+  protected int maxParticles = 100000;
+
+
+  public static void main(String args[]) {
+    BenchmarkRunner runner = new BenchmarkRunner();
+    EngineBenchmarks benchmarks = new EngineBenchmarks();
+    String format = BenchmarkRunner.JSON;
+    String outputFile = null;
+
+    for (int i=0; i<args.length-1; i+=2) {
+      if (args[i].equals("-filter")) runner.filter = args[i+1];
+      else if (args[i].equals("-format")) format = args[i+1];
+      else if (args[i].equals("-output")) outputFile = args[i+1];
+      else if (args[i].equals("-warmup")) runner.warmupIterations = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-iterations")) runner.iterations = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-millis")) runner.iterationMillis = Long.parseLong(args[i+1]);
+      else if (args[i].equals("-maxParticles")) benchmarks.maxParticles = Integer.parseInt(args[i+1]);
+      else System.err.println("Warning:  Ignoring unknown option " + args[i]);
+    }
+
+    // Keep whatever the models print out of the results
+    PrintStream out = System.out;
+    System.setOut(System.err);
+
+    benchmarks.runAll(runner);
+
+    try {
+      if (outputFile != null) out = new PrintStream(new FileOutputStream(outputFile));
+      runner.write(out,format);
+      if (outputFile != null) out.close();
+    }
+    catch (IOException e) {
+      System.err.println("Error writing the results: " + e);
+      System.exit(1);
+    }
+  }//main()
+
+
+  public void runAll(BenchmarkRunner runner) {
+    runner.run(new ApplyCase("newtonian.apply",new NewtonianForceLaw(100000.0,1000.0,90.0,100.0,2.0,1.0)));
+    runner.run(new ApplyCase("lennardJones.apply",new LennardJonesForceLaw(100000.0,65.0,40.0,0.5,0.5,1.0,1)));
+    runner.run(new DistanceCase());
+    PairKernelBenchmark.runAll(runner,PairKernelBenchmark.DEFAULT_BATCH_SIZE);
+
+    for (int i=0; i<IMPART_NEIGHBORS.length; i++)
+      runner.run(new ImpartCase(IMPART_PARTICLES,IMPART_NEIGHBORS[i]));
+
+    for (int i=0; i<SCENARIOS.length; i++)
+      runner.run(new ScenarioStepCase(SCENARIOS[i]));
+    for (int n=100; n<=maxParticles; n*=10)
+      runner.run(new SwarmStepCase(n));
+
+    int numProcessors = Runtime.getRuntime().availableProcessors();
+    int n = Math.min(SCALING_PARTICLES,maxParticles);
+    for (int threads=1; threads<2*numProcessors; threads*=2) {
+      runner.run(new ScalingCase(n,Math.min(threads,numProcessors),1));
+      runner.run(new ScalingCase(n,Math.min(threads,numProcessors),0));
+    }
+
+    runner.run(new CoverageCase("points.txt",-1,false));
+    runner.run(new CoverageCase("points.txt",-1,true));
+    for (int i=0; i<TARGET_COUNTS.length; i++) {
+      runner.run(new CoverageCase("random",TARGET_COUNTS[i],false));
+      runner.run(new CoverageCase("random",TARGET_COUNTS[i],true));
+    }
+  }//runAll()
+
+
+  //--------------- Models --------------
+
+  /** Return the parameters of a swarm of n particles with one Newtonian
+   *  law of the given range */
+  public static String swarmParams(int n, double range) {
+    return
+      "dsmllab.apmodel.Particle {\n" +
+      "  subtype = 0\n  number = " + n + "\n  diameter = 3\n  friction = 0.5\n}\n" +
+      "dsmllab.apmodel.NewtonianForceLaw {\n" +
+      "  fromParticleName = dsmllab.apmodel.Particle\n  fromParticleSubtype = 0\n" +
+      "  toParticleName = dsmllab.apmodel.Particle\n  toParticleSubtype = 0\n" +
+      "  effectRange = " + range + "\n  arBoundary = " + (0.4*range) + "\n" +
+      "  G = 100\n  distancePower = 2\n  massPower = 1.0\n}\n";
+  }//swarmParams()
+
+
+  /** Start a model of n particles sized so each particle has about the
+   *  given number of others within range.  Particles start in the middle
+   *  30% of each side of the field. */
+  public static APModel createSwarm(int n, double range, double neighbors) {
+    APExperimentParameters expParams = new APExperimentParameters();
+    expParams.loadParameters();
+    return createSwarm(n,range,neighbors,expParams);
+  }//createSwarm()
+
+
+  /** As above, with the given parameters */
+  public static APModel createSwarm(int n, double range, double neighbors, APExperimentParameters expParams) {
+    double density = neighbors/(Math.PI*range*range);
+    double height = Math.sqrt(n/(density*0.09*APModel.ASPECT_RATIO));
+
+    APModel ap = new APModel(42);
+    ap.XMAX = ap.XMIN + APModel.ASPECT_RATIO*height;
+    ap.YMAX = ap.YMIN + height;
+    ap.expParams = expParams;
+    ap.expParams.readFromParamFile = false;
+    ap.apParamsString = swarmParams(n,range);
+    ap.start();
+    return ap;
+  }//createSwarm()
+
+
+  /** Start a Surveillance model on a shipped parameters file */
+  public static Surveillance createScenario(String paramsFile) {
+    Surveillance ap = new Surveillance(42);
+    ap.expParams = new APExperimentParameters();
+    ap.expParams.loadParameters();
+    ap.expParams.apParamFileName = paramsFile;
+    ap.start();
+    return ap;
+  }//createScenario()
+
+
+  /** Random particles placed over a 400x300 area */
+  protected static Particle[] randomParticles(int n, MersenneTwisterFast random) {
+    Particle particles[] = new Particle[n];
+    for (int i=0; i<n; i++) {
+      particles[i] = new Particle();
+      particles[i].particleLocation = new Double2D(random.nextDouble()*400,random.nextDouble()*300);
+      particles[i].mass = 0.5 + random.nextDouble();
+    }
+    return particles;
+  }//randomParticles()
+
+
+  //--------------- Cases --------------
+
+  /** ForceLaw.apply() on random pairs */
+  public static class ApplyCase extends BenchmarkRunner.Case {
+    protected ForceLaw law;
+    protected Particle particles[];
+
+    public ApplyCase(String name, ForceLaw law) {
+      super("kernel",name,"");
+      this.law = law;
+    }
+
+    public void setup() {particles = randomParticles(NUM_PAIRS+1,new MersenneTwisterFast(42));}
+
+    public double run(long numOps) {
+      double sum = 0.0;
+      for (long i=0; i<numOps; i++) {
+        int k = (int)(i & (NUM_PAIRS-1));
+        sum += law.apply(particles[k],particles[k+1]).x;
+      }
+      return sum;
+    }
+  }//ApplyCase
+
+
+  /** Particle.distanceBetween() on random pairs */
+  public static class DistanceCase extends BenchmarkRunner.Case {
+    protected Particle particles[];
+
+    public DistanceCase() {super("kernel","distanceBetween","");}
+
+    public void setup() {particles = randomParticles(NUM_PAIRS+1,new MersenneTwisterFast(42));}
+
+    public double run(long numOps) {
+      double sum = 0.0;
+      for (long i=0; i<numOps; i++) {
+        int k = (int)(i & (NUM_PAIRS-1));
+        sum += Particle.distanceBetween(particles[k],particles[k+1]);
+      }
+      return sum;
+    }
+  }//DistanceCase
+
+
+  /** The force phase of one particle, as in the sequential update */
+  public static class ImpartCase extends BenchmarkRunner.Case {
+    protected int n, neighbors;
+    protected APModel ap;
+
+    public ImpartCase(int n, int neighbors) {
+      super("impart","impartForce","n=" + n + " neighbors=" + neighbors);
+      this.n = n;
+      this.neighbors = neighbors;
+    }
+
+    public void setup() {ap = createSwarm(n,SWARM_RANGE,neighbors);}
+    public void teardown() {ap = null;}
+
+    public double run(long numOps) {
+      ParticleStore store = ap.particleStore;
+      int numParticles = store.getNumParticles();
+      for (long i=0; i<numOps; i++)
+        ap.forceEngine.impartForce((int)(i % numParticles));
+
+      double sum = store.fx[0];
+      Arrays.fill(store.fx,0.0);
+      Arrays.fill(store.fy,0.0);
+      return sum;
+    }
+  }//ImpartCase
+
+
+  /** Whole steps of a shipped scenario */
+  public static class ScenarioStepCase extends BenchmarkRunner.Case {
+    protected String paramsFile;
+    protected APModel ap;
+
+    public ScenarioStepCase(String paramsFile) {
+      super("step","scenario",paramsFile);
+      this.paramsFile = paramsFile;
+    }
+
+    public void setup() throws Exception {
+      if (!new File(paramsFile).exists()) throw new FileNotFoundException(paramsFile);
+      ap = createScenario(paramsFile);
+    }
+    public void teardown() {ap = null;}
+
+    public double run(long numOps) {
+      for (long i=0; i<numOps; i++) ap.schedule.step(ap);
+      return ap.particleStore.x[0];
+    }
+  }//ScenarioStepCase
+
+
+  /** Whole steps of a synthetic swarm */
+  public static class SwarmStepCase extends BenchmarkRunner.Case {
+    protected int n;
+    protected APModel ap;
+
+    public SwarmStepCase(int n) {
+      super("step","swarm","n=" + n + " neighbors=" + SWARM_NEIGHBORS);
+      this.n = n;
+    }
+
+    public void setup() {ap = createSwarm(n,SWARM_RANGE,SWARM_NEIGHBORS);}
+    public void teardown() {ap = null;}
+
+    public double run(long numOps) {
+      for (long i=0; i<numOps; i++) ap.schedule.step(ap);
+      return ap.particleStore.x[0];
+    }
+  }//SwarmStepCase
+
+
+  /** Whole synchronous steps of a synthetic swarm on a number of threads */
+  public static class ScalingCase extends BenchmarkRunner.Case {
+    protected int n, numThreads, environmentSyncInterval;
+    protected APModel ap;
+
+    public ScalingCase(int n, int numThreads, int environmentSyncInterval) {
+      super("scaling","synchronous","n=" + n + " threads=" + numThreads +
+            " environmentSyncInterval=" + environmentSyncInterval);
+      this.n = n;
+      this.numThreads = numThreads;
+      this.environmentSyncInterval = environmentSyncInterval;
+    }
+
+    public void setup() {
+      APExperimentParameters expParams = new APExperimentParameters();
+      expParams.loadParameters();
+      expParams.updateMode = ForceEngine.SYNCHRONOUS_UPDATE;
+      expParams.numThreads = numThreads;
+      expParams.environmentSyncInterval = environmentSyncInterval;
+      ap = createSwarm(n,SWARM_RANGE,SWARM_NEIGHBORS,expParams);
+    }
+    public void teardown() {ap = null;}
+
+    public double run(long numOps) {
+      for (long i=0; i<numOps; i++) ap.schedule.step(ap);
+      return ap.particleStore.x[0];
+    }
+  }//ScalingCase
+
+
+  /** Surveillance coverage on het.params after 100 steps, either counted
+   *  from scratch or updated as the particles move back and forth
+   *  between two consecutive steps */
+  public static class CoverageCase extends BenchmarkRunner.Case {
+    protected String targetSet;
+    protected int numTargets;
+    protected boolean incremental;
+    protected Surveillance ap;
+    protected double xs[][] = new double[2][], ys[][] = new double[2][];
+
+    public CoverageCase(String targetSet, int numTargets, boolean incremental) {
+      super("coverage",(incremental ? "incremental" : "full"),
+            targetSet + (numTargets > 0 ? " targets=" + numTargets : ""));
+      this.targetSet = targetSet;
+      this.numTargets = numTargets;
+      this.incremental = incremental;
+    }
+
+    public void setup() throws Exception {
+      if (!new File("points.txt").exists()) throw new FileNotFoundException("points.txt");
+      ap = createScenario("het.params");
+
+      if (numTargets > 0) {
+        MersenneTwisterFast random = new MersenneTwisterFast(7);
+        ap.targets = new Target[numTargets];
+        for (int t=0; t<numTargets; t++)
+          ap.targets[t] = new Target(4,java.awt.Color.red,random.nextDouble()*(ap.XMAX-ap.XMIN),
+                                     random.nextDouble()*(ap.YMAX-ap.YMIN));
+        ap.n = numTargets;
+      }
+
+      ParticleStore store = ap.particleStore;
+      for (int s=0; s<101; s++) {
+        ap.schedule.step(ap);
+        if (s >= 99) {
+          xs[s-99] = (double[])store.x.clone();
+          ys[s-99] = (double[])store.y.clone();
+        }
+      }
+      ap.coverage = null;
+      ap.targets_covered();
+    }
+    public void teardown() {ap = null;}
+
+    public double run(long numOps) {
+      ParticleStore store = ap.particleStore;
+      int numParticles = store.getNumParticles();
+      double sum = 0.0;
+      for (long i=0; i<numOps; i++) {
+        if (incremental) {
+          int k = (int)(i & 1);
+          System.arraycopy(xs[k],0,store.x,0,numParticles);
+          System.arraycopy(ys[k],0,store.y,0,numParticles);
+          sum += ap.coverage.update();
+        }
+        else sum += ap.coverage.countCovered();
+      }
+      return sum;
+    }
+  }//CoverageCase
+
+}
@@ -0,0 +1,104 @@
+//
+// ForceLawBenchmark.java
+//
+
+package dsmllab.benchmarks;
+
+import dsmllab.apmodel.*;
+import ec.util.MersenneTwisterFast;
+
+
+/**
+ *  This class times the scalar kernels of the force laws, computed
+ *  exactly and looked up from a ForceTable, over the same random
+ *  distances, and reports the time per evaluation, the speedup and the
+ *  largest relative error seen.  The distances are spread over the part
+ *  of each law's range the table covers, which is where the force phase
+ *  spends its time.
+ *
+ *  Usage:  java dsmllab.benchmarks.ForceLawBenchmark [numEvaluations] [errorBound]
+ *
+ *  @author R. Paul Wiegand
+ */
+
+public class ForceLawBenchmark {
+  public static final int NUM_DISTANCES = 4096;
+  public static final int NUM_ROUNDS = 5;
+
+  protected int numEvaluations;
+  protected double errorBound;
+  protected double distances[] = new double[NUM_DISTANCES];
+  protected double sink = 0.0;   // keeps the JIT from dropping the work
+
+
+  public ForceLawBenchmark(int numEvaluations, double errorBound) {
+    this.numEvaluations = numEvaluations;
+    this.errorBound = errorBound;
+  }//constructor
+
+
+  public static void main(String args[]) {
+    int numEvaluations = (args.length > 0 ? Integer.parseInt(args[0]) : 20000000);
+    double errorBound = (args.length > 1 ? Double.parseDouble(args[1]) : 1e-6);
+
+    ForceLawBenchmark benchmark = new ForceLawBenchmark(numEvaluations,errorBound);
+    benchmark.run("Newtonian (p=2)",  new NewtonianForceLaw(100000.0,1000.0,90.0,100.0,2.0,1.0));
+    benchmark.run("Newtonian (p=1.5)",new NewtonianForceLaw(100000.0,350.0,40.0,1200.0,1.5,2.0));
+    benchmark.run("Lennard-Jones",    new LennardJonesForceLaw(100000.0,65.0,40.0,0.5,0.5,1.0,1));
+  }//main()
+
+
+  /** Time the given law without and with a table, and print the results. */
+  public void run(String name, ForceLaw law) {
+    law.buildForceTable(errorBound);
+    ForceTable table = law.getForceTable();
+
+    MersenneTwisterFast random = new MersenneTwisterFast(42);
+    double low = table.getMinDistance();
+    double high = table.getMaxDistance();
+    for (int i=0; i<NUM_DISTANCES; i++)
+      distances[i] = low + random.nextDouble()*(high-low);
+
+    // Error of the table at the sampled distances
+    double maxError = 0.0;
+    double exact[] = new double[NUM_DISTANCES];
+    law.clearForceTable();
+    for (int i=0; i<NUM_DISTANCES; i++) exact[i] = law.getForceScalar(distances[i],1.0,1.0);
+    law.buildForceTable(errorBound);
+    for (int i=0; i<NUM_DISTANCES; i++) {
+      double error = Math.abs(law.getForceScalar(distances[i],1.0,1.0) - exact[i]);
+      if (exact[i] != 0) error /= Math.abs(exact[i]);
+      if (error > maxError) maxError = error;
+    }
+
+    // Alternate the two so neither gets an unfair share of the warmup
+    double exactTime = Double.MAX_VALUE;
+    double tableTime = Double.MAX_VALUE;
+    for (int round=0; round<NUM_ROUNDS; round++) {
+      law.clearForceTable();
+      exactTime = Math.min(exactTime,time(law));
+      law.buildForceTable(errorBound);
+      tableTime = Math.min(tableTime,time(law));
+    }
+
+    System.out.println(name + " : samples=" + table.getNumSamples() +
+                       " : range=[" + low + "," + high + "]" +
+                       " : exact=" + exactTime + " ns : table=" + tableTime + " ns" +
+                       " : speedup=" + (exactTime/tableTime) +
+                       " : maxRelativeError=" + maxError);
+  }//run()
+
+
+  /** Return the time in nanoseconds per evaluation of the law's kernel */
+  protected double time(ForceLaw law) {
+    double sum = 0.0;
+    long start = System.nanoTime();
+    for (int i=0; i<numEvaluations; i++)
+      sum += law.getForceScalar(distances[i & (NUM_DISTANCES-1)],1.0,1.0);
+    long elapsed = System.nanoTime() - start;
+
+    sink += sum;
+    return (double)elapsed/numEvaluations;
+  }//time()
+
+}
@@ -0,0 +1,189 @@
+//
+// IntegratorBenchmark.java
+//
+
+package dsmllab.benchmarks;
+
+import dsmllab.apmodel.*;
+import java.io.*;
+
+
+/**
+ *  This class measures how many steps, and how many force evaluations,
+ *  each integrator (see Integrator) takes to bring a scenario to rest,
+ *  at several time steps, and whether the formation it comes to is the
+ *  same.  Every run starts from the same placement (the same seed), in
+ *  the synchronous mode, and stops when the ConvergenceMonitor's
+ *  kinetic energy criterion has been met for the given number of steps
+ *  running, or after maxSteps.
+ *
+ *  The formation is described by the mean distance from each particle to
+ *  its nearest neighbor, the coefficient of variation of those distances
+ *  (how regular the lattice is), and the radius of gyration of the swarm,
+ *  none of which depend on where the formation ends up or how it is
+ *  turned.  Each row also gives how far these are from the first row's,
+ *  relative to it.  The convergence step counts the quiet steps too.
+ *
+ *  Each integrator and time step is a BenchmarkRunner case, whose
+ *  operation is one whole run to rest, and the measures above are kept
+ *  as its metrics, so the results are written as JSON or CSV like the
+ *  rest of the suite's.  A run takes long enough that only one warmup
+ *  and three measured iterations are done, unless told otherwise.
+ *
+ *  Usage:  java dsmllab.benchmarks.IntegratorBenchmark [-params file] [-maxSteps n]
+ *                  [-threshold x] [-quietSteps n] [-timeSteps 1,1.5,2,4]
+ *                  [-integrators euler,verlet,semiImplicit] [-seed n]
+ *                  [-filter regex] [-format json|csv] [-output file]
+ *                  [-warmup n] [-iterations n]
+ *
+ *  @author R. Paul Wiegand
+ */
+
+public class IntegratorBenchmark {
+  protected String paramsFile = "hex.params";
+  protected int maxSteps = 5000;
+  protected double threshold = 1e-3;
+  protected int quietSteps = 20;
+  protected long seed = 42;
+
+  protected double reference[] = null;
+
+
+  public static void main(String args[]) {
+    IntegratorBenchmark benchmark = new IntegratorBenchmark();
+    BenchmarkRunner runner = new BenchmarkRunner();
+    runner.warmupIterations = 1;
+    runner.iterations = 3;
+    String format = BenchmarkRunner.JSON;
+    String outputFile = null;
+    String timeSteps[] = {"1", "1.5", "2", "4"};
+    String integrators[] = {Integrator.EULER, Integrator.VERLET, Integrator.SEMI_IMPLICIT};
+
+    for (int i=0; i<args.length-1; i+=2) {
+      if (args[i].equals("-params")) benchmark.paramsFile = args[i+1];
+      else if (args[i].equals("-maxSteps")) benchmark.maxSteps = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-threshold")) benchmark.threshold = Double.parseDouble(args[i+1]);
+      else if (args[i].equals("-quietSteps")) benchmark.quietSteps = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-timeSteps")) timeSteps = args[i+1].split(",");
+      else if (args[i].equals("-integrators")) integrators = args[i+1].split(",");
+      else if (args[i].equals("-seed")) benchmark.seed = Long.parseLong(args[i+1]);
+      else if (args[i].equals("-filter")) runner.filter = args[i+1];
+      else if (args[i].equals("-format")) format = args[i+1];
+      else if (args[i].equals("-output")) outputFile = args[i+1];
+      else if (args[i].equals("-warmup")) runner.warmupIterations = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-iterations")) runner.iterations = Integer.parseInt(args[i+1]);
+      else System.err.println("Warning:  Ignoring unknown option " + args[i]);
+    }
+
+    // Keep whatever the models print out of the results
+    PrintStream out = System.out;
+    System.setOut(System.err);
+
+    for (int i=0; i<integrators.length; i++)
+      for (int t=0; t<timeSteps.length; t++)
+        runner.run(benchmark.new IntegratorCase(integrators[i],Double.parseDouble(timeSteps[t])));
+
+    try {
+      if (outputFile != null) out = new PrintStream(new FileOutputStream(outputFile));
+      runner.write(out,format);
+      if (outputFile != null) out.close();
+    }
+    catch (IOException e) {
+      System.err.println("Error writing the results: " + e);
+      System.exit(1);
+    }
+  }//main()
+
+
+  /** Running the scenario to rest with one integrator and time step */
+  public class IntegratorCase extends BenchmarkRunner.Case {
+    protected String integrator;
+    protected double timeStep;
+
+    public IntegratorCase(String integrator, double timeStep) {
+      super("integrator",integrator,"dt=" + timeStep + " params=" + paramsFile);
+      this.integrator = integrator;
+      this.timeStep = timeStep;
+    }
+
+    public double run(long numOps) {
+      Surveillance ap = null;
+      for (long i=0; i<numOps; i++) ap = runToRest(integrator,timeStep);
+
+      double formation[] = describeFormation(ap.particleStore);
+      if (reference == null) reference = formation;
+      double difference = 0.0;
+      for (int i=0; i<formation.length; i++)
+        difference = Math.max(difference,Math.abs(formation[i] - reference[i])/Math.abs(reference[i]));
+
+      setMetric("steps",ap.stepsRun);
+      setMetric("converged",(ap.hasConverged() ? 1 : 0));
+      setMetric("time",ap.stepsRun*timeStep);
+      setMetric("forceEvaluations",ap.profiler.getCount(StepProfiler.FORCE_EVALUATIONS));
+      setMetric("meanNearest",formation[0]);
+      setMetric("nearestCV",formation[1]);
+      setMetric("gyration",formation[2]);
+      setMetric("formationDifference",difference);
+      return formation[0];
+    }
+  }//IntegratorCase
+
+
+  /** Run the scenario to rest with the given integrator and time step,
+   *  and return the model. */
+  public Surveillance runToRest(String integrator, double timeStep) {
+    Surveillance ap = new Surveillance(seed);
+    ap.expParams = new APExperimentParameters();
+    ap.expParams.loadParameters();
+    ap.expParams.apParamFileName = paramsFile;
+    ap.expParams.updateMode = ForceEngine.SYNCHRONOUS_UPDATE;
+    ap.expParams.numThreads = 1;
+    ap.expParams.convergenceCriterion = ConvergenceMonitor.KINETIC_ENERGY;
+    ap.expParams.convergenceThreshold = threshold;
+    ap.expParams.convergenceSteps = quietSteps;
+    ap.expParams.integrator = integrator;
+    ap.expParams.timeStep = timeStep;
+    ap.expParams.profileSteps = true;
+
+    ap.start();
+    ap.runSteps(maxSteps);
+    ap.finish();
+    return ap;
+  }//runToRest()
+
+
+  /** The mean and coefficient of variation of the nearest neighbor
+   *  distances, and the radius of gyration, of the particles. */
+  public static double[] describeFormation(ParticleStore store) {
+    int n = store.getNumParticles();
+    double sum = 0.0, sumSquares = 0.0;
+    double centerX = 0.0, centerY = 0.0;
+    for (int i=0; i<n; i++) {
+      double nearest = Double.MAX_VALUE;
+      for (int j=0; j<n; j++) {
+        if (j == i) continue;
+        double dx = store.x[i] - store.x[j];
+        double dy = store.y[i] - store.y[j];
+        nearest = Math.min(nearest,Math.sqrt(dx*dx + dy*dy));
+      }
+      sum += nearest;
+      sumSquares += nearest*nearest;
+      centerX += store.x[i];
+      centerY += store.y[i];
+    }
+    centerX /= n;
+    centerY /= n;
+
+    double gyration = 0.0;
+    for (int i=0; i<n; i++) {
+      double dx = store.x[i] - centerX;
+      double dy = store.y[i] - centerY;
+      gyration += dx*dx + dy*dy;
+    }
+
+    double mean = sum/n;
+    double variance = Math.max(0.0,sumSquares/n - mean*mean);
+    return new double[] {mean, Math.sqrt(variance)/mean, Math.sqrt(gyration/n)};
+  }//describeFormation()
+
+}
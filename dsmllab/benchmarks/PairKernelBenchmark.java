@@ -0,0 +1,147 @@
+//
+// PairKernelBenchmark.java
+//
+
+package dsmllab.benchmarks;
+
+import dsmllab.apmodel.*;
+import ec.util.MersenneTwisterFast;
+import java.io.*;
+
+
+/**
+ *  This class times the Newtonian pair kernels (see NewtonianKernel) on
+ *  batches of random neighbors, with BenchmarkRunner, so the time per
+ *  pair of the scalar kernel and of the fastest one that could be loaded
+ *  are kept and written like the rest of the suite's (EngineBenchmarks
+ *  runs the same cases).  Before timing, it checks whether the forces of
+ *  the two kernels agree, and prints the largest difference.  Run it with
+ *  --add-modules jdk.incubator.vector to time the vector kernel; without
+ *  it only the scalar kernel is timed.
+ *
+ *  Usage:  java dsmllab.benchmarks.PairKernelBenchmark [-batchSize n] [-filter regex]
+ *                  [-format json|csv] [-output file] [-warmup n] [-iterations n]
+ *                  [-millis n]
+ *
+ *  @author R. Paul Wiegand
+ */
+
+public class PairKernelBenchmark {
+  public static final int DEFAULT_BATCH_SIZE = 1024;
+
+
+  public static void main(String args[]) {
+    BenchmarkRunner runner = new BenchmarkRunner();
+    int batchSize = DEFAULT_BATCH_SIZE;
+    String format = BenchmarkRunner.JSON;
+    String outputFile = null;
+
+    for (int i=0; i<args.length-1; i+=2) {
+      if (args[i].equals("-batchSize")) batchSize = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-filter")) runner.filter = args[i+1];
+      else if (args[i].equals("-format")) format = args[i+1];
+      else if (args[i].equals("-output")) outputFile = args[i+1];
+      else if (args[i].equals("-warmup")) runner.warmupIterations = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-iterations")) runner.iterations = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-millis")) runner.iterationMillis = Long.parseLong(args[i+1]);
+      else System.err.println("Warning:  Ignoring unknown option " + args[i]);
+    }
+
+    runAll(runner,batchSize);
+
+    try {
+      PrintStream out = (outputFile == null ? System.out : new PrintStream(new FileOutputStream(outputFile)));
+      runner.write(out,format);
+      if (outputFile != null) out.close();
+    }
+    catch (IOException e) {
+      System.err.println("Error writing the results: " + e);
+      System.exit(1);
+    }
+  }//main()
+
+
+  /** Time the scalar kernel, and the fastest one if it isn't the scalar
+   *  one, on each of the laws. */
+  public static void runAll(BenchmarkRunner runner, int batchSize) {
+    String names[] = {"p=2", "p=1.5"};
+    NewtonianForceLaw laws[] = {new NewtonianForceLaw(1000.0,150.0,10.0,1.0,2.0,1.0),
+                                new NewtonianForceLaw(1000.0,150.0,10.0,1.0,1.5,2.0)};
+    NewtonianKernel scalar = new NewtonianKernel();
+    NewtonianKernel fastest = NewtonianKernel.create();
+
+    for (int l=0; l<laws.length; l++) {
+      if (fastest.isVectorized())
+        System.err.println("Newtonian (" + names[l] + ") : " + fastest.getName() + " maxDifference=" +
+                           compare(scalar,fastest,laws[l],batchSize));
+      runner.run(new PairCase(names[l],laws[l],scalar,batchSize));
+      if (fastest.isVectorized()) runner.run(new PairCase(names[l],laws[l],fastest,batchSize));
+    }
+  }//runAll()
+
+
+  /** Return the largest difference between the forces of two kernels on
+   *  a batch of random neighbors */
+  public static double compare(NewtonianKernel a, NewtonianKernel b, NewtonianForceLaw law, int batchSize) {
+    PairCase caseA = new PairCase("",law,a,batchSize);
+    PairCase caseB = new PairCase("",law,b,batchSize);
+    caseA.setup();
+    caseB.setup();
+    caseA.computeBatch(batchSize);
+    caseB.computeBatch(batchSize);
+
+    double maxDifference = 0.0;
+    for (int i=0; i<batchSize; i++)
+      if (caseA.hit[i])
+        maxDifference = Math.max(maxDifference,Math.max(Math.abs(caseA.forceX[i] - caseB.forceX[i]),
+                                                        Math.abs(caseA.forceY[i] - caseB.forceY[i])));
+    return maxDifference;
+  }//compare()
+
+
+  /** One kernel on batches of neighbors scattered around the source at
+   *  the center, some of them past the range.  An operation is one pair. */
+  public static class PairCase extends BenchmarkRunner.Case {
+    protected NewtonianForceLaw law;
+    protected NewtonianKernel kernel;
+    protected int batchSize;
+    protected double x[], y[], mass[];
+    protected double forceX[], forceY[];
+    protected boolean hit[];
+
+    public PairCase(String lawName, NewtonianForceLaw law, NewtonianKernel kernel, int batchSize) {
+      super("kernel","newtonianPairs","kernel=" + kernel.getName() + " law=" + lawName + " batch=" + batchSize);
+      this.law = law;
+      this.kernel = kernel;
+      this.batchSize = batchSize;
+    }
+
+    public void setup() {
+      MersenneTwisterFast random = new MersenneTwisterFast(42);
+      x = new double[batchSize];
+      y = new double[batchSize];
+      mass = new double[batchSize];
+      for (int i=0; i<batchSize; i++) {
+        x[i] = random.nextDouble()*300.0;
+        y[i] = random.nextDouble()*300.0;
+        mass[i] = 1.0;
+      }
+      forceX = new double[batchSize];
+      forceY = new double[batchSize];
+      hit = new boolean[batchSize];
+    }
+
+    public void teardown() {x = y = mass = forceX = forceY = null; hit = null;}
+
+    protected void computeBatch(int to) {
+      kernel.computePairForces(law,150.0,150.0,1.0,150.0*150.0,x,y,mass,0,to,forceX,forceY,hit);
+    }
+
+    public double run(long numOps) {
+      for (long b=0; b<numOps/batchSize; b++) computeBatch(batchSize);
+      if (numOps % batchSize != 0) computeBatch((int)(numOps % batchSize));
+      return forceX[0];
+    }
+  }//PairCase
+
+}
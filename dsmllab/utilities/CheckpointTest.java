@@ -0,0 +1,112 @@
+//
+// CheckpointTest.java
+//
+
+package dsmllab.utilities;
+
+import dsmllab.apmodel.*;
+import java.io.File;
+
+
+/**
+ *  Checks that restoring a ModelCheckpoint repeats a run exactly.  For
+ *  each configuration, a model is run for the given number of steps,
+ *  with a checkpoint taken halfway, and the checkpoint is restored into
+ *  a fresh model that is run to the same step.  Every array of the two
+ *  ParticleStores must then be bit-for-bit the same.  The
+ *  configurations are the sequential and synchronous modes, each with
+ *  and without Verlet lists, and the synchronous mode with multiple time
+ *  stepping (the checkpoint falling partway through an interval).
+ *
+ *  Run it from the directory holding the parameters file and points.txt.
+ *  It prints one line per configuration and exits with status 1 if any
+ *  of them fails.
+ *
+ *  Usage:  java dsmllab.utilities.CheckpointTest [-params file] [-steps n]
+ */
+
+public class CheckpointTest {
+  public static final String NAMES[] = {"sequential", "sequential+verlet",
+                                        "synchronous", "synchronous+verlet",
+                                        "synchronous+mts"};
+
+  protected String paramsFile = "het.params";
+  protected int numSteps = 150;
+
+
+  public static void main(String args[]) throws Exception {
+    CheckpointTest test = new CheckpointTest();
+    for (int i=0; i<args.length-1; i+=2) {
+      if (args[i].equals("-params")) test.paramsFile = args[i+1];
+      else if (args[i].equals("-steps")) test.numSteps = Integer.parseInt(args[i+1]);
+      else System.err.println("Warning:  Ignoring unknown option " + args[i]);
+    }
+
+    boolean passed = true;
+    for (int c=0; c<NAMES.length; c++) {
+      String problem = test.check(c);
+      System.out.println(NAMES[c] + ":  " + (problem == null ? "same" : "FAILED, " + problem));
+      passed &= (problem == null);
+    }
+    System.exit(passed ? 0 : 1);
+  }//main()
+
+
+  /** Set up the parameters of the given configuration */
+  protected APExperimentParameters createParameters(int configuration) {
+    APExperimentParameters expParams = new APExperimentParameters();
+    expParams.loadParameters();
+    expParams.apParamFileName = paramsFile;
+    expParams.numThreads = 1;
+
+    String name = NAMES[configuration];
+    if (name.startsWith("synchronous")) expParams.updateMode = ForceEngine.SYNCHRONOUS_UPDATE;
+    if (name.endsWith("verlet")) expParams.useVerletLists = true;
+    if (name.endsWith("mts")) expParams.mtsInterval = 4;
+    return expParams;
+  }//createParameters()
+
+
+  /** Run the configuration straight through and from its checkpoint, and
+   *  return what differs, or null if nothing does. */
+  public String check(int configuration) throws Exception {
+    File file = File.createTempFile("checkpoint",".bin");
+    try {
+      Surveillance original = new Surveillance(42);
+      original.expParams = createParameters(configuration);
+      original.start();
+      for (int step=0; step<numSteps; step++) {
+        original.schedule.step(original);
+        if (step+1 == numSteps/2) ModelCheckpoint.save(original,file.getPath());
+      }
+
+      Surveillance restored = new Surveillance(42);
+      restored.expParams = createParameters(configuration);
+      ModelCheckpoint.restore(restored,file.getPath());
+      while (restored.schedule.getSteps() < numSteps)
+        restored.schedule.step(restored);
+
+      return compare(original.particleStore,restored.particleStore);
+    }
+    finally {
+      file.delete();
+    }
+  }//check()
+
+
+  /** Return which array of the stores differs, or null if none does */
+  public static String compare(ParticleStore a, ParticleStore b) {
+    if (a.getNumParticles() != b.getNumParticles())
+      return "the number of particles " + a.getNumParticles() + " != " + b.getNumParticles();
+
+    String names[] = {"x", "y", "vx", "vy", "fx", "fy", "mass"};
+    double arraysA[][] = {a.x, a.y, a.vx, a.vy, a.fx, a.fy, a.mass};
+    double arraysB[][] = {b.x, b.y, b.vx, b.vy, b.fx, b.fy, b.mass};
+    for (int k=0; k<names.length; k++)
+      for (int i=0; i<a.getNumParticles(); i++)
+        if (Double.doubleToLongBits(arraysA[k][i]) != Double.doubleToLongBits(arraysB[k][i]))
+          return names[k] + "[" + i + "] " + arraysA[k][i] + " != " + arraysB[k][i];
+    return null;
+  }//compare()
+
+}
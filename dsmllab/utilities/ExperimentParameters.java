@@ -40,8 +40,10 @@ public class ExperimentParameters implements Serializable
   public static PrintWriter statusOut = new PrintWriter(System.out, true);
   public static String username;
 
-  protected static Properties properties = null;
-  protected static boolean mIsLoaded = false;
+  // Each parameters object reads its own file, so objects loaded on
+  // different threads can't see each other's values
+  protected transient Properties properties = null;
+  protected boolean mIsLoaded = false;
 
   // The paramFile member variable will not be overwritten during the read.
   public String paramFile = "test.exp";
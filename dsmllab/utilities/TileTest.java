@@ -0,0 +1,193 @@
+//
+// TileTest.java
+//
+
+package dsmllab.utilities;
+
+import dsmllab.apmodel.*;
+import java.io.*;
+import java.util.Arrays;
+
+
+/**
+ *  Checks that a swarm split into tiles (see TileCoordinator) ends up
+ *  where a single ArenaEngine run of the same scenario and seed does.
+ *  The scenario is run once by an ArenaEngine, and then over a
+ *  LocalTransport with each of the given numbers of workers, and over
+ *  the loopback interface with child JVMs (the spawn mode).  For each
+ *  tiled run, the number of particles gathered back must equal the
+ *  number scattered, and the sorted x and y coordinates must match the
+ *  single run's to within the tolerance (the tiles add up the forces on
+ *  a particle in another order, so they needn't match exactly).  If
+ *  there is a targets file, the number of targets covered must match too.
+ *
+ *  Run it from the directory holding the parameters file.  It prints
+ *  one line per run and exits with status 1 if any of them fails.
+ *
+ *  Usage:  java dsmllab.utilities.TileTest [-params file] [-steps n]
+ *                  [-scale s] [-workers 1,2,4] [-spawnWorkers n]
+ *                  [-targets points.txt] [-tolerance x] [-port p]
+ */
+
+public class TileTest {
+  protected String paramsFile = "het.params";
+  protected String targetsFile = "points.txt";
+  protected long numSteps = 100;
+  protected int scale = 1;
+  protected long seed = 42;
+  protected double tolerance = 1e-9;
+  protected int port = TileCoordinator.DEFAULT_PORT;
+
+  protected String apParams;
+  protected double singleX[], singleY[];
+  protected int singleCovered = 0;
+
+
+  public static void main(String args[]) throws Exception {
+    TileTest test = new TileTest();
+    String workers[] = {"1", "2", "3", "4", "6"};
+    int spawnWorkers = 2;
+
+    for (int i=0; i<args.length-1; i+=2) {
+      if (args[i].equals("-params")) test.paramsFile = args[i+1];
+      else if (args[i].equals("-steps")) test.numSteps = Long.parseLong(args[i+1]);
+      else if (args[i].equals("-scale")) test.scale = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-workers")) workers = args[i+1].split(",");
+      else if (args[i].equals("-spawnWorkers")) spawnWorkers = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-targets")) test.targetsFile = args[i+1];
+      else if (args[i].equals("-tolerance")) test.tolerance = Double.parseDouble(args[i+1]);
+      else if (args[i].equals("-port")) test.port = Integer.parseInt(args[i+1]);
+      else System.err.println("Warning:  Ignoring unknown option " + args[i]);
+    }
+
+    test.runSingle();
+    boolean passed = true;
+    for (int w=0; w<workers.length; w++)
+      passed &= test.report("local, " + workers[w] + " workers",test.runLocal(Integer.parseInt(workers[w])));
+    if (spawnWorkers > 0)
+      passed &= test.report("spawn, " + spawnWorkers + " workers",test.runSpawn(spawnWorkers));
+    System.exit(passed ? 0 : 1);
+  }//main()
+
+
+  protected boolean report(String name, String problem) {
+    System.out.println(name + ":  " + (problem == null ? "same" : "FAILED, " + problem));
+    return (problem == null);
+  }//report()
+
+
+  /** A model of the test's seed, its field grown by the scale */
+  protected APModel createModel() {
+    APModel ap = new APModel(seed);
+    double side = Math.sqrt(scale);
+    ap.XMAX = ap.XMIN + side*(ap.XMAX-ap.XMIN);
+    ap.YMAX = ap.YMIN + side*(ap.YMAX-ap.YMIN);
+    return ap;
+  }//createModel()
+
+
+  protected TileCoordinator createCoordinator(TileTransport transport) throws Exception {
+    TileCoordinator coordinator = new TileCoordinator(transport,createModel(),apParams);
+    coordinator.numThreads = 1;
+    coordinator.reportInterval = (int)Math.max(1,numSteps);
+    coordinator.log = new PrintStream(new ByteArrayOutputStream());
+    if (new File(targetsFile).exists()) coordinator.loadTargets(targetsFile);
+    return coordinator;
+  }//createCoordinator()
+
+
+  /** Run the scenario in one ArenaEngine, and keep where it ends up */
+  public void runSingle() throws Exception {
+    DataInputStream in = new DataInputStream(new FileInputStream(paramsFile));
+    byte contents[] = new byte[(int)new File(paramsFile).length()];
+    in.readFully(contents);
+    in.close();
+    apParams = new String(contents,"UTF-8");
+
+    APModel ap = createModel();
+    ap.expParams = new APExperimentParameters();
+    ap.expParams.loadParameters();
+    ap.expParams.readFromParamFile = false;
+    ap.expParams.numThreads = 1;
+    ap.apParamsString = apParams;
+    ArenaEngine engine = ArenaEngine.create(ap,scale);
+    engine.runSteps(numSteps);
+
+    ParticleArena arena = engine.getArena();
+    singleX = new double[arena.getNumParticles()];
+    singleY = new double[arena.getNumParticles()];
+    for (int i=0; i<singleX.length; i++) {
+      singleX[i] = arena.getX(i);
+      singleY[i] = arena.getY(i);
+    }
+    Arrays.sort(singleX);
+    Arrays.sort(singleY);
+
+    TileCoordinator targets = createCoordinator(LocalTransport.createGroup(1)[0]);
+    singleCovered = engine.markCovered(targets.targetX,targets.targetY,new boolean[targets.targetX.length]);
+  }//runSingle()
+
+
+  /** Run the tiles as threads over a LocalTransport */
+  public String runLocal(int numWorkers) throws Exception {
+    LocalTransport transports[] = LocalTransport.createGroup(numWorkers+1);
+    Thread workers[] = new Thread[numWorkers];
+    for (int w=0; w<numWorkers; w++) {
+      workers[w] = new Thread(new TileWorker(transports[w+1]),"TileWorker " + w);
+      workers[w].start();
+    }
+
+    TileCoordinator coordinator = createCoordinator(transports[0]);
+    coordinator.run(numSteps,scale);
+    transports[0].close();
+    for (int w=0; w<numWorkers; w++) workers[w].join();
+    return compare(coordinator);
+  }//runLocal()
+
+
+  /** Run the tiles in child JVMs, over the loopback interface */
+  public String runSpawn(int numWorkers) throws Exception {
+    String hosts = "";
+    for (int r=0; r<=numWorkers; r++) hosts += (r == 0 ? "" : ",") + "127.0.0.1:" + (port+r);
+    Process children[] = TileCoordinator.spawnWorkers(hosts);
+    SocketTransport transport = new SocketTransport(0,hosts.split(","));
+
+    TileCoordinator coordinator = createCoordinator(transport);
+    coordinator.run(numSteps,scale);
+    transport.close();
+    for (int c=0; c<children.length; c++)
+      if (children[c].waitFor() != 0) return "worker " + (c+1) + " exited with " + children[c].exitValue();
+    return compare(coordinator);
+  }//runSpawn()
+
+
+  /** Return how the tiled run differs from the single one, or null if
+   *  it doesn't. */
+  protected String compare(TileCoordinator coordinator) {
+    ParticleArena arena = coordinator.getArena();
+    int n = arena.getNumParticles();
+    if (n != coordinator.getNumScattered())
+      return "gathered " + n + " of " + coordinator.getNumScattered() + " particles";
+    if (n != singleX.length)
+      return "scattered " + n + " particles, not " + singleX.length;
+
+    double x[] = new double[n], y[] = new double[n];
+    for (int i=0; i<n; i++) {
+      x[i] = arena.getX(i);
+      y[i] = arena.getY(i);
+    }
+    Arrays.sort(x);
+    Arrays.sort(y);
+    double difference = 0.0;
+    for (int i=0; i<n; i++)
+      difference = Math.max(difference,Math.max(Math.abs(x[i]-singleX[i]),Math.abs(y[i]-singleY[i])));
+    if (difference > tolerance)
+      return "the positions differ by up to " + difference;
+
+    int covered = coordinator.getLastSummary().getNumCovered();
+    if (covered != singleCovered)
+      return "covered " + covered + " targets, not " + singleCovered;
+    return null;
+  }//compare()
+
+}